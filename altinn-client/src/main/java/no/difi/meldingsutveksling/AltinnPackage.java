@@ -12,6 +12,7 @@ import no.difi.meldingsutveksling.shipping.UploadRequest;
 import no.difi.meldingsutveksling.shipping.sftp.BrokerServiceManifestBuilder;
 import no.difi.meldingsutveksling.shipping.sftp.ExternalServiceBuilder;
 import no.difi.meldingsutveksling.shipping.sftp.RecipientBuilder;
+import no.difi.meldingsutveksling.xml.JaxbPool;
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
 import org.apache.commons.io.IOUtils;
@@ -21,15 +22,17 @@ import org.springframework.context.ApplicationContext;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
-import javax.xml.bind.Unmarshaller;
 import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
-import java.io.*;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
-import java.util.Enumeration;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
 import static no.difi.meldingsutveksling.NextMoveConsts.ASIC_FILE;
@@ -45,17 +48,17 @@ public class AltinnPackage {
     private static final String RECIPIENTS_XML = "recipients.xml";
     private static final String MANIFEST_XML = "manifest.xml";
 
-    private static final JAXBContext ctx;
+    private static final JaxbPool jaxbPool;
     private final BrokerServiceManifest manifest;
     private final BrokerServiceRecipientList recipient;
     private final StandardBusinessDocument sbd;
     private final InputStream asicInputStream;
-    private final TmpFile tmpFile;
 
     static {
         try {
-            ctx = JAXBContextFactory.createContext(new Class[]{BrokerServiceManifest.class,
+            JAXBContext ctx = JAXBContextFactory.createContext(new Class[]{BrokerServiceManifest.class,
                     BrokerServiceRecipientList.class, StandardBusinessDocument.class}, new HashMap());
+            jaxbPool = new JaxbPool(ctx, Collections.singletonMap(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE));
         } catch (JAXBException e) {
             throw new MeldingsUtvekslingRuntimeException("Could not create JAXBContext", e);
         }
@@ -64,13 +67,11 @@ public class AltinnPackage {
     private AltinnPackage(BrokerServiceManifest manifest,
                           BrokerServiceRecipientList recipient,
                           StandardBusinessDocument sbd,
-                          InputStream asicInputStream,
-                          TmpFile tmpFile) {
+                          InputStream asicInputStream) {
         this.manifest = manifest;
         this.recipient = recipient;
         this.sbd = sbd;
         this.asicInputStream = asicInputStream;
-        this.tmpFile = tmpFile;
     }
 
     public static AltinnPackage from(UploadRequest document) {
@@ -86,7 +87,7 @@ public class AltinnPackage {
                 .build();
 
         BrokerServiceRecipientList recipient = new RecipientBuilder(document.getReceiver()).build();
-        return new AltinnPackage(manifest, recipient, document.getPayload(), document.getAsicInputStream(), null);
+        return new AltinnPackage(manifest, recipient, document.getPayload(), document.getAsicInputStream());
     }
 
     private static String getFileName(UploadRequest document) {
@@ -134,38 +135,52 @@ public class AltinnPackage {
         zipOutputStream.close();
     }
 
-    public static AltinnPackage from(File f, ApplicationContext context) throws IOException, JAXBException {
-        try (ZipFile zipFile = new ZipFile(f)) {
-            Unmarshaller unmarshaller = ctx.createUnmarshaller();
+    /**
+     * Reads an Altinn package from a zip stream in a single pass, and calls the handler with the package. Small
+     * entries are read into memory, while the ASiC is passed to the handler straight from the zip stream. If the
+     * ASiC entry comes before the manifest, the recipient list and the SBD have all been read, the ASiC is spooled
+     * to a temporary file that is deleted after the handler has returned. A package without a manifest or recipient
+     * list is passed on without them.
+     * <p>
+     * Altinn writes stored entries with data descriptors, which java.util.zip.ZipInputStream rejects. This is why
+     * downloads used to be copied to a file and opened as a ZipFile. ZipArchiveInputStream reads such entries when
+     * allowStoredEntriesWithDataDescriptor is set.
+     */
+    public static void read(InputStream inputStream, ApplicationContext context, AltinnPackageHandler handler) throws IOException, JAXBException {
+        ZipArchiveInputStream zipInputStream = new ZipArchiveInputStream(inputStream, StandardCharsets.UTF_8.name(), true, true);
+        InputStream inputStreamProxy = closeShielded(zipInputStream);
 
-            BrokerServiceManifest manifest = null;
-            BrokerServiceRecipientList recipientList = null;
-            StandardBusinessDocument sbd = null;
-            TmpFile tmpAsicFile = null;
-            InputStream asicInputStream = null;
+        BrokerServiceManifest manifest = null;
+        BrokerServiceRecipientList recipientList = null;
+        StandardBusinessDocument sbd = null;
+        TmpFile tmpAsicFile = null;
+        boolean handled = false;
 
-            Enumeration<? extends ZipEntry> entries = zipFile.entries();
-            while (entries.hasMoreElements()) {
-                ZipEntry zipEntry = entries.nextElement();
+        try {
+            ArchiveEntry zipEntry;
+            while ((zipEntry = zipInputStream.getNextEntry()) != null) {
                 switch (zipEntry.getName()) {
                     case MANIFEST_XML:
-                        manifest = (BrokerServiceManifest) unmarshaller.unmarshal(zipFile.getInputStream(zipEntry));
+                        manifest = (BrokerServiceManifest) jaxbPool.unmarshal(inputStreamProxy);
                         break;
                     case RECIPIENTS_XML:
-                        recipientList = (BrokerServiceRecipientList) unmarshaller.unmarshal(zipFile.getInputStream(zipEntry));
+                        recipientList = (BrokerServiceRecipientList) jaxbPool.unmarshal(inputStreamProxy);
                         break;
                     case SBD_FILE:
-                        ObjectMapper om = context.getBean(ObjectMapper.class);
-                        om.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
-                        sbd = om.readValue(zipFile.getInputStream(zipEntry), StandardBusinessDocument.class);
+                        sbd = context.getBean(ObjectMapper.class).readValue(inputStreamProxy, StandardBusinessDocument.class);
                         break;
                     case CONTENT_XML:
-                        Source source = new StreamSource(zipFile.getInputStream(zipEntry));
-                        sbd = unmarshaller.unmarshal(source, StandardBusinessDocument.class).getValue();
+                        Source source = new StreamSource(inputStreamProxy);
+                        sbd = jaxbPool.unmarshal(source, StandardBusinessDocument.class).getValue();
                         break;
                     case ASIC_FILE:
-                        tmpAsicFile = TmpFile.create(zipFile.getInputStream(zipEntry));
-                        asicInputStream = tmpAsicFile.getInputStream();
+                        if (manifest != null && recipientList != null && sbd != null && !handled) {
+                            handler.handle(new AltinnPackage(manifest, recipientList, sbd, inputStreamProxy));
+                            handled = true;
+                        } else {
+                            log.debug("Altinn zip has {} before the manifest, recipient list or SBD, spooling it to a temporary file", ASIC_FILE);
+                            tmpAsicFile = TmpFile.create(inputStreamProxy);
+                        }
                         break;
                     default:
                         log.info("Skipping file: {}", zipEntry.getName());
@@ -175,20 +190,22 @@ public class AltinnPackage {
             if (sbd == null) {
                 throw new MeldingsUtvekslingRuntimeException("Altinn zip does not contain BestEdu document, cannot proceed");
             }
-            return new AltinnPackage(manifest, recipientList, sbd, asicInputStream, tmpAsicFile);
+            if (!handled) {
+                try (InputStream asicInputStream = tmpAsicFile != null ? tmpAsicFile.getInputStream() : null) {
+                    handler.handle(new AltinnPackage(manifest, recipientList, sbd, asicInputStream));
+                }
+            }
+        } finally {
+            if (tmpAsicFile != null) {
+                tmpAsicFile.delete();
+            }
         }
     }
 
     public static AltinnPackage from(InputStream inputStream) throws IOException, JAXBException {
         ZipArchiveInputStream zipInputStream = new ZipArchiveInputStream(inputStream);
-        InputStream inputStreamProxy = new FilterInputStream(zipInputStream) {
-            @Override
-            public void close() {
-                // do nothing to avoid unmarshaller to close it before the Zip file is fully processed
-            }
-        };
+        InputStream inputStreamProxy = closeShielded(zipInputStream);
 
-        Unmarshaller unmarshaller = ctx.createUnmarshaller();
 
         ArchiveEntry zipEntry;
         BrokerServiceManifest manifest = null;
@@ -198,32 +215,47 @@ public class AltinnPackage {
         while ((zipEntry = zipInputStream.getNextEntry()) != null) {
             switch (zipEntry.getName()) {
                 case MANIFEST_XML:
-                    manifest = (BrokerServiceManifest) unmarshaller.unmarshal(inputStreamProxy);
+                    manifest = (BrokerServiceManifest) jaxbPool.unmarshal(inputStreamProxy);
                     break;
                 case RECIPIENTS_XML:
-                    recipientList = (BrokerServiceRecipientList) unmarshaller.unmarshal(inputStreamProxy);
+                    recipientList = (BrokerServiceRecipientList) jaxbPool.unmarshal(inputStreamProxy);
                     break;
                 case CONTENT_XML:
                     Source source = new StreamSource(inputStreamProxy);
-                    sbd = unmarshaller.unmarshal(source, StandardBusinessDocument.class).getValue();
+                    sbd = jaxbPool.unmarshal(source, StandardBusinessDocument.class).getValue();
                     break;
                 default:
                     log.info("Skipping file: {}", zipEntry.getName());
             }
         }
-        return new AltinnPackage(manifest, recipientList, sbd, null, null);
+        return new AltinnPackage(manifest, recipientList, sbd, null);
+    }
+
+    private static InputStream closeShielded(InputStream inputStream) {
+        return new FilterInputStream(inputStream) {
+            @Override
+            public void close() {
+                // do nothing to avoid unmarshaller to close it before the Zip file is fully processed
+            }
+        };
     }
 
     private void marshallObject(Object object, OutputStream outputStream) {
         try {
-            Marshaller marshaller = ctx.createMarshaller();
-            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
-            marshaller.marshal(object, outputStream);
+            jaxbPool.marshal(object, outputStream);
         } catch (JAXBException e) {
             throw new MeldingsUtvekslingRuntimeException("Couldn't marshall object");
         }
     }
 
+    BrokerServiceManifest getManifest() {
+        return this.manifest;
+    }
+
+    BrokerServiceRecipientList getRecipient() {
+        return this.recipient;
+    }
+
     public StandardBusinessDocument getSbd() {
         return this.sbd;
     }
@@ -231,8 +263,4 @@ public class AltinnPackage {
     public InputStream getAsicInputStream() {
         return this.asicInputStream;
     }
-
-    public TmpFile getTmpFile() {
-        return this.tmpFile;
-    }
 }
@@ -0,0 +1,13 @@
+package no.difi.meldingsutveksling;
+
+import java.io.IOException;
+
+/**
+ * Handles an Altinn package while it is being downloaded. The ASiC stream of the package is read directly from
+ * the download, and must be consumed or closed before the handler returns.
+ */
+@FunctionalInterface
+public interface AltinnPackageHandler {
+
+    void handle(AltinnPackage altinnPackage) throws IOException;
+}
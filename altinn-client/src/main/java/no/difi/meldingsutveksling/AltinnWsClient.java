@@ -19,7 +19,6 @@ import no.difi.meldingsutveksling.shipping.ws.AltinnReasonFactory;
 import no.difi.meldingsutveksling.shipping.ws.AltinnWsException;
 import no.difi.meldingsutveksling.shipping.ws.ManifestBuilder;
 import no.difi.meldingsutveksling.shipping.ws.RecipientBuilder;
-import org.apache.commons.io.FileUtils;
 import org.springframework.context.ApplicationContext;
 
 import javax.activation.DataHandler;
@@ -28,7 +27,6 @@ import javax.xml.bind.JAXBException;
 import javax.xml.ws.BindingProvider;
 import javax.xml.ws.soap.MTOMFeature;
 import javax.xml.ws.soap.SOAPBinding;
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PipedOutputStream;
@@ -172,17 +170,16 @@ public class AltinnWsClient {
         return searchParameters;
     }
 
-    public AltinnPackage download(DownloadRequest request) {
+    /**
+     * Downloads a file and passes it to the handler while it is read from Altinn, without storing the file first.
+     */
+    public void download(DownloadRequest request, AltinnPackageHandler handler) {
         try {
             DataHandler dh = getIBrokerServiceExternalBasicStreamed().downloadFileStreamedBasic(configuration.getUsername(), configuration.getPassword(), request.getFileReference(), request.getReciever());
-            // TODO: rewrite this when Altinn fixes zip
-            TmpFile tmpFile = TmpFile.create();
-            File file = tmpFile.getFile();
-            FileUtils.copyInputStreamToFile(dh.getInputStream(), file);
-            AltinnPackage altinnPackage = AltinnPackage.from(file, context);
-            tmpFile.delete();
-
-            return altinnPackage;
+            // Read straight from the download, see AltinnPackage.read for how the Altinn zip format is handled
+            try (InputStream inputStream = dh.getInputStream()) {
+                AltinnPackage.read(inputStream, context, handler);
+            }
         } catch (IBrokerServiceExternalBasicStreamedDownloadFileStreamedBasicAltinnFaultFaultFaultMessage e) {
             throw new AltinnWsException(CANNOT_DOWNLOAD_FILE, AltinnReasonFactory.from(e), e);
         } catch (IOException | JAXBException e) {
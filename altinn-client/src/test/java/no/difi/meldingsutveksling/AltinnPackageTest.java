@@ -1,13 +1,56 @@
 package no.difi.meldingsutveksling;
 
+import no.difi.meldingsutveksling.domain.MeldingsUtvekslingRuntimeException;
 import no.difi.meldingsutveksling.shipping.UploadRequest;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
 public class AltinnPackageTest {
 
+    private static final String MANIFEST = "manifest.xml";
+    private static final String RECIPIENTS = "recipients.xml";
+    private static final String CONTENT = "content.xml";
+    private static final String ASIC = "asic.zip";
+    private static final String ASIC_CONTENT = "asic content";
+
+    private final Map<String, byte[]> entries = new HashMap<>();
+    private final AtomicReference<AltinnPackage> handled = new AtomicReference<>();
+    private final AtomicReference<String> asic = new AtomicReference<>();
+    private final AtomicInteger spooledWhileHandling = new AtomicInteger();
+
+    @Before
+    public void setup() throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        AltinnPackage.from(new MockRequest()).write(outputStream, null);
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(outputStream.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                entries.put(entry.getName(), IOUtils.toByteArray(zip));
+            }
+        }
+        entries.put(CONTENT, "<StandardBusinessDocument xmlns=\"http://www.unece.org/cefact/namespaces/StandardBusinessDocumentHeader\"/>"
+                .getBytes(StandardCharsets.UTF_8));
+        entries.put(ASIC, ASIC_CONTENT.getBytes(StandardCharsets.UTF_8));
+    }
+
     @Test
     public void testFrom() throws Exception {
 
@@ -31,4 +74,82 @@ public class AltinnPackageTest {
     public void testFrom1() throws Exception {
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testReadPassesAsicStraightFromTheZipWhenItComesLast() throws Exception {
+        int before = spooledFiles();
+
+        read(MANIFEST, RECIPIENTS, CONTENT, ASIC);
+
+        assertComplete();
+        assertEquals(before, spooledWhileHandling.get());
+    }
+
+    @Test
+    public void testReadSpoolsAsicThatComesBeforeTheSbd() throws Exception {
+        int before = spooledFiles();
+
+        read(MANIFEST, RECIPIENTS, ASIC, CONTENT);
+
+        assertComplete();
+        assertEquals(before + 1, spooledWhileHandling.get());
+        assertEquals(before, spooledFiles());
+    }
+
+    @Test
+    public void testReadSpoolsAsicThatComesBeforeTheManifestAndRecipients() throws Exception {
+        int before = spooledFiles();
+
+        read(CONTENT, ASIC, MANIFEST, RECIPIENTS);
+
+        assertComplete();
+        assertEquals(before + 1, spooledWhileHandling.get());
+        assertEquals(before, spooledFiles());
+    }
+
+    @Test
+    public void testReadPassesOnPackageWithoutManifest() throws Exception {
+        int before = spooledFiles();
+
+        read(RECIPIENTS, CONTENT, ASIC);
+
+        assertNull(handled.get().getManifest());
+        assertNotNull(handled.get().getRecipient());
+        assertNotNull(handled.get().getSbd());
+        assertEquals(ASIC_CONTENT, asic.get());
+        assertEquals(before, spooledFiles());
+    }
+
+    @Test(expected = MeldingsUtvekslingRuntimeException.class)
+    public void testReadFailsWithoutSbd() throws Exception {
+        read(MANIFEST, RECIPIENTS, ASIC);
+    }
+
+    private void assertComplete() {
+        assertNotNull(handled.get().getManifest());
+        assertNotNull(handled.get().getRecipient());
+        assertNotNull(handled.get().getSbd());
+        assertEquals(ASIC_CONTENT, asic.get());
+    }
+
+    private void read(String... order) throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(outputStream)) {
+            for (String name : order) {
+                zip.putNextEntry(new ZipEntry(name));
+                zip.write(entries.get(name));
+                zip.closeEntry();
+            }
+        }
+        AltinnPackage.read(new ByteArrayInputStream(outputStream.toByteArray()), null, altinnPackage -> {
+            handled.set(altinnPackage);
+            spooledWhileHandling.set(spooledFiles());
+            asic.set(IOUtils.toString(altinnPackage.getAsicInputStream(), StandardCharsets.UTF_8));
+        });
+    }
+
+    private int spooledFiles() {
+        File[] files = new File(FileUtils.getTempDirectory(), "integrasjonspunkt").listFiles();
+        return files != null ? files.length : 0;
+    }
+}
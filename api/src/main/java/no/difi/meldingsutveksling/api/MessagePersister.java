@@ -17,4 +17,14 @@ public interface MessagePersister {
     FileEntryStream readStream(String messageId, String filename);
 
     void delete(String messageId) throws IOException;
+
+    /**
+     * Copies a stored file to another message, e.g. a file shared by the messages of a batch. The content is streamed
+     * from storage to storage, and file based persisters link the file where the file system allows it.
+     */
+    default void copy(String fromMessageId, String fromFilename, String toMessageId, String toFilename) throws IOException {
+        try (FileEntryStream entry = readStream(fromMessageId, fromFilename)) {
+            writeStream(toMessageId, toFilename, entry.getInputStream(), entry.getSize());
+        }
+    }
 }
@@ -18,4 +18,9 @@ public interface OptionalCryptoMessagePersister {
     FileEntryStream readStream(String messageId, String filename, Reject reject);
 
     void delete(String messageId) throws IOException;
+
+    /**
+     * Copies a stored file to another message as it is stored, without decrypting and encrypting it again.
+     */
+    void copy(String fromMessageId, String fromFilename, String toMessageId, String toFilename) throws IOException;
 }
@@ -3,6 +3,7 @@ package no.difi.meldingsutveksling.api
 import no.difi.meldingsutveksling.MessageInformable
 import no.difi.meldingsutveksling.ServiceIdentifier
 import no.difi.meldingsutveksling.domain.sbdh.StandardBusinessDocument
+import no.difi.meldingsutveksling.nextmove.ArkivmeldingMetadata
 import no.difi.meldingsutveksling.nextmove.ConversationDirection
 import no.difi.meldingsutveksling.receipt.ReceiptStatus
 import no.difi.meldingsutveksling.status.Conversation
@@ -17,5 +18,7 @@ interface ConversationService {
     fun save(conversation: Conversation): Conversation
     fun registerConversation(message: MessageInformable, vararg statuses: ReceiptStatus): Conversation
     fun registerConversation(sbd: StandardBusinessDocument, si: ServiceIdentifier, direction: ConversationDirection, vararg statuses: ReceiptStatus): Conversation
+    fun registerStatuses(statuses: Map<String, List<MessageStatus>>): List<Conversation>
+    fun registerBatch(batchId: String, messages: Collection<MessageInformable>, metadata: ArkivmeldingMetadata?): List<Conversation>
     fun findConversation(messageId: String): Optional<Conversation>
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package no.difi.meldingsutveksling;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
 import org.bouncycastle.openssl.PEMParser;
@@ -7,15 +9,56 @@ import org.bouncycastle.openssl.PEMParser;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Base64;
 
 public class CertificateParser {
 
+    private static final int MAX_CACHED_CERTIFICATES = 10000;
+
+    // Keyed by a SHA-256 digest of the PEM, so a renewed certificate in the service registry is parsed again
+    private static final Cache<String, X509Certificate> PARSED_CERTIFICATES = Caffeine.newBuilder()
+            .maximumSize(MAX_CACHED_CERTIFICATES)
+            .build();
+
     public static X509Certificate parse(String certificate) throws CertificateParserException {
         return parse(new StringReader(certificate));
     }
 
+    /**
+     * Same as {@link #parse(String)}, but returns the certificate parsed from the same PEM before, if any. Receiver
+     * certificates are given as PEM in the service records, and are otherwise parsed again for every message.
+     */
+    public static X509Certificate parseCached(String certificate) throws CertificateParserException {
+        String key = digest(certificate);
+        X509Certificate parsed = PARSED_CERTIFICATES.getIfPresent(key);
+        if (parsed == null) {
+            parsed = parse(certificate);
+            PARSED_CERTIFICATES.put(key, parsed);
+        }
+        return parsed;
+    }
+
+    /**
+     * Discards the certificates cached by {@link #parseCached(String)}.
+     */
+    public static void clearCache() {
+        PARSED_CERTIFICATES.invalidateAll();
+    }
+
+    private static String digest(String certificate) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            return Base64.getEncoder().encodeToString(sha256.digest(certificate.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+
     public static X509Certificate parse(Reader reader) throws CertificateParserException {
         PEMParser pemParser = new PEMParser(reader);
 
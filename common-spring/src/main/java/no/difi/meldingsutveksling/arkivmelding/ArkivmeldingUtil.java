@@ -2,6 +2,7 @@ package no.difi.meldingsutveksling.arkivmelding;
 
 import lombok.SneakyThrows;
 import no.arkivverket.standarder.noark5.arkivmelding.*;
+import no.difi.meldingsutveksling.xml.JaxbPool;
 import org.springframework.stereotype.Component;
 
 import javax.xml.bind.JAXBContext;
@@ -16,11 +17,11 @@ import java.util.stream.Collectors;
 @Component
 public class ArkivmeldingUtil {
 
-    private final JAXBContext marshallerContext;
+    private final JaxbPool jaxbPool;
 
     @SneakyThrows
     public ArkivmeldingUtil() {
-        this.marshallerContext = JAXBContext.newInstance(Arkivmelding.class);
+        this.jaxbPool = new JaxbPool(JAXBContext.newInstance(Arkivmelding.class));
     }
 
     public List<String> getFilenames(Arkivmelding am) {
@@ -35,12 +36,12 @@ public class ArkivmeldingUtil {
 
     public byte[] marshalArkivmelding(Arkivmelding am) throws JAXBException {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        marshallerContext.createMarshaller().marshal(am, bos);
+        jaxbPool.marshal(am, bos);
         return bos.toByteArray();
     }
 
     public Arkivmelding unmarshalArkivmelding(InputStream inputStream) throws JAXBException {
-        return marshallerContext.createUnmarshaller().unmarshal(new StreamSource(inputStream), Arkivmelding.class).getValue();
+        return jaxbPool.unmarshal(new StreamSource(inputStream), Arkivmelding.class).getValue();
     }
 
     public Saksmappe getSaksmappe(Arkivmelding am) {
@@ -27,5 +27,13 @@ public class AltinnFormidlingsTjenestenConfig {
     private Integer requestTimeout;
     @NotNull
     private DataSize uploadSizeLimit;
+    /**
+     * Delay in milliseconds between polls when no files are available.
+     */
+    private long pollingrate = 15000;
+    /**
+     * Number of files downloaded at the same time.
+     */
+    private int downloadConcurrency = 4;
 
 }
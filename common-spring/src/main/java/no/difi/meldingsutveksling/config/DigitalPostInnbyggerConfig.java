@@ -13,6 +13,7 @@ import org.springframework.util.unit.DataSize;
 
 import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
+import java.time.Duration;
 
 @Data
 public class DigitalPostInnbyggerConfig {
@@ -59,4 +60,34 @@ public class DigitalPostInnbyggerConfig {
     @NotNull
     private int clientMaxConnectionPoolSize;
 
+    /**
+     * Maximum number of SikkerDigitalPostKlient instances kept for reuse, one per sender and interceptor set.
+     */
+    @NotNull
+    private int clientCacheSize = 100;
+
+    /**
+     * How often the keystore and trust store files are checked for modification, when creating clients.
+     */
+    @NotNull
+    private Duration keystoreCheckInterval = Duration.ofMinutes(1);
+
+    /**
+     * Maximum number of receipts persisted in one transaction while draining an MPC.
+     */
+    @NotNull
+    private int receiptBatchSize = 100;
+
+    /**
+     * Maximum number of concurrent consumers fetching receipts from one MPC while it has a backlog.
+     */
+    @NotNull
+    private int receiptMaxConsumers = 4;
+
+    /**
+     * Upper limit for document content held in memory by messages being sent at the same time.
+     */
+    @NotNull
+    private DataSize sendHeapLimit = DataSize.ofMegabytes(512);
+
 }
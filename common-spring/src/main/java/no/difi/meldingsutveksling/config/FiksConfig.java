@@ -44,6 +44,10 @@ public class FiksConfig {
         private String password;
         private URL endpointUrl;
         private DataSize uploadSizeLimit;
+        @NotNull
+        private Integer statusChunkSize = 100;
+        @NotNull
+        private Integer statusConcurrency = 4;
     }
 
     @Data
@@ -65,5 +69,11 @@ public class FiksConfig {
         private Integer connectTimeout;
         @NotNull
         private Integer readTimeout;
+        @NotNull
+        private Integer downloadRetries = 3;
+        @NotNull
+        private Integer concurrency = 4;
+        @NotNull
+        private Integer confirmBatchSize = 50;
     }
 }
@@ -1,6 +1,7 @@
 package no.difi.meldingsutveksling.config;
 
 import com.google.common.collect.Sets;
+import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.NonNull;
@@ -15,8 +16,10 @@ import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Pattern;
 import javax.validation.constraints.Positive;
+import javax.validation.constraints.PositiveOrZero;
 import javax.validation.constraints.Size;
 import java.net.URL;
+import java.time.Duration;
 import java.util.Set;
 
 /**
@@ -37,6 +40,9 @@ public class IntegrasjonspunktProperties {
     @NotNull(message = "Service registry must be configured")
     private String serviceregistryEndpoint;
 
+    @Valid
+    private ServiceRegistryCache serviceregistryCache = new ServiceRegistryCache();
+
     @Valid
     private AltinnFormidlingsTjenestenConfig dpo;
 
@@ -84,6 +90,15 @@ public class IntegrasjonspunktProperties {
     @Valid
     private DeadLock deadlock;
 
+    @Valid
+    private Pipes pipes = new Pipes();
+
+    @Valid
+    private Executors executors = new Executors();
+
+    @Valid
+    private StatusWriter statusWriter = new StatusWriter();
+
     @Data
     public static class Vault {
         private String uri;
@@ -157,6 +172,13 @@ public class IntegrasjonspunktProperties {
         @NotNull(message = "Certificate properties not set.")
         @NestedConfigurationProperty
         private KeystoreProperties keystore;
+
+        /**
+         * Milliseconds between checks of the business certificate against Virksert. Messages are validated against
+         * the result of the last check.
+         */
+        @NotNull
+        private Integer certificateCheckRate = 600000;
     }
 
     @Data
@@ -173,6 +195,42 @@ public class IntegrasjonspunktProperties {
         private Long daysToReply;
         @NotNull
         private DataSize uploadSizeLimit;
+        /**
+         * Send attachments as MTOM/XOP parts instead of base64 encoded in the SOAP body
+         */
+        private boolean mtom = false;
+        /**
+         * Maximum number of open connections to Altinn, in total and per host
+         */
+        @NotNull
+        @Positive
+        private Integer maxConnections = 18;
+        @NotNull
+        @Positive
+        private Integer maxConnectionsPerRoute = 6;
+        /**
+         * Timeouts in milliseconds for connecting, reading, and waiting for a free connection in the pool
+         */
+        @NotNull
+        private Integer connectTimeout = 30000;
+        @NotNull
+        private Integer socketTimeout = 30000;
+        @NotNull
+        private Integer connectionRequestTimeout = 30000;
+        /**
+         * Requests larger than this are buffered in a temporary file instead of in memory while they are sent
+         */
+        @NotNull
+        private DataSize requestBufferSize = DataSize.ofMegabytes(1);
+        /**
+         * Number of messages per status history request to Altinn, and number of requests running at the same time
+         */
+        @NotNull
+        @Positive
+        private Integer statusChunkSize = 200;
+        @NotNull
+        @Positive
+        private Integer statusConcurrency = 4;
 
     }
 
@@ -224,10 +282,29 @@ public class IntegrasjonspunktProperties {
 
         @NotNull
         private String filedir;
+        /**
+         * Number of message-id prefix levels used to shard filedir. Only used with channel persistence.
+         */
+        private Integer filedirShardLevels = 2;
+        /**
+         * Store files with the NIO channel based persister, sharded by message-id prefix, instead of the plain file
+         * persister. Only used when useDbPersistence is false.
+         */
+        private boolean useChannelPersistence = false;
         @NotNull
         private Integer lockTimeoutMinutes;
         @NotNull
         private Integer defaultTtlHours;
+        /**
+         * Maximum number of expired conversations handled per transaction.
+         */
+        @NotNull
+        private Integer ttlBatchSize = 100;
+        /**
+         * Delay before the expiry of a conversation that could not be expired is tried again.
+         */
+        @NotNull
+        private Duration ttlRetryDelay = Duration.ofMinutes(1);
         @NotNull
         private Boolean applyZipHeaderPatch = Boolean.FALSE;
         @Valid
@@ -236,6 +313,21 @@ public class IntegrasjonspunktProperties {
         private Set<ServiceIdentifier> statusServices;
         @NotNull
         private String statusDocumentType;
+        /**
+         * Number of pollable conversations loaded per page when polling for statuses.
+         */
+        @NotNull
+        private Integer statusPollingPageSize = 1000;
+        /**
+         * Maximum number of status checks running at the same time when polling for statuses.
+         */
+        @NotNull
+        private Integer statusPollingConcurrency = 4;
+        /**
+         * Number of receivers created per transaction when sending a batch.
+         */
+        @NotNull
+        private Integer batchSize = 500;
     }
 
     @Data
@@ -245,6 +337,83 @@ public class IntegrasjonspunktProperties {
         private Integer connectTimeout;
         @NotNull
         private Integer readTimeout;
+        /**
+         * How long the subscriptions are cached before they are reloaded. Changes made through this instance are
+         * seen at once, changes made through other instances sharing the database after at most this long.
+         */
+        @NotNull
+        private Duration subscriptionRefreshInterval = Duration.ofMinutes(1);
+        @Valid
+        private WebhookOutbox outbox = new WebhookOutbox();
+    }
+
+    @Data
+    public static class WebhookOutbox {
+
+        /**
+         * Queue webhook events on a persistent outbox, and deliver them with retries, instead of pushing them once
+         */
+        private boolean enable = true;
+        /**
+         * Milliseconds between flushes of the outbox
+         */
+        @NotNull
+        private Integer flushRate = 500;
+        /**
+         * Maximum number of events for one endpoint loaded from the outbox at a time
+         */
+        @NotNull
+        @Positive
+        private Integer dispatchSize = 500;
+        /**
+         * Maximum number of message status events posted to an endpoint in one request, as a JSON array.
+         * With 1, each event is posted on its own as a JSON object.
+         */
+        @NotNull
+        @Positive
+        private Integer batchSize = 1;
+        /**
+         * Number of endpoints delivered to at the same time
+         */
+        @NotNull
+        @Positive
+        private Integer concurrency = 10;
+        /**
+         * Maximum number of open connections per endpoint host
+         */
+        @NotNull
+        @Positive
+        private Integer maxConnectionsPerRoute = 2;
+        /**
+         * Number of delivery attempts before an event is dropped
+         */
+        @NotNull
+        @Positive
+        private Integer maxAttempts = 20;
+        /**
+         * Delay before the first retry. The delay is doubled for each attempt, and randomized by up to half.
+         */
+        @NotNull
+        private Duration retryInitialDelay = Duration.ofSeconds(10);
+        @NotNull
+        private Duration retryMaxDelay = Duration.ofHours(1);
+        /**
+         * Number of failed requests in a row before deliveries to an endpoint are paused
+         */
+        @NotNull
+        @Positive
+        private Integer circuitBreakerThreshold = 5;
+        /**
+         * How long deliveries to an endpoint are paused, before one request is let through to test it again
+         */
+        @NotNull
+        private Duration circuitBreakerOpenTime = Duration.ofMinutes(1);
+        /**
+         * How long an instance holds the lock on an endpoint without renewing it, before another instance may deliver
+         * to the endpoint
+         */
+        @NotNull
+        private Duration lockTimeout = Duration.ofMinutes(1);
     }
 
     @Data
@@ -266,6 +435,31 @@ public class IntegrasjonspunktProperties {
         private Integer connectTimeout;
         @NotNull
         private DataSize uploadSizeLimit;
+        /**
+         * Maximum number of messages per receive call when batchRead is enabled.
+         */
+        @NotNull
+        @Positive
+        private Integer receiveBatchSize = 100;
+        /**
+         * Number of messages the receiver fetches ahead of the handlers when batchRead is enabled. Capped at
+         * receiveBatchSize, as the locks of prefetched messages can not be renewed before they are received.
+         */
+        @NotNull
+        @PositiveOrZero
+        private Integer prefetchCount = 100;
+        /**
+         * Maximum number of messages handled at the same time.
+         */
+        @NotNull
+        @Positive
+        private Integer handlerConcurrency = 4;
+        /**
+         * How often locks are renewed for messages still being handled. Must be shorter than the lock duration of
+         * the queue.
+         */
+        @NotNull
+        private Duration lockRenewInterval = Duration.ofSeconds(20);
     }
 
     @Data
@@ -338,4 +532,124 @@ public class IntegrasjonspunktProperties {
         @Positive
         private int delay = 1000;
     }
+
+    @Data
+    public static class Pipes {
+
+        /**
+         * Size of the buffer between two pipe stages
+         **/
+        @NotNull
+        private DataSize bufferSize = DataSize.ofKilobytes(32);
+    }
+
+    @Data
+    public static class ServiceRegistryCache {
+
+        /**
+         * Maximum number of service registry lookups kept in the cache
+         */
+        @NotNull
+        @Positive
+        private Integer maximumSize = 10000;
+        /**
+         * Cached lookups older than this are reloaded in the background on next use, while the cached value is returned
+         */
+        @NotNull
+        private Duration refreshAfter = Duration.ofMinutes(5);
+        /**
+         * Cached lookups older than this are not used, also if reloading them has failed
+         */
+        @NotNull
+        private Duration expireAfter = Duration.ofMinutes(15);
+        /**
+         * Number of lookups made at the same time when prefetching service records for a batch
+         */
+        @NotNull
+        @Positive
+        private Integer prefetchConcurrency = 8;
+        /**
+         * Maximum number of lookups per second when prefetching service records
+         */
+        @NotNull
+        @Positive
+        private Double prefetchRate = 50.0;
+    }
+
+    @Data
+    public static class StatusWriter {
+
+        /**
+         * Queue status changes and write them in batches instead of one by one
+         */
+        private boolean enable = true;
+        /**
+         * Maximum number of status changes written in one transaction
+         */
+        @NotNull
+        private Integer batchSize = 500;
+        /**
+         * Milliseconds between flushes of queued status changes
+         */
+        @NotNull
+        private Integer flushRate = 200;
+        /**
+         * Milliseconds before the future of a queued status change that has not been stored fails
+         */
+        @NotNull
+        private Integer pendingTimeout = 3600000;
+    }
+
+    @Data
+    public static class Executors {
+
+        /**
+         * Use virtual threads in the executor pools, if supported by the JVM
+         **/
+        private boolean virtualThreads;
+
+        /**
+         * Pool for pipe stages. Pipe tasks are never queued, and are rejected when max-size stages are running.
+         **/
+        @Valid
+        private TaskPool pipes = new TaskPool(10, 1000, 0);
+
+        /**
+         * Pool for short transport requests, e.g. status chunks, confirmations and service registry prefetch
+         **/
+        @Valid
+        private TaskPool transport = new TaskPool(4, 20, 1000);
+
+        /**
+         * Pool for long-running polling work, e.g. inbound downloads, service bus handlers, status checks and
+         * webhook delivery
+         **/
+        @Valid
+        private TaskPool polling = new TaskPool(4, 20, 100);
+
+        /**
+         * Pool for @Async background jobs
+         **/
+        @Valid
+        private TaskPool background = new TaskPool(2, 10, 1000);
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class TaskPool {
+
+        /**
+         * Threads kept when idle. Only used by pools without a queue, pools with a queue let idle threads time out.
+         **/
+        @Positive
+        private int coreSize;
+        /**
+         * Threads started before tasks are queued
+         **/
+        @Positive
+        private int maxSize;
+        @PositiveOrZero
+        private int queueCapacity;
+    }
 }
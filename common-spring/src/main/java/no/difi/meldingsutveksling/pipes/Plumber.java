@@ -1,6 +1,7 @@
 package no.difi.meldingsutveksling.pipes;
 
 import lombok.RequiredArgsConstructor;
+import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
 import org.springframework.core.task.TaskExecutor;
 import org.springframework.stereotype.Component;
 
@@ -12,8 +13,14 @@ import java.util.function.Consumer;
 public class Plumber {
 
     private final TaskExecutor taskExecutor;
+    private final IntegrasjonspunktProperties props;
 
     public Pipe pipe(String description, Consumer<PipedOutputStream> consumer, Reject reject) {
-        return Pipe.of(taskExecutor, description, consumer, reject);
+        return Pipe.of(taskExecutor, getBufferSize(), description, consumer, reject);
+    }
+
+    private int getBufferSize() {
+        IntegrasjonspunktProperties.Pipes pipes = props.getPipes();
+        return pipes != null ? (int) pipes.getBufferSize().toBytes() : Pipe.DEFAULT_BUFFER_SIZE;
     }
 }
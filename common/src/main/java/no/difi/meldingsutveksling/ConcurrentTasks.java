@@ -0,0 +1,64 @@
+package no.difi.meldingsutveksling;
+
+import lombok.experimental.UtilityClass;
+
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+@UtilityClass
+public class ConcurrentTasks {
+
+    /**
+     * Applies the action to all items, with at most concurrency items in progress at the same time. The calling
+     * thread takes part in the work and returns when all items are done, so this is safe to use from a task running
+     * on the same executor. If an action throws, the remaining items are still processed and the first exception is
+     * rethrown.
+     */
+    public static <T> void forEach(Collection<? extends T> items, int concurrency, Executor executor, Consumer<? super T> action) {
+        if (items.isEmpty()) {
+            return;
+        }
+
+        Queue<T> queue = new ConcurrentLinkedQueue<>(items);
+        CountDownLatch done = new CountDownLatch(items.size());
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        Runnable worker = () -> {
+            T item;
+            while ((item = queue.poll()) != null) {
+                try {
+                    action.accept(item);
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+
+        int helpers = Math.min(concurrency, items.size()) - 1;
+        for (int i = 0; i < helpers; i++) {
+            try {
+                executor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                break;
+            }
+        }
+        worker.run();
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+}
@@ -23,6 +23,7 @@ import java.util.concurrent.TimeUnit;
 public class CacheConfig extends CachingConfigurerSupport {
 
     public static final String CACHE_GET_SAS_KEY = "getSasKey";
+    // Kept by ServiceRegistryClient, outside of the cache manager
     public static final String CACHE_LOAD_IDENTIFIER_RESOURCE = "loadIdentifierResource";
     public static final String CACHE_SR_VIRKSERT = "srVirksert";
     public static final String CACHE_FORSENDELSEID = "forsendelseIdCache";
@@ -41,10 +42,6 @@ public class CacheConfig extends CachingConfigurerSupport {
                         Caffeine.newBuilder()
                                 .expireAfterWrite(1, TimeUnit.DAYS)
                                 .build()),
-                new CaffeineCache(CACHE_LOAD_IDENTIFIER_RESOURCE,
-                        Caffeine.newBuilder()
-                                .expireAfterWrite(5, TimeUnit.MINUTES)
-                                .build()),
                 new CaffeineCache(CACHE_SR_VIRKSERT,
                         Caffeine.newBuilder()
                                 .expireAfterWrite(5, TimeUnit.MINUTES)
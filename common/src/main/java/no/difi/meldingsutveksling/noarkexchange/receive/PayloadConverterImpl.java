@@ -1,5 +1,6 @@
 package no.difi.meldingsutveksling.noarkexchange.receive;
 
+import no.difi.meldingsutveksling.xml.JaxbPool;
 import org.eclipse.persistence.jaxb.JAXBContextFactory;
 
 import javax.xml.bind.*;
@@ -10,7 +11,7 @@ import java.io.StringWriter;
 
 public class PayloadConverterImpl<T> implements PayloadConverter<T> {
 
-    private final JAXBContext jaxbContext;
+    private final JaxbPool jaxbPool;
     private Class<T> clazz;
     private String namespaceUri;
     private String localPart;
@@ -20,7 +21,7 @@ public class PayloadConverterImpl<T> implements PayloadConverter<T> {
         this.namespaceUri = namespaceUri;
         this.localPart = localPart;
         try {
-            jaxbContext = JAXBContextFactory.createContext(new Class[]{clazz}, null);
+            jaxbPool = new JaxbPool(JAXBContextFactory.createContext(new Class[]{clazz}, null));
         } catch (JAXBException e) {
             throw new PayloadConverterException("Could not create JAXBContext for " + clazz, e);
         }
@@ -31,7 +32,7 @@ public class PayloadConverterImpl<T> implements PayloadConverter<T> {
         this.namespaceUri = "uri";
         this.localPart = "local";
         try {
-            jaxbContext = JAXBContextFactory.createContext(new Class[]{clazz}, null);
+            jaxbPool = new JaxbPool(JAXBContextFactory.createContext(new Class[]{clazz}, null));
         } catch (JAXBException e) {
             throw new PayloadConverterException("Could not create JAXBContext for " + clazz, e);
         }
@@ -40,11 +41,9 @@ public class PayloadConverterImpl<T> implements PayloadConverter<T> {
     @Override
     public T unmarshallFrom(byte[] message) {
         final ByteArrayInputStream is = new ByteArrayInputStream(message);
-        Unmarshaller unmarshaller;
         try {
-            unmarshaller = jaxbContext.createUnmarshaller();
             StreamSource source = new StreamSource(is);
-            return unmarshaller.unmarshal(source, clazz).getValue();
+            return jaxbPool.unmarshal(source, clazz).getValue();
         } catch (JAXBException e) {
             throw new PayloadConverterException("Unable to create unmarshaller for " + clazz, e);
         }
@@ -54,8 +53,7 @@ public class PayloadConverterImpl<T> implements PayloadConverter<T> {
     public String marshallToString(T message) {
         final StringWriter sw = new StringWriter();
         try {
-            Marshaller marshaller = jaxbContext.createMarshaller();
-            marshaller.marshal(new JAXBElement<>(new QName(namespaceUri, localPart), clazz, message), sw);
+            jaxbPool.marshal(new JAXBElement<>(new QName(namespaceUri, localPart), clazz, message), sw);
             return sw.toString()
                     .replaceAll(":ns0|ns0:", "")
                     .replaceAll(":ns2|ns2:", "")
@@ -0,0 +1,144 @@
+package no.difi.meldingsutveksling.pipes;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer/single-consumer byte buffer. The producer only advances {@code writePosition} and the
+ * consumer only advances {@code readPosition}, so no locks are needed. A side waiting for data or space parks until
+ * the other side signals it, instead of polling.
+ */
+final class ByteRingBuffer {
+
+    private final byte[] buffer;
+    private final int capacity;
+
+    private volatile long writePosition;
+    private volatile long readPosition;
+    private volatile boolean writerClosed;
+    private volatile boolean readerClosed;
+    private volatile Thread waitingWriter;
+    private volatile Thread waitingReader;
+
+    ByteRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Buffer capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.buffer = new byte[capacity];
+    }
+
+    void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = (int) Math.min(len, awaitFreeSpace());
+            long position = writePosition;
+            int index = (int) (position % capacity);
+            int first = Math.min(n, capacity - index);
+            System.arraycopy(b, off, buffer, index, first);
+            System.arraycopy(b, off + first, buffer, 0, n - first);
+            writePosition = position + n;
+            signal(waitingReader);
+            off += n;
+            len -= n;
+        }
+    }
+
+    int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        long available = awaitData();
+        if (available < 0) {
+            return -1;
+        }
+        int n = (int) Math.min(len, available);
+        long position = readPosition;
+        int index = (int) (position % capacity);
+        int first = Math.min(n, capacity - index);
+        System.arraycopy(buffer, index, b, off, first);
+        System.arraycopy(buffer, 0, b, off + first, n - first);
+        readPosition = position + n;
+        signal(waitingWriter);
+        return n;
+    }
+
+    int available() throws IOException {
+        if (readerClosed) {
+            throw new IOException("Pipe closed");
+        }
+        return (int) Math.min(writePosition - readPosition, Integer.MAX_VALUE);
+    }
+
+    void closeWriter() {
+        writerClosed = true;
+        signal(waitingReader);
+    }
+
+    void closeReader() {
+        readerClosed = true;
+        signal(waitingWriter);
+    }
+
+    private long awaitFreeSpace() throws IOException {
+        while (true) {
+            if (writerClosed || readerClosed) {
+                throw new IOException("Pipe closed");
+            }
+            long free = freeSpace();
+            if (free > 0) {
+                return free;
+            }
+            waitingWriter = Thread.currentThread();
+            try {
+                if (freeSpace() == 0 && !readerClosed) {
+                    LockSupport.park(this);
+                }
+            } finally {
+                waitingWriter = null;
+            }
+            checkInterrupted();
+        }
+    }
+
+    private long awaitData() throws IOException {
+        while (true) {
+            if (readerClosed) {
+                throw new IOException("Pipe closed");
+            }
+            boolean closed = writerClosed;
+            long available = writePosition - readPosition;
+            if (available > 0) {
+                return available;
+            }
+            if (closed) {
+                return -1;
+            }
+            waitingReader = Thread.currentThread();
+            try {
+                if (writePosition == readPosition && !writerClosed) {
+                    LockSupport.park(this);
+                }
+            } finally {
+                waitingReader = null;
+            }
+            checkInterrupted();
+        }
+    }
+
+    private long freeSpace() {
+        return capacity - (writePosition - readPosition);
+    }
+
+    private static void signal(Thread waiting) {
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+    }
+
+    private static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Interrupted while waiting on pipe");
+        }
+    }
+}
@@ -14,25 +14,21 @@ import java.util.function.Consumer;
 @Slf4j
 public class Pipe {
 
+    public static final int DEFAULT_BUFFER_SIZE = 32768;
+
     private final Executor executor;
+    private final int bufferSize;
     private final Reject reject;
     private final PipedOutputStream inlet;
     private final PipedInputStream outlet;
 
-    private Pipe(Executor executor, Reject reject) {
+    private Pipe(Executor executor, int bufferSize, Reject reject) {
         this.executor = executor;
+        this.bufferSize = bufferSize;
         this.reject = reject;
-        this.inlet = new PipedOutputStream();
-        this.outlet = new PipedInputStream(32768);
-        connectInletAndOutlet();
-    }
-
-    private void connectInletAndOutlet() {
-        try {
-            inlet.connect(outlet);
-        } catch (IOException e) {
-            reject.reject(e);
-        }
+        ByteRingBuffer buffer = new ByteRingBuffer(bufferSize);
+        this.inlet = new RingBufferPipedOutputStream(buffer);
+        this.outlet = new RingBufferPipedInputStream(buffer);
     }
 
     public PipedInputStream outlet() {
@@ -48,21 +44,38 @@ public class Pipe {
         }
     }
 
+    // Closing the outlet wakes a writer that is blocked on a full buffer, so that it fails instead of waiting forever
+    private void closeOutlet() {
+        try {
+            outlet.close();
+        } catch (IOException e) {
+            reject.reject(e);
+        }
+    }
+
     @SuppressWarnings("squir:S1172")
     private void handleComplete(Void v, Throwable t) {
-        close();
-        if (t != null) {
-            if (t instanceof CompletionException) {
-                CompletionException ce = (CompletionException) t;
-                reject.reject(ce.getCause());
-            } else {
-                reject.reject(t);
+        // Reject before closing, so that a reader reaching end of stream can tell a failed pipe from a complete one
+        try {
+            if (t != null) {
+                if (t instanceof CompletionException) {
+                    CompletionException ce = (CompletionException) t;
+                    reject.reject(ce.getCause());
+                } else {
+                    reject.reject(t);
+                }
             }
+        } finally {
+            close();
         }
     }
 
     public static Pipe of(Executor executor, String description, Consumer<PipedOutputStream> consumer, Reject reject) {
-        Pipe pipe = new Pipe(executor, reject);
+        return of(executor, DEFAULT_BUFFER_SIZE, description, consumer, reject);
+    }
+
+    public static Pipe of(Executor executor, int bufferSize, String description, Consumer<PipedOutputStream> consumer, Reject reject) {
+        Pipe pipe = new Pipe(executor, bufferSize, reject);
         logBeforeThread(description);
         CompletableFuture.runAsync(() -> {
             logStart(description);
@@ -73,22 +86,25 @@ public class Pipe {
     }
 
     public Pipe andThen(String description, BiConsumer<PipedInputStream, PipedOutputStream> consumer) {
-        Pipe newPipe = new Pipe(executor, reject);
+        Pipe newPipe = new Pipe(executor, bufferSize, reject);
         logBeforeThread(description);
         CompletableFuture.runAsync(() -> {
             logStart(description);
-            consumer.accept(outlet, newPipe.inlet);
+            try {
+                consumer.accept(outlet, newPipe.inlet);
+            } finally {
+                closeOutlet();
+            }
             logFinish(description);
         }, executor).whenComplete(newPipe::handleComplete);
         return newPipe;
     }
 
     public void andFinally(Consumer<PipedInputStream> consumer) {
-        consumer.accept(outlet);
         try {
-            outlet.close();
-        } catch (IOException e) {
-            reject.reject(e);
+            consumer.accept(outlet);
+        } finally {
+            closeOutlet();
         }
     }
 
@@ -0,0 +1,48 @@
+package no.difi.meldingsutveksling.pipes;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+/**
+ * Outlet of a {@link Pipe}. Extends {@link PipedInputStream} so existing pipe consumers keep their signatures, but
+ * reads come straight from a shared {@link ByteRingBuffer}.
+ */
+class RingBufferPipedInputStream extends PipedInputStream {
+
+    private final ByteRingBuffer buffer;
+    private final byte[] single = new byte[1];
+
+    RingBufferPipedInputStream(ByteRingBuffer buffer) {
+        super(1);
+        this.buffer = buffer;
+    }
+
+    @Override
+    public void connect(PipedOutputStream src) throws IOException {
+        throw new IOException("Already connected");
+    }
+
+    @Override
+    public int read() throws IOException {
+        return buffer.read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        return buffer.read(b, off, len);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return buffer.available();
+    }
+
+    @Override
+    public void close() {
+        buffer.closeReader();
+    }
+}
@@ -0,0 +1,48 @@
+package no.difi.meldingsutveksling.pipes;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+/**
+ * Inlet of a {@link Pipe}. Extends {@link PipedOutputStream} so existing pipe consumers keep their signatures, but
+ * writes go straight into a shared {@link ByteRingBuffer}.
+ */
+class RingBufferPipedOutputStream extends PipedOutputStream {
+
+    private final ByteRingBuffer buffer;
+    private final byte[] single = new byte[1];
+
+    RingBufferPipedOutputStream(ByteRingBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public synchronized void connect(PipedInputStream snk) throws IOException {
+        throw new IOException("Already connected");
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        single[0] = (byte) b;
+        buffer.write(single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        buffer.write(b, off, len);
+    }
+
+    @Override
+    public void flush() {
+        // Written bytes are visible to the reader immediately
+    }
+
+    @Override
+    public void close() {
+        buffer.closeWriter();
+    }
+}
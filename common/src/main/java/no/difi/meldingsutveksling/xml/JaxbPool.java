@@ -0,0 +1,92 @@
+package no.difi.meldingsutveksling.xml;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.transform.Source;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reuses marshallers and unmarshallers of a {@link JAXBContext}. The context is thread safe, but its marshallers
+ * and unmarshallers are not, and creating them is costly compared to small documents like the SBD. Instances are
+ * borrowed for a single call, and returned to the pool if the call succeeds. At most maxIdle instances of each
+ * kind are kept.
+ */
+public class JaxbPool {
+
+    private static final int DEFAULT_MAX_IDLE = 16;
+
+    private final JAXBContext context;
+    private final Map<String, Object> marshallerProperties;
+    private final BlockingQueue<Marshaller> marshallers;
+    private final BlockingQueue<Unmarshaller> unmarshallers;
+
+    public JaxbPool(JAXBContext context) {
+        this(context, Collections.emptyMap());
+    }
+
+    public JaxbPool(JAXBContext context, Map<String, Object> marshallerProperties) {
+        this(context, marshallerProperties, DEFAULT_MAX_IDLE);
+    }
+
+    public JaxbPool(JAXBContext context, Map<String, Object> marshallerProperties, int maxIdle) {
+        this.context = context;
+        this.marshallerProperties = marshallerProperties;
+        this.marshallers = new ArrayBlockingQueue<>(maxIdle);
+        this.unmarshallers = new ArrayBlockingQueue<>(maxIdle);
+    }
+
+    public JAXBContext getContext() {
+        return context;
+    }
+
+    public void marshal(Object jaxbElement, OutputStream outputStream) throws JAXBException {
+        Marshaller marshaller = borrowMarshaller();
+        marshaller.marshal(jaxbElement, outputStream);
+        marshallers.offer(marshaller);
+    }
+
+    public void marshal(Object jaxbElement, Writer writer) throws JAXBException {
+        Marshaller marshaller = borrowMarshaller();
+        marshaller.marshal(jaxbElement, writer);
+        marshallers.offer(marshaller);
+    }
+
+    public Object unmarshal(InputStream inputStream) throws JAXBException {
+        Unmarshaller unmarshaller = borrowUnmarshaller();
+        Object result = unmarshaller.unmarshal(inputStream);
+        unmarshallers.offer(unmarshaller);
+        return result;
+    }
+
+    public <T> JAXBElement<T> unmarshal(Source source, Class<T> type) throws JAXBException {
+        Unmarshaller unmarshaller = borrowUnmarshaller();
+        JAXBElement<T> result = unmarshaller.unmarshal(source, type);
+        unmarshallers.offer(unmarshaller);
+        return result;
+    }
+
+    private Marshaller borrowMarshaller() throws JAXBException {
+        Marshaller marshaller = marshallers.poll();
+        if (marshaller == null) {
+            marshaller = context.createMarshaller();
+            for (Map.Entry<String, Object> property : marshallerProperties.entrySet()) {
+                marshaller.setProperty(property.getKey(), property.getValue());
+            }
+        }
+        return marshaller;
+    }
+
+    private Unmarshaller borrowUnmarshaller() throws JAXBException {
+        Unmarshaller unmarshaller = unmarshallers.poll();
+        return unmarshaller != null ? unmarshaller : context.createUnmarshaller();
+    }
+}
@@ -0,0 +1,141 @@
+package no.difi.meldingsutveksling.pipes;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class PipeTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final CompletableFuture<Throwable> rejected = new CompletableFuture<>();
+
+    @After
+    public void after() {
+        executor.shutdownNow();
+    }
+
+    @Test(timeout = 10000)
+    public void testDataPassesThroughAllStages() throws IOException {
+        byte[] data = new byte[1024 * 1024 + 17];
+        new Random(42).nextBytes(data);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Pipe.of(executor, 1000, "write", inlet -> {
+            try {
+                inlet.write(data);
+            } catch (IOException e) {
+                throw new PipeRuntimeException("Write failed", e);
+            }
+        }, rejected::complete)
+                .andThen("copy", (outlet, inlet) -> {
+                    try {
+                        IOUtils.copy(outlet, inlet);
+                    } catch (IOException e) {
+                        throw new PipeRuntimeException("Copy failed", e);
+                    }
+                })
+                .andFinally(outlet -> {
+                    try {
+                        IOUtils.copy(outlet, out);
+                    } catch (IOException e) {
+                        throw new PipeRuntimeException("Copy failed", e);
+                    }
+                });
+
+        assertThat(out.toByteArray()).isEqualTo(data);
+        assertThat(rejected).isNotDone();
+    }
+
+    @Test(timeout = 10000)
+    public void testSingleByteReadsAndWrites() throws IOException {
+        PipedInputStream outlet = Pipe.of(executor, 3, "write", inlet -> {
+            try {
+                for (int i = 0; i < 256; i++) {
+                    inlet.write(i);
+                }
+            } catch (IOException e) {
+                throw new PipeRuntimeException("Write failed", e);
+            }
+        }, rejected::complete).outlet();
+
+        for (int i = 0; i < 256; i++) {
+            assertThat(outlet.read()).isEqualTo(i);
+        }
+        assertThat(outlet.read()).isEqualTo(-1);
+        assertThat(rejected).isNotDone();
+    }
+
+    @Test(timeout = 10000)
+    public void testWriterIsRejectedWhenReaderCloses() throws Exception {
+        InputStream outlet = Pipe.of(executor, 16, "write", inlet -> {
+            try {
+                while (true) {
+                    inlet.write(new byte[64]);
+                }
+            } catch (IOException e) {
+                throw new PipeRuntimeException("Write failed", e);
+            }
+        }, rejected::complete).outlet();
+
+        assertThat(outlet.read()).isEqualTo(0);
+        outlet.close();
+
+        assertThat(rejected.get(5, TimeUnit.SECONDS)).isInstanceOf(PipeRuntimeException.class);
+    }
+
+    @Test(timeout = 10000)
+    public void testWriterIsRejectedWhenNextStageThrows() throws Exception {
+        CompletableFuture<Throwable> writerFailure = new CompletableFuture<>();
+        Pipe.of(executor, 16, "write", inlet -> {
+            try {
+                while (true) {
+                    inlet.write(new byte[64]);
+                }
+            } catch (IOException e) {
+                writerFailure.complete(e);
+                throw new PipeRuntimeException("Write failed", e);
+            }
+        }, rejected::complete)
+                .andThen("fail", (outlet, inlet) -> {
+                    throw new IllegalStateException("Stage failed");
+                });
+
+        assertThat(writerFailure.get(5, TimeUnit.SECONDS)).isInstanceOf(IOException.class);
+        assertThat(rejected.get(5, TimeUnit.SECONDS)).isInstanceOfAny(IllegalStateException.class, PipeRuntimeException.class);
+    }
+
+    @Test(timeout = 10000)
+    public void testWriterIsRejectedWhenFinalConsumerThrows() throws Exception {
+        CompletableFuture<Throwable> writerFailure = new CompletableFuture<>();
+        Pipe pipe = Pipe.of(executor, 16, "write", inlet -> {
+            try {
+                while (true) {
+                    inlet.write(new byte[64]);
+                }
+            } catch (IOException e) {
+                writerFailure.complete(e);
+                throw new PipeRuntimeException("Write failed", e);
+            }
+        }, rejected::complete);
+
+        assertThatThrownBy(() -> pipe.andFinally(outlet -> {
+            throw new IllegalStateException("Consumer failed");
+        })).isInstanceOf(IllegalStateException.class).hasMessage("Consumer failed");
+
+        assertThat(writerFailure.get(5, TimeUnit.SECONDS)).isInstanceOf(IOException.class);
+        assertThat(rejected.get(5, TimeUnit.SECONDS)).isInstanceOf(PipeRuntimeException.class);
+    }
+}
@@ -0,0 +1,59 @@
+package no.difi.meldingsutveksling.xml;
+
+import org.eclipse.persistence.jaxb.JAXBContextFactory;
+import org.junit.Test;
+
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class JaxbPoolTest {
+
+    private final JaxbPool jaxbPool;
+
+    public JaxbPoolTest() throws Exception {
+        this.jaxbPool = new JaxbPool(JAXBContextFactory.createContext(new Class[]{Greeting.class}, null));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        assertThat(roundTrip("hello")).isEqualTo("hello");
+        assertThat(roundTrip("again")).isEqualTo("again");
+    }
+
+    @Test
+    public void testConcurrentRoundTrips() {
+        List<CompletableFuture<String>> futures = IntStream.range(0, 100)
+                .mapToObj(i -> CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return roundTrip("text" + i);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }))
+                .collect(Collectors.toList());
+
+        List<String> texts = futures.stream().map(CompletableFuture::join).collect(Collectors.toList());
+        assertThat(texts).isEqualTo(IntStream.range(0, 100).mapToObj(i -> "text" + i).collect(Collectors.toList()));
+    }
+
+    private String roundTrip(String text) throws Exception {
+        Greeting greeting = new Greeting();
+        greeting.text = text;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        jaxbPool.marshal(greeting, out);
+        return jaxbPool.unmarshal(new StreamSource(new ByteArrayInputStream(out.toByteArray())), Greeting.class).getValue().text;
+    }
+
+    @XmlRootElement
+    public static class Greeting {
+        public String text;
+    }
+}
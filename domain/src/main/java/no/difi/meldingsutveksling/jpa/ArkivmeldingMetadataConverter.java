@@ -0,0 +1,46 @@
+package no.difi.meldingsutveksling.jpa;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import no.difi.meldingsutveksling.nextmove.ArkivmeldingMetadata;
+import no.difi.meldingsutveksling.nextmove.NextMoveRuntimeException;
+
+import javax.persistence.AttributeConverter;
+import javax.persistence.Converter;
+import java.io.IOException;
+
+@Converter
+@RequiredArgsConstructor
+public class ArkivmeldingMetadataConverter implements AttributeConverter<ArkivmeldingMetadata, String> {
+
+    @Override
+    public String convertToDatabaseColumn(ArkivmeldingMetadata metadata) {
+        if (metadata == null) {
+            return null;
+        }
+
+        try {
+            return getObjectMapper().writeValueAsString(metadata);
+        } catch (JsonProcessingException e) {
+            throw new NextMoveRuntimeException("Couldn't convert arkivmelding metadata to String", e);
+        }
+    }
+
+    @Override
+    public ArkivmeldingMetadata convertToEntityAttribute(String dbData) {
+        if (dbData == null) {
+            return null;
+        }
+
+        try {
+            return getObjectMapper().readValue(dbData, ArkivmeldingMetadata.class);
+        } catch (IOException e) {
+            throw new NextMoveRuntimeException(String.format("Couldn't convert String to arkivmelding metadata: %s", dbData), e);
+        }
+    }
+
+    private ObjectMapper getObjectMapper() {
+        return ObjectMapperHolder.get();
+    }
+}
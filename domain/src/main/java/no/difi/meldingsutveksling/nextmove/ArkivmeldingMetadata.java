@@ -0,0 +1,31 @@
+package no.difi.meldingsutveksling.nextmove;
+
+import lombok.Data;
+import no.arkivverket.standarder.noark5.arkivmelding.Journalpost;
+import no.arkivverket.standarder.noark5.arkivmelding.Saksmappe;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The parts of arkivmelding.xml needed after upload. Extracted once when the file is uploaded, and stored with the
+ * message, so that arkivmelding.xml is not read and unmarshalled again when the message is validated and sent.
+ */
+@Data
+public class ArkivmeldingMetadata {
+
+    private String tittel;
+    private String offentligTittel;
+    private String journalpostnummer;
+    private String saksmappeSystemID;
+    private List<String> filenames = new ArrayList<>();
+
+    public static ArkivmeldingMetadata of(Saksmappe saksmappe, Journalpost journalpost, List<String> filenames) {
+        return new ArkivmeldingMetadata()
+                .setTittel(journalpost.getTittel())
+                .setOffentligTittel(journalpost.getOffentligTittel())
+                .setJournalpostnummer(journalpost.getJournalpostnummer() != null ? journalpost.getJournalpostnummer().toString() : null)
+                .setSaksmappeSystemID(saksmappe.getSystemID())
+                .setFilenames(new ArrayList<>(filenames));
+    }
+}
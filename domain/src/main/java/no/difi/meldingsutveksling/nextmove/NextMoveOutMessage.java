@@ -6,12 +6,15 @@ import lombok.Setter;
 import lombok.ToString;
 import no.difi.meldingsutveksling.ServiceIdentifier;
 import no.difi.meldingsutveksling.domain.sbdh.StandardBusinessDocument;
+import no.difi.meldingsutveksling.jpa.ArkivmeldingMetadataConverter;
 import org.hibernate.annotations.DynamicUpdate;
 import org.hibernate.annotations.OptimisticLockType;
 import org.hibernate.annotations.OptimisticLocking;
 
+import javax.persistence.Convert;
 import javax.persistence.DiscriminatorValue;
 import javax.persistence.Entity;
+import javax.persistence.Lob;
 import java.util.HashSet;
 
 @Entity
@@ -24,6 +27,10 @@ import java.util.HashSet;
 @DynamicUpdate
 public class NextMoveOutMessage extends NextMoveMessage {
 
+    @Convert(converter = ArkivmeldingMetadataConverter.class)
+    @Lob
+    private ArkivmeldingMetadata arkivmeldingMetadata;
+
     public NextMoveOutMessage(String conversationId,
                               String messageId,
                               String processIdentifier,
@@ -11,6 +11,7 @@ import no.difi.meldingsutveksling.MessageInformable;
 import no.difi.meldingsutveksling.ServiceIdentifier;
 import no.difi.meldingsutveksling.domain.Organisasjonsnummer;
 import no.difi.meldingsutveksling.nextmove.AbstractEntity;
+import no.difi.meldingsutveksling.nextmove.ArkivmeldingMetadata;
 import no.difi.meldingsutveksling.nextmove.ConversationDirection;
 import org.hibernate.annotations.DynamicUpdate;
 import org.hibernate.annotations.UpdateTimestamp;
@@ -32,7 +33,10 @@ import static no.difi.meldingsutveksling.status.ConversationMarker.markerFrom;
 @Table(name = "conversation",
         indexes = {
             @Index(columnList = "conversation_id"),
-            @Index(columnList = "message_id")
+            @Index(columnList = "message_id"),
+            @Index(columnList = "batch_id"),
+            @Index(columnList = "pollable, id"),
+            @Index(columnList = "finished, expiry, id")
 })
 @NamedEntityGraph(name = "Conversation.messageStatuses", attributeNodes = @NamedAttributeNode("messageStatuses"))
 @DynamicUpdate
@@ -50,6 +54,8 @@ public class Conversation extends AbstractEntity<Long> {
     private String conversationId;
     @Column(name = "message_id", length = 36)
     private String messageId;
+    @Column(name = "batch_id", length = 36)
+    private String batchId;
     private String sender;
     private String senderIdentifier;
     private String receiver;
@@ -130,6 +136,17 @@ public class Conversation extends AbstractEntity<Long> {
         return this;
     }
 
+    /**
+     * Sets the message title and reference from the arkivmelding of the message.
+     */
+    public Conversation applyMetadata(ArkivmeldingMetadata metadata) {
+        setMessageTitle(metadata.getOffentligTittel());
+        if (metadata.getJournalpostnummer() != null) {
+            setMessageReference(metadata.getSaksmappeSystemID() + "-" + metadata.getJournalpostnummer());
+        }
+        return this;
+    }
+
     @JsonIgnore
     boolean hasStatus(MessageStatus status) {
         return getMessageStatuses().stream()
@@ -8,6 +8,7 @@ public class ConversationQueryInput {
 
     String conversationId;
     String messageId;
+    String batchId;
     String receiver;
     String receiverIdentifier;
     String sender;
@@ -6,18 +6,26 @@ import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
 import no.difi.meldingsutveksling.pipes.Plumber;
 import no.difi.meldingsutveksling.pipes.Reject;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.input.AutoCloseInputStream;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.DefaultResponseErrorHandler;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestTemplate;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.time.Duration;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 @Component
 @ConditionalOnProperty(name = "difi.move.fiks.inn.enable", havingValue = "true")
@@ -29,10 +37,13 @@ public class SvarInnClient {
     @Getter
     private final String rootUri;
     private final Plumber plumber;
+    private final int downloadRetries;
+    private final LongAdder downloadedBytes = new LongAdder();
 
     public SvarInnClient(IntegrasjonspunktProperties props, RestTemplateBuilder restTemplateBuilder, Plumber plumber) {
         this.plumber = plumber;
         this.rootUri = props.getFiks().getInn().getBaseUrl();
+        this.downloadRetries = props.getFiks().getInn().getDownloadRetries();
         this.restTemplate = restTemplateBuilder
                 .setConnectTimeout(Duration.ofMillis(props.getFiks().getInn().getConnectTimeout()))
                 .setReadTimeout(Duration.ofMillis(props.getFiks().getInn().getReadTimeout()))
@@ -47,16 +58,67 @@ public class SvarInnClient {
     }
 
     InputStream downloadZipFile(Forsendelse forsendelse, Reject reject) {
-        return plumber.pipe("downloading zip file", inlet ->
-                restTemplate.execute(forsendelse.getDownloadUrl(), HttpMethod.GET, null, response -> {
-                    InputStream body = new AutoCloseInputStream(response.getBody());
-                    int bytes = IOUtils.copy(body, inlet);
+        return plumber.pipe("downloading zip file", inlet -> {
+                    long bytes = download(forsendelse, inlet);
                     log.info("File for forsendelse {} was downloaded ({} bytes)", forsendelse.getId(), bytes);
-                    return null;
-                }), reject
+                }, reject
         ).outlet();
     }
 
+    /*
+        A download that fails while reading is resumed from the last byte written, using a range request.
+        If SvarInn ignores the range and returns the whole file, the bytes already written are skipped.
+        Failures writing to the pipe are not retried.
+     */
+    private long download(Forsendelse forsendelse, OutputStream out) {
+        AtomicLong written = new AtomicLong();
+        int retries = downloadRetries;
+        while (true) {
+            long offset = written.get();
+            try {
+                restTemplate.execute(forsendelse.getDownloadUrl(), HttpMethod.GET,
+                        request -> {
+                            if (offset > 0) {
+                                request.getHeaders().setRange(Collections.singletonList(HttpRange.createByteRange(offset)));
+                            }
+                        },
+                        response -> {
+                            try (InputStream body = response.getBody()) {
+                                if (offset > 0 && response.getStatusCode() != HttpStatus.PARTIAL_CONTENT) {
+                                    IOUtils.skipFully(body, offset);
+                                }
+                                copy(body, out, written);
+                            }
+                            return null;
+                        });
+                return written.get();
+            } catch (ResourceAccessException e) {
+                if (retries-- <= 0) {
+                    throw e;
+                }
+                log.warn("Download of forsendelse {} failed after {} bytes, resuming", forsendelse.getId(), written.get(), e);
+            }
+        }
+    }
+
+    private void copy(InputStream in, OutputStream out, AtomicLong written) throws IOException {
+        byte[] buffer = new byte[IOUtils.DEFAULT_BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            try {
+                out.write(buffer, 0, n);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            written.addAndGet(n);
+            downloadedBytes.add(n);
+        }
+    }
+
+    long getDownloadedBytes() {
+        return downloadedBytes.sum();
+    }
+
     void confirmMessage(String forsendelseId) {
         restTemplate.postForLocation("/kvitterMottak/forsendelse/{forsendelseId}", null, forsendelseId);
     }
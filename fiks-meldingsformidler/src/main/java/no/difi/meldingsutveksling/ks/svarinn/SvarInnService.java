@@ -86,6 +86,13 @@ public class SvarInnService {
         svarInnClient.confirmMessage(forsendelsesId);
     }
 
+    /**
+     * Total number of bytes downloaded from SvarInn.
+     */
+    public long getDownloadedBytes() {
+        return svarInnClient.getDownloadedBytes();
+    }
+
     public void setErrorStateForMessage(String forsendelseId, String errorMsg) {
         svarInnClient.setErrorStateForMessage(forsendelseId, errorMsg);
     }
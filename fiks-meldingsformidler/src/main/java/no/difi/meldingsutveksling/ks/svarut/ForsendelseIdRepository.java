@@ -2,10 +2,13 @@ package no.difi.meldingsutveksling.ks.svarut;
 
 import org.springframework.data.repository.CrudRepository;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 public interface ForsendelseIdRepository extends CrudRepository<ForsendelseIdEntry, String> {
 
     Optional<ForsendelseIdEntry> findByMessageId(String messageId);
+    List<ForsendelseIdEntry> findByMessageIdIn(Collection<String> messageIds);
     void deleteByMessageId(String messageId);
 }
@@ -10,6 +10,10 @@ import org.springframework.cache.annotation.Cacheable;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.stream.Collectors;
+
 import static com.google.common.base.Strings.isNullOrEmpty;
 
 @Component
@@ -34,6 +38,16 @@ public class ForsendelseIdService {
                 });
     }
 
+    /**
+     * Looks up stored forsendelseIds for several messages in one query. Messages without a stored forsendelseId
+     * are left out of the returned map, and must be resolved with {@link #getForsendelseId(Conversation)}.
+     */
+    @Transactional(readOnly = true)
+    public Map<String, String> getStoredForsendelseIds(Collection<String> messageIds) {
+        return forsendelseIdRepository.findByMessageIdIn(messageIds).stream()
+                .collect(Collectors.toMap(ForsendelseIdEntry::getMessageId, ForsendelseIdEntry::getForsendelseId, (a, b) -> a));
+    }
+
     @Transactional
     public void newEntry(String messageId, String forsendelseId) {
         if (!isNullOrEmpty(forsendelseId)) {
@@ -74,7 +74,7 @@ public class SvarUtService {
 
     private X509Certificate toX509Certificate(String pemCertificate) {
         try {
-            return CertificateParser.parse(pemCertificate);
+            return CertificateParser.parseCached(pemCertificate);
         } catch (CertificateParserException e) {
             throw new SvarUtServiceException("Certificate is invalid", e);
         }
@@ -1,15 +1,13 @@
 package no.difi.meldingsutveksling.config;
 
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.aop.interceptor.AsyncUncaughtExceptionHandler;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
-import org.springframework.core.task.SimpleAsyncTaskExecutor;
-import org.springframework.core.task.TaskExecutor;
 import org.springframework.scheduling.annotation.AsyncConfigurer;
 import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
@@ -20,15 +18,20 @@ import java.util.concurrent.Executor;
 @EnableAsync
 @Configuration
 @Import(TaskExecutorConfig.class)
-@RequiredArgsConstructor
 public class AsyncConfig implements AsyncConfigurer {
 
-    private final TaskExecutor threadPoolTaskExecutor;
+    private final Executor backgroundExecutor;
     private final IntegrasjonspunktProperties props;
 
+    public AsyncConfig(@Qualifier(TaskExecutorConfig.BACKGROUND_EXECUTOR) Executor backgroundExecutor,
+                       IntegrasjonspunktProperties props) {
+        this.backgroundExecutor = backgroundExecutor;
+        this.props = props;
+    }
+
     @Override
     public Executor getAsyncExecutor() {
-        return threadPoolTaskExecutor;
+        return backgroundExecutor;
     }
 
     @Override
@@ -2,11 +2,9 @@ package no.difi.meldingsutveksling.config;
 
 import lombok.RequiredArgsConstructor;
 import no.difi.meldingsutveksling.domain.sbdh.StandardBusinessDocument;
-import no.difi.meldingsutveksling.serviceregistry.SRParameter;
+import no.difi.meldingsutveksling.serviceregistry.ServiceRegistryClient;
 import org.aspectj.lang.annotation.Aspect;
 import org.aspectj.lang.annotation.Before;
-import org.springframework.cache.Cache;
-import org.springframework.cache.CacheManager;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.EnableAspectJAutoProxy;
 import org.springframework.context.annotation.Profile;
@@ -34,15 +32,12 @@ import org.springframework.context.annotation.Profile;
 @RequiredArgsConstructor
 public class EvictCacheBeforeCreateAndSendMessage {
 
-    private final CacheManager cacheManager;
+    private final ServiceRegistryClient serviceRegistryClient;
 
     @Before("execution(* no.difi.meldingsutveksling.nextmove.v2.NextMoveMessageOutController.createAndSendMessage(..)) && args(sbd, ..)")
     public void evictCacheBeforeCreateAndSendMessage(StandardBusinessDocument sbd) {
         System.out.println("Evicting cache");
-        Cache cache = cacheManager.getCache(CacheConfig.CACHE_LOAD_IDENTIFIER_RESOURCE);
-        if (cache != null) {
-            cache.invalidate();
-        }
+        serviceRegistryClient.invalidateIdentifierResources();
     }
 
 }
@@ -114,6 +114,13 @@ public class IntegrasjonspunktBeans {
                         .orElse(null))
                 .setNextmoveFiledir(properties.getNextmove().getFiledir())
                 .setAllowForwarding(properties.getDpv().isAllowForwarding())
+                .setMtom(properties.getDpv().isMtom())
+                .setMaxConnections(properties.getDpv().getMaxConnections())
+                .setMaxConnectionsPerRoute(properties.getDpv().getMaxConnectionsPerRoute())
+                .setConnectTimeout(properties.getDpv().getConnectTimeout())
+                .setSocketTimeout(properties.getDpv().getSocketTimeout())
+                .setConnectionRequestTimeout(properties.getDpv().getConnectionRequestTimeout())
+                .setRequestBufferSize((int) properties.getDpv().getRequestBufferSize().toBytes())
                 .setEndpointUrl(properties.getDpv().getEndpointUrl().toString());
     }
 
@@ -4,8 +4,11 @@ import io.micrometer.core.aop.TimedAspect;
 import io.micrometer.core.instrument.ImmutableTag;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import no.difi.meldingsutveksling.serviceregistry.ServiceRegistryClient;
 import org.springframework.boot.actuate.metrics.web.client.DefaultRestTemplateExchangeTagsProvider;
 import org.springframework.boot.actuate.metrics.web.client.RestTemplateExchangeTagsProvider;
 import org.springframework.context.annotation.Bean;
@@ -37,6 +40,13 @@ public class MetricsConfiguration {
         return new TimedAspect(meterRegistry);
     }
 
+    @Bean
+    public MeterBinder serviceRegistryCacheMetrics(ServiceRegistryClient serviceRegistryClient) {
+        // Hits, misses, evictions and load times of service registry lookups
+        return registry -> CaffeineCacheMetrics.monitor(registry, serviceRegistryClient.getIdentifierResourceCache(),
+                CacheConfig.CACHE_LOAD_IDENTIFIER_RESOURCE);
+    }
+
     @Bean
     public RestTemplateExchangeTagsProvider restTemplateExchangeTagsProvider() {
         return new DefaultRestTemplateExchangeTagsProvider() {
@@ -1,37 +1,123 @@
 package no.difi.meldingsutveksling.config;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
 import org.springframework.core.task.TaskExecutor;
+import org.springframework.scheduling.concurrent.ConcurrentTaskExecutor;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Named executors for pipe stages, short transport requests, long-running polling work and background jobs. Polling
+ * work runs on its own pool, so inbound downloads and handlers can not starve the requests they are waiting on.
+ * Pools with a queue start up to max-size threads before queueing. Each executor is registered with micrometer
+ * (active, queued, pool size, completed, task latency) under its name, together with a rejected task counter.
+ */
 @Slf4j
 @Configuration
+@RequiredArgsConstructor
 public class TaskExecutorConfig {
 
-    @Bean(destroyMethod = "shutdown")
-    public ThreadPoolTaskExecutor threadPoolTaskExecutor() {
-        ThreadPoolTaskExecutor taskExecutor = new ThreadPoolTaskExecutor();
-        taskExecutor.setCorePoolSize(getCorePoolSize());
-        taskExecutor.setThreadNamePrefix("TaskExecutor");
-        /*
-            If corePoolSize or more threads are running, the Executor always prefers queuing a request rather than adding a new thread.
-         */
-        taskExecutor.setQueueCapacity(0);
-        taskExecutor.initialize();
-        taskExecutor.setTaskDecorator(new MdcTaskDecorator());
-        return taskExecutor;
+    public static final String PIPE_EXECUTOR = "pipeExecutor";
+    public static final String TRANSPORT_EXECUTOR = "transportExecutor";
+    public static final String POLLING_EXECUTOR = "pollingExecutor";
+    public static final String BACKGROUND_EXECUTOR = "backgroundExecutor";
+
+    private final IntegrasjonspunktProperties props;
+    private final MeterRegistry meterRegistry;
+
+    /*
+        Stages of the same pipe block on each other, so pipe tasks are never queued.
+        A queued stage could otherwise wait forever for a thread held by the stage feeding it.
+        For the same reason a stage can not run on the calling thread, so a pipe is rejected when max-size stages are
+        running, and the rejection is counted in executor.rejected.
+     */
+    @Bean(name = PIPE_EXECUTOR, destroyMethod = "shutdown")
+    public ExecutorService pipeExecutor() {
+        IntegrasjonspunktProperties.TaskPool pool = props.getExecutors().getPipes();
+        return createExecutor("pipe", pool.getCoreSize(), pool.getMaxSize(), 0);
+    }
+
+    @Bean(name = TRANSPORT_EXECUTOR, destroyMethod = "shutdown")
+    public ExecutorService transportExecutor() {
+        IntegrasjonspunktProperties.TaskPool pool = props.getExecutors().getTransport();
+        return createExecutor("transport", pool.getCoreSize(), pool.getMaxSize(), pool.getQueueCapacity());
+    }
+
+    @Bean(name = POLLING_EXECUTOR, destroyMethod = "shutdown")
+    public ExecutorService pollingExecutor() {
+        IntegrasjonspunktProperties.TaskPool pool = props.getExecutors().getPolling();
+        return createExecutor("polling", pool.getCoreSize(), pool.getMaxSize(), pool.getQueueCapacity());
+    }
+
+    @Bean(name = BACKGROUND_EXECUTOR, destroyMethod = "shutdown")
+    public ExecutorService backgroundExecutor() {
+        IntegrasjonspunktProperties.TaskPool pool = props.getExecutors().getBackground();
+        return createExecutor("background", pool.getCoreSize(), pool.getMaxSize(), pool.getQueueCapacity());
     }
 
     @Bean
     @Primary
-    public TaskExecutor taskExecutor(ThreadPoolTaskExecutor threadPoolTaskExecutor) {
-        return threadPoolTaskExecutor;
+    public TaskExecutor taskExecutor(@Qualifier(PIPE_EXECUTOR) ExecutorService pipeExecutor) {
+        return new ConcurrentTaskExecutor(pipeExecutor);
+    }
+
+    private ExecutorService createExecutor(String name, int coreSize, int maxSize, int queueCapacity) {
+        Counter rejected = meterRegistry.counter("executor.rejected", "name", name);
+        ThreadPoolExecutor.AbortPolicy abortPolicy = new ThreadPoolExecutor.AbortPolicy();
+
+        ThreadPoolTaskExecutor taskExecutor = new ThreadPoolTaskExecutor();
+        if (queueCapacity > 0) {
+            // A thread pool only grows past its core size when the queue is full, so all threads are core threads
+            taskExecutor.setCorePoolSize(Math.max(coreSize, maxSize));
+            taskExecutor.setAllowCoreThreadTimeOut(true);
+        } else {
+            taskExecutor.setCorePoolSize(coreSize);
+        }
+        taskExecutor.setMaxPoolSize(Math.max(coreSize, maxSize));
+        taskExecutor.setQueueCapacity(queueCapacity);
+        taskExecutor.setThreadNamePrefix(Character.toUpperCase(name.charAt(0)) + name.substring(1) + "Executor-");
+        taskExecutor.setTaskDecorator(new MdcTaskDecorator());
+        taskExecutor.setRejectedExecutionHandler((r, executor) -> {
+            rejected.increment();
+            abortPolicy.rejectedExecution(r, executor);
+        });
+        if (props.getExecutors().isVirtualThreads()) {
+            ThreadFactory virtualThreadFactory = createVirtualThreadFactory(name);
+            if (virtualThreadFactory != null) {
+                log.info("Using virtual threads for {} executor", name);
+                taskExecutor.setThreadFactory(virtualThreadFactory);
+            } else {
+                log.warn("Virtual threads are not supported by this JVM, using platform threads for {} executor", name);
+            }
+        }
+        taskExecutor.initialize();
+
+        return ExecutorServiceMetrics.monitor(meterRegistry, taskExecutor.getThreadPoolExecutor(), name, Tags.empty());
     }
 
-    private int getCorePoolSize() {
-        return 1;
+    /*
+        Thread.ofVirtual() is only available on newer JVMs, so it is looked up reflectively.
+     */
+    private ThreadFactory createVirtualThreadFactory(String name) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-virtual-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
     }
 }
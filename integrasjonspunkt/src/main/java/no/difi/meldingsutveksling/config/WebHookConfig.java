@@ -3,11 +3,14 @@ package no.difi.meldingsutveksling.config;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import no.difi.meldingsutveksling.webhooks.UrlPusher;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
 import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.web.client.DefaultResponseErrorHandler;
 
 import java.io.IOException;
@@ -26,6 +29,7 @@ public class WebHookConfig {
         IntegrasjonspunktProperties.WebHooks webHooks = integrasjonspunktProperties.getWebhooks();
 
         return new UrlPusher(restTemplateBuilder
+                .requestFactory(() -> new HttpComponentsClientHttpRequestFactory(getHttpClient(webHooks)))
                 .setConnectTimeout(Duration.ofMillis(webHooks.getConnectTimeout()))
                 .setReadTimeout(Duration.ofMillis(webHooks.getReadTimeout()))
                 .errorHandler(new DefaultResponseErrorHandler() {
@@ -36,4 +40,16 @@ public class WebHookConfig {
                 })
                 .build());
     }
+
+    /*
+        Connections are pooled and kept alive between deliveries, limited per endpoint host.
+     */
+    private CloseableHttpClient getHttpClient(IntegrasjonspunktProperties.WebHooks webHooks) {
+        IntegrasjonspunktProperties.WebhookOutbox outbox = webHooks.getOutbox();
+        return HttpClientBuilder.create()
+                .useSystemProperties()
+                .setMaxConnTotal(outbox.getConcurrency() * outbox.getMaxConnectionsPerRoute())
+                .setMaxConnPerRoute(outbox.getMaxConnectionsPerRoute())
+                .build();
+    }
 }
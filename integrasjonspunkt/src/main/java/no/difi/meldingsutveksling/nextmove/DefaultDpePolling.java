@@ -28,11 +28,12 @@ public class DefaultDpePolling implements DpePolling {
     @Timed
     public void poll() {
         if (properties.getNextmove().getServiceBus().isBatchRead()) {
+            // The batch receiver runs continuously, and is only restarted here if it has stopped
             if (this.batchRead == null || this.batchRead.isDone()) {
-                log.debug("Checking for new DPE messages (batch)..");
+                log.debug("Starting DPE receiver (batch)..");
                 this.batchRead = nextMoveServiceBus.getAllMessagesBatch();
             } else {
-                log.debug("DPE batch still processing..");
+                log.trace("DPE receiver running..");
             }
         } else {
             log.debug("Checking for new DPE messages..");
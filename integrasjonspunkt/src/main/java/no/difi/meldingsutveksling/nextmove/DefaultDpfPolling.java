@@ -1,20 +1,43 @@
 package no.difi.meldingsutveksling.nextmove;
 
 import io.micrometer.core.annotation.Timed;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
+import no.difi.meldingsutveksling.ConcurrentTasks;
 import no.difi.meldingsutveksling.api.DpfPolling;
 import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
 import no.difi.meldingsutveksling.ks.svarinn.Forsendelse;
 import no.difi.meldingsutveksling.ks.svarinn.SvarInnService;
 import no.difi.meldingsutveksling.noarkexchange.SvarInnPutMessageForwarder;
+import org.slf4j.MDC;
 import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.core.annotation.Order;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 import static com.google.common.base.Strings.isNullOrEmpty;
+import static no.difi.meldingsutveksling.NextMoveConsts.CORRELATION_ID;
 
+/**
+ * Polls SvarInn for new forsendelser, and forwards them with up to difi.move.fiks.inn.concurrency downloads at the
+ * same time. Each download is streamed through its own pipe, so memory use is bounded per forsendelse.
+ * <p>
+ * When forwarding as NextMove messages, confirmations are collected in batches of
+ * difi.move.fiks.inn.confirm-batch-size and sent to SvarInn on the transport executor, so downloads do not wait on
+ * them. A poll returns when its confirmations are sent. A forsendelse that fails is left unconfirmed, and is
+ * returned by SvarInn in the next poll.
+ */
 @Slf4j
 @Order
 @ConditionalOnProperty(name = "difi.move.fiks.inn.enable", havingValue = "true")
@@ -24,31 +47,117 @@ public class DefaultDpfPolling implements DpfPolling {
     private final SvarInnService svarInnService;
     private final SvarInnPutMessageForwarder svarInnPutMessageForwarder;
     private final SvarInnNextMoveForwarder svarInnNextMoveForwarder;
+    private final Executor pollingExecutor;
+    private final Executor transportExecutor;
+    private final MeterRegistry meterRegistry;
+    private final AtomicInteger backlog;
 
     public DefaultDpfPolling(IntegrasjonspunktProperties properties,
                              SvarInnService svarInnService,
                              ObjectProvider<SvarInnPutMessageForwarder> svarInnPutMessageForwarderProvider,
-                             SvarInnNextMoveForwarder svarInnNextMoveForwarder) {
+                             SvarInnNextMoveForwarder svarInnNextMoveForwarder,
+                             Executor pollingExecutor,
+                             Executor transportExecutor,
+                             MeterRegistry meterRegistry) {
         this.properties = properties;
         this.svarInnService = svarInnService;
         this.svarInnPutMessageForwarder = svarInnPutMessageForwarderProvider.getIfAvailable();
         this.svarInnNextMoveForwarder = svarInnNextMoveForwarder;
+        this.pollingExecutor = pollingExecutor;
+        this.transportExecutor = transportExecutor;
+        this.meterRegistry = meterRegistry;
+        this.backlog = meterRegistry.gauge("dpf.inbound.backlog", new AtomicInteger());
+        FunctionCounter.builder("dpf.inbound.downloaded", svarInnService, SvarInnService::getDownloadedBytes)
+                .baseUnit("bytes")
+                .register(meterRegistry);
     }
 
     @Override
     @Timed
     public void poll() {
-        Consumer<Forsendelse> forwarder = getSvarInnForwarder();
-        log.trace("Checking for new DPF messages using {}", forwarder.getClass().getName());
-        svarInnService.getForsendelser().forEach(forwarder);
+        boolean forwardToLocalNoark = isLocalNoarkForwarding();
+        log.trace("Checking for new DPF messages, forwarding to {}", forwardToLocalNoark ? "local noark" : "NextMove");
+        List<Forsendelse> forsendelser = svarInnService.getForsendelser();
+        backlog.set(forsendelser.size());
+
+        if (forwardToLocalNoark) {
+            ConcurrentTasks.forEach(forsendelser, properties.getFiks().getInn().getConcurrency(), pollingExecutor,
+                    forsendelse -> forward(forsendelse, svarInnPutMessageForwarder));
+        } else {
+            forwardAsNextMove(forsendelser);
+        }
+    }
+
+    private void forwardAsNextMove(List<Forsendelse> forsendelser) {
+        List<String> confirmations = new ArrayList<>();
+        Queue<CompletableFuture<Void>> confirming = new ConcurrentLinkedQueue<>();
+        int confirmBatchSize = properties.getFiks().getInn().getConfirmBatchSize();
+        ConcurrentTasks.forEach(forsendelser, properties.getFiks().getInn().getConcurrency(), pollingExecutor,
+                forsendelse -> forward(forsendelse, f -> {
+                    svarInnNextMoveForwarder.forward(f);
+                    List<String> batch = null;
+                    synchronized (confirmations) {
+                        confirmations.add(f.getId());
+                        if (confirmations.size() >= confirmBatchSize) {
+                            batch = drain(confirmations);
+                        }
+                    }
+                    if (batch != null) {
+                        confirming.add(confirmAsync(batch));
+                    }
+                }));
+        List<String> rest;
+        synchronized (confirmations) {
+            rest = drain(confirmations);
+        }
+        confirming.add(confirmAsync(rest));
+        CompletableFuture.allOf(confirming.toArray(new CompletableFuture[0])).join();
     }
 
-    private Consumer<Forsendelse> getSvarInnForwarder() {
-        if (svarInnPutMessageForwarder != null && !isNullOrEmpty(properties.getNoarkSystem().getType())) {
-            return svarInnPutMessageForwarder;
+    private void forward(Forsendelse forsendelse, Consumer<Forsendelse> forwarder) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "success";
+        try {
+            forwarder.accept(forsendelse);
+        } catch (Exception e) {
+            outcome = "error";
+            log.error("Failed to forward forsendelse with id={}", forsendelse.getId(), e);
+        } finally {
+            sample.stop(meterRegistry.timer("dpf.inbound.forsendelse", "outcome", outcome));
+            backlog.decrementAndGet();
+            MDC.remove(CORRELATION_ID);
         }
+    }
 
-        return svarInnNextMoveForwarder;
+    private static List<String> drain(List<String> confirmations) {
+        List<String> batch = new ArrayList<>(confirmations);
+        confirmations.clear();
+        return batch;
     }
-}
 
+    private CompletableFuture<Void> confirmAsync(List<String> forsendelseIds) {
+        if (forsendelseIds.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        try {
+            return CompletableFuture.runAsync(() -> confirm(forsendelseIds), transportExecutor);
+        } catch (RejectedExecutionException e) {
+            confirm(forsendelseIds);
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    private void confirm(List<String> forsendelseIds) {
+        forsendelseIds.forEach(forsendelseId -> {
+            try {
+                svarInnService.confirmMessage(forsendelseId);
+            } catch (Exception e) {
+                log.warn("Failed to confirm forsendelse with id={}, it will be received again", forsendelseId, e);
+            }
+        });
+    }
+
+    private boolean isLocalNoarkForwarding() {
+        return svarInnPutMessageForwarder != null && !isNullOrEmpty(properties.getNoarkSystem().getType());
+    }
+}
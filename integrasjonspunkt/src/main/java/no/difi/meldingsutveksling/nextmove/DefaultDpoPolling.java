@@ -1,37 +1,75 @@
 package no.difi.meldingsutveksling.nextmove;
 
 import io.micrometer.core.annotation.Timed;
-import lombok.RequiredArgsConstructor;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import no.difi.meldingsutveksling.*;
 import no.difi.meldingsutveksling.altinn.mock.brokerbasic.IBrokerServiceExternalBasicCheckIfAvailableFilesBasicAltinnFaultFaultFaultMessage;
 import no.difi.meldingsutveksling.api.DpoPolling;
 import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
+import no.difi.meldingsutveksling.config.TaskExecutorConfig;
 import no.difi.meldingsutveksling.domain.sbdh.StandardBusinessDocument;
 import no.difi.meldingsutveksling.logging.Audit;
 import no.difi.meldingsutveksling.noarkexchange.altinn.AltinnNextMoveMessageHandler;
 import no.difi.meldingsutveksling.shipping.ws.AltinnReasonFactory;
 import org.slf4j.MDC;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
 
 import static java.lang.String.format;
 import static no.difi.meldingsutveksling.logging.MessageMarkerFactory.markerFrom;
 
+/**
+ * Polls Altinn formidlingstjeneste for new files, and downloads them with up to difi.move.dpo.download-concurrency
+ * downloads at the same time. Downloads are confirmed asynchronously, and a file is kept in the in-flight set until
+ * it is confirmed, so that it is not downloaded again while Altinn still lists it.
+ * <p>
+ * While Altinn has files available, the file list is fetched again as soon as the previous files are handled.
+ * When no new files are listed, polling backs off to difi.move.dpo.pollingrate. A file that fails is retried on the
+ * next scheduled poll.
+ */
 @Slf4j
 @Component
 @ConditionalOnProperty(name = "difi.move.feature.enableDPO", havingValue = "true")
 @Order
-@RequiredArgsConstructor
 public class DefaultDpoPolling implements DpoPolling {
 
     private final IntegrasjonspunktProperties properties;
     private final AltinnNextMoveMessageHandler altinnNextMoveMessageHandler;
     private final AltinnWsClient altinnWsClient;
+    private final Executor pollingExecutor;
+    private final Executor transportExecutor;
+    private final MeterRegistry meterRegistry;
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    public DefaultDpoPolling(IntegrasjonspunktProperties properties,
+                             AltinnNextMoveMessageHandler altinnNextMoveMessageHandler,
+                             AltinnWsClient altinnWsClient,
+                             @Qualifier(TaskExecutorConfig.POLLING_EXECUTOR) Executor pollingExecutor,
+                             @Qualifier(TaskExecutorConfig.TRANSPORT_EXECUTOR) Executor transportExecutor,
+                             MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.altinnNextMoveMessageHandler = altinnNextMoveMessageHandler;
+        this.altinnWsClient = altinnWsClient;
+        this.pollingExecutor = pollingExecutor;
+        this.transportExecutor = transportExecutor;
+        this.meterRegistry = meterRegistry;
+        meterRegistry.gauge("dpo.inbound.backlog", inFlight, Set::size);
+    }
 
     @Override
     @Timed
@@ -39,40 +77,91 @@ public class DefaultDpoPolling implements DpoPolling {
         log.trace("Checking for new DPO messages");
 
         try {
-            if (altinnWsClient.checkIfAvailableFiles()) {
-                log.debug("New DPO message(s) detected");
-                List<FileReference> fileReferences = altinnWsClient.availableFiles();
-                fileReferences.forEach(reference -> handleFileReference(altinnWsClient, reference));
+            if (!altinnWsClient.checkIfAvailableFiles()) {
+                return;
             }
         } catch (IBrokerServiceExternalBasicCheckIfAvailableFilesBasicAltinnFaultFaultFaultMessage e) {
             log.error("Could not check for available files from Altinn: " + AltinnReasonFactory.from(e), e);
+            return;
+        }
+
+        log.debug("New DPO message(s) detected");
+        Set<String> polled = new HashSet<>();
+        List<FileReference> fileReferences = getNewFileReferences(polled);
+        while (!fileReferences.isEmpty()) {
+            ConcurrentTasks.forEach(fileReferences, properties.getDpo().getDownloadConcurrency(), pollingExecutor,
+                    this::handleFileReference);
+            fileReferences = getNewFileReferences(polled);
         }
     }
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
-    private void handleFileReference(AltinnWsClient client, FileReference reference) {
+    /**
+     * Returns the available files that have not been polled in this round, and are not in flight from a previous
+     * round. Files that are handled are not listed again once confirmed, so a file listed again in the same round
+     * has failed, and is left for the next scheduled poll.
+     */
+    private List<FileReference> getNewFileReferences(Set<String> polled) {
+        List<FileReference> available = meterRegistry.timer("dpo.inbound.list").record(altinnWsClient::availableFiles);
+        return available.stream()
+                .filter(reference -> polled.add(reference.getValue()))
+                .filter(reference -> inFlight.add(reference.getValue()))
+                .collect(Collectors.toList());
+    }
+
+    private void handleFileReference(FileReference reference) {
+        final DownloadRequest request = new DownloadRequest(reference.getValue(), properties.getOrg().getNumber());
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "success";
         try {
-            final DownloadRequest request = new DownloadRequest(reference.getValue(), properties.getOrg().getNumber());
             log.debug(format("Downloading message with altinnId=%s", reference.getValue()));
-            AltinnPackage altinnPackage = client.download(request);
-            StandardBusinessDocument sbd = altinnPackage.getSbd();
-            MDC.put(NextMoveConsts.CORRELATION_ID, sbd.getMessageId());
-            Audit.info(format("Downloaded message with id=%s", sbd.getDocumentId()), sbd.createLogstashMarkers());
-
-            try {
-                UUID.fromString(sbd.getMessageId());
-                UUID.fromString(sbd.getConversationId());
-            } catch (IllegalArgumentException e) {
-                log.error("Found invalid UUID in either messageId={} or conversationId={} - discarding message.", sbd.getMessageId(), sbd.getConversationId());
-                client.confirmDownload(request);
-                return;
-            }
-
-            altinnNextMoveMessageHandler.handleAltinnPackage(altinnPackage);
-            client.confirmDownload(request);
-            log.debug(markerFrom(reference).and(sbd.createLogstashMarkers()), "Message confirmed downloaded");
+            altinnWsClient.download(request, this::handleAltinnPackage);
         } catch (Exception e) {
+            outcome = "error";
+            inFlight.remove(reference.getValue());
             log.error(format("Error during Altinn message polling, message altinnId=%s", reference.getValue()), e);
+            return;
+        } finally {
+            sample.stop(meterRegistry.timer("dpo.inbound.download", "outcome", outcome));
+            MDC.remove(NextMoveConsts.CORRELATION_ID);
+        }
+
+        try {
+            CompletableFuture.runAsync(() -> confirmDownload(reference, request), transportExecutor);
+        } catch (RejectedExecutionException e) {
+            confirmDownload(reference, request);
         }
     }
+
+    private void confirmDownload(FileReference reference, DownloadRequest request) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "success";
+        try {
+            altinnWsClient.confirmDownload(request);
+            log.debug(markerFrom(reference), "Message confirmed downloaded");
+        } catch (Exception e) {
+            // The file is listed and downloaded again on the next poll, and enqueued idempotently by message id
+            outcome = "error";
+            log.warn(format("Failed to confirm download of message with altinnId=%s", reference.getValue()), e);
+        } finally {
+            sample.stop(meterRegistry.timer("dpo.inbound.confirm", "outcome", outcome));
+            inFlight.remove(reference.getValue());
+        }
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private void handleAltinnPackage(AltinnPackage altinnPackage) throws IOException {
+        StandardBusinessDocument sbd = altinnPackage.getSbd();
+        MDC.put(NextMoveConsts.CORRELATION_ID, sbd.getMessageId());
+        Audit.info(format("Downloaded message with id=%s", sbd.getDocumentId()), sbd.createLogstashMarkers());
+
+        try {
+            UUID.fromString(sbd.getMessageId());
+            UUID.fromString(sbd.getConversationId());
+        } catch (IllegalArgumentException e) {
+            log.error("Found invalid UUID in either messageId={} or conversationId={} - discarding message.", sbd.getMessageId(), sbd.getConversationId());
+            return;
+        }
+
+        altinnNextMoveMessageHandler.handleAltinnPackage(altinnPackage);
+    }
 }
@@ -1,5 +1,6 @@
 package no.difi.meldingsutveksling.nextmove;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import no.difi.meldingsutveksling.api.AsicHandler;
 import no.difi.meldingsutveksling.api.ConversationService;
@@ -7,6 +8,7 @@ import no.difi.meldingsutveksling.api.NextMoveQueue;
 import no.difi.meldingsutveksling.arkivmelding.ArkivmeldingUtil;
 import no.difi.meldingsutveksling.bestedu.PutMessageRequestFactory;
 import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
+import no.difi.meldingsutveksling.config.TaskExecutorConfig;
 import no.difi.meldingsutveksling.dokumentpakking.service.SBDFactory;
 import no.difi.meldingsutveksling.ks.svarinn.SvarInnService;
 import no.difi.meldingsutveksling.noarkexchange.LocalNorarkExistsCondition;
@@ -15,6 +17,7 @@ import no.difi.meldingsutveksling.noarkexchange.SvarInnPutMessageForwarder;
 import no.difi.meldingsutveksling.pipes.PromiseMaker;
 import no.difi.move.common.cert.KeystoreHelper;
 import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Conditional;
@@ -22,6 +25,7 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.core.annotation.Order;
 
 import java.time.Clock;
+import java.util.concurrent.Executor;
 
 @Slf4j
 @Configuration
@@ -33,8 +37,12 @@ public class DpfPollingConfig {
     public DefaultDpfPolling dpfPolling(IntegrasjonspunktProperties properties,
                                         SvarInnService svarInnService,
                                         ObjectProvider<SvarInnPutMessageForwarder> svarInnPutMessageForwarderProvider,
-                                        SvarInnNextMoveForwarder svarInnNextMoveForwarder) {
-        return new DefaultDpfPolling(properties, svarInnService, svarInnPutMessageForwarderProvider, svarInnNextMoveForwarder);
+                                        SvarInnNextMoveForwarder svarInnNextMoveForwarder,
+                                        @Qualifier(TaskExecutorConfig.POLLING_EXECUTOR) Executor pollingExecutor,
+                                        @Qualifier(TaskExecutorConfig.TRANSPORT_EXECUTOR) Executor transportExecutor,
+                                        MeterRegistry meterRegistry) {
+        return new DefaultDpfPolling(properties, svarInnService, svarInnPutMessageForwarderProvider, svarInnNextMoveForwarder,
+                pollingExecutor, transportExecutor, meterRegistry);
     }
 
     @Bean
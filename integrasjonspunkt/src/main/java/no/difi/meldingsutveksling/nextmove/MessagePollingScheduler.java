@@ -30,7 +30,7 @@ public class MessagePollingScheduler {
         dpfPolling.orderedStream().findFirst().ifPresent(DpfPolling::poll);
     }
 
-    @Scheduled(fixedDelay = 15000)
+    @Scheduled(fixedDelayString = "${difi.move.dpo.pollingrate}")
     public void checkForNewAltinnMessages() {
         dpoPolling.orderedStream().findFirst().ifPresent(DpoPolling::poll);
     }
@@ -8,6 +8,7 @@ import no.difi.meldingsutveksling.domain.sbdh.SBDUtil;
 import no.difi.meldingsutveksling.nextmove.v2.BusinessMessageFileRepository;
 import no.difi.meldingsutveksling.nextmove.v2.NextMoveMessageOutRepository;
 import no.difi.meldingsutveksling.receipt.ReceiptStatus;
+import no.difi.meldingsutveksling.status.ConversationStatusWriter;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
@@ -26,6 +27,7 @@ public class NextMoveSender {
     private final SBDUtil sbdUtil;
     private final TimeToLiveHelper timeToLiveHelper;
     private final MessagePersister messagePersister;
+    private final ConversationStatusWriter conversationStatusWriter;
 
     public void send(NextMoveOutMessage msg) throws NextMoveException {
         if (sbdUtil.isExpired(msg.getSbd())) {
@@ -48,7 +50,7 @@ public class NextMoveSender {
                 return;
             }
 
-            conversationService.registerStatus(msg.getMessageId(), ReceiptStatus.SENDT);
+            conversationStatusWriter.registerStatus(msg.getMessageId(), ReceiptStatus.SENDT);
         }
 
         try {
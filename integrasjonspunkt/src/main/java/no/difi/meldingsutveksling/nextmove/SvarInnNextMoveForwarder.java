@@ -22,9 +22,16 @@ public class SvarInnNextMoveForwarder implements Consumer<Forsendelse> {
 
     @Override
     public void accept(Forsendelse forsendelse) {
+        forward(forsendelse);
+        svarInnService.confirmMessage(forsendelse.getId());
+    }
+
+    /**
+     * Converts and enqueues the forsendelse, without confirming it in SvarInn.
+     */
+    public void forward(Forsendelse forsendelse) {
         MDC.put(NextMoveConsts.CORRELATION_ID, forsendelse.getId());
         SvarInnPackage svarInnPackage = svarInnNextMoveConverter.convert(forsendelse);
         nextMoveQueue.enqueueIncomingMessage(svarInnPackage.getSbd(), ServiceIdentifier.DPF, svarInnPackage.getAsicStream());
-        svarInnService.confirmMessage(forsendelse.getId());
     }
 }
@@ -0,0 +1,242 @@
+package no.difi.meldingsutveksling.nextmove.message;
+
+import lombok.extern.slf4j.Slf4j;
+import no.difi.meldingsutveksling.api.MessagePersister;
+import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.PersistenceException;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * NIO based file persister. Files are written with {@link FileChannel#transferFrom} into preallocated files, read
+ * through channel backed streams, and stored in a directory tree sharded by message-id prefix, e.g.
+ * {@code messages/ab/cd/abcd1234-.../}. Messages stored unsharded by {@link FileMessagePersister} are still readable.
+ */
+@Slf4j
+@Component
+@ConditionalOnExpression("'${difi.move.nextmove.useDbPersistence}' == 'false' && '${difi.move.nextmove.useChannelPersistence:false}' == 'true'")
+public class ChannelMessagePersister implements MessagePersister {
+
+    private static final long TRANSFER_CHUNK_SIZE = 8L * 1024 * 1024;
+    private static final int SHARD_PREFIX_LENGTH = 2;
+    private static final int OPEN_ATTEMPTS = 3;
+
+    private final IntegrasjonspunktProperties props;
+
+    @Autowired
+    public ChannelMessagePersister(IntegrasjonspunktProperties props) {
+        this.props = props;
+    }
+
+    @Override
+    public void write(String messageId, String filename, byte[] message) throws IOException {
+        Path file = getMessageDir(messageId).resolve(filename);
+
+        try (FileChannel channel = openForWrite(file, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(message);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            log.error("Could not write asic container to disk.", e);
+            throw e;
+        }
+    }
+
+    @Override
+    public void writeStream(String messageId, String filename, InputStream stream, long size) throws IOException {
+        Path file = getMessageDir(messageId).resolve(filename);
+
+        try (FileChannel channel = openForWrite(file, CREATE, READ, WRITE, TRUNCATE_EXISTING);
+             ReadableByteChannel source = Channels.newChannel(stream)) {
+            if (size > 0) {
+                preallocate(channel, size);
+            }
+
+            long position = 0;
+            long transferred;
+            while ((transferred = channel.transferFrom(source, position, TRANSFER_CHUNK_SIZE)) > 0) {
+                position += transferred;
+            }
+            channel.truncate(position);
+            log.debug("Storing {} for message[id={}]: {} bytes", filename, messageId, position);
+        } catch (IOException e) {
+            log.error("Could not write asic container to disk.", e);
+            throw e;
+        }
+    }
+
+    private void preallocate(FileChannel channel, long size) throws IOException {
+        channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+        channel.position(0);
+    }
+
+    @Override
+    public byte[] read(String messageId, String filename) throws IOException {
+        Path file = resolveExisting(messageId, filename);
+
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(String.format("File \"%s\" for messageId \"%s\" is too large to be read into memory", filename, messageId));
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // read until buffer is full or end of file
+            }
+            return buffer.array();
+        }
+    }
+
+    @Override
+    public FileEntryStream readStream(String messageId, String filename) {
+        Path file = resolveExisting(messageId, filename);
+        log.debug("Reading stream for file: {}", file.toAbsolutePath());
+        try {
+            FileChannel channel = FileChannel.open(file, READ);
+            try {
+                return FileEntryStream.of(new BufferedInputStream(Channels.newInputStream(channel)), channel.size());
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        } catch (NoSuchFileException e) {
+            throw new PersistenceException(String.format("File \"%s\" not found for messageId \"%s\"", filename, messageId));
+        } catch (IOException e) {
+            throw new PersistenceException(String.format("Could not open file \"%s\" for messageId \"%s\"", filename, messageId), e);
+        }
+    }
+
+    /**
+     * Links the file into the directory of the other message, so the content is stored once. Files on file systems
+     * without hard links are copied.
+     */
+    @Override
+    public void copy(String fromMessageId, String fromFilename, String toMessageId, String toFilename) throws IOException {
+        Path source = resolveExisting(fromMessageId, fromFilename);
+        if (!Files.exists(source)) {
+            throw new NoSuchFileException(String.format("File \"%s\" not found for messageId \"%s\"", fromFilename, fromMessageId));
+        }
+        Path target = getMessageDir(toMessageId).resolve(toFilename);
+        for (int attempt = 1; ; attempt++) {
+            Files.createDirectories(target.getParent());
+            try {
+                Files.createLink(target, source);
+                return;
+            } catch (NoSuchFileException e) {
+                if (attempt >= OPEN_ATTEMPTS) {
+                    throw e;
+                }
+                log.debug("Directory {} was removed while linking {}, retrying", target.getParent(), target.getFileName());
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                log.debug("Could not link {} to {}, copying it", source, target, e);
+                Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void delete(String messageId) throws IOException {
+        Path dir = getMessageDir(messageId);
+        log.debug("Deleting directory {} for message[id={}]", dir.toAbsolutePath(), messageId);
+        deleteDirectory(dir);
+        deleteEmptyShards(dir.getParent());
+        deleteDirectory(getLegacyMessageDir(messageId));
+    }
+
+    private void deleteDirectory(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private void deleteEmptyShards(Path shard) {
+        Path root = getFiledir();
+        while (shard != null && !shard.equals(root)) {
+            try {
+                Files.deleteIfExists(shard);
+            } catch (DirectoryNotEmptyException e) {
+                return;
+            } catch (IOException e) {
+                log.debug("Could not delete shard directory {}", shard, e);
+                return;
+            }
+            shard = shard.getParent();
+        }
+    }
+
+    private Path resolveExisting(String messageId, String filename) {
+        Path file = getMessageDir(messageId).resolve(filename);
+        if (!Files.exists(file)) {
+            Path legacyFile = getLegacyMessageDir(messageId).resolve(filename);
+            if (Files.exists(legacyFile)) {
+                return legacyFile;
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Creates the parent directories of the file, and opens it. An empty shard directory can be deleted by a
+     * concurrent {@link #delete} between the two, so the directories are created again if they have disappeared.
+     */
+    private FileChannel openForWrite(Path file, OpenOption... options) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            Files.createDirectories(file.getParent());
+            try {
+                return FileChannel.open(file, options);
+            } catch (NoSuchFileException e) {
+                if (attempt >= OPEN_ATTEMPTS) {
+                    throw e;
+                }
+                log.debug("Directory {} was removed while opening {}, retrying", file.getParent(), file.getFileName());
+            }
+        }
+    }
+
+    Path getMessageDir(String messageId) {
+        Path dir = getFiledir();
+        String prefix = messageId.toLowerCase().replaceAll("[^a-z0-9]", "");
+        for (int level = 0; level < getShardLevels(); level++) {
+            int start = level * SHARD_PREFIX_LENGTH;
+            String shard = prefix.length() >= start + SHARD_PREFIX_LENGTH
+                    ? prefix.substring(start, start + SHARD_PREFIX_LENGTH)
+                    : "_";
+            dir = dir.resolve(shard);
+        }
+        return dir.resolve(messageId);
+    }
+
+    private Path getLegacyMessageDir(String messageId) {
+        return getFiledir().resolve(messageId);
+    }
+
+    private Path getFiledir() {
+        return Paths.get(props.getNextmove().getFiledir());
+    }
+
+    private int getShardLevels() {
+        Integer levels = props.getNextmove().getFiledirShardLevels();
+        return levels != null ? levels : 0;
+    }
+}
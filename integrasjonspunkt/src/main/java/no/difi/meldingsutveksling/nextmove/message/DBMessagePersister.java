@@ -66,6 +66,17 @@ public class DBMessagePersister implements MessagePersister {
         }
     }
 
+    /**
+     * Inserts a new entry with the content of the stored one, which is read while the insert is flushed.
+     */
+    @Override
+    @Transactional
+    public void copy(String fromMessageId, String fromFilename, String toMessageId, String toFilename) throws IOException {
+        NextMoveMessageEntry entry = repo.findByMessageIdAndFilename(fromMessageId, fromFilename)
+                .orElseThrow(() -> new IOException(String.format("File \'%s\' for message with id=%s not found in repository", fromFilename, fromMessageId)));
+        repo.saveAndFlush(NextMoveMessageEntry.of(toMessageId, toFilename, entry.getContent(), entry.getSize()));
+    }
+
     @Override
     @Transactional
     public void delete(String messageId) {
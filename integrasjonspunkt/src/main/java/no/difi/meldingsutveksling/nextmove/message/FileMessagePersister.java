@@ -6,15 +6,21 @@ import no.difi.meldingsutveksling.api.MessagePersister;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.stereotype.Component;
 
 import javax.persistence.PersistenceException;
 import java.io.*;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 
 @Slf4j
 @Component
-@ConditionalOnProperty(name = "difi.move.nextmove.useDbPersistence", havingValue = "false")
+@ConditionalOnExpression("'${difi.move.nextmove.useDbPersistence}' == 'false' && '${difi.move.nextmove.useChannelPersistence:false}' == 'false'")
 public class FileMessagePersister implements MessagePersister {
 
     private IntegrasjonspunktProperties props;
@@ -84,6 +90,25 @@ public class FileMessagePersister implements MessagePersister {
         }
     }
 
+    /**
+     * Links the file into the directory of the other message, so the content is stored once. Files on file systems
+     * without hard links are copied.
+     */
+    @Override
+    public void copy(String fromMessageId, String fromFilename, String toMessageId, String toFilename) throws IOException {
+        Path source = Paths.get(getMessageFiledirPath(fromMessageId), fromFilename);
+        Path target = Paths.get(getMessageFiledirPath(toMessageId), toFilename);
+        Files.createDirectories(target.getParent());
+        try {
+            Files.createLink(target, source);
+        } catch (NoSuchFileException e) {
+            throw e;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            log.debug("Could not link {} to {}, copying it", source, target, e);
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
     @Override
     public void delete(String messageId) throws IOException {
         File dir = new File(getMessageFiledirPath(messageId));
@@ -1,38 +1,61 @@
 package no.difi.meldingsutveksling.nextmove.servicebus;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Strings;
 import com.microsoft.azure.servicebus.*;
 import com.microsoft.azure.servicebus.primitives.ConnectionStringBuilder;
 import com.microsoft.azure.servicebus.primitives.ServiceBusException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
+import no.difi.meldingsutveksling.ConcurrentTasks;
 import no.difi.meldingsutveksling.NextMoveConsts;
 import no.difi.meldingsutveksling.api.NextMoveQueue;
 import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
+import no.difi.meldingsutveksling.config.TaskExecutorConfig;
 import no.difi.meldingsutveksling.domain.sbdh.SBDUtil;
 import no.difi.meldingsutveksling.nextmove.NextMoveException;
 import no.difi.meldingsutveksling.nextmove.NextMoveOutMessage;
 import no.difi.meldingsutveksling.nextmove.NextMoveRuntimeException;
+import no.difi.meldingsutveksling.pipes.Plumber;
+import no.difi.meldingsutveksling.pipes.PromiseMaker;
 import no.difi.meldingsutveksling.serviceregistry.SRParameter;
 import no.difi.meldingsutveksling.serviceregistry.ServiceRegistryLookup;
 import no.difi.meldingsutveksling.serviceregistry.ServiceRegistryLookupException;
 import no.difi.meldingsutveksling.serviceregistry.externalmodel.ServiceRecord;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
-import org.springframework.core.task.TaskExecutor;
+import org.springframework.scheduling.TaskScheduler;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StringUtils;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import static java.lang.String.format;
 import static no.difi.meldingsutveksling.ServiceIdentifier.DPE;
@@ -43,36 +66,58 @@ import static no.difi.meldingsutveksling.nextmove.servicebus.ServiceBusQueueMode
 @Slf4j
 public class NextMoveServiceBus {
 
+    private static final Duration RECEIVE_WAIT_TIME = Duration.ofSeconds(10);
+
     private final IntegrasjonspunktProperties props;
     private final NextMoveQueue nextMoveQueue;
     private final ServiceBusRestClient serviceBusClient;
-    private final ObjectMapper om;
     private final ServiceBusPayloadConverter payloadConverter;
     private final ServiceRegistryLookup serviceRegistryLookup;
     private final SBDUtil sbdUtil;
-    private final TaskExecutor taskExecutor;
+    private final Executor pollingExecutor;
     private final NextMoveServiceBusPayloadFactory nextMoveServiceBusPayloadFactory;
+    private final Plumber plumber;
+    private final PromiseMaker promiseMaker;
+
+    private final TaskScheduler taskScheduler;
+    private final MeterRegistry meterRegistry;
+    private final AtomicInteger inFlight;
+    private final ExecutorService receiveExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "dpe-receiver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Set<IMessage> locked = ConcurrentHashMap.newKeySet();
 
     private IMessageReceiver messageReceiver;
+    private volatile boolean running = true;
 
     public NextMoveServiceBus(IntegrasjonspunktProperties props,
                               NextMoveQueue nextMoveQueue,
                               ServiceBusRestClient serviceBusClient,
-                              ObjectMapper om,
                               ServiceBusPayloadConverter payloadConverter,
                               ServiceRegistryLookup serviceRegistryLookup,
                               SBDUtil sbdUtil,
-                              TaskExecutor taskExecutor,
-                              NextMoveServiceBusPayloadFactory nextMoveServiceBusPayloadFactory) {
+                              @Qualifier(TaskExecutorConfig.POLLING_EXECUTOR) Executor pollingExecutor,
+                              NextMoveServiceBusPayloadFactory nextMoveServiceBusPayloadFactory,
+                              TaskScheduler taskScheduler,
+                              MeterRegistry meterRegistry,
+                              Plumber plumber,
+                              PromiseMaker promiseMaker) {
         this.props = props;
         this.nextMoveQueue = nextMoveQueue;
         this.serviceBusClient = serviceBusClient;
-        this.om = om;
         this.nextMoveServiceBusPayloadFactory = nextMoveServiceBusPayloadFactory;
         this.payloadConverter = payloadConverter;
         this.serviceRegistryLookup = serviceRegistryLookup;
         this.sbdUtil = sbdUtil;
-        this.taskExecutor = taskExecutor;
+        this.pollingExecutor = pollingExecutor;
+        this.taskScheduler = taskScheduler;
+        this.plumber = plumber;
+        this.promiseMaker = promiseMaker;
+        this.meterRegistry = meterRegistry;
+        this.inFlight = meterRegistry.gauge("dpe.servicebus.inflight", new AtomicInteger());
     }
 
     @PostConstruct
@@ -85,6 +130,9 @@ public class NextMoveServiceBus {
             ConnectionStringBuilder connectionStringBuilder = new ConnectionStringBuilder(connectionString, serviceBusClient.getLocalQueuePath());
             try {
                 this.messageReceiver = ClientFactory.createMessageReceiverFromConnectionStringBuilder(connectionStringBuilder, ReceiveMode.PEEKLOCK);
+                // Locks of prefetched messages can not be renewed before they are received
+                this.messageReceiver.setPrefetchCount(Math.min(props.getNextmove().getServiceBus().getPrefetchCount(),
+                        props.getNextmove().getServiceBus().getReceiveBatchSize()));
             } catch (InterruptedException e) {
                 log.error("Error while constructing message receiver. Thread was interrupted", e);
                 // Restore interrupted state..
@@ -96,14 +144,26 @@ public class NextMoveServiceBus {
 
     }
 
-    public void putMessage(NextMoveOutMessage message) throws NextMoveException {
-        ServiceBusPayload payload = nextMoveServiceBusPayloadFactory.toServiceBusPayload(message);
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        receiveExecutor.shutdown();
+    }
 
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
-            om.writeValue(bos, payload);
-            serviceBusClient.sendMessage(bos.toByteArray(), getReceiverQueue(message));
-        } catch (IOException e) {
-            throw new NextMoveException("Error creating servicebus payload", e);
+    public void putMessage(NextMoveOutMessage message) throws NextMoveException {
+        String receiverQueue = getReceiverQueue(message);
+        try {
+            promiseMaker.promise(reject -> {
+                try (InputStream payload = plumber.pipe("writing servicebus payload",
+                        inlet -> nextMoveServiceBusPayloadFactory.writeServiceBusPayload(message, inlet, reject), reject).outlet()) {
+                    serviceBusClient.sendMessage(payload, receiverQueue);
+                    return null;
+                } catch (IOException e) {
+                    throw new NextMoveRuntimeException("Error closing servicebus payload", e);
+                }
+            }).await();
+        } catch (RuntimeException e) {
+            throw new NextMoveException("Error sending servicebus payload", e);
         }
     }
 
@@ -120,54 +180,167 @@ public class NextMoveServiceBus {
                 messages.add(msg.get());
             }
 
-            for (ServiceBusMessage msg : messages) {
-                InputStream asicStream = (msg.getPayload().getAsic() != null) ? new ByteArrayInputStream(Base64.getDecoder().decode(msg.getPayload().getAsic())) : null;
+            ConcurrentTasks.forEach(messages, props.getNextmove().getServiceBus().getHandlerConcurrency(), pollingExecutor, msg -> {
+                InputStream asicStream = (msg.getPayload().getAsic() != null) ? Base64.getDecoder().wrap(new ByteArrayInputStream(msg.getPayload().getAsic())) : null;
                 nextMoveQueue.enqueueIncomingMessage(msg.getPayload().getSbd(), DPE, asicStream);
                 serviceBusClient.deleteMessage(msg);
-            }
+            });
         }
     }
 
-    public CompletableFuture getAllMessagesBatch() {
-        return CompletableFuture.runAsync(() -> {
-            boolean hasQueuedMessages = true;
-            while (hasQueuedMessages) {
+    /**
+     * Starts receiving messages continuously, until shutdown or until the receiver fails. Each received batch is
+     * handled in parallel while the next batch is received, with at most two batches of messages received and not
+     * yet completed. Failed messages are abandoned right away, and the handled messages of a batch are completed
+     * together once the whole batch is handled. Locks of all received messages are renewed every
+     * difi.move.nextmove.service-bus.lock-renew-interval until their completion is acknowledged.
+     */
+    public CompletableFuture<Void> getAllMessagesBatch() {
+        return CompletableFuture.runAsync(this::receiveContinuously, receiveExecutor);
+    }
+
+    private void receiveContinuously() {
+        IntegrasjonspunktProperties.ServiceBus serviceBus = props.getNextmove().getServiceBus();
+        int batchSize = serviceBus.getReceiveBatchSize();
+        Semaphore capacity = new Semaphore(2 * batchSize);
+        Queue<CompletableFuture<Void>> batches = new ConcurrentLinkedQueue<>();
+        Duration renewInterval = serviceBus.getLockRenewInterval();
+        ScheduledFuture<?> lockRenewal = taskScheduler.scheduleAtFixedRate(this::renewLocks,
+                Instant.now().plus(renewInterval), renewInterval);
+        try {
+            while (running) {
+                log.trace("Calling receiveBatch..");
+                capacity.acquire(batchSize);
+                Collection<IMessage> messages = null;
                 try {
-                    log.trace("Calling receiveBatch..");
-                    Collection<IMessage> messages = messageReceiver.receiveBatch(100, Duration.ofSeconds(10));
-                    if (messages != null && !messages.isEmpty()) {
-                        log.debug("Processing {} messages..", messages.size());
-                        messages.forEach(this::handleMessage);
-                        log.debug("Done processing {} messages", messages.size());
-                    } else {
-                        log.trace("No messages in queue, cancelling batch");
-                        hasQueuedMessages = false;
-                    }
-                } catch (InterruptedException e) {
-                    if (!Strings.isNullOrEmpty(e.getMessage())) {
-                        log.error("Error while processing messages from service bus. Thread was interrupted", e);
-                    } else {
-                        log.trace("Error while processing messages from service bus. Thread was interrupted", e);
-                    }
-                    // Restore interrupted state..
-                    Thread.currentThread().interrupt();
-                } catch (ServiceBusException e) {
-                    log.error("Error while processing messages from service bus", e);
+                    messages = messageReceiver.receiveBatch(batchSize, RECEIVE_WAIT_TIME);
+                } finally {
+                    capacity.release(batchSize - (messages != null ? messages.size() : 0));
                 }
+                if (messages != null && !messages.isEmpty()) {
+                    log.debug("Processing {} messages..", messages.size());
+                    batches.removeIf(CompletableFuture::isDone);
+                    batches.add(handleBatch(messages, capacity));
+                } else {
+                    log.trace("No messages in queue");
+                }
+            }
+        } catch (InterruptedException e) {
+            if (!Strings.isNullOrEmpty(e.getMessage())) {
+                log.error("Error while processing messages from service bus. Thread was interrupted", e);
+            } else {
+                log.trace("Error while processing messages from service bus. Thread was interrupted", e);
             }
-        }, taskExecutor);
+            // Restore interrupted state..
+            Thread.currentThread().interrupt();
+        } catch (ServiceBusException e) {
+            // Restarted by the next poll
+            log.error("Error while processing messages from service bus", e);
+        } finally {
+            // Locks are renewed until the messages already received are completed
+            CompletableFuture.allOf(batches.toArray(new CompletableFuture[0])).join();
+            lockRenewal.cancel(false);
+        }
     }
 
-    private void handleMessage(IMessage m) {
+    private CompletableFuture<Void> handleBatch(Collection<IMessage> messages, Semaphore capacity) {
+        locked.addAll(messages);
+        inFlight.addAndGet(messages.size());
+        try {
+            return CompletableFuture.supplyAsync(() -> handleAll(messages, capacity), pollingExecutor)
+                    .thenCompose(Function.identity());
+        } catch (RejectedExecutionException e) {
+            return handleAll(messages, capacity);
+        }
+    }
+
+    /**
+     * Handles the messages in parallel, abandons the ones that fail and completes the rest together.
+     */
+    private CompletableFuture<Void> handleAll(Collection<IMessage> messages, Semaphore capacity) {
+        Set<IMessage> handled = ConcurrentHashMap.newKeySet();
+        Set<IMessage> abandoned = ConcurrentHashMap.newKeySet();
+        Queue<CompletableFuture<Void>> settlements = new ConcurrentLinkedQueue<>();
+        try {
+            ConcurrentTasks.forEach(messages, props.getNextmove().getServiceBus().getHandlerConcurrency(), pollingExecutor, m -> {
+                if (handleMessage(m)) {
+                    handled.add(m);
+                } else {
+                    abandoned.add(m);
+                    settlements.add(settle(Collections.singletonList(m), capacity, () -> messageReceiver.abandonAsync(m.getLockToken())));
+                }
+            });
+        } catch (RuntimeException e) {
+            log.error("Failed to handle {} messages from service bus", messages.size(), e);
+        }
+
+        List<IMessage> completed = new ArrayList<>(handled);
+        settlements.add(settle(completed, capacity, () -> CompletableFuture.allOf(completed.stream()
+                .map(m -> messageReceiver.completeAsync(m.getLockToken()))
+                .toArray(CompletableFuture[]::new))));
+        // Neither handled nor abandoned, so they are received again when their locks expire
+        List<IMessage> unsettled = messages.stream()
+                .filter(m -> !handled.contains(m) && !abandoned.contains(m))
+                .collect(Collectors.toList());
+        settlements.add(settle(unsettled, capacity, () -> CompletableFuture.completedFuture(null)));
+        return CompletableFuture.allOf(settlements.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * Stops renewing the locks of the messages once the settlement is acknowledged. Messages not completed are
+     * received again when their locks expire.
+     */
+    private CompletableFuture<Void> settle(Collection<IMessage> messages, Semaphore capacity, Supplier<CompletableFuture<Void>> settlement) {
+        if (messages.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> settled;
+        try {
+            settled = settlement.get();
+        } catch (RuntimeException e) {
+            settled = new CompletableFuture<>();
+            settled.completeExceptionally(e);
+        }
+        return settled.handle((v, t) -> {
+            if (t != null) {
+                log.warn("Failed to settle {} messages on service bus", messages.size(), t);
+            }
+            locked.removeAll(messages);
+            inFlight.addAndGet(-messages.size());
+            capacity.release(messages.size());
+            return null;
+        });
+    }
+
+    private void renewLocks() {
+        locked.forEach(m -> messageReceiver.renewMessageLockAsync(m)
+                .exceptionally(t -> {
+                    log.warn("Failed to renew lock for message with id={}", m.getMessageId(), t);
+                    return null;
+                }));
+    }
+
+    private boolean handleMessage(IMessage m) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        boolean success = false;
         try {
             log.debug(format("Received message on queue=%s with id=%s", serviceBusClient.getLocalQueuePath(), m.getMessageId()));
-            ServiceBusPayload payload = payloadConverter.convert(getBody(m));
-            InputStream asicStream = (payload.getAsic() != null) ? new ByteArrayInputStream(Base64.getDecoder().decode(payload.getAsic())) : null;
-            nextMoveQueue.enqueueIncomingMessage(payload.getSbd(), DPE, asicStream);
-            messageReceiver.completeAsync(m.getLockToken());
-        } catch (IOException e) {
-            log.error("Failed to put message on local queue", e);
+            promiseMaker.promise(reject -> {
+                try {
+                    payloadConverter.convert(new ByteArrayInputStream(getBody(m)), reject,
+                            (sbd, asicStream) -> nextMoveQueue.enqueueIncomingMessage(sbd, DPE, asicStream));
+                    return null;
+                } catch (IOException e) {
+                    throw new NextMoveRuntimeException("Failed to read service bus payload", e);
+                }
+            }).await();
+            success = true;
+        } catch (RuntimeException e) {
+            log.error("Failed to handle message with id={}", m.getMessageId(), e);
+        } finally {
+            sample.stop(meterRegistry.timer("dpe.servicebus.handle", "outcome", success ? "success" : "error"));
         }
+        return success;
     }
 
     private byte[] getBody(IMessage message) {
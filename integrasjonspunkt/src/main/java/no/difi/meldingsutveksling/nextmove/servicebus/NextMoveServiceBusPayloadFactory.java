@@ -1,39 +1,61 @@
 package no.difi.meldingsutveksling.nextmove.servicebus;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import no.difi.meldingsutveksling.api.AsicHandler;
 import no.difi.meldingsutveksling.nextmove.NextMoveOutMessage;
 import no.difi.meldingsutveksling.nextmove.NextMoveRuntimeException;
-import no.difi.meldingsutveksling.pipes.PromiseMaker;
+import no.difi.meldingsutveksling.pipes.Plumber;
+import no.difi.meldingsutveksling.pipes.Reject;
 import org.apache.commons.io.IOUtils;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Base64;
 
+/**
+ * Writes the service bus payload of a message as JSON. The ASiC is Base64 encoded twice on the wire: once as
+ * content of the byte array in {@link ServiceBusPayload}, and once by the JSON binary encoding. Both encodings are
+ * applied while the payload is written, so the ASiC is never held in memory.
+ */
 @Component
 @ConditionalOnProperty(name = "difi.move.feature.enableDPE", havingValue = "true")
 @RequiredArgsConstructor
 public class NextMoveServiceBusPayloadFactory {
 
     private final AsicHandler asicHandler;
-    private final PromiseMaker promiseMaker;
+    private final ObjectMapper objectMapper;
+    private final Plumber plumber;
 
-    public ServiceBusPayload toServiceBusPayload(NextMoveOutMessage message) {
-        return ServiceBusPayload.of(message.getSbd(), getAsicBytes(message));
+    public void writeServiceBusPayload(NextMoveOutMessage message, OutputStream out, Reject reject) {
+        try (JsonGenerator generator = objectMapper.writer().createGenerator(out)) {
+            generator.writeStartObject();
+            generator.writeFieldName("sbd");
+            objectMapper.writeValue(generator, message.getSbd());
+            if (message.getFiles() != null && !message.getFiles().isEmpty()) {
+                generator.writeFieldName("asic");
+                try (InputStream base64Asic = getBase64Asic(message, reject)) {
+                    generator.writeBinary(base64Asic, -1);
+                }
+            }
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new NextMoveRuntimeException("Error creating servicebus payload", e);
+        }
     }
 
-    private byte[] getAsicBytes(NextMoveOutMessage message) {
-        if (message.getFiles() == null || message.getFiles().isEmpty()) return null;
-
-        return promiseMaker.promise(reject -> {
-            try (InputStream encryptedAsic = asicHandler.createEncryptedAsic(message, reject)) {
-                return Base64.getEncoder().encode(IOUtils.toByteArray(encryptedAsic));
+    private InputStream getBase64Asic(NextMoveOutMessage message, Reject reject) {
+        return plumber.pipe("base64 encoding asic", inlet -> {
+            try (InputStream encryptedAsic = asicHandler.createEncryptedAsic(message, reject);
+                 OutputStream base64 = Base64.getEncoder().wrap(inlet)) {
+                IOUtils.copy(encryptedAsic, base64);
             } catch (IOException e) {
                 throw new NextMoveRuntimeException("Unable to read encrypted asic", e);
             }
-        }).await();
+        }, reject).outlet();
     }
 }
@@ -1,20 +1,36 @@
 package no.difi.meldingsutveksling.nextmove.servicebus;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
+import no.difi.meldingsutveksling.domain.sbdh.StandardBusinessDocument;
+import no.difi.meldingsutveksling.nextmove.NextMoveRuntimeException;
+import no.difi.meldingsutveksling.pipes.Plumber;
+import no.difi.meldingsutveksling.pipes.Reject;
 import org.springframework.stereotype.Component;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.function.BiConsumer;
 
 @Component
 @Slf4j
 public class ServiceBusPayloadConverter {
 
-    private ObjectMapper objectMapper;
+    private static final String SBD_FIELD = "sbd";
+    private static final String ASIC_FIELD = "asic";
 
-    public ServiceBusPayloadConverter(ObjectMapper objectMapper) {
+    private final ObjectMapper objectMapper;
+    private final Plumber plumber;
+
+    public ServiceBusPayloadConverter(ObjectMapper objectMapper, Plumber plumber) {
         this.objectMapper = objectMapper;
+        this.plumber = plumber;
     }
 
     public ServiceBusPayload convert(String input) throws IOException {
@@ -24,4 +40,49 @@ public class ServiceBusPayloadConverter {
     public ServiceBusPayload convert(byte[] input) throws IOException {
         return objectMapper.readValue(input, ServiceBusPayload.class);
     }
+
+    /**
+     * Reads a payload without materializing the ASiC. The handler is called with the SBD and the decoded ASiC
+     * stream, or null if the payload has no ASiC. The ASiC is decoded from the JSON while the handler reads it,
+     * so the handler must consume the stream before returning.
+     * <p>
+     * Payloads written by the integrasjonspunkt have the SBD before the ASiC. If the ASiC comes first, it is
+     * buffered until the SBD has been read.
+     */
+    public void convert(InputStream input, Reject reject, BiConsumer<StandardBusinessDocument, InputStream> handler) throws IOException {
+        try (JsonParser parser = objectMapper.getFactory().createParser(input)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Service bus payload is not a JSON object");
+            }
+
+            StandardBusinessDocument sbd = null;
+            byte[] bufferedAsic = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (SBD_FIELD.equals(field)) {
+                    sbd = objectMapper.readValue(parser, StandardBusinessDocument.class);
+                } else if (ASIC_FIELD.equals(field) && value != JsonToken.VALUE_NULL) {
+                    if (sbd != null) {
+                        InputStream asic = plumber.pipe("decoding service bus asic", inlet -> readBinary(parser, inlet), reject).outlet();
+                        handler.accept(sbd, Base64.getDecoder().wrap(asic));
+                        return;
+                    }
+                    bufferedAsic = parser.getBinaryValue();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+
+            handler.accept(sbd, bufferedAsic != null ? Base64.getDecoder().wrap(new ByteArrayInputStream(bufferedAsic)) : null);
+        }
+    }
+
+    private void readBinary(JsonParser parser, OutputStream out) {
+        try {
+            parser.readBinaryValue(out);
+        } catch (IOException e) {
+            throw new NextMoveRuntimeException("Unable to read asic from service bus payload", e);
+        }
+    }
 }
@@ -8,6 +8,8 @@ import no.difi.meldingsutveksling.domain.MeldingsUtvekslingRuntimeException;
 import no.difi.meldingsutveksling.nextmove.BrokerProperties;
 import no.difi.meldingsutveksling.serviceregistry.ServiceRegistryLookup;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
 import org.springframework.http.*;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.ResourceAccessException;
@@ -15,6 +17,7 @@ import org.springframework.web.client.ResourceAccessException;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -62,7 +65,7 @@ public class ServiceBusRestClient {
                 props.getNextmove().getServiceBus().getBaseUrl());
     }
 
-    public void sendMessage(byte[] message, String queuePath) {
+    public void sendMessage(InputStream message, String queuePath) {
         String resourceUri = format("%s/%s/messages",
                 getBase(),
                 queuePath);
@@ -72,7 +75,7 @@ public class ServiceBusRestClient {
         HttpHeaders headers = new HttpHeaders();
         headers.add(AUTH_HEADER, auth);
         headers.add("BrokerProperties", "{}");
-        HttpEntity<Object> httpEntity = new HttpEntity<>(message, headers);
+        HttpEntity<Resource> httpEntity = new HttpEntity<>(new InputStreamResource(message), headers);
 
         ResponseEntity<String> response = restTemplate.exchange(uri, HttpMethod.POST, httpEntity, String.class);
         if (!response.getStatusCode().is2xxSuccessful()) {
@@ -12,10 +12,17 @@ import org.springframework.web.client.RestTemplate;
 public class ServiceBusRestTemplate extends RestTemplate {
 
     public ServiceBusRestTemplate(IntegrasjonspunktProperties props, ServiceBusRestErrorHandler serviceBusRestErrorHandler) {
-        super(new HttpComponentsClientHttpRequestFactory(getHttpClient(props)));
+        super(getRequestFactory(props));
         setErrorHandler(serviceBusRestErrorHandler);
     }
 
+    private static HttpComponentsClientHttpRequestFactory getRequestFactory(IntegrasjonspunktProperties props) {
+        HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory(getHttpClient(props));
+        // Stream outgoing payloads instead of buffering them in memory
+        requestFactory.setBufferRequestBody(false);
+        return requestFactory;
+    }
+
     private static CloseableHttpClient getHttpClient(IntegrasjonspunktProperties props) {
         RequestConfig requestConfig = RequestConfig.custom()
                 .setConnectTimeout(props.getNextmove().getServiceBus().getConnectTimeout())
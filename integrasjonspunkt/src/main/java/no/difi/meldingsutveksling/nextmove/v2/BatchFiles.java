@@ -0,0 +1,26 @@
+package no.difi.meldingsutveksling.nextmove.v2;
+
+import lombok.Value;
+import no.difi.meldingsutveksling.nextmove.ArkivmeldingMetadata;
+import no.difi.meldingsutveksling.nextmove.NextMoveRuntimeException;
+
+import java.util.Map;
+
+/**
+ * The files shared by the messages of a batch, stored once under the batch id, and the arkivmelding metadata read
+ * from them.
+ */
+@Value
+public class BatchFiles {
+
+    Map<String, String> identifiers;
+    ArkivmeldingMetadata arkivmeldingMetadata;
+
+    public String getIdentifier(String filename) {
+        String identifier = identifiers.get(filename);
+        if (identifier == null) {
+            throw new NextMoveRuntimeException("File " + filename + " was not stored for the batch");
+        }
+        return identifier;
+    }
+}
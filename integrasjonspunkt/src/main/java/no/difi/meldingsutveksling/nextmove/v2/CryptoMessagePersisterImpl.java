@@ -74,6 +74,10 @@ public class CryptoMessagePersisterImpl implements CryptoMessagePersister {
         delegate.delete(messageId);
     }
 
+    public void copy(String fromMessageId, String fromFilename, String toMessageId, String toFilename) throws IOException {
+        delegate.copy(fromMessageId, fromFilename, toMessageId, toFilename);
+    }
+
     private CmsUtil getCmsUtil() {
         return cmsUtilProvider.getIfAvailable();
     }
@@ -0,0 +1,137 @@
+package no.difi.meldingsutveksling.nextmove.v2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Lists;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import no.difi.meldingsutveksling.UUIDGenerator;
+import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
+import no.difi.meldingsutveksling.domain.sbdh.*;
+import no.difi.meldingsutveksling.exceptions.MessageNotFoundException;
+import no.difi.meldingsutveksling.exceptions.TimeToLiveException;
+import no.difi.meldingsutveksling.nextmove.NextMoveOutMessage;
+import no.difi.meldingsutveksling.nextmove.NextMoveRuntimeException;
+import no.difi.meldingsutveksling.receipt.ReceiptStatus;
+import no.difi.meldingsutveksling.status.ConversationRepository;
+import org.springframework.stereotype.Component;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Creates and sends one message per receiver from a shared SBD template and document set. Receivers are handled in
+ * chunks of difi.move.nextmove.batchSize, each chunk in one transaction so that message and conversation rows are
+ * written in JDBC batches. All messages in a batch share a batchId which can be used to follow progress through
+ * the status and conversation APIs. The service records of each chunk are looked up in parallel before the messages
+ * are created.
+ * <p>
+ * Every chunk is validated before anything is stored or sent, so an invalid receiver or file rejects the whole batch
+ * instead of leaving the receivers before it sent. Only one chunk of messages is held in memory at a time, so the
+ * messages of a chunk are prepared again when it is stored. The template is parsed once, and the files are stored
+ * once for the batch and copied to each message.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class NextMoveBatchService {
+
+    private static final String DEFAULT_AUTHORITY = "iso6523-actorid-upis";
+
+    private final NextMoveMessageService messageService;
+    private final ServiceRecordProvider serviceRecordProvider;
+    private final ConversationRepository conversationRepository;
+    private final ObjectMapper objectMapper;
+    private final UUIDGenerator uuidGenerator;
+    private final IntegrasjonspunktProperties props;
+
+    public NextMoveBatchStatus createAndSend(String sbdTemplate, List<String> receivers, List<? extends MultipartFile> files) {
+        String batchId = uuidGenerator.generate();
+        log.info("Creating batch[id={}] with {} receivers", batchId, receivers.size());
+
+        JsonNode template = parseTemplate(sbdTemplate);
+        List<List<String>> chunks = Lists.partition(receivers, props.getNextmove().getBatchSize());
+        chunks.forEach(chunk -> prepareChunk(template, chunk, files));
+
+        BatchFiles batchFiles = messageService.storeBatchFiles(batchId, files);
+        try {
+            for (List<String> chunk : chunks) {
+                List<NextMoveOutMessage> messages = prepareChunk(template, chunk, files);
+                messageService.createBatch(batchId, messages, batchFiles);
+                messages.forEach(this::send);
+                log.debug("Batch[id={}]: {} messages enqueued", batchId, messages.size());
+            }
+        } finally {
+            messageService.deleteBatchFiles(batchId);
+        }
+
+        return getStatus(batchId);
+    }
+
+    private List<NextMoveOutMessage> prepareChunk(JsonNode template, List<String> receivers, List<? extends MultipartFile> files) {
+        List<StandardBusinessDocument> sbds = receivers.stream()
+                .map(receiver -> createSbd(template, receiver))
+                .collect(Collectors.toList());
+        serviceRecordProvider.prefetch(sbds);
+        return messageService.prepareBatch(sbds, files);
+    }
+
+    private void send(NextMoveOutMessage message) {
+        try {
+            messageService.sendMessage(message);
+        } catch (TimeToLiveException e) {
+            log.warn("Message[id={}] in batch expired before it could be sent", message.getMessageId(), e);
+        }
+    }
+
+    public NextMoveBatchStatus getStatus(String batchId) {
+        long messages = conversationRepository.countByBatchId(batchId);
+        if (messages == 0) {
+            throw new MessageNotFoundException("batchId", batchId);
+        }
+        return new NextMoveBatchStatus(batchId,
+                messages,
+                conversationRepository.countByBatchIdAndFinished(batchId, true),
+                conversationRepository.countDistinctByBatchIdAndMessageStatusesStatus(batchId, ReceiptStatus.FEIL.toString()));
+    }
+
+    private JsonNode parseTemplate(String sbdTemplate) {
+        try {
+            return objectMapper.readTree(sbdTemplate);
+        } catch (IOException e) {
+            throw new NextMoveRuntimeException("Could not parse SBD template", e);
+        }
+    }
+
+    /**
+     * Binds a new copy of the parsed template for the receiver.
+     */
+    private StandardBusinessDocument createSbd(JsonNode template, String receiver) {
+        StandardBusinessDocument sbd;
+        try {
+            sbd = objectMapper.treeToValue(template, StandardBusinessDocument.class);
+        } catch (IOException e) {
+            throw new NextMoveRuntimeException("Could not parse SBD template", e);
+        }
+
+        StandardBusinessDocumentHeader header = sbd.getStandardBusinessDocumentHeader();
+        String authority = header.getReceiver().stream()
+                .map(Partner::getIdentifier)
+                .filter(p -> p != null && p.getAuthority() != null)
+                .map(PartnerIdentification::getAuthority)
+                .findFirst()
+                .orElse(DEFAULT_AUTHORITY);
+        header.getReceiver().clear();
+        header.addReceiver(new Receiver().setIdentifier(new PartnerIdentification()
+                .setValue(receiver)
+                .setAuthority(authority)));
+
+        // Message and conversation ids are generated per receiver
+        header.getDocumentIdentification().setInstanceIdentifier(null);
+        sbd.findScope(ScopeType.CONVERSATION_ID).ifPresent(scope -> scope.setInstanceIdentifier(null));
+
+        return sbd;
+    }
+}
@@ -0,0 +1,12 @@
+package no.difi.meldingsutveksling.nextmove.v2;
+
+import lombok.Value;
+
+@Value
+public class NextMoveBatchStatus {
+
+    String batchId;
+    long messages;
+    long finished;
+    long failed;
+}
@@ -24,6 +24,7 @@ import org.springframework.web.multipart.MultipartRequest;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.validation.Valid;
+import javax.validation.constraints.NotEmpty;
 import javax.validation.constraints.NotNull;
 import java.util.Collection;
 import java.util.Collections;
@@ -40,39 +41,37 @@ public class NextMoveMessageOutController {
     private static final int MAX_SIZE = 5 * 1024 * 1024;
 
     private final NextMoveMessageService messageService;
+    private final NextMoveBatchService batchService;
 
     @PostMapping(value = "multipart", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
     public StandardBusinessDocument createAndSendMessage(
             @RequestParam("sbd") @NotNull @Valid StandardBusinessDocument sbd,
             MultipartRequest multipartRequest) {
         MDC.put(NextMoveConsts.CORRELATION_ID, sbd.getMessageId());
-        List<MultipartFile> files = multipartRequest.getMultiFileMap().values().stream()
-                .flatMap(Collection::stream)
-                .collect(Collectors.toList());
-
-        // Check for max size
-        files.stream()
-                .filter(p -> p.getSize() > MAX_SIZE)
-                .findAny()
-                .ifPresent(p -> {
-                    throw new MultipartFileToLargeException(p.getOriginalFilename(), MAX_SIZE);
-                });
-        // Check for duplicate filenames
-        List<String> filenames = files.stream()
-                .map(MultipartFile::getOriginalFilename)
-                .collect(Collectors.toList());
-        filenames.stream()
-                .filter(f -> Collections.frequency(filenames, f) > 1)
-                .reduce((a, b) -> a + ", " + b)
-                .ifPresent(d -> {
-                    throw new DuplicateFilenameException(d);
-                });
+        List<MultipartFile> files = getFiles(multipartRequest);
+        validateFiles(files);
 
         NextMoveOutMessage message = messageService.createMessage(sbd, files);
         messageService.sendMessage(message.getId());
         return message.getSbd();
     }
 
+    @PostMapping(value = "batch", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public NextMoveBatchStatus createAndSendBatch(
+            @RequestParam("sbd") @NotNull String sbdTemplate,
+            @RequestParam("receivers") @NotEmpty List<String> receivers,
+            MultipartRequest multipartRequest) {
+        List<MultipartFile> files = getFiles(multipartRequest);
+        validateFiles(files);
+        return batchService.createAndSend(sbdTemplate, receivers, files);
+    }
+
+    @GetMapping("batch/{batchId}")
+    @Transactional(readOnly = true)
+    public NextMoveBatchStatus getBatchStatus(@PathVariable("batchId") String batchId) {
+        return batchService.getStatus(batchId);
+    }
+
     @PostMapping(consumes = MediaType.APPLICATION_JSON_VALUE)
     @Transactional(noRollbackFor = TimeToLiveException.class)
     public StandardBusinessDocument createMessage(@Valid @RequestBody StandardBusinessDocument sbd) {
@@ -123,4 +122,30 @@ public class NextMoveMessageOutController {
         NextMoveOutMessage message = messageService.getMessage(messageId);
         messageService.sendMessage(message);
     }
+
+    private List<MultipartFile> getFiles(MultipartRequest multipartRequest) {
+        return multipartRequest.getMultiFileMap().values().stream()
+                .flatMap(Collection::stream)
+                .collect(Collectors.toList());
+    }
+
+    private void validateFiles(List<MultipartFile> files) {
+        // Check for max size
+        files.stream()
+                .filter(p -> p.getSize() > MAX_SIZE)
+                .findAny()
+                .ifPresent(p -> {
+                    throw new MultipartFileToLargeException(p.getOriginalFilename(), MAX_SIZE);
+                });
+        // Check for duplicate filenames
+        List<String> filenames = files.stream()
+                .map(MultipartFile::getOriginalFilename)
+                .collect(Collectors.toList());
+        filenames.stream()
+                .filter(f -> Collections.frequency(filenames, f) > 1)
+                .reduce((a, b) -> a + ", " + b)
+                .ifPresent(d -> {
+                    throw new DuplicateFilenameException(d);
+                });
+    }
 }
@@ -4,8 +4,6 @@ import com.querydsl.core.types.Predicate;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import no.arkivverket.standarder.noark5.arkivmelding.Arkivmelding;
-import no.arkivverket.standarder.noark5.arkivmelding.Journalpost;
-import no.arkivverket.standarder.noark5.arkivmelding.Saksmappe;
 import no.difi.meldingsutveksling.MimeTypeExtensionMapper;
 import no.difi.meldingsutveksling.NextMoveConsts;
 import no.difi.meldingsutveksling.api.ConversationService;
@@ -16,6 +14,7 @@ import no.difi.meldingsutveksling.domain.sbdh.StandardBusinessDocument;
 import no.difi.meldingsutveksling.exceptions.MessageNotFoundException;
 import no.difi.meldingsutveksling.exceptions.MessagePersistException;
 import no.difi.meldingsutveksling.exceptions.TimeToLiveException;
+import no.difi.meldingsutveksling.nextmove.ArkivmeldingMetadata;
 import no.difi.meldingsutveksling.nextmove.BusinessMessageFile;
 import no.difi.meldingsutveksling.nextmove.NextMoveOutMessage;
 import no.difi.meldingsutveksling.nextmove.NextMoveRuntimeException;
@@ -34,9 +33,12 @@ import javax.xml.bind.JAXBException;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static no.difi.meldingsutveksling.NextMoveConsts.ARKIVMELDING_FILE;
@@ -82,6 +84,72 @@ public class NextMoveMessageService {
         return message;
     }
 
+    /**
+     * Validates the documents and files of a batch, and creates its messages without storing anything, so that an
+     * invalid batch is rejected before any of its messages are sent.
+     */
+    public List<NextMoveOutMessage> prepareBatch(List<StandardBusinessDocument> sbds, List<? extends MultipartFile> files) {
+        return sbds.stream()
+                .map(sbd -> {
+                    validator.validate(sbd);
+                    NextMoveOutMessage message = nextMoveOutMessageFactory.getNextMoveOutMessage(sbd);
+                    files.forEach(file -> {
+                        validator.validateFile(message, file);
+                        message.addFile(createFile(message, file));
+                    });
+                    return message;
+                })
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Stores the files shared by the messages of a batch once, under the batch id, and reads the arkivmelding
+     * metadata from them once. The stored files are copied to each message by {@link #createBatch}, and removed by
+     * {@link #deleteBatchFiles} when all messages of the batch are created.
+     */
+    public BatchFiles storeBatchFiles(String batchId, List<? extends MultipartFile> files) {
+        Map<String, String> identifiers = new HashMap<>();
+        ArkivmeldingMetadata metadata = null;
+        for (MultipartFile file : files) {
+            String identifier = persistFile(batchId, file);
+            identifiers.put(file.getOriginalFilename(), identifier);
+            if (ARKIVMELDING_FILE.equals(file.getOriginalFilename())) {
+                metadata = getArkivmeldingMetadata(batchId, identifier);
+            }
+        }
+        return new BatchFiles(identifiers, metadata);
+    }
+
+    public void deleteBatchFiles(String batchId) {
+        try {
+            optionalCryptoMessagePersister.delete(batchId);
+        } catch (IOException e) {
+            log.error("Error deleting shared files of batch with id={}", batchId, e);
+        }
+    }
+
+    /**
+     * Stores messages created by {@link #prepareBatch}, together with their conversations. The files stored by
+     * {@link #storeBatchFiles} are copied to each message, and each message and conversation is saved once.
+     */
+    @Transactional(noRollbackFor = TimeToLiveException.class)
+    public void createBatch(String batchId, List<NextMoveOutMessage> messages, BatchFiles batchFiles) {
+        for (NextMoveOutMessage message : messages) {
+            for (BusinessMessageFile file : message.getFiles()) {
+                String identifier = UUID.randomUUID().toString();
+                try {
+                    optionalCryptoMessagePersister.copy(batchId, batchFiles.getIdentifier(file.getFilename()), message.getMessageId(), identifier);
+                } catch (IOException e) {
+                    throw new MessagePersistException(file.getFilename());
+                }
+                file.setIdentifier(identifier);
+            }
+            message.setArkivmeldingMetadata(batchFiles.getArkivmeldingMetadata());
+        }
+        messageRepo.saveAll(messages);
+        conversationService.registerBatch(batchId, messages, batchFiles.getArkivmeldingMetadata());
+    }
+
     @Transactional
     public void deleteMessage(String messageId) {
         try {
@@ -101,35 +169,39 @@ public class NextMoveMessageService {
     public void addFile(NextMoveOutMessage message, MultipartFile file) {
         validator.validateFile(message, file);
 
-        String identifier = persistFile(message, file);
+        String identifier = persistFile(message.getMessageId(), file);
 
-        message.addFile(new BusinessMessageFile()
-                .setIdentifier(identifier)
-                .setTitle(getTitle(file.getName()))
-                .setFilename(file.getOriginalFilename())
-                .setSize(file.getSize())
-                .setMimetype(getMimeType(file.getContentType(), file.getOriginalFilename()))
-                .setPrimaryDocument(message.isPrimaryDocument(file.getOriginalFilename())));
+        message.addFile(createFile(message, file).setIdentifier(identifier));
 
         if (ARKIVMELDING_FILE.equals(file.getOriginalFilename())) {
-            Arkivmelding arkivmelding = getArkivmelding(message, identifier);
-            Journalpost journalpost = arkivmeldingUtil.getJournalpost(arkivmelding);
-            Saksmappe saksmappe = arkivmeldingUtil.getSaksmappe(arkivmelding);
+            ArkivmeldingMetadata metadata = getArkivmeldingMetadata(message.getMessageId(), identifier);
+            message.setArkivmeldingMetadata(metadata);
             Optional<Conversation> conversation = conversationService.findConversation(message.getMessageId());
-            conversation.ifPresent(c -> {
-                c.setMessageTitle(journalpost.getOffentligTittel());
-                if (journalpost.getJournalpostnummer() != null) {
-                    c.setMessageReference(saksmappe.getSystemID() + "-" + journalpost.getJournalpostnummer().toString());
-                }
-                conversationService.save(c);
-            });
+            conversation.ifPresent(c -> conversationService.save(c.applyMetadata(metadata)));
         }
 
         messageRepo.save(message);
     }
 
-    private Arkivmelding getArkivmelding(NextMoveOutMessage message, String identifier) {
-        try (InputStream is = new ByteArrayInputStream(optionalCryptoMessagePersister.read(message.getMessageId(), identifier))) {
+    private BusinessMessageFile createFile(NextMoveOutMessage message, MultipartFile file) {
+        return new BusinessMessageFile()
+                .setTitle(getTitle(file.getName()))
+                .setFilename(file.getOriginalFilename())
+                .setSize(file.getSize())
+                .setMimetype(getMimeType(file.getContentType(), file.getOriginalFilename()))
+                .setPrimaryDocument(message.isPrimaryDocument(file.getOriginalFilename()));
+    }
+
+    private ArkivmeldingMetadata getArkivmeldingMetadata(String messageId, String identifier) {
+        Arkivmelding arkivmelding = getArkivmelding(messageId, identifier);
+        return ArkivmeldingMetadata.of(
+                arkivmeldingUtil.getSaksmappe(arkivmelding),
+                arkivmeldingUtil.getJournalpost(arkivmelding),
+                arkivmeldingUtil.getFilenames(arkivmelding));
+    }
+
+    private Arkivmelding getArkivmelding(String messageId, String identifier) {
+        try (InputStream is = new ByteArrayInputStream(optionalCryptoMessagePersister.read(messageId, identifier))) {
             return arkivmeldingUtil.unmarshalArkivmelding(is);
         } catch (JAXBException | IOException e) {
             throw new NextMoveRuntimeException("Failed to get Arkivmelding", e);
@@ -140,11 +212,11 @@ public class NextMoveMessageService {
         return StringUtils.hasText(name) ? name : null;
     }
 
-    private String persistFile(NextMoveOutMessage message, MultipartFile file) {
+    private String persistFile(String messageId, MultipartFile file) {
         String identifier = UUID.randomUUID().toString();
 
         try {
-            optionalCryptoMessagePersister.writeStream(message.getMessageId(), identifier, file.getInputStream());
+            optionalCryptoMessagePersister.writeStream(messageId, identifier, file.getInputStream());
         } catch (IOException e) {
             throw new MessagePersistException(file.getOriginalFilename());
         }
@@ -134,7 +134,7 @@ public class NextMoveValidator {
                     .map(BusinessMessageFile::getFilename)
                     .collect(Collectors.toSet());
             // Verify each file referenced in arkivmelding is uploaded
-            List<String> arkivmeldingFiles = arkivmeldingUtil.getFilenames(getArkivmelding(message));
+            List<String> arkivmeldingFiles = getArkivmeldingFilenames(message);
 
             List<String> missingFiles = arkivmeldingFiles.stream()
                     .filter(p -> !messageFilenames.contains(p))
@@ -180,14 +180,21 @@ public class NextMoveValidator {
         });
     }
 
-    private Arkivmelding getArkivmelding(NextMoveOutMessage message) {
+    private List<String> getArkivmeldingFilenames(NextMoveOutMessage message) {
         // Arkivmelding must exist for DPO
         BusinessMessageFile arkivmeldingFile = message.getFiles().stream()
                 .filter(f -> NextMoveConsts.ARKIVMELDING_FILE.equals(f.getFilename()))
                 .findAny()
                 .orElseThrow(MissingArkivmeldingException::new);
 
+        // Messages uploaded before the metadata was stored with the message are read from arkivmelding.xml
+        if (message.getArkivmeldingMetadata() != null) {
+            return message.getArkivmeldingMetadata().getFilenames();
+        }
+        return arkivmeldingUtil.getFilenames(getArkivmelding(message, arkivmeldingFile));
+    }
 
+    private Arkivmelding getArkivmelding(NextMoveOutMessage message, BusinessMessageFile arkivmeldingFile) {
         try (InputStream is = new ByteArrayInputStream(optionalCryptoMessagePersister.read(message.getMessageId(), arkivmeldingFile.getIdentifier()))) {
             return arkivmeldingUtil.unmarshalArkivmelding(is);
         } catch (JAXBException | IOException e) {
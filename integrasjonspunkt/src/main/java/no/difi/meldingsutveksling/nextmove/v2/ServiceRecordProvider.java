@@ -1,6 +1,6 @@
 package no.difi.meldingsutveksling.nextmove.v2;
 
-import lombok.RequiredArgsConstructor;
+import no.difi.meldingsutveksling.config.TaskExecutorConfig;
 import no.difi.meldingsutveksling.domain.sbdh.StandardBusinessDocument;
 import no.difi.meldingsutveksling.exceptions.ReceiverDoesNotAcceptProcessException;
 import no.difi.meldingsutveksling.nextmove.BusinessMessage;
@@ -8,30 +8,61 @@ import no.difi.meldingsutveksling.serviceregistry.SRParameter;
 import no.difi.meldingsutveksling.serviceregistry.ServiceRegistryLookup;
 import no.difi.meldingsutveksling.serviceregistry.ServiceRegistryLookupException;
 import no.difi.meldingsutveksling.serviceregistry.externalmodel.ServiceRecord;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+
 @Component
-@RequiredArgsConstructor
 public class ServiceRecordProvider {
 
     private final ServiceRegistryLookup serviceRegistryLookup;
+    private final Executor transportExecutor;
+
+    public ServiceRecordProvider(ServiceRegistryLookup serviceRegistryLookup,
+                                 @Qualifier(TaskExecutorConfig.TRANSPORT_EXECUTOR) Executor transportExecutor) {
+        this.serviceRegistryLookup = serviceRegistryLookup;
+        this.transportExecutor = transportExecutor;
+    }
 
     ServiceRecord getServiceRecord(StandardBusinessDocument sbd) {
-        BusinessMessage<?> businessMessage = sbd.getBusinessMessage();
         try {
-            SRParameter.SRParameterBuilder parameterBuilder = SRParameter.builder(sbd.getReceiverIdentifier())
-                .process(sbd.getProcess());
-
-            sbd.getOptionalConversationId().ifPresent(parameterBuilder::conversationId);
-
-            if (businessMessage.getSikkerhetsnivaa() != null) {
-                parameterBuilder.securityLevel(businessMessage.getSikkerhetsnivaa());
-            }
             return serviceRegistryLookup.getServiceRecord(
-                    parameterBuilder.build(),
+                    getParameter(sbd),
                     sbd.getDocumentType());
         } catch (ServiceRegistryLookupException e) {
             throw new ReceiverDoesNotAcceptProcessException(sbd.getProcess(), e.getLocalizedMessage());
         }
     }
+
+    /**
+     * Looks up the service records of the receivers in parallel, ahead of validating and sending the messages.
+     * The lookup by receiver and process only is prefetched too, as it is used when the messages are sent.
+     */
+    void prefetch(Collection<StandardBusinessDocument> sbds) {
+        List<SRParameter> parameters = new ArrayList<>(sbds.size() * 2);
+        sbds.forEach(sbd -> {
+            parameters.add(getParameter(sbd));
+            parameters.add(SRParameter.builder(sbd.getReceiverIdentifier())
+                    .process(sbd.getProcess())
+                    .build());
+        });
+        serviceRegistryLookup.prefetch(parameters, transportExecutor);
+    }
+
+    private SRParameter getParameter(StandardBusinessDocument sbd) {
+        BusinessMessage<?> businessMessage = sbd.getBusinessMessage();
+        SRParameter.SRParameterBuilder parameterBuilder = SRParameter.builder(sbd.getReceiverIdentifier())
+            .process(sbd.getProcess());
+
+        sbd.getOptionalConversationId().ifPresent(parameterBuilder::conversationId);
+
+        if (businessMessage.getSikkerhetsnivaa() != null) {
+            parameterBuilder.securityLevel(businessMessage.getSikkerhetsnivaa());
+        }
+        return parameterBuilder.build();
+    }
 }
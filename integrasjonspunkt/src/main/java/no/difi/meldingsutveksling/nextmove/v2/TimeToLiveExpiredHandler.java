@@ -12,6 +12,7 @@ import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.io.IOException;
+import java.util.List;
 
 import static no.difi.meldingsutveksling.status.ConversationMarker.markerFrom;
 
@@ -26,9 +27,27 @@ public class TimeToLiveExpiredHandler {
     private final BusinessMessageFileRepository businessMessageFileRepository;
     private final MessagePersister messagePersister;
 
+    /**
+     * Expires a conversation, unless it was finished after it was scheduled for expiry.
+     */
     @Transactional
     public void setExpired(Long id) {
-        repo.findById(id).ifPresent(this::setExpired);
+        repo.findById(id)
+                .filter(conversation -> !conversation.isFinished())
+                .ifPresent(this::setExpired);
+    }
+
+    /**
+     * Expires a batch of conversations in one transaction. Conversations finished after they were scheduled for
+     * expiry are skipped.
+     */
+    @Transactional
+    public void setExpired(List<Long> ids) {
+        repo.findAllById(ids).forEach(conversation -> {
+            if (!conversation.isFinished()) {
+                setExpired(conversation);
+            }
+        });
     }
 
     private void setExpired(Conversation conversation) {
@@ -2,24 +2,53 @@ package no.difi.meldingsutveksling.nextmove.v2;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import no.difi.meldingsutveksling.status.ConversationRepository;
+import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
+import no.difi.meldingsutveksling.status.ConversationExpiryScheduler;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
-import java.time.Clock;
-import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
 
 @Component
 @Slf4j
 @RequiredArgsConstructor
 public class TimeToLiveTasks {
-    private final ConversationRepository repo;
-    private final Clock clock;
+    private final ConversationExpiryScheduler expiryScheduler;
     private final TimeToLiveExpiredHandler timeToLiveExpiredHandler;
+    private final IntegrasjonspunktProperties props;
 
     @Scheduled(fixedRateString = "${difi.move.nextmove.ttlPollingrate}")
     public void checkExpiredMessages() {
-        repo.findIdsForExpiredConversations(OffsetDateTime.now(clock))
-                .forEach(timeToLiveExpiredHandler::setExpired);
+        int batchSize = props.getNextmove().getTtlBatchSize();
+        List<Long> ids;
+        do {
+            ids = expiryScheduler.pollExpired(batchSize);
+            if (!ids.isEmpty()) {
+                setExpired(ids);
+            }
+        } while (ids.size() >= batchSize);
+    }
+
+    private void setExpired(List<Long> ids) {
+        try {
+            timeToLiveExpiredHandler.setExpired(ids);
+            log.debug("Expired {} conversations", ids.size());
+        } catch (Exception e) {
+            log.warn("Failed to expire batch of {} conversations, retrying one by one", ids.size(), e);
+            List<Long> failed = new ArrayList<>();
+            ids.forEach(id -> {
+                try {
+                    timeToLiveExpiredHandler.setExpired(id);
+                } catch (Exception ex) {
+                    log.error("Failed to expire conversation with id={}", id, ex);
+                    failed.add(id);
+                }
+            });
+            if (!failed.isEmpty()) {
+                // Polled ids are no longer scheduled, so failed ones must be put back to be tried again
+                expiryScheduler.retry(failed, props.getNextmove().getTtlRetryDelay());
+            }
+        }
     }
 }
@@ -59,4 +59,8 @@ public class UncryptedMessagePersister implements OptionalCryptoMessagePersister
     public void delete(String messageId) throws IOException {
         delegate.delete(messageId);
     }
+
+    public void copy(String fromMessageId, String fromFilename, String toMessageId, String toFilename) throws IOException {
+        delegate.copy(fromMessageId, fromFilename, toMessageId, toFilename);
+    }
 }
@@ -1,7 +1,6 @@
 package no.difi.meldingsutveksling.noarkexchange;
 
 import lombok.extern.slf4j.Slf4j;
-import no.arkivverket.standarder.noark5.arkivmelding.Arkivmelding;
 import no.difi.meldingsutveksling.Decryptor;
 import no.difi.meldingsutveksling.NextMoveConsts;
 import no.difi.meldingsutveksling.api.ConversationService;
@@ -17,26 +16,20 @@ import no.difi.meldingsutveksling.nextmove.ArkivmeldingKvitteringMessage;
 import no.difi.meldingsutveksling.nextmove.InternalQueue;
 import no.difi.meldingsutveksling.nextmove.NextMoveOutMessage;
 import no.difi.meldingsutveksling.nextmove.NextMoveRuntimeException;
+import no.difi.meldingsutveksling.nextmove.message.FileEntryStream;
 import no.difi.meldingsutveksling.noarkexchange.schema.AppReceiptType;
 import no.difi.meldingsutveksling.noarkexchange.schema.PutMessageRequestType;
 import no.difi.meldingsutveksling.noarkexchange.schema.PutMessageResponseType;
 import no.difi.meldingsutveksling.noarkexchange.schema.core.MeldingType;
 import no.difi.meldingsutveksling.receipt.ReceiptStatus;
 import no.difi.move.common.cert.KeystoreHelper;
-import org.eclipse.persistence.jaxb.JAXBContextFactory;
 import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Component;
 
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBException;
-import javax.xml.bind.Unmarshaller;
-import javax.xml.transform.stream.StreamSource;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.io.InputStream;
 
 import static no.difi.meldingsutveksling.ServiceIdentifier.DPO;
 import static no.difi.meldingsutveksling.logging.MessageMarkerFactory.markerFrom;
@@ -52,8 +45,6 @@ public class IntegrajonspunktReceiveImpl {
     private static final String OKEY_TYPE = "OK";
     private static final String OK_TYPE = OKEY_TYPE;
 
-    private final JAXBContext jaxbContext;
-
     private final NoarkClient localNoark;
     private final KeystoreHelper keystoreHelper;
     private final ConversationService conversationService;
@@ -76,7 +67,7 @@ public class IntegrajonspunktReceiveImpl {
                                        @Lazy NextMoveAdapter nextMoveAdapter,
                                        @Lazy InternalQueue internalQueue,
                                        ConversationIdEntityRepo conversationIdEntityRepo,
-                                       MeldingFactory meldingFactory) throws JAXBException {
+                                       MeldingFactory meldingFactory) {
         this.localNoark = localNoark.getIfAvailable();
         this.keystoreHelper = keystoreHelper;
         this.conversationService = conversationService;
@@ -88,8 +79,6 @@ public class IntegrajonspunktReceiveImpl {
         this.internalQueue = internalQueue;
         this.conversationIdEntityRepo = conversationIdEntityRepo;
         this.meldingFactory = meldingFactory;
-
-        this.jaxbContext = JAXBContextFactory.createContext(new Class[]{Arkivmelding.class}, null);
     }
 
     public void forwardToNoarkSystem(StandardBusinessDocument sbd) {
@@ -120,15 +109,13 @@ public class IntegrajonspunktReceiveImpl {
             }
             return putMessageRequestFactory.create(sbd, BestEduConverter.appReceiptAsString(appReceiptType));
         } else {
-            byte[] asicBytes;
-            try {
-                asicBytes = messagePersister.read(sbd.getDocumentId(), NextMoveConsts.ASIC_FILE);
+            MeldingType meldingType;
+            try (FileEntryStream encryptedAsic = messagePersister.readStream(sbd.getDocumentId(), NextMoveConsts.ASIC_FILE);
+                 InputStream asic = new Decryptor(keystoreHelper).decryptCMSStreamed(encryptedAsic.getInputStream())) {
+                meldingType = meldingFactory.create(asic);
             } catch (IOException e) {
                 throw new NextMoveRuntimeException("Unable to read persisted ASiC", e);
             }
-            byte[] asic = new Decryptor(keystoreHelper).decrypt(asicBytes);
-            Arkivmelding arkivmelding = convertAsicEntryToArkivmelding(asic);
-            MeldingType meldingType = meldingFactory.create(arkivmelding, asic);
             return putMessageRequestFactory.create(sbd, BestEduConverter.meldingTypeAsString(meldingType));
         }
     }
@@ -171,19 +158,4 @@ public class IntegrajonspunktReceiveImpl {
             internalQueue.enqueueNextMove(msg);
         }
     }
-
-    private Arkivmelding convertAsicEntryToArkivmelding(byte[] bytes) {
-        try (ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(bytes))) {
-            ZipEntry entry;
-            while ((entry = zipInputStream.getNextEntry()) != null) {
-                if (NextMoveConsts.ARKIVMELDING_FILE.equals(entry.getName())) {
-                    Unmarshaller unMarshaller = jaxbContext.createUnmarshaller();
-                    return unMarshaller.unmarshal(new StreamSource(zipInputStream), Arkivmelding.class).getValue();
-                }
-            }
-            throw new NextMoveRuntimeException(String.format("%s not found in ASiC", NextMoveConsts.ARKIVMELDING_FILE));
-        } catch (IOException | JAXBException e) {
-            throw new NextMoveRuntimeException("Unable to read arkivmelding.xml in ASiC", e);
-        }
-    }
 }
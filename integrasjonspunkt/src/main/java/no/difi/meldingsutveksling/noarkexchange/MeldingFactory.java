@@ -3,22 +3,31 @@ package no.difi.meldingsutveksling.noarkexchange;
 import lombok.RequiredArgsConstructor;
 import no.arkivverket.standarder.noark5.arkivmelding.*;
 import no.difi.meldingsutveksling.DateTimeUtil;
+import no.difi.meldingsutveksling.TmpFile;
 import no.difi.meldingsutveksling.arkivmelding.ArkivmeldingUtil;
 import no.difi.meldingsutveksling.domain.MeldingsUtvekslingRuntimeException;
 import no.difi.meldingsutveksling.domain.arkivmelding.*;
 import no.difi.meldingsutveksling.noarkexchange.schema.core.ObjectFactory;
 import no.difi.meldingsutveksling.noarkexchange.schema.core.*;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
 import org.springframework.stereotype.Component;
 
-import java.io.ByteArrayInputStream;
+import javax.xml.bind.JAXBException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 import static java.util.Optional.ofNullable;
+import static no.difi.meldingsutveksling.NextMoveConsts.ARKIVMELDING_FILE;
 import static no.difi.meldingsutveksling.MimeTypeExtensionMapper.getMimetype;
 
 @Component
@@ -27,7 +36,55 @@ public class MeldingFactory {
 
     private final ArkivmeldingUtil arkivmeldingUtil;
 
-    public MeldingType create(Arkivmelding am, byte[] asic) {
+    /**
+     * Creates a BEST/EDU melding from a decrypted ASiC, reading the ASiC in a single pass. The melding carries its
+     * documents as byte arrays, so only the documents referenced by arkivmelding.xml are read into memory. Entries
+     * that come before arkivmelding.xml are spooled to temporary files until it is known whether they are referenced.
+     */
+    public MeldingType create(InputStream asic) throws IOException {
+        ZipInputStream zipInputStream = new ZipInputStream(asic);
+        Arkivmelding arkivmelding = null;
+        Set<String> filenames = null;
+        Map<String, byte[]> files = new HashMap<>();
+        Map<String, TmpFile> spooled = new HashMap<>();
+
+        try {
+            ZipEntry entry;
+            while ((entry = zipInputStream.getNextEntry()) != null) {
+                if (ARKIVMELDING_FILE.equals(entry.getName())) {
+                    arkivmelding = unmarshalArkivmelding(zipInputStream);
+                    filenames = new HashSet<>(arkivmeldingUtil.getFilenames(arkivmelding));
+                } else if (filenames == null) {
+                    TmpFile previous = spooled.put(entry.getName(), TmpFile.create(new CloseShieldInputStream(zipInputStream)));
+                    ofNullable(previous).ifPresent(TmpFile::delete);
+                } else if (filenames.contains(entry.getName())) {
+                    files.put(entry.getName(), IOUtils.toByteArray(zipInputStream));
+                }
+            }
+
+            if (arkivmelding == null) {
+                throw new MeldingsUtvekslingRuntimeException(String.format("%s not found in ASiC", ARKIVMELDING_FILE));
+            }
+            for (Map.Entry<String, TmpFile> file : spooled.entrySet()) {
+                if (filenames.contains(file.getKey()) && !files.containsKey(file.getKey())) {
+                    files.put(file.getKey(), FileUtils.readFileToByteArray(file.getValue().getFile()));
+                }
+            }
+            return create(arkivmelding, files);
+        } finally {
+            spooled.values().forEach(TmpFile::delete);
+        }
+    }
+
+    private Arkivmelding unmarshalArkivmelding(ZipInputStream zipInputStream) {
+        try {
+            return arkivmeldingUtil.unmarshalArkivmelding(new CloseShieldInputStream(zipInputStream));
+        } catch (JAXBException e) {
+            throw new MeldingsUtvekslingRuntimeException(String.format("Unable to read %s in ASiC", ARKIVMELDING_FILE), e);
+        }
+    }
+
+    private MeldingType create(Arkivmelding am, Map<String, byte[]> files) {
         Saksmappe sm = arkivmeldingUtil.getSaksmappe(am);
         Journalpost jp = arkivmeldingUtil.getJournalpost(am);
 
@@ -97,7 +154,7 @@ public class MeldingFactory {
                 .filter(Dokumentbeskrivelse.class::isInstance)
                 .map(Dokumentbeskrivelse.class::cast)
                 .forEach(db -> db.getDokumentobjekt().forEach(dobj ->
-                                journpostType.getDokument().add(createDokumentType(db, dobj, asic))
+                                journpostType.getDokument().add(createDokumentType(db, dobj, files))
                         )
                 );
 
@@ -108,7 +165,7 @@ public class MeldingFactory {
         return meldingType;
     }
 
-    private DokumentType createDokumentType(Dokumentbeskrivelse db, Dokumentobjekt dobj, byte[] asic) {
+    private DokumentType createDokumentType(Dokumentbeskrivelse db, Dokumentobjekt dobj, Map<String, byte[]> files) {
         ObjectFactory of = new ObjectFactory();
         DokumentType dokumentType = of.createDokumentType();
         String filename = dobj.getReferanseDokumentfil();
@@ -124,25 +181,17 @@ public class MeldingFactory {
         dokumentType.setVeVariant(VariantformatMapper.getNoarkType(dobj.getVariantformat()));
 
         FilType filType = of.createFilType();
-        try {
-            filType.setBase64(getFileFromAsic(filename, asic));
-        } catch (IOException e) {
-            throw new MeldingsUtvekslingRuntimeException(String.format("Error getting file %s from ASiC", filename), e);
-        }
+        filType.setBase64(getFileFromAsic(filename, files));
         dokumentType.setFil(filType);
 
         return dokumentType;
     }
 
-    private byte[] getFileFromAsic(String fileName, byte[] bytes) throws IOException {
-        try (ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(bytes))) {
-            ZipEntry entry;
-            while ((entry = zipInputStream.getNextEntry()) != null) {
-                if (fileName.equals(entry.getName())) {
-                    return IOUtils.toByteArray(zipInputStream);
-                }
-            }
+    private byte[] getFileFromAsic(String fileName, Map<String, byte[]> files) {
+        byte[] file = files.get(fileName);
+        if (file == null) {
+            throw new MeldingsUtvekslingRuntimeException(String.format("File %s is missing from ASiC", fileName));
         }
-        throw new MeldingsUtvekslingRuntimeException(String.format("File %s is missing from ASiC", fileName));
+        return file;
     }
 }
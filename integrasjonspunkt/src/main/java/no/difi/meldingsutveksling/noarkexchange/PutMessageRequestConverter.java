@@ -2,6 +2,7 @@ package no.difi.meldingsutveksling.noarkexchange;
 
 import no.difi.meldingsutveksling.domain.MeldingsUtvekslingRuntimeException;
 import no.difi.meldingsutveksling.noarkexchange.schema.PutMessageRequestType;
+import no.difi.meldingsutveksling.xml.JaxbPool;
 import org.eclipse.persistence.jaxb.JAXBContextFactory;
 
 import javax.xml.bind.*;
@@ -12,11 +13,11 @@ import java.io.ByteArrayOutputStream;
 
 public class PutMessageRequestConverter {
 
-    private static final JAXBContext jaxbContext;
+    private static final JaxbPool jaxbPool;
 
     static {
         try {
-            jaxbContext = JAXBContextFactory.createContext("no.difi.meldingsutveksling.kvittering.xsd:no.difi.meldingsutveksling.noarkexchange.schema", Thread.currentThread().getContextClassLoader());
+            jaxbPool = new JaxbPool(JAXBContextFactory.createContext("no.difi.meldingsutveksling.kvittering.xsd:no.difi.meldingsutveksling.noarkexchange.schema", Thread.currentThread().getContextClassLoader()));
         } catch (JAXBException e) {
             throw new MeldingsUtvekslingRuntimeException("Could not create JAXBContext for " + PutMessageRequestType.class);
         }
@@ -25,8 +26,7 @@ public class PutMessageRequestConverter {
     public byte[] marshallToBytes(PutMessageRequestType request) {
         final ByteArrayOutputStream os = new ByteArrayOutputStream();
         try {
-            Marshaller marshaller = jaxbContext.createMarshaller();
-            marshaller.marshal(new JAXBElement<>(new QName("uri", "local"), PutMessageRequestType.class, request), os);
+            jaxbPool.marshal(new JAXBElement<>(new QName("uri", "local"), PutMessageRequestType.class, request), os);
             return os.toByteArray();
         } catch (JAXBException e) {
             throw new MeldingsUtvekslingRuntimeException("Unable to create unmarshaller for " + PutMessageRequestType.class, e);
@@ -36,11 +36,9 @@ public class PutMessageRequestConverter {
 
     public PutMessageRequestType unmarshallFrom(byte[] message) {
         final ByteArrayInputStream is = new ByteArrayInputStream(message);
-        Unmarshaller unmarshaller;
         try {
-            unmarshaller = jaxbContext.createUnmarshaller();
             StreamSource source = new StreamSource(is);
-            return unmarshaller.unmarshal(source, PutMessageRequestType.class).getValue();
+            return jaxbPool.unmarshal(source, PutMessageRequestType.class).getValue();
         } catch (JAXBException e) {
             throw new MeldingsUtvekslingRuntimeException("Unable to create unmarshaller for " + PutMessageRequestType.class, e);
         }
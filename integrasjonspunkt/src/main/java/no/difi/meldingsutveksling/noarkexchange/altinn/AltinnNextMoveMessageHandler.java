@@ -50,7 +50,6 @@ public class AltinnNextMoveMessageHandler implements AltinnMessageHandler {
                 timeToLiveHelper.registerErrorStatusAndMessage(sbd, DPO, INCOMING);
                 if (altinnPackage.getAsicInputStream() != null) {
                     altinnPackage.getAsicInputStream().close();
-                    altinnPackage.getTmpFile().delete();
                 }
                 return;
             }
@@ -59,8 +58,6 @@ public class AltinnNextMoveMessageHandler implements AltinnMessageHandler {
                     messagePersister.writeStream(sbd.getDocumentId(), ASIC_FILE, asicStream, -1L);
                 } catch (IOException e) {
                     throw new NextMoveRuntimeException("Error persisting ASiC", e);
-                } finally {
-                    altinnPackage.getTmpFile().delete();
                 }
             }
 
@@ -69,9 +66,6 @@ public class AltinnNextMoveMessageHandler implements AltinnMessageHandler {
             conversationService.registerStatus(sbd.getDocumentId(), ReceiptStatus.INNKOMMENDE_MOTTATT);
         } else {
             nextMoveQueue.enqueueIncomingMessage(sbd, DPO, altinnPackage.getAsicInputStream());
-            if (altinnPackage.getTmpFile() != null) {
-                altinnPackage.getTmpFile().delete();
-            }
         }
 
         if (sbdUtil.isReceipt(sbd) && sbd.getBusinessMessage() instanceof ArkivmeldingKvitteringMessage) {
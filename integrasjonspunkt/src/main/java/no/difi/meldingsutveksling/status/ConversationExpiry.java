@@ -0,0 +1,13 @@
+package no.difi.meldingsutveksling.status;
+
+import java.time.OffsetDateTime;
+
+/**
+ * Projection of the id and expiry of a conversation.
+ */
+public interface ConversationExpiry {
+
+    Long getId();
+
+    OffsetDateTime getExpiry();
+}
@@ -0,0 +1,154 @@
+package no.difi.meldingsutveksling.status;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * In-memory schedule of when unfinished conversations expire, ordered by expiry. The schedule is loaded from the
+ * (finished, expiry, id) index at startup, and kept up to date by {@link DefaultConversationService} as
+ * conversations are created and finished. Changes are applied after the surrounding transaction commits.
+ * <p>
+ * Exposes conversation.expiry.pending (number of scheduled expiries) and conversation.expiry.lag (seconds since
+ * the oldest due expiry) to micrometer.
+ */
+@Slf4j
+@Component
+public class ConversationExpiryScheduler {
+
+    private final ConversationRepository repo;
+    private final Clock clock;
+    private final NavigableSet<Expiry> schedule = new ConcurrentSkipListSet<>(
+            Comparator.comparing(Expiry::getExpiry).thenComparing(Expiry::getId));
+    private final Map<Long, Expiry> scheduled = new ConcurrentHashMap<>();
+
+    public ConversationExpiryScheduler(ConversationRepository repo, Clock clock, MeterRegistry meterRegistry) {
+        this.repo = repo;
+        this.clock = clock;
+        meterRegistry.gauge("conversation.expiry.pending", scheduled, Map::size);
+        meterRegistry.gauge("conversation.expiry.lag", this, ConversationExpiryScheduler::getLagSeconds);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        repo.findExpiriesForUnfinishedConversations()
+                .forEach(e -> add(e.getId(), e.getExpiry()));
+        log.info("Loaded {} conversation expiries", scheduled.size());
+    }
+
+    public void update(Conversation conversation) {
+        update(Collections.singletonList(conversation));
+    }
+
+    public void update(Collection<Conversation> conversations) {
+        List<Expiry> changes = new ArrayList<>(conversations.size());
+        conversations.forEach(c -> changes.add(new Expiry(c.getId(), c.isFinished() ? null : c.getExpiry())));
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    apply(changes);
+                }
+            });
+        } else {
+            apply(changes);
+        }
+    }
+
+    /**
+     * Removes and returns the ids of up to max conversations that have expired.
+     */
+    public List<Long> pollExpired(int max) {
+        OffsetDateTime now = OffsetDateTime.now(clock);
+        List<Long> ids = new ArrayList<>();
+        for (Expiry first : schedule) {
+            if (ids.size() >= max || !first.getExpiry().isBefore(now)) {
+                break;
+            }
+            if (schedule.remove(first)) {
+                scheduled.remove(first.getId(), first);
+                ids.add(first.getId());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Schedules the expiry of conversations that could not be expired again, after the given delay. Conversations
+     * that have been rescheduled since they were polled keep their new expiry.
+     */
+    public void retry(Collection<Long> ids, Duration delay) {
+        OffsetDateTime retryAt = OffsetDateTime.now(clock).plus(delay);
+        ids.forEach(id -> {
+            Expiry entry = new Expiry(id, retryAt);
+            if (scheduled.putIfAbsent(id, entry) == null) {
+                schedule.add(entry);
+            }
+        });
+    }
+
+    private void apply(List<Expiry> changes) {
+        changes.forEach(change -> {
+            if (change.getExpiry() == null) {
+                remove(change.getId());
+            } else {
+                add(change.getId(), change.getExpiry());
+            }
+        });
+    }
+
+    private void add(Long id, OffsetDateTime expiry) {
+        if (id == null || expiry == null) {
+            return;
+        }
+        Expiry entry = new Expiry(id, expiry);
+        Expiry previous = scheduled.put(id, entry);
+        if (previous != null) {
+            schedule.remove(previous);
+        }
+        schedule.add(entry);
+    }
+
+    private void remove(Long id) {
+        Expiry previous = scheduled.remove(id);
+        if (previous != null) {
+            schedule.remove(previous);
+        }
+    }
+
+    private double getLagSeconds() {
+        Iterator<Expiry> it = schedule.iterator();
+        if (!it.hasNext()) {
+            return 0;
+        }
+        OffsetDateTime oldest = it.next().getExpiry();
+        OffsetDateTime now = OffsetDateTime.now(clock);
+        return oldest.isBefore(now) ? Duration.between(oldest, now).getSeconds() : 0;
+    }
+
+    @Value
+    private static class Expiry {
+        Long id;
+        OffsetDateTime expiry;
+    }
+}
@@ -23,6 +23,7 @@ import java.time.LocalDate;
 import java.time.LocalTime;
 import java.time.OffsetDateTime;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -54,6 +55,9 @@ public interface ConversationRepository extends PagingAndSortingRepository<Conve
     @EntityGraph(value = "Conversation.messageStatuses")
     List<Conversation> findByMessageId(String messageId);
 
+    @EntityGraph(value = "Conversation.messageStatuses")
+    List<Conversation> findByMessageIdIn(Collection<String> messageIds);
+
     @EntityGraph(value = "Conversation.messageStatuses")
     List<Conversation> findByPollable(boolean pollable);
 
@@ -72,15 +76,31 @@ public interface ConversationRepository extends PagingAndSortingRepository<Conve
 
     void deleteByMessageId(String messageId);
 
-    @Query("SELECT id FROM Conversation WHERE pollable = true")
-    Page<Long> findIdsForPollableConversations(Pageable pageable);
+    /**
+     * Keyset paged lookup of pollable conversations, ordered by id. Message statuses are not fetched.
+     */
+    @Query("SELECT c FROM Conversation c WHERE c.pollable = true AND c.id > :afterId ORDER BY c.id")
+    List<Conversation> findPollableConversationsAfter(@Param("afterId") Long afterId, Pageable pageable);
 
     @Transactional(readOnly = true)
-    @Query("SELECT id FROM Conversation WHERE expiry < :time AND finished = false")
-    Iterable<Long> findIdsForExpiredConversations(@Param("time") OffsetDateTime time);
+    @Query("SELECT c.id AS id, c.expiry AS expiry FROM Conversation c WHERE c.finished = false AND c.expiry IS NOT NULL")
+    List<ConversationExpiry> findExpiriesForUnfinishedConversations();
+
+    /**
+     * The statuses registered for the given messages, without loading the conversations.
+     */
+    @Transactional(readOnly = true)
+    @Query("SELECT c.messageId AS messageId, s.status AS status FROM Conversation c JOIN c.messageStatuses s WHERE c.messageId IN :messageIds")
+    List<RegisteredStatus> findRegisteredStatuses(@Param("messageIds") Collection<String> messageIds);
 
     Long countByPollable(boolean pollable);
 
+    long countByBatchId(String batchId);
+
+    long countByBatchIdAndFinished(String batchId, boolean finished);
+
+    long countDistinctByBatchIdAndMessageStatusesStatus(String batchId, String status);
+
     @Override
     default void customize(QuerydslBindings bindings, QConversation root) {
         bindings.bind(root.messageStatuses).first(
@@ -143,6 +163,10 @@ public interface ConversationRepository extends PagingAndSortingRepository<Conve
             builder.and(conversation.messageId.eq(input.getMessageId()));
         }
 
+        if (input.getBatchId() != null) {
+            builder.and(conversation.batchId.eq(input.getBatchId()));
+        }
+
         if (input.getReceiver() != null) {
             builder.and(conversation.receiver.eq(input.getReceiver()));
         }
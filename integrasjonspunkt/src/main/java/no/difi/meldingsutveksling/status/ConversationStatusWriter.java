@@ -0,0 +1,276 @@
+package no.difi.meldingsutveksling.status;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import no.difi.meldingsutveksling.api.ConversationService;
+import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
+import no.difi.meldingsutveksling.nextmove.NextMoveRuntimeException;
+import no.difi.meldingsutveksling.receipt.ReceiptStatus;
+import org.springframework.jms.core.JmsTemplate;
+import org.springframework.jms.support.converter.MessageConverter;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Write-behind for status changes. Statuses are put on a persistent JMS queue and written in batches, where the
+ * statuses of each conversation are coalesced and all conversations in a batch are stored in one transaction.
+ * A batch is flushed every difi.move.status-writer.flush-rate milliseconds, or as soon as the previous batch was
+ * full. Queued statuses survive a restart and are written on the next flush.
+ * <p>
+ * The returned future completes when the status is stored, for callers that need to read their own writes.
+ * If the writer is disabled, statuses are registered directly.
+ * <p>
+ * If a batch can not be stored, its conversations are stored one at a time, and the events of conversations that
+ * still fail are moved to the {@value #STATUS_WRITER_DLQ} queue, so one bad event does not hold back the rest. Only
+ * if nothing can be stored, e.g. while the database is unavailable, is the batch rolled back for redelivery. Futures
+ * of events that are redelivered are left pending, and fail after difi.move.status-writer.pending-timeout
+ * milliseconds if the event is never stored. Webhooks, status queue entries and error mails are sent by the
+ * conversation service when a transaction commits, so statuses that are stored again are not published twice.
+ */
+@Slf4j
+@Component
+public class ConversationStatusWriter {
+
+    static final String STATUS_WRITER = "status-writer";
+    static final String STATUS_WRITER_DLQ = "DLQ.status-writer";
+    private static final long FIRST_RECEIVE_TIMEOUT_MS = 100;
+    private static final long RECEIVE_TIMEOUT_MS = 10;
+
+    private final ConversationService conversationService;
+    private final MessageStatusFactory messageStatusFactory;
+    private final IntegrasjonspunktProperties props;
+    private final ObjectMapper objectMapper;
+    private final JmsTemplate jmsTemplate;
+    private final JmsTemplate transactedJmsTemplate;
+    private final Clock clock;
+    private final Map<String, PendingStatus> pending = new ConcurrentHashMap<>();
+
+    @Value
+    private static class PendingStatus {
+        CompletableFuture<Optional<Conversation>> future;
+        Instant queued;
+    }
+
+    public ConversationStatusWriter(ConversationService conversationService,
+                                    MessageStatusFactory messageStatusFactory,
+                                    IntegrasjonspunktProperties props,
+                                    ObjectMapper objectMapper,
+                                    JmsTemplate jmsTemplate,
+                                    ConnectionFactory myJmsConnectionFactory,
+                                    Clock clock) {
+        this.conversationService = conversationService;
+        this.messageStatusFactory = messageStatusFactory;
+        this.props = props;
+        this.objectMapper = objectMapper;
+        this.jmsTemplate = jmsTemplate;
+        this.transactedJmsTemplate = new JmsTemplate(myJmsConnectionFactory);
+        this.transactedJmsTemplate.setSessionTransacted(true);
+        this.clock = clock;
+    }
+
+    public CompletableFuture<Optional<Conversation>> registerStatus(String messageId, ReceiptStatus status) {
+        return registerStatus(messageId, messageStatusFactory.getMessageStatus(status));
+    }
+
+    public CompletableFuture<Optional<Conversation>> registerStatus(String messageId, MessageStatus status) {
+        if (!props.getStatusWriter().isEnable()) {
+            return CompletableFuture.completedFuture(conversationService.registerStatus(messageId, status));
+        }
+
+        String eventId = UUID.randomUUID().toString();
+        CompletableFuture<Optional<Conversation>> future = new CompletableFuture<>();
+        pending.put(eventId, new PendingStatus(future, clock.instant()));
+        try {
+            jmsTemplate.convertAndSend(STATUS_WRITER, objectMapper.writeValueAsBytes(StatusEvent.of(eventId, messageId, status)));
+        } catch (IOException | RuntimeException e) {
+            pending.remove(eventId);
+            throw new NextMoveRuntimeException(String.format("Unable to queue status %s for message with id=%s", status.getStatus(), messageId), e);
+        }
+        return future;
+    }
+
+    /**
+     * Registers statuses for several conversations, keyed by messageId. The returned future completes with the
+     * conversations that were stored, leaving out messages without a conversation, and completes exceptionally if
+     * any of the statuses could not be stored.
+     */
+    public CompletableFuture<List<Conversation>> registerStatuses(Map<String, ? extends List<? extends MessageStatus>> statuses) {
+        if (!props.getStatusWriter().isEnable()) {
+            return CompletableFuture.completedFuture(conversationService.registerStatuses(statuses));
+        }
+
+        List<CompletableFuture<Optional<Conversation>>> futures = new ArrayList<>();
+        statuses.forEach((messageId, messageStatuses) -> messageStatuses.forEach(status ->
+                futures.add(registerStatus(messageId, status))));
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                .thenApply(v -> new ArrayList<>(futures.stream()
+                        .map(CompletableFuture::join)
+                        .filter(Optional::isPresent)
+                        .map(Optional::get)
+                        .collect(Collectors.toMap(Conversation::getMessageId, Function.identity(), (a, b) -> b, LinkedHashMap::new))
+                        .values()));
+    }
+
+    @Scheduled(fixedDelayString = "${difi.move.status-writer.flush-rate}")
+    public void flush() {
+        if (!props.getStatusWriter().isEnable()) {
+            return;
+        }
+
+        expirePending();
+
+        int batchSize = props.getStatusWriter().getBatchSize();
+        Integer flushed;
+        do {
+            flushed = transactedJmsTemplate.execute(session -> flushBatch(session, batchSize), true);
+        } while (flushed != null && flushed >= batchSize);
+    }
+
+    private int flushBatch(Session session, int batchSize) throws JMSException {
+        MessageConsumer consumer = session.createConsumer(session.createQueue(STATUS_WRITER));
+        try {
+            List<StatusEvent> events = receive(consumer, batchSize);
+            if (events.isEmpty()) {
+                return 0;
+            }
+
+            Map<String, Conversation> conversations = new HashMap<>();
+            Map<String, List<StatusEvent>> failed = new LinkedHashMap<>();
+            try {
+                store(events, conversations);
+            } catch (RuntimeException e) {
+                log.warn("Failed to store {} statuses, storing them one conversation at a time", events.size(), e);
+                if (!storeEach(events, conversations, failed)) {
+                    // Nothing could be stored. The batch is redelivered by the broker, and its futures are kept.
+                    session.rollback();
+                    throw e;
+                }
+                deadLetter(session, failed);
+            }
+            session.commit();
+
+            events.forEach(event -> {
+                if (failed.containsKey(event.getMessageId())) {
+                    fail(event, new NextMoveRuntimeException(String.format("Unable to store status %s for message with id=%s", event.getStatus(), event.getMessageId())));
+                } else {
+                    complete(event, conversations.get(event.getMessageId()));
+                }
+            });
+            log.debug("Flushed {} statuses for {} conversations", events.size(), conversations.size());
+            return events.size();
+        } finally {
+            consumer.close();
+        }
+    }
+
+    private void store(List<StatusEvent> events, Map<String, Conversation> conversations) {
+        conversationService.registerStatuses(coalesce(events))
+                .forEach(c -> conversations.putIfAbsent(c.getMessageId(), c));
+    }
+
+    /**
+     * Stores the statuses of each conversation in its own transaction, and returns false if none could be stored.
+     */
+    private boolean storeEach(List<StatusEvent> events, Map<String, Conversation> conversations, Map<String, List<StatusEvent>> failed) {
+        Map<String, List<StatusEvent>> eventsByMessageId = new LinkedHashMap<>();
+        events.forEach(event -> eventsByMessageId.computeIfAbsent(event.getMessageId(), id -> new ArrayList<>()).add(event));
+        eventsByMessageId.forEach((messageId, conversationEvents) -> {
+            try {
+                store(conversationEvents, conversations);
+            } catch (RuntimeException e) {
+                log.error("Unable to store {} statuses for message with id={}", conversationEvents.size(), messageId, e);
+                failed.put(messageId, conversationEvents);
+            }
+        });
+        return failed.size() < eventsByMessageId.size();
+    }
+
+    private void deadLetter(Session session, Map<String, List<StatusEvent>> failed) throws JMSException {
+        if (failed.isEmpty()) {
+            return;
+        }
+        MessageProducer producer = session.createProducer(session.createQueue(STATUS_WRITER_DLQ));
+        try {
+            for (List<StatusEvent> conversationEvents : failed.values()) {
+                for (StatusEvent event : conversationEvents) {
+                    producer.send(jmsTemplate.getMessageConverter().toMessage(writeEvent(event), session));
+                }
+            }
+        } finally {
+            producer.close();
+        }
+    }
+
+    private byte[] writeEvent(StatusEvent event) {
+        try {
+            return objectMapper.writeValueAsBytes(event);
+        } catch (IOException e) {
+            throw new NextMoveRuntimeException(String.format("Unable to write status event for message with id=%s", event.getMessageId()), e);
+        }
+    }
+
+    private void expirePending() {
+        Instant expired = clock.instant().minusMillis(props.getStatusWriter().getPendingTimeout());
+        pending.forEach((eventId, status) -> {
+            if (status.getQueued().isBefore(expired) && pending.remove(eventId, status)) {
+                status.getFuture().completeExceptionally(new TimeoutException(String.format("Status event %s was not stored within %d ms", eventId, props.getStatusWriter().getPendingTimeout())));
+            }
+        });
+    }
+
+    private List<StatusEvent> receive(MessageConsumer consumer, int batchSize) throws JMSException {
+        List<StatusEvent> events = new ArrayList<>(batchSize);
+        MessageConverter converter = jmsTemplate.getMessageConverter();
+        Message message = consumer.receive(FIRST_RECEIVE_TIMEOUT_MS);
+        while (message != null) {
+            try {
+                events.add(objectMapper.readValue((byte[]) converter.fromMessage(message), StatusEvent.class));
+            } catch (IOException e) {
+                log.error("Unable to read status event from queue, discarding it", e);
+            }
+            if (events.size() >= batchSize) {
+                break;
+            }
+            message = consumer.receive(RECEIVE_TIMEOUT_MS);
+        }
+        return events;
+    }
+
+    private Map<String, List<MessageStatus>> coalesce(List<StatusEvent> events) {
+        Map<String, List<MessageStatus>> statuses = new LinkedHashMap<>();
+        events.forEach(event -> statuses.computeIfAbsent(event.getMessageId(), id -> new ArrayList<>())
+                .add(event.toMessageStatus()));
+        return statuses;
+    }
+
+    private void complete(StatusEvent event, Conversation conversation) {
+        PendingStatus status = pending.remove(event.getEventId());
+        if (status != null) {
+            status.getFuture().complete(Optional.ofNullable(conversation));
+        }
+    }
+
+    private void fail(StatusEvent event, Throwable t) {
+        PendingStatus status = pending.remove(event.getEventId());
+        if (status != null) {
+            status.getFuture().completeExceptionally(t);
+        }
+    }
+}
@@ -10,18 +10,28 @@ import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
 import no.difi.meldingsutveksling.domain.Organisasjonsnummer;
 import no.difi.meldingsutveksling.domain.sbdh.StandardBusinessDocument;
 import no.difi.meldingsutveksling.mail.IpMailSender;
+import no.difi.meldingsutveksling.nextmove.ArkivmeldingMetadata;
 import no.difi.meldingsutveksling.nextmove.ConversationDirection;
 import no.difi.meldingsutveksling.receipt.ReceiptStatus;
 import no.difi.meldingsutveksling.receipt.StatusQueue;
 import no.difi.meldingsutveksling.webhooks.WebhookPublisher;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.time.Clock;
 import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import static com.google.common.base.Strings.isNullOrEmpty;
 import static java.lang.String.format;
@@ -43,6 +53,7 @@ public class DefaultConversationService implements ConversationService {
     private final IpMailSender ipMailSender;
     private final Clock clock;
     private final StatusQueue statusQueue;
+    private final ConversationExpiryScheduler expiryScheduler;
 
     private static final Set<ServiceIdentifier> POLLABLES = Sets.newHashSet(DPV, DPF);
     private static final Set<ReceiptStatus> COMPLETABLES = Sets.newHashSet(LEST, FEIL, LEVETID_UTLOPT, INNKOMMENDE_LEVERT);
@@ -82,9 +93,10 @@ public class DefaultConversationService implements ConversationService {
 
         conversation.addMessageStatus(status);
 
-        if (isPollable(status)) {
+        if (isPollable(status) && !isCompleted(conversation)) {
             // Note: isPollable can not be moved into setPollable, as this would interrupt polling
-            // for every other registered status than 'SENDT'
+            // for every other registered status than 'SENDT'.
+            // SENDT is written behind, and may arrive after a final status, which must not restart polling.
             conversation.setPollable(true);
         }
         if (ReceiptStatus.valueOf(status.getStatus()) == LEVERT) {
@@ -92,23 +104,48 @@ public class DefaultConversationService implements ConversationService {
         }
         if (ReceiptStatus.valueOf(status.getStatus()) == FEIL &&
                 props.getFeature().isMailErrorStatus()) {
-            trySendMail(conversation);
+            afterCommit(() -> trySendMail(conversation));
         }
         if (COMPLETABLES.contains(ReceiptStatus.valueOf(status.getStatus()))) {
             conversation.setFinished(true)
                     .setPollable(false);
         }
+        if (conversation.isFinished()) {
+            expiryScheduler.update(conversation);
+        }
 
         log.debug(String.format("Added status '%s' to conversation[id=%s]", status.getStatus(),
                 conversation.getMessageId()),
                 MessageStatusMarker.from(status));
         repo.save(conversation);
-        webhookPublisher.publish(conversation, status);
-        statusQueue.enqueueStatus(status, conversation);
+        afterCommit(() -> publish(conversation, status));
 
         return conversation;
     }
 
+    /**
+     * Registers statuses for several conversations, keyed by messageId, in one transaction. Conversations are
+     * looked up in a single query, and the new statuses are flushed together at commit.
+     */
+    @NotNull
+    @Override
+    @Transactional
+    public List<Conversation> registerStatuses(@NotNull Map<String, ? extends List<? extends MessageStatus>> statuses) {
+        Map<String, Conversation> conversations = repo.findByMessageIdIn(statuses.keySet()).stream()
+                .collect(Collectors.toMap(Conversation::getMessageId, c -> c, (a, b) -> a, LinkedHashMap::new));
+
+        statuses.forEach((messageId, messageStatuses) -> {
+            Conversation conversation = conversations.get(messageId);
+            if (conversation == null) {
+                log.warn(format("Conversation with id=%s not found, cannot register receipt statuses=%s", messageId, messageStatuses));
+                return;
+            }
+            messageStatuses.forEach(status -> registerStatus(conversation, status));
+        });
+
+        return new ArrayList<>(conversations.values());
+    }
+
     private void trySendMail(Conversation conversation) {
         try {
             String title = format("Integrasjonspunkt: status %s registrert for forsendelse %s", FEIL.toString(), conversation.getMessageId());
@@ -123,6 +160,11 @@ public class DefaultConversationService implements ConversationService {
         }
     }
 
+    private boolean isCompleted(Conversation conversation) {
+        return conversation.getMessageStatuses().stream()
+                .anyMatch(ms -> COMPLETABLES.contains(ReceiptStatus.valueOf(ms.getStatus())));
+    }
+
     private boolean isPollable(MessageStatus status) {
         Conversation conversation = status.getConversation();
         return conversation.getDirection() == ConversationDirection.OUTGOING &&
@@ -200,6 +242,29 @@ public class DefaultConversationService implements ConversationService {
         }, statuses);
     }
 
+    /**
+     * Creates conversations for new messages in a batch, with the title and reference from the arkivmelding shared
+     * by the messages, if any. No lookup is done for existing conversations, so the inserts can be written in JDBC
+     * batches.
+     */
+    @NotNull
+    @Override
+    @Transactional
+    public List<Conversation> registerBatch(@NotNull String batchId,
+                                            @NotNull Collection<? extends MessageInformable> messages,
+                                            @Nullable ArkivmeldingMetadata metadata) {
+        List<Conversation> conversations = new ArrayList<>(messages.size());
+        for (MessageInformable message : messages) {
+            MessageStatus ms = messageStatusFactory.getMessageStatus(ReceiptStatus.OPPRETTET);
+            Conversation conversation = Conversation.of(message, OffsetDateTime.now(clock), ms).setBatchId(batchId);
+            conversations.add(metadata != null ? conversation.applyMetadata(metadata) : conversation);
+        }
+        repo.saveAll(conversations);
+        expiryScheduler.update(conversations);
+        afterCommit(() -> conversations.forEach(c -> c.getMessageStatuses().forEach(ms -> publish(c, ms))));
+        return conversations;
+    }
+
     @NotNull
     public Optional<Conversation> findConversation(@NotNull String messageId) {
         return repo.findByMessageId(messageId).stream().findFirst();
@@ -210,8 +275,30 @@ public class DefaultConversationService implements ConversationService {
         MessageStatus ms = messageStatusFactory.getMessageStatus(ReceiptStatus.OPPRETTET);
         Conversation c = Conversation.of(message, OffsetDateTime.now(clock), ms);
         repo.save(c);
-        webhookPublisher.publish(c, ms);
-        statusQueue.enqueueStatus(ms, c);
+        expiryScheduler.update(c);
+        afterCommit(() -> publish(c, ms));
         return c;
     }
+
+    private void publish(Conversation conversation, MessageStatus status) {
+        webhookPublisher.publish(conversation, status);
+        statusQueue.enqueueStatus(status, conversation);
+    }
+
+    /**
+     * Runs the action when the current transaction commits, so a status that is rolled back, e.g. when a batch of
+     * statuses is stored again one conversation at a time, is not published or mailed.
+     */
+    private void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
 }
@@ -1,50 +1,233 @@
 package no.difi.meldingsutveksling.status;
 
 import io.micrometer.core.annotation.Timed;
-import lombok.RequiredArgsConstructor;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
 import lombok.extern.slf4j.Slf4j;
-import no.difi.meldingsutveksling.api.ConversationService;
 import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
+import no.difi.meldingsutveksling.config.TaskExecutorConfig;
 import no.difi.meldingsutveksling.dpi.MeldingsformidlerClient;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Component;
 
-import java.util.Optional;
-import java.util.concurrent.CompletableFuture;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Drains DPI receipts from an MPC until it is empty. Receipts are fetched ahead by separate consumer tasks while the
+ * previous batch is persisted, statuses are registered in batches of difi.move.dpi.receiptBatchSize, and receipts
+ * are confirmed asynchronously once their statuses are stored. Statuses go through the {@link ConversationStatusWriter}
+ * queue, so a receipt is never stored before the SENDT status queued for the same message.
+ * <p>
+ * A drain starts with one consumer, and adds another each time a consumer has fetched a full batch without emptying
+ * the MPC, up to difi.move.dpi.receiptMaxConsumers. Consumers stop as soon as the MPC is empty, so the number of
+ * consumers follows the backlog. A receipt delivered to more than one consumer only gets its status stored once.
+ */
 @Component
-@RequiredArgsConstructor
 @Slf4j
 public class DpiReceiptService {
 
+    private static final long POLL_TIMEOUT_MS = 100;
+
     private final IntegrasjonspunktProperties properties;
     private final MeldingsformidlerClient meldingsformidlerClient;
-    private final ConversationService conversationService;
+    private final ConversationStatusWriter conversationStatusWriter;
+    private final Executor pollingExecutor;
+    private final Executor transportExecutor;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, AtomicInteger> backlogs = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> consumers = new ConcurrentHashMap<>();
+
+    public DpiReceiptService(IntegrasjonspunktProperties properties,
+                             MeldingsformidlerClient meldingsformidlerClient,
+                             ConversationStatusWriter conversationStatusWriter,
+                             @Qualifier(TaskExecutorConfig.POLLING_EXECUTOR) Executor pollingExecutor,
+                             @Qualifier(TaskExecutorConfig.TRANSPORT_EXECUTOR) Executor transportExecutor,
+                             MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.meldingsformidlerClient = meldingsformidlerClient;
+        this.conversationStatusWriter = conversationStatusWriter;
+        this.pollingExecutor = pollingExecutor;
+        this.transportExecutor = transportExecutor;
+        this.meterRegistry = meterRegistry;
+    }
 
     @Timed
     @Async("dpiReceiptExecutor")
     public CompletableFuture<Void> handleReceipts(String mpcId) {
-        Optional<ExternalReceipt> externalReceipt = checkForReceipts(mpcId);
+        int batchSize = properties.getDpi().getReceiptBatchSize();
+        Drain drain = new Drain(mpcId, batchSize, getGauge(backlogs, "dpi.receipts.backlog", mpcId),
+                getGauge(consumers, "dpi.receipts.consumers", mpcId));
+        List<CompletableFuture<Void>> confirmations = new ArrayList<>();
+
+        addConsumer(drain);
+        try {
+            while (drain.isFetching() || !drain.fetched.isEmpty()) {
+                ExternalReceipt first = drain.fetched.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                List<ExternalReceipt> batch = new ArrayList<>(batchSize);
+                batch.add(first);
+                drain.fetched.drainTo(batch, batchSize - 1);
 
-        while (externalReceipt.isPresent()) {
-            externalReceipt.ifPresent(this::handleReceipt);
-            externalReceipt = checkForReceipts(mpcId);
+                CompletableFuture<List<Conversation>> stored;
+                try {
+                    stored = registerStatuses(batch);
+                } catch (RuntimeException e) {
+                    // Left unconfirmed, and delivered again by the meldingsformidler
+                    drain.backlog.addAndGet(-batch.size());
+                    throw e;
+                }
+                meterRegistry.counter("dpi.receipts.drained", "mpc", mpcId).increment(batch.size());
+                confirmations.add(stored.thenRunAsync(() -> confirm(batch, drain.backlog), transportExecutor)
+                        .whenComplete((v, t) -> {
+                            if (t != null) {
+                                // Left unconfirmed, and delivered again by the meldingsformidler
+                                drain.backlog.addAndGet(-batch.size());
+                                log.warn("Failed to store or confirm {} DPI receipts for mpcId={}", batch.size(), mpcId, t);
+                            }
+                        }));
+            }
+            CompletableFuture.allOf(drain.stop()).join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            CompletableFuture.allOf(drain.stop()).handle((v, t) -> null).join();
+            // Fetched but never stored, so left unconfirmed and delivered again by the meldingsformidler
+            drain.backlog.addAndGet(-drain.fetched.size());
+            drain.fetched.clear();
+        }
+
+        return CompletableFuture.allOf(confirmations.toArray(new CompletableFuture[0]));
+    }
+
+    private AtomicInteger getGauge(Map<String, AtomicInteger> gauges, String name, String mpcId) {
+        return gauges.computeIfAbsent(mpcId, id -> meterRegistry.gauge(name, Tags.of("mpc", id), new AtomicInteger()));
+    }
+
+    private void addConsumer(Drain drain) {
+        CompletableFuture<Void> consumer = new CompletableFuture<>();
+        if (!drain.add(consumer)) {
+            return;
+        }
+        try {
+            pollingExecutor.execute(() -> {
+                try {
+                    prefetch(drain);
+                    consumer.complete(null);
+                } catch (Throwable t) {
+                    consumer.completeExceptionally(t);
+                } finally {
+                    drain.remove();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            drain.remove();
+            if (drain.isFetching()) {
+                consumer.complete(null);
+                log.debug("No capacity for another DPI receipt consumer for mpcId={}", drain.mpcId);
+            } else {
+                consumer.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void prefetch(Drain drain) {
+        try {
+            int fetchedInARow = 0;
+            Optional<ExternalReceipt> externalReceipt = checkForReceipts(drain.mpcId);
+            while (externalReceipt.isPresent() && !drain.isStopped()) {
+                while (!drain.fetched.offer(externalReceipt.get(), POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    if (drain.isStopped()) {
+                        // Unconfirmed receipts are delivered again by the meldingsformidler
+                        return;
+                    }
+                }
+                drain.backlog.incrementAndGet();
+                if (++fetchedInARow % drain.batchSize == 0 && drain.active.get() < properties.getDpi().getReceiptMaxConsumers()) {
+                    addConsumer(drain);
+                }
+                externalReceipt = checkForReceipts(drain.mpcId);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        return CompletableFuture.completedFuture(null);
     }
 
     private Optional<ExternalReceipt> checkForReceipts(String mpcId) {
         return meldingsformidlerClient.sjekkEtterKvittering(properties.getOrg().getNumber(), mpcId);
     }
 
-    private void handleReceipt(ExternalReceipt externalReceipt) {
-        final String id = externalReceipt.getId();
-        MessageStatus status = externalReceipt.toMessageStatus();
+    private CompletableFuture<List<Conversation>> registerStatuses(List<ExternalReceipt> batch) {
+        Map<String, List<MessageStatus>> statuses = new LinkedHashMap<>();
+        batch.forEach(externalReceipt -> statuses.computeIfAbsent(externalReceipt.getId(), id -> new ArrayList<>())
+                .add(externalReceipt.toMessageStatus()));
+        CompletableFuture<List<Conversation>> stored = conversationStatusWriter.registerStatuses(statuses);
+        batch.forEach(externalReceipt -> log.debug(externalReceipt.logMarkers(), "Updated receipt (DPI)"));
+        return stored;
+    }
+
+    private void confirm(List<ExternalReceipt> batch, AtomicInteger backlog) {
+        for (ExternalReceipt externalReceipt : batch) {
+            try {
+                externalReceipt.confirmReceipt();
+                log.debug(externalReceipt.logMarkers(), "Confirmed receipt (DPI)");
+            } catch (Exception e) {
+                log.warn(externalReceipt.logMarkers(), "Failed to confirm receipt (DPI)", e);
+            } finally {
+                backlog.decrementAndGet();
+            }
+        }
+    }
+
+    private static class Drain {
 
-        conversationService.registerStatus(id, status);
+        private final String mpcId;
+        private final int batchSize;
+        private final BlockingQueue<ExternalReceipt> fetched;
+        private final AtomicInteger backlog;
+        private final AtomicInteger consumers;
+        private final AtomicInteger active = new AtomicInteger();
+        private final List<CompletableFuture<Void>> started = new ArrayList<>();
+        private boolean stopped;
+
+        private Drain(String mpcId, int batchSize, AtomicInteger backlog, AtomicInteger consumers) {
+            this.mpcId = mpcId;
+            this.batchSize = batchSize;
+            this.fetched = new ArrayBlockingQueue<>(batchSize);
+            this.backlog = backlog;
+            this.consumers = consumers;
+        }
+
+        private synchronized boolean add(CompletableFuture<Void> consumer) {
+            if (stopped) {
+                return false;
+            }
+            started.add(consumer);
+            active.incrementAndGet();
+            consumers.incrementAndGet();
+            return true;
+        }
 
-        log.debug(externalReceipt.logMarkers(), "Updated receipt (DPI)");
-        externalReceipt.confirmReceipt();
-        log.debug(externalReceipt.logMarkers(), "Confirmed receipt (DPI)");
+        private void remove() {
+            consumers.decrementAndGet();
+            active.decrementAndGet();
+        }
+
+        private boolean isFetching() {
+            return active.get() > 0;
+        }
+
+        private synchronized boolean isStopped() {
+            return stopped;
+        }
+
+        private synchronized CompletableFuture<?>[] stop() {
+            stopped = true;
+            return started.toArray(new CompletableFuture[0]);
+        }
     }
 }
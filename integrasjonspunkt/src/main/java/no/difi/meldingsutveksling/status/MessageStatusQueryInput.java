@@ -8,6 +8,7 @@ public class MessageStatusQueryInput {
     Long id;
     String conversationId;
     String messageId;
+    String batchId;
     String status;
 
 }
@@ -52,6 +52,10 @@ public interface MessageStatusRepository extends PagingAndSortingRepository<Mess
             builder.and(messageStatus.conversation.messageId.eq(input.getMessageId()));
         }
 
+        if (input.getBatchId() != null) {
+            builder.and(messageStatus.conversation.batchId.eq(input.getBatchId()));
+        }
+
         if (input.getStatus() != null) {
             builder.and(messageStatus.status.eq(input.getStatus()));
         }
@@ -0,0 +1,11 @@
+package no.difi.meldingsutveksling.status;
+
+/**
+ * Projection of a status registered for a message.
+ */
+public interface RegisteredStatus {
+
+    String getMessageId();
+
+    String getStatus();
+}
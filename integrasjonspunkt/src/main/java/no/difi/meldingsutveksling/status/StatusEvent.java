@@ -0,0 +1,40 @@
+package no.difi.meldingsutveksling.status;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import no.difi.meldingsutveksling.receipt.ReceiptStatus;
+
+import java.time.OffsetDateTime;
+
+/**
+ * A status change waiting in the status writer queue.
+ */
+@Data
+@NoArgsConstructor
+public class StatusEvent {
+
+    private String eventId;
+    private String messageId;
+    private String status;
+    private String description;
+    private String rawReceipt;
+    @JsonFormat(shape = JsonFormat.Shape.STRING)
+    private OffsetDateTime lastUpdate;
+
+    static StatusEvent of(String eventId, String messageId, MessageStatus messageStatus) {
+        return new StatusEvent()
+                .setEventId(eventId)
+                .setMessageId(messageId)
+                .setStatus(messageStatus.getStatus())
+                .setDescription(messageStatus.getDescription())
+                .setRawReceipt(messageStatus.getRawReceipt())
+                .setLastUpdate(messageStatus.getLastUpdate());
+    }
+
+    MessageStatus toMessageStatus() {
+        MessageStatus messageStatus = MessageStatus.of(ReceiptStatus.valueOf(status), lastUpdate, description);
+        messageStatus.setRawReceipt(rawReceipt);
+        return messageStatus;
+    }
+}
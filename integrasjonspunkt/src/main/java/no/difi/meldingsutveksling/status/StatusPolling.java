@@ -1,23 +1,31 @@
 package no.difi.meldingsutveksling.status;
 
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import no.difi.meldingsutveksling.ServiceIdentifier;
 import no.difi.meldingsutveksling.api.StatusStrategy;
 import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
+import no.difi.meldingsutveksling.config.TaskExecutorConfig;
 import no.difi.meldingsutveksling.nextmove.ConversationStrategyFactory;
 import no.difi.meldingsutveksling.receipt.StatusStrategyFactory;
-import org.springframework.data.domain.Page;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
-import java.util.stream.StreamSupport;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 
 import static java.lang.String.format;
 import static java.util.stream.Collectors.groupingBy;
@@ -27,7 +35,6 @@ import static java.util.stream.Collectors.toSet;
  * Periodically checks non final receipts, and their respective services for updates.
  */
 @Component
-@RequiredArgsConstructor
 @Slf4j
 public class StatusPolling {
 
@@ -36,31 +43,87 @@ public class StatusPolling {
     private final StatusStrategyFactory statusStrategyFactory;
     private final DpiReceiptService dpiReceiptService;
     private final ConversationStrategyFactory conversationStrategyFactory;
+    private final Executor pollingExecutor;
+    private final Map<String, Future<Void>> dpiReceiptDrains = new ConcurrentHashMap<>();
+    private volatile long checkpoint = 0L;
 
+    public StatusPolling(IntegrasjonspunktProperties props,
+                         ConversationRepository conversationRepository,
+                         StatusStrategyFactory statusStrategyFactory,
+                         DpiReceiptService dpiReceiptService,
+                         ConversationStrategyFactory conversationStrategyFactory,
+                         @Qualifier(TaskExecutorConfig.POLLING_EXECUTOR) Executor pollingExecutor) {
+        this.props = props;
+        this.conversationRepository = conversationRepository;
+        this.statusStrategyFactory = statusStrategyFactory;
+        this.dpiReceiptService = dpiReceiptService;
+        this.conversationStrategyFactory = conversationStrategyFactory;
+        this.pollingExecutor = pollingExecutor;
+    }
+
+    /*
+        Pollable conversations are read in keyset pages ordered by id, without their message statuses, so each page is
+        a single index range scan regardless of how far into the table it is. The status checks of a page run on the
+        polling executor, at most statusPollingConcurrency at a time, while the next page is loaded.
+        The checkpoint is moved to the last id of a page once the checks of that page and all pages before it have
+        completed, and is only reset when the whole cycle completed, so a cycle that fails halfway resumes where it
+        stopped. A resumed cycle that fails before checking a single page starts over from the beginning, so that a
+        check that keeps failing does not keep the conversations before it from being polled.
+     */
     @Scheduled(cron = "${difi.move.nextmove.statusPollingCron}")
     public void checkReceiptStatus() {
         if (!props.getFeature().isEnableReceipts()) {
             return;
         }
-        int pageSize = 10000;
-        int pageIndex = 0;
-
-        Page<Long> page;
-        do {
-            // Uses paging for limiting memory footprint when polling for statuses for large batches of messages.
-            // Works around JPA limitation in combining paging and entity graph by making separate queries for page and
-            // entity graph. Ref "HHH000104: firstResult/maxResults specified with collection fetch; applying in
-            // memory!"
-            page = conversationRepository.findIdsForPollableConversations(PageRequest.of(pageIndex, pageSize));
-            Iterable<Conversation> conversations = conversationRepository.findAllById(page.getContent());
-
-            StreamSupport.stream(conversations.spliterator(), false)
-                    .filter(c -> conversationStrategyFactory.isEnabled(c.getServiceIdentifier()))
-                    .collect(groupingBy(Conversation::getServiceIdentifier, toSet()))
-                    .forEach(this::checkReceiptForType);
-
-            pageIndex++;
-        } while (page.hasNext());
+        int pageSize = props.getNextmove().getStatusPollingPageSize();
+        Semaphore permits = new Semaphore(props.getNextmove().getStatusPollingConcurrency());
+        List<CompletableFuture<Void>> checks = new ArrayList<>();
+        long start = checkpoint;
+        long after = start;
+        CompletableFuture<Void> checked = CompletableFuture.completedFuture(null);
+
+        try {
+            List<Conversation> page;
+            do {
+                page = conversationRepository.findPollableConversationsAfter(after, PageRequest.of(0, pageSize));
+                Map<ServiceIdentifier, Set<Conversation>> conversationsByType = page.stream()
+                        .filter(c -> conversationStrategyFactory.isEnabled(c.getServiceIdentifier()))
+                        .collect(groupingBy(Conversation::getServiceIdentifier, toSet()));
+                List<CompletableFuture<Void>> pageChecks = new ArrayList<>();
+                for (Map.Entry<ServiceIdentifier, Set<Conversation>> entry : conversationsByType.entrySet()) {
+                    pageChecks.add(submitCheck(entry.getKey(), entry.getValue(), permits));
+                }
+                checks.addAll(pageChecks);
+                if (!page.isEmpty()) {
+                    long lastId = page.get(page.size() - 1).getId();
+                    after = lastId;
+                    checked = checked.thenCombine(CompletableFuture.allOf(pageChecks.toArray(new CompletableFuture[0])), (a, b) -> b)
+                            .thenRun(() -> checkpoint = lastId);
+                }
+            } while (page.size() >= pageSize);
+
+            CompletableFuture.allOf(checks.toArray(new CompletableFuture[0])).handle((v, t) -> null).join();
+            checked.join();
+            checkpoint = 0L;
+        } catch (CompletionException e) {
+            if (checkpoint == start) {
+                checkpoint = 0L;
+            }
+            log.warn("Status polling cycle did not complete, the next cycle starts after id={}", checkpoint);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private CompletableFuture<Void> submitCheck(ServiceIdentifier si, Set<Conversation> conversations, Semaphore permits) throws InterruptedException {
+        permits.acquire();
+        try {
+            return CompletableFuture.runAsync(() -> checkReceiptForType(si, conversations), pollingExecutor)
+                    .whenComplete((v, t) -> permits.release());
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            return CompletableFuture.runAsync(() -> checkReceiptForType(si, conversations), Runnable::run);
+        }
     }
 
     private void checkReceiptForType(ServiceIdentifier si, Set<Conversation> conversations) {
@@ -70,32 +133,64 @@ public class StatusPolling {
         try {
             StatusStrategy strategy = statusStrategyFactory.getStrategy(si);
             strategy.checkStatus(conversations);
-        } catch (Exception e) {
+        } catch (RuntimeException e) {
             log.error(format("Exception during receipt polling for %s", si), e);
+            throw e;
         }
     }
 
+    /*
+        Each MPC is drained until it is empty. A new drain is only started for MPCs without a running drain, so an
+        MPC is never consumed concurrently, while busy MPCs do not hold back the others. The outcome of a finished
+        drain is logged before it is replaced.
+     */
     @Scheduled(fixedRate = 10000)
-    public void dpiReceiptsScheduledTask() throws InterruptedException, ExecutionException {
+    public void dpiReceiptsScheduledTask() {
         if (props.getFeature().isEnableReceipts() && props.getFeature().isEnableDPI()) {
-            int mpcConcurrency = props.getDpi().getMpcConcurrency();
-            List<Future<Void>> futures = new ArrayList<>();
-            if (mpcConcurrency > 1) {
-                for (int i = 0; i < mpcConcurrency; i++) {
-                    String mpcId = props.getDpi().getMpcId() + "-" + i;
-                    futures.add(dpiReceiptService.handleReceipts(mpcId));
+            getMpcIds().forEach(mpcId -> dpiReceiptDrains.compute(mpcId, (id, drain) -> {
+                if (drain != null && !drain.isDone()) {
+                    return drain;
                 }
+                logFailure(id, drain);
+                return startDrain(id);
+            }));
+        }
+    }
 
-            } else {
-                String mpcId = props.getDpi().getMpcId();
-                futures.add(dpiReceiptService.handleReceipts(mpcId));
-            }
-            for (Future<Void> future : futures) {
-                // Waits for the async handleReceipts to complete in order to avoid the schedule to fire again and cause
-                // concurrent consumption of the MPC(s).
-                future.get();
+    private void logFailure(String mpcId, Future<Void> drain) {
+        if (drain == null) {
+            return;
+        }
+        try {
+            drain.get();
+        } catch (ExecutionException e) {
+            log.error(format("Draining DPI receipts for mpcId=%s failed", mpcId), e.getCause());
+        } catch (CancellationException e) {
+            log.warn("Draining DPI receipts for mpcId={} was cancelled", mpcId);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Future<Void> startDrain(String mpcId) {
+        try {
+            return dpiReceiptService.handleReceipts(mpcId);
+        } catch (RejectedExecutionException e) {
+            log.warn("Could not start draining DPI receipts for mpcId={}, retrying in the next round", mpcId, e);
+            return null;
+        }
+    }
+
+    private List<String> getMpcIds() {
+        int mpcConcurrency = props.getDpi().getMpcConcurrency();
+        if (mpcConcurrency > 1) {
+            List<String> mpcIds = new ArrayList<>();
+            for (int i = 0; i < mpcConcurrency; i++) {
+                mpcIds.add(props.getDpi().getMpcId() + "-" + i);
             }
+            return mpcIds;
         }
+        return Collections.singletonList(props.getDpi().getMpcId());
     }
 
 }
@@ -1,70 +1,162 @@
 package no.difi.meldingsutveksling.status.strategy;
 
-import lombok.RequiredArgsConstructor;
+import com.google.common.collect.Lists;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
+import no.difi.meldingsutveksling.ConcurrentTasks;
 import no.difi.meldingsutveksling.ServiceIdentifier;
-import no.difi.meldingsutveksling.api.ConversationService;
 import no.difi.meldingsutveksling.api.StatusStrategy;
 import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
+import no.difi.meldingsutveksling.config.TaskExecutorConfig;
 import no.difi.meldingsutveksling.ks.mapping.FiksStatusMapper;
 import no.difi.meldingsutveksling.ks.svarut.ForsendelseIdService;
 import no.difi.meldingsutveksling.ks.svarut.SvarUtWebServiceClient;
 import no.difi.meldingsutveksling.status.Conversation;
+import no.difi.meldingsutveksling.status.ConversationStatusWriter;
+import no.difi.meldingsutveksling.status.MessageStatus;
 import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Component;
-import org.springframework.transaction.annotation.Transactional;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
 
+/**
+ * Polls SvarUt for statuses of sent DPF messages. Stored forsendelseIds are looked up in one query, and the ones
+ * missing are resolved concurrently against SvarUt. Statuses are fetched in chunks of
+ * difi.move.fiks.ut.status-chunk-size forsendelseIds, with difi.move.fiks.ut.status-concurrency chunks in flight,
+ * and all statuses are written together once the chunks are done.
+ */
 @Slf4j
 @Component
-@RequiredArgsConstructor
 @ConditionalOnProperty(name = "difi.move.feature.enableDPF", havingValue = "true")
 @Order
 public class DpfStatusStrategy implements StatusStrategy {
 
-    private final ConversationService conversationService;
+    private final ConversationStatusWriter conversationStatusWriter;
     private final ForsendelseIdService forsendelseIdService;
     private final FiksStatusMapper fiksStatusMapper;
     private final SvarUtWebServiceClient client;
     private final IntegrasjonspunktProperties props;
+    private final Executor transportExecutor;
+    private final MeterRegistry meterRegistry;
+
+    public DpfStatusStrategy(ConversationStatusWriter conversationStatusWriter,
+                             ForsendelseIdService forsendelseIdService,
+                             FiksStatusMapper fiksStatusMapper,
+                             SvarUtWebServiceClient client,
+                             IntegrasjonspunktProperties props,
+                             @Qualifier(TaskExecutorConfig.TRANSPORT_EXECUTOR) Executor transportExecutor,
+                             MeterRegistry meterRegistry) {
+        this.conversationStatusWriter = conversationStatusWriter;
+        this.forsendelseIdService = forsendelseIdService;
+        this.fiksStatusMapper = fiksStatusMapper;
+        this.client = client;
+        this.props = props;
+        this.transportExecutor = transportExecutor;
+        this.meterRegistry = meterRegistry;
+    }
 
     @Override
-    @Transactional
     public void checkStatus(@NotNull Set<Conversation> conversations) {
         updateStatuses(conversations);
     }
 
     public void updateStatuses(Set<Conversation> conversations) {
+        Map<String, List<MessageStatus>> statuses = new ConcurrentHashMap<>();
+        Map<String, Conversation> forsendelseIdMap = new ConcurrentHashMap<>();
+        Set<String> failedLookups = ConcurrentHashMap.newKeySet();
+        resolveForsendelseIds(conversations, forsendelseIdMap, failedLookups);
+
         // Check for missing ids first
-        Set<Conversation> missingIds = conversations.stream()
-                .filter(c -> forsendelseIdService.getForsendelseId(c) == null)
-                .peek(c -> conversationService.registerStatus(c, fiksStatusMapper.noForsendelseId()))
+        Set<String> resolved = forsendelseIdMap.values().stream()
+                .map(Conversation::getMessageId)
                 .collect(Collectors.toSet());
+        List<String> missingIds = conversations.stream()
+                .map(Conversation::getMessageId)
+                .filter(messageId -> !resolved.contains(messageId) && !failedLookups.contains(messageId))
+                .collect(Collectors.toList());
         if (!missingIds.isEmpty()) {
-            log.warn("Could not find forsendelseId for the following messages: {}", missingIds.stream()
-                    .map(Conversation::getMessageId).collect(Collectors.joining(", ")));
+            log.warn("Could not find forsendelseId for the following messages: {}", String.join(", ", missingIds));
+            missingIds.forEach(messageId -> addStatus(statuses, messageId, fiksStatusMapper.noForsendelseId()));
         }
 
-        Map<String, Conversation> forsendelseIdMap = conversations.stream()
-                .filter(c -> !missingIds.contains(c))
-                .collect(Collectors.toMap(forsendelseIdService::getForsendelseId, c -> c));
+        List<List<String>> chunks = Lists.partition(new ArrayList<>(forsendelseIdMap.keySet()), props.getFiks().getUt().getStatusChunkSize());
+        ConcurrentTasks.forEach(chunks, props.getFiks().getUt().getStatusConcurrency(), transportExecutor,
+                chunk -> getStatuses(chunk, forsendelseIdMap, statuses));
+
+        if (!statuses.isEmpty()) {
+            // The forsendelseId is removed once the status is stored and the conversation is no longer pollable
+            conversationStatusWriter.registerStatuses(statuses)
+                    .thenAccept(updated -> updated.stream()
+                            .filter(u -> !u.isPollable())
+                            .forEach(u -> forsendelseIdService.delete(u.getMessageId())));
+        }
+    }
+
+    private void resolveForsendelseIds(Set<Conversation> conversations, Map<String, Conversation> forsendelseIdMap, Set<String> failedLookups) {
+        Map<String, String> stored = forsendelseIdService.getStoredForsendelseIds(conversations.stream()
+                .map(Conversation::getMessageId)
+                .collect(Collectors.toList()));
 
-        if (!forsendelseIdMap.isEmpty()) {
-            client.getForsendelseStatuser(props.getFiks().getUt().getEndpointUrl().toString(), forsendelseIdMap.keySet()).forEach(s -> {
+        List<Conversation> unresolved = new ArrayList<>();
+        conversations.forEach(c -> {
+            String forsendelseId = stored.get(c.getMessageId());
+            if (forsendelseId != null) {
+                forsendelseIdMap.put(forsendelseId, c);
+            } else {
+                unresolved.add(c);
+            }
+        });
+
+        ConcurrentTasks.forEach(unresolved, props.getFiks().getUt().getStatusConcurrency(), transportExecutor, c -> {
+            try {
+                String forsendelseId = forsendelseIdService.getForsendelseId(c);
+                if (forsendelseId != null) {
+                    forsendelseIdMap.put(forsendelseId, c);
+                }
+            } catch (Exception e) {
+                // Not marked as missing, the lookup is retried in the next round
+                failedLookups.add(c.getMessageId());
+                log.warn("Failed to retrieve forsendelseId for message with id={}", c.getMessageId(), e);
+            }
+        });
+    }
+
+    private void getStatuses(List<String> forsendelseIds, Map<String, Conversation> forsendelseIdMap, Map<String, List<MessageStatus>> statuses) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "success";
+        try {
+            client.getForsendelseStatuser(props.getFiks().getUt().getEndpointUrl().toString(), new HashSet<>(forsendelseIds)).forEach(s -> {
                 Conversation c = forsendelseIdMap.get(s.getForsendelsesid());
-                conversationService.registerStatus(c, fiksStatusMapper.mapFrom(s.getForsendelseStatus()));
-                if (!c.isPollable()) {
-                    forsendelseIdService.delete(c.getMessageId());
+                MessageStatus status = fiksStatusMapper.mapFrom(s.getForsendelseStatus());
+                if (c != null && status != null) {
+                    addStatus(statuses, c.getMessageId(), status);
                 }
             });
+        } catch (Exception e) {
+            // The conversations in this chunk are polled again in the next round
+            outcome = "error";
+            log.warn("Failed to get statuses for {} forsendelseIds from SvarUt", forsendelseIds.size(), e);
+        } finally {
+            sample.stop(meterRegistry.timer("dpf.status.chunk", "outcome", outcome));
         }
     }
 
+    private void addStatus(Map<String, List<MessageStatus>> statuses, String messageId, MessageStatus status) {
+        statuses.computeIfAbsent(messageId, id -> Collections.synchronizedList(new ArrayList<>())).add(status);
+    }
+
     @Override
     public ServiceIdentifier getServiceIdentifier() {
         return ServiceIdentifier.DPF;
@@ -0,0 +1,244 @@
+package no.difi.meldingsutveksling.webhooks;
+
+import lombok.RequiredArgsConstructor;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
+import no.difi.meldingsutveksling.domain.webhooks.Subscription;
+import no.difi.meldingsutveksling.webhooks.event.MessageStatusContent;
+import no.difi.meldingsutveksling.webhooks.event.WebhookContent;
+import no.difi.meldingsutveksling.webhooks.filter.DirectionFilter;
+import no.difi.meldingsutveksling.webhooks.filter.EventFilter;
+import no.difi.meldingsutveksling.webhooks.filter.ServiceIdentifierFilter;
+import no.difi.meldingsutveksling.webhooks.filter.WebhookFilterParser;
+import no.difi.meldingsutveksling.webhooks.filter.WebhookFilterPart;
+import no.difi.meldingsutveksling.webhooks.subscription.SubscriptionRepository;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.StringUtils;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory routing index of webhook subscriptions. Subscriptions are loaded on first use, with their filters parsed
+ * once into predicates, and indexed by resource and event, and for message statuses also by service identifier and
+ * direction. Finding the subscriptions for an event is then a fixed number of lookups, followed by the remaining
+ * filter predicates of the subscriptions found.
+ * <p>
+ * The index is invalidated by {@link no.difi.meldingsutveksling.webhooks.subscription.SubscriptionService} when
+ * subscriptions change, after the surrounding transaction commits, and reloaded on next use. It is also reloaded
+ * when it is older than difi.move.webhooks.subscription-refresh-interval, so that changes made through other
+ * instances sharing the database are picked up. Only one caller reloads the index at a time; while a stale index
+ * is being refreshed, other callers keep using it.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class SubscriptionIndex {
+
+    private static final String ALL = "all";
+    private static final String ANY = "*";
+
+    private final SubscriptionRepository subscriptionRepository;
+    private final WebhookFilterParser webhookFilterParser;
+    private final IntegrasjonspunktProperties props;
+    private final Clock clock;
+    private final AtomicReference<Index> index = new AtomicReference<>();
+    private final AtomicLong version = new AtomicLong();
+    private final ReentrantLock loadLock = new ReentrantLock();
+
+    public List<Subscription> getSubscriptions(WebhookContent content) {
+        Index current = getIndex();
+        List<Subscription> subscriptions = new ArrayList<>();
+        for (String resource : new String[]{content.getResource(), ALL}) {
+            for (String event : new String[]{content.getEvent(), ALL}) {
+                Optional.ofNullable(current.getBuckets().get(bucketKey(resource, event)))
+                        .ifPresent(bucket -> bucket.collect(content, subscriptions));
+            }
+        }
+        return subscriptions;
+    }
+
+    public void invalidate() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    clear();
+                }
+            });
+        } else {
+            clear();
+        }
+    }
+
+    private void clear() {
+        version.incrementAndGet();
+        index.set(null);
+    }
+
+    private Index getIndex() {
+        Index current = index.get();
+        if (current != null && isFresh(current)) {
+            return current;
+        }
+
+        // A single caller reloads the index. While it does, the others keep using a stale index, if there is one.
+        if (current != null && !loadLock.tryLock()) {
+            return current;
+        } else if (current == null) {
+            loadLock.lock();
+        }
+        try {
+            current = index.get();
+            if (current != null && isFresh(current)) {
+                return current;
+            }
+
+            // Only keep the loaded index if no subscription was changed while loading it
+            long loadedVersion = version.get();
+            Index loaded = load();
+            if (version.get() == loadedVersion) {
+                index.compareAndSet(current, loaded);
+            }
+            return loaded;
+        } finally {
+            loadLock.unlock();
+        }
+    }
+
+    private boolean isFresh(Index current) {
+        return clock.instant().isBefore(current.getLoaded().plus(props.getWebhooks().getSubscriptionRefreshInterval()));
+    }
+
+    private Index load() {
+        Instant loaded = clock.instant();
+        Map<String, Bucket> buckets = new HashMap<>();
+        int count = 0;
+        for (Subscription subscription : subscriptionRepository.findAll()) {
+            try {
+                Route route = compile(subscription);
+                buckets.computeIfAbsent(bucketKey(subscription.getResource(), subscription.getEvent()), k -> new Bucket())
+                        .add(route);
+                ++count;
+            } catch (RuntimeException e) {
+                log.error(String.format("Ignoring webhook subscription with id=%d and invalid filter \"%s\"",
+                        subscription.getId(), subscription.getFilter()), e);
+            }
+        }
+        log.debug("Loaded {} webhook subscriptions", count);
+        return new Index(buckets, loaded);
+    }
+
+    private Route compile(Subscription subscription) {
+        List<WebhookFilterPart> parts = StringUtils.hasText(subscription.getFilter())
+                ? webhookFilterParser.parse(subscription.getFilter()).collect(Collectors.toList())
+                : Collections.emptyList();
+
+        // The first service identifier and direction parts are matched by the index, the others by predicates
+        Optional<WebhookFilterPart> serviceIdentifier = parts.stream()
+                .filter(p -> p.getFilter() instanceof ServiceIdentifierFilter)
+                .findFirst();
+        Optional<WebhookFilterPart> direction = parts.stream()
+                .filter(p -> p.getFilter() instanceof DirectionFilter)
+                .findFirst();
+
+        Predicate<WebhookContent> predicate = parts.stream()
+                .filter(p -> !serviceIdentifier.filter(p::equals).isPresent())
+                .filter(p -> !direction.filter(p::equals).isPresent())
+                .map(p -> p.getFilter().compile(p.getOperator(), p.getValue()))
+                .reduce(Predicate::and)
+                .orElse(content -> true);
+
+        return new Route(subscription,
+                serviceIdentifier.map(p -> keyValues(p.getValue())).orElse(Collections.singleton(ANY)),
+                direction.map(p -> keyValues(p.getValue())).orElse(Collections.singleton(ANY)),
+                predicate);
+    }
+
+    private static Set<String> keyValues(String value) {
+        return EventFilter.valueSet(value).stream()
+                .map(v -> v.toUpperCase(Locale.ROOT))
+                .collect(Collectors.toSet());
+    }
+
+    private static String bucketKey(String resource, String event) {
+        return resource + "/" + event;
+    }
+
+    private static String statusKey(String serviceIdentifier, String direction) {
+        return serviceIdentifier + "/" + direction;
+    }
+
+    @Value
+    private static class Index {
+        Map<String, Bucket> buckets;
+        Instant loaded;
+    }
+
+    @Value
+    private static class Route {
+        Subscription subscription;
+        Set<String> serviceIdentifiers;
+        Set<String> directions;
+        Predicate<WebhookContent> predicate;
+    }
+
+    /**
+     * The subscriptions of one resource and event. All routes are kept in subscription order for content that is
+     * not a message status, and message statuses are looked up by service identifier and direction.
+     */
+    private static class Bucket {
+
+        private final List<Route> routes = new ArrayList<>();
+        private final Map<String, List<Route>> byStatusKey = new HashMap<>();
+
+        void add(Route route) {
+            routes.add(route);
+            route.getServiceIdentifiers().forEach(serviceIdentifier -> route.getDirections().forEach(direction ->
+                    byStatusKey.computeIfAbsent(statusKey(serviceIdentifier, direction), k -> new ArrayList<>())
+                            .add(route)));
+        }
+
+        void collect(WebhookContent content, List<Subscription> subscriptions) {
+            if (!(content instanceof MessageStatusContent)) {
+                collect(routes, content, subscriptions);
+                return;
+            }
+
+            MessageStatusContent status = (MessageStatusContent) content;
+            String serviceIdentifier = status.getServiceIdentifier() != null ? status.getServiceIdentifier().name() : ANY;
+            String direction = status.getDirection() != null ? status.getDirection().name() : ANY;
+            for (String s : keys(serviceIdentifier)) {
+                for (String d : keys(direction)) {
+                    collect(byStatusKey.getOrDefault(statusKey(s, d), Collections.emptyList()), content, subscriptions);
+                }
+            }
+        }
+
+        private static String[] keys(String value) {
+            return ANY.equals(value) ? new String[]{ANY} : new String[]{value, ANY};
+        }
+
+        private static void collect(List<Route> routes, WebhookContent content, List<Subscription> subscriptions) {
+            routes.stream()
+                    .filter(route -> route.getPredicate().test(content))
+                    .forEach(route -> subscriptions.add(route.getSubscription()));
+        }
+    }
+}
@@ -5,6 +5,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.*;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
 @Slf4j
@@ -19,14 +20,31 @@ public class UrlPusher {
     }
 
     void push(String uri, String jsonPayload) {
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.APPLICATION_JSON);
         log.debug("Pushing to {}", uri);
         try {
-            ResponseEntity<String> responseEntity = restTemplate.exchange(uri, HttpMethod.POST, new HttpEntity<>(jsonPayload, headers), String.class);
+            ResponseEntity<String> responseEntity = exchange(uri, jsonPayload);
             log.debug("Response was {} {}", responseEntity.getStatusCode().value(), responseEntity.getStatusCode().getReasonPhrase());
         } catch (ResourceAccessException e) {
             log.warn("Webhook push failed for {}", uri);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Posts the payload, and returns true if the endpoint responded with a 2xx status.
+     */
+    boolean deliver(String uri, String jsonPayload) {
+        log.debug("Delivering to {}", uri);
+        try {
+            return exchange(uri, jsonPayload).getStatusCode().is2xxSuccessful();
+        } catch (RestClientException e) {
+            log.warn("Webhook delivery failed for {}: {}", uri, e.getMessage());
+            return false;
+        }
+    }
+
+    private ResponseEntity<String> exchange(String uri, String jsonPayload) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        return restTemplate.exchange(uri, HttpMethod.POST, new HttpEntity<>(jsonPayload, headers), String.class);
+    }
+}
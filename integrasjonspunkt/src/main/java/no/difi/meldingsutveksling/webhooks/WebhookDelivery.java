@@ -0,0 +1,33 @@
+package no.difi.meldingsutveksling.webhooks;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import no.difi.meldingsutveksling.nextmove.AbstractEntity;
+
+import javax.persistence.Entity;
+import javax.persistence.Index;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+
+/**
+ * A webhook event waiting in the outbox for delivery to one endpoint. Events for an endpoint are delivered in id
+ * order.
+ */
+@Getter
+@Setter
+@ToString(exclude = "payload")
+@Entity
+@Table(name = "webhook_delivery", indexes = @Index(columnList = "endpoint,id"))
+public class WebhookDelivery extends AbstractEntity<Long> {
+
+    private String endpoint;
+    @Lob
+    private String payload;
+    /**
+     * Message status events can be posted together with other events to the same endpoint
+     */
+    private boolean batchable;
+    private long createdAt;
+    private int attempt;
+}
@@ -0,0 +1,15 @@
+package no.difi.meldingsutveksling.webhooks;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+
+import java.util.List;
+
+public interface WebhookDeliveryRepository extends CrudRepository<WebhookDelivery, Long> {
+
+    @Query("SELECT DISTINCT d.endpoint FROM WebhookDelivery d")
+    List<String> findEndpoints();
+
+    List<WebhookDelivery> findByEndpointOrderByIdAsc(String endpoint, Pageable pageable);
+}
@@ -0,0 +1,41 @@
+package no.difi.meldingsutveksling.webhooks;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import no.difi.meldingsutveksling.nextmove.AbstractEntity;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Table;
+
+/**
+ * Delivery state of one webhook endpoint, shared by all instances using the same database. An instance delivers to
+ * the endpoint only while it holds the lock, so the events of an endpoint are posted once, and in order.
+ */
+@Getter
+@Setter
+@ToString
+@Entity
+@Table(name = "webhook_endpoint")
+public class WebhookEndpoint extends AbstractEntity<Long> {
+
+    @Column(unique = true, nullable = false)
+    private String endpoint;
+    /**
+     * The instance holding the lock
+     */
+    private String owner;
+    /**
+     * Epoch millis when the lock expires, and another instance may take it
+     */
+    private long lockTimeout;
+    /**
+     * Failed requests in a row
+     */
+    private int failures;
+    /**
+     * Epoch millis before which the endpoint is not called again
+     */
+    private long notBefore;
+}
@@ -0,0 +1,40 @@
+package no.difi.meldingsutveksling.webhooks;
+
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+import java.util.Optional;
+
+public interface WebhookEndpointRepository extends CrudRepository<WebhookEndpoint, Long> {
+
+    Optional<WebhookEndpoint> findByEndpoint(String endpoint);
+
+    @Query("SELECT DISTINCT d.endpoint FROM WebhookDelivery d WHERE d.endpoint NOT IN (SELECT e.endpoint FROM WebhookEndpoint e)")
+    List<String> findNewEndpoints();
+
+    @Query("SELECT e.endpoint FROM WebhookEndpoint e WHERE e.notBefore <= ?1 AND e.lockTimeout <= ?1 AND e.endpoint IN (SELECT d.endpoint FROM WebhookDelivery d)")
+    List<String> findDueEndpoints(long now);
+
+    long countByFailuresGreaterThanEqualAndNotBeforeGreaterThan(int failures, long now);
+
+    /**
+     * Takes or renews the lock on a due endpoint, and returns 0 if the endpoint is locked by another instance or
+     * waiting for a retry.
+     */
+    @Transactional
+    @Modifying
+    @Query("UPDATE WebhookEndpoint e SET e.owner = ?2, e.lockTimeout = ?4 " +
+            "WHERE e.endpoint = ?1 AND e.notBefore <= ?3 AND (e.lockTimeout <= ?3 OR e.owner = ?2)")
+    int lock(String endpoint, String owner, long now, long lockTimeout);
+
+    /**
+     * Releases the lock, and stores when the endpoint may be called again.
+     */
+    @Transactional
+    @Modifying
+    @Query("UPDATE WebhookEndpoint e SET e.lockTimeout = 0, e.failures = ?3, e.notBefore = ?4 WHERE e.endpoint = ?1 AND e.owner = ?2")
+    int unlock(String endpoint, String owner, int failures, long notBefore);
+}
@@ -0,0 +1,288 @@
+package no.difi.meldingsutveksling.webhooks;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import no.difi.meldingsutveksling.ConcurrentTasks;
+import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
+import no.difi.meldingsutveksling.config.TaskExecutorConfig;
+import no.difi.meldingsutveksling.webhooks.event.MessageStatusContent;
+import no.difi.meldingsutveksling.webhooks.event.WebhookContent;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Persistent outbox for webhook events. Events are stored in the webhook_delivery table once for each subscribed
+ * endpoint, and delivered every difi.move.webhooks.outbox.flush-rate milliseconds to up to
+ * difi.move.webhooks.outbox.concurrency endpoints at the same time, over pooled connections. Events for one endpoint
+ * are posted one request at a time, in the order they were stored, and message statuses are posted together as a
+ * JSON array when difi.move.webhooks.outbox.batch-size is more than 1. An event is deleted as soon as it is
+ * delivered, so a later failure does not deliver it again.
+ * <p>
+ * Instances sharing the database deliver to an endpoint only while they hold its lock in the webhook_endpoint table.
+ * The lock is renewed while delivering, and expires after difi.move.webhooks.outbox.lock-timeout if the instance
+ * stops, so each event is delivered by one instance.
+ * <p>
+ * Retries are scheduled per endpoint, in the webhook_endpoint table. When a request fails, the event stays first in
+ * line for its endpoint, and the endpoint is not called again until an exponential, randomized delay has passed, so
+ * the events of other endpoints are not held up and the order of the endpoint's events is kept. An event is dropped
+ * after difi.move.webhooks.outbox.max-attempts attempts. After difi.move.webhooks.outbox.circuit-breaker-threshold
+ * failures in a row, the endpoint is not called again for at least difi.move.webhooks.outbox.circuit-breaker-open-time.
+ * <p>
+ * Exposes webhook.outbox.depth, webhook.circuit.open, webhook.delivery (by outcome), webhook.delivery.lag and
+ * webhook.dropped to micrometer. The depth and open circuits are read from the tables on each flush. If the outbox is
+ * disabled, events are pushed once, without retries.
+ */
+@Slf4j
+@Component
+public class WebhookOutbox {
+
+    private final IntegrasjonspunktProperties props;
+    private final WebhookDeliveryRepository deliveryRepository;
+    private final WebhookEndpointRepository endpointRepository;
+    private final UrlPusher urlPusher;
+    private final Executor pollingExecutor;
+    private final MeterRegistry meterRegistry;
+    private final Clock clock;
+    private final String owner = UUID.randomUUID().toString();
+    private final AtomicLong depth = new AtomicLong();
+    private final AtomicLong openCircuits = new AtomicLong();
+
+    public WebhookOutbox(IntegrasjonspunktProperties props,
+                         WebhookDeliveryRepository deliveryRepository,
+                         WebhookEndpointRepository endpointRepository,
+                         UrlPusher urlPusher,
+                         @Qualifier(TaskExecutorConfig.POLLING_EXECUTOR) Executor pollingExecutor,
+                         MeterRegistry meterRegistry,
+                         Clock clock) {
+        this.props = props;
+        this.deliveryRepository = deliveryRepository;
+        this.endpointRepository = endpointRepository;
+        this.urlPusher = urlPusher;
+        this.pollingExecutor = pollingExecutor;
+        this.meterRegistry = meterRegistry;
+        this.clock = clock;
+        meterRegistry.gauge("webhook.outbox.depth", depth);
+        meterRegistry.gauge("webhook.circuit.open", openCircuits);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        if (!getOutbox().isEnable()) {
+            return;
+        }
+
+        depth.set(deliveryRepository.count());
+        log.info("Found {} queued webhook events", depth.get());
+    }
+
+    public void enqueue(String endpoint, WebhookContent content, String json) {
+        if (!getOutbox().isEnable()) {
+            urlPusher.pushAsync(endpoint, json);
+            return;
+        }
+
+        WebhookDelivery delivery = new WebhookDelivery();
+        delivery.setEndpoint(endpoint);
+        delivery.setPayload(json);
+        delivery.setBatchable(content instanceof MessageStatusContent);
+        delivery.setCreatedAt(clock.millis());
+        deliveryRepository.save(delivery);
+        depth.incrementAndGet();
+    }
+
+    @Scheduled(fixedDelayString = "${difi.move.webhooks.outbox.flush-rate}")
+    public void flush() {
+        if (!getOutbox().isEnable()) {
+            return;
+        }
+
+        addNewEndpoints();
+        List<String> due = endpointRepository.findDueEndpoints(clock.millis());
+        try {
+            ConcurrentTasks.forEach(due, getOutbox().getConcurrency(), pollingExecutor, this::deliver);
+        } finally {
+            depth.set(deliveryRepository.count());
+            openCircuits.set(endpointRepository.countByFailuresGreaterThanEqualAndNotBeforeGreaterThan(
+                    getOutbox().getCircuitBreakerThreshold(), clock.millis()));
+        }
+    }
+
+    private void addNewEndpoints() {
+        endpointRepository.findNewEndpoints().forEach(endpoint -> {
+            WebhookEndpoint state = new WebhookEndpoint();
+            state.setEndpoint(endpoint);
+            try {
+                endpointRepository.save(state);
+            } catch (DataIntegrityViolationException e) {
+                log.debug("Webhook endpoint {} was added by another instance", endpoint);
+            }
+        });
+    }
+
+    /**
+     * Posts the events of the endpoint in order, until there are none left or a request fails, if the endpoint is not
+     * locked by another instance.
+     */
+    private void deliver(String endpoint) {
+        long now = clock.millis();
+        long lockTimeout = getOutbox().getLockTimeout().toMillis();
+        if (endpointRepository.lock(endpoint, owner, now, now + lockTimeout) == 0) {
+            return;
+        }
+
+        EndpointLock lock = new EndpointLock(endpoint, now + lockTimeout, endpointRepository.findByEndpoint(endpoint)
+                .map(WebhookEndpoint::getFailures)
+                .orElse(0));
+        try {
+            int dispatchSize = getOutbox().getDispatchSize();
+            List<WebhookDelivery> deliveries;
+            do {
+                deliveries = deliveryRepository.findByEndpointOrderByIdAsc(endpoint, PageRequest.of(0, dispatchSize));
+            } while (deliver(lock, deliveries) && deliveries.size() >= dispatchSize);
+        } finally {
+            endpointRepository.unlock(endpoint, owner, lock.failures, lock.notBefore);
+        }
+    }
+
+    /**
+     * Posts the events to the endpoint in order, and returns false if a request failed or the lock was lost.
+     */
+    private boolean deliver(EndpointLock lock, List<WebhookDelivery> deliveries) {
+        IntegrasjonspunktProperties.WebhookOutbox outbox = getOutbox();
+
+        int next = 0;
+        while (next < deliveries.size()) {
+            if (!renew(lock)) {
+                return false;
+            }
+
+            List<WebhookDelivery> batch = nextBatch(deliveries, next, outbox.getBatchSize());
+            next += batch.size();
+
+            Timer.Sample sample = Timer.start(meterRegistry);
+            boolean delivered = urlPusher.deliver(lock.endpoint, getPayload(batch, outbox.getBatchSize()));
+            sample.stop(meterRegistry.timer("webhook.delivery", "outcome", delivered ? "success" : "failure"));
+
+            if (!delivered) {
+                retryLater(lock, batch);
+                return false;
+            }
+
+            deliveryRepository.deleteAll(batch);
+            lock.failures = 0;
+            lock.notBefore = 0;
+            long deliveredAt = clock.millis();
+            batch.forEach(d -> meterRegistry.timer("webhook.delivery.lag")
+                    .record(deliveredAt - d.getCreatedAt(), TimeUnit.MILLISECONDS));
+        }
+        return true;
+    }
+
+    /**
+     * Renews the lock when less than half of the lock timeout is left, and returns false if it was taken by another
+     * instance.
+     */
+    private boolean renew(EndpointLock lock) {
+        long now = clock.millis();
+        long lockTimeout = getOutbox().getLockTimeout().toMillis();
+        if (lock.lockedUntil - now > lockTimeout / 2) {
+            return true;
+        }
+        if (endpointRepository.lock(lock.endpoint, owner, now, now + lockTimeout) == 0) {
+            log.warn("Lost the lock on webhook endpoint {}", lock.endpoint);
+            return false;
+        }
+        lock.lockedUntil = now + lockTimeout;
+        return true;
+    }
+
+    private void retryLater(EndpointLock lock, List<WebhookDelivery> batch) {
+        IntegrasjonspunktProperties.WebhookOutbox outbox = getOutbox();
+        int attempt = batch.stream().mapToInt(WebhookDelivery::getAttempt).max().orElse(0) + 1;
+        long retryDelay = getRetryDelay(attempt);
+        lock.notBefore = clock.millis() + (++lock.failures >= outbox.getCircuitBreakerThreshold()
+                ? Math.max(retryDelay, outbox.getCircuitBreakerOpenTime().toMillis())
+                : retryDelay);
+
+        List<WebhookDelivery> retries = new ArrayList<>();
+        List<WebhookDelivery> dropped = new ArrayList<>();
+        batch.forEach(d -> {
+            d.setAttempt(d.getAttempt() + 1);
+            if (d.getAttempt() >= outbox.getMaxAttempts()) {
+                dropped.add(d);
+            } else {
+                retries.add(d);
+            }
+        });
+        deliveryRepository.saveAll(retries);
+        if (!dropped.isEmpty()) {
+            deliveryRepository.deleteAll(dropped);
+            meterRegistry.counter("webhook.dropped").increment(dropped.size());
+            log.error("Dropping {} webhook events for {} after {} attempts", dropped.size(), lock.endpoint, outbox.getMaxAttempts());
+        }
+    }
+
+    private List<WebhookDelivery> nextBatch(List<WebhookDelivery> deliveries, int from, int batchSize) {
+        int to = from + 1;
+        if (batchSize > 1 && deliveries.get(from).isBatchable()) {
+            while (to < deliveries.size() && to - from < batchSize && deliveries.get(to).isBatchable()) {
+                ++to;
+            }
+        }
+        return deliveries.subList(from, to);
+    }
+
+    private String getPayload(List<WebhookDelivery> batch, int batchSize) {
+        if (batchSize == 1 || !batch.get(0).isBatchable()) {
+            return batch.get(0).getPayload();
+        }
+        return batch.stream()
+                .map(WebhookDelivery::getPayload)
+                .collect(Collectors.joining(",", "[", "]"));
+    }
+
+    private long getRetryDelay(int attempt) {
+        long initial = getOutbox().getRetryInitialDelay().toMillis();
+        long max = getOutbox().getRetryMaxDelay().toMillis();
+        long delay = initial << Math.min(attempt - 1, 30);
+        delay = delay > 0 ? Math.min(delay, max) : max;
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private IntegrasjonspunktProperties.WebhookOutbox getOutbox() {
+        return props.getWebhooks().getOutbox();
+    }
+
+    /**
+     * The lock held on an endpoint while delivering, and the retry state written back when it is released.
+     */
+    private static class EndpointLock {
+
+        private final String endpoint;
+        private long lockedUntil;
+        private int failures;
+        private long notBefore;
+
+        EndpointLock(String endpoint, long lockedUntil, int failures) {
+            this.endpoint = endpoint;
+            this.lockedUntil = lockedUntil;
+            this.failures = failures;
+        }
+    }
+}
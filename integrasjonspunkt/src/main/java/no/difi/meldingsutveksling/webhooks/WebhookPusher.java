@@ -10,61 +10,31 @@ import no.difi.meldingsutveksling.exceptions.WebhookPushEndpointPingFailedExcept
 import no.difi.meldingsutveksling.webhooks.event.WebhookContent;
 import no.difi.meldingsutveksling.webhooks.event.WebhookContentFactory;
 import no.difi.meldingsutveksling.webhooks.event.WebhookEvent;
-import no.difi.meldingsutveksling.webhooks.filter.WebhookFilterParser;
-import no.difi.meldingsutveksling.webhooks.subscription.SubscriptionRepository;
 import org.springframework.stereotype.Component;
-import org.springframework.util.StringUtils;
 import org.springframework.web.client.HttpStatusCodeException;
 
-import org.springframework.transaction.annotation.Transactional;
+import java.util.List;
 
 @Slf4j
 @Component
 @RequiredArgsConstructor
 public class WebhookPusher {
 
-    private final SubscriptionRepository subscriptionRepository;
+    private final SubscriptionIndex subscriptionIndex;
     private final ObjectMapper objectMapper;
     private final UrlPusher urlPusher;
+    private final WebhookOutbox webhookOutbox;
     private final WebhookContentFactory webhookContentFactory;
-    private final WebhookFilterParser webhookFilterParser;
 
-    @Transactional
     public void push(WebhookEvent event) {
         WebhookContent content = event.getContent();
-        String json = getJson(content);
-        subscriptionRepository.findAll()
-                .forEach(subscription -> {
-                    if (shouldPush(subscription, content)) {
-                        urlPusher.pushAsync(subscription.getPushEndpoint(), json);
-                    }
-                });
-    }
-
-    private boolean shouldPush(Subscription subscription, WebhookContent content) {
-        return acceptsResource(subscription, content)
-                && acceptsEvent(subscription, content)
-                && inFilter(subscription.getFilter(), content);
-    }
-
-    private boolean inFilter(String filter, WebhookContent content) {
-        if (!StringUtils.hasText(filter)) {
-            return true;
+        List<Subscription> subscriptions = subscriptionIndex.getSubscriptions(content);
+        if (subscriptions.isEmpty()) {
+            return;
         }
 
-        return webhookFilterParser.parse(filter)
-                .filter(p -> p.getFilter().supports(content))
-                .allMatch(p -> p.getFilter().matches(content, p.getOperator(), p.getValue()));
-    }
-
-    private boolean acceptsResource(Subscription subscription, WebhookContent content) {
-        String resource = subscription.getResource();
-        return "all".equals(resource) || resource.equals(content.getResource());
-    }
-
-    private boolean acceptsEvent(Subscription subscription, WebhookContent content) {
-        String event = subscription.getEvent();
-        return "all".equals(event) || event.equals(content.getEvent());
+        String json = getJson(content);
+        subscriptions.forEach(subscription -> webhookOutbox.enqueue(subscription.getPushEndpoint(), content, json));
     }
 
     public void ping(String url) {
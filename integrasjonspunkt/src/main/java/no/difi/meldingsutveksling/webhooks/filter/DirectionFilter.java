@@ -5,6 +5,8 @@ import no.difi.meldingsutveksling.webhooks.event.WebhookContent;
 import org.springframework.stereotype.Component;
 
 import java.util.Arrays;
+import java.util.Set;
+import java.util.function.Predicate;
 
 @Component
 public class DirectionFilter implements EventFilter {
@@ -31,4 +33,10 @@ public class DirectionFilter implements EventFilter {
         return Arrays.stream(value.split(","))
                 .anyMatch(expected::equalsIgnoreCase);
     }
+
+    @Override
+    public Predicate<WebhookContent> compile(EventFilterOperator operator, String value) {
+        Set<String> values = EventFilter.valueSet(value);
+        return content -> !supports(content) || values.contains(((MessageStatusContent) content).getDirection().name());
+    }
 }
@@ -2,6 +2,12 @@ package no.difi.meldingsutveksling.webhooks.filter;
 
 import no.difi.meldingsutveksling.webhooks.event.WebhookContent;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
 public interface EventFilter {
 
     String getName();
@@ -11,4 +17,21 @@ public interface EventFilter {
     boolean supports(EventFilterOperator operator);
 
     boolean matches(WebhookContent content, EventFilterOperator operator, String value);
+
+    /**
+     * Returns a predicate that is equivalent to {@link #matches(WebhookContent, EventFilterOperator, String)}
+     * for supported content, and accepts content that is not supported by this filter.
+     */
+    default Predicate<WebhookContent> compile(EventFilterOperator operator, String value) {
+        return content -> !supports(content) || matches(content, operator, value);
+    }
+
+    /**
+     * Splits a comma separated filter value into a set that is matched ignoring case.
+     */
+    static Set<String> valueSet(String value) {
+        Set<String> values = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        values.addAll(Arrays.asList(value.split(",")));
+        return Collections.unmodifiableSet(values);
+    }
 }
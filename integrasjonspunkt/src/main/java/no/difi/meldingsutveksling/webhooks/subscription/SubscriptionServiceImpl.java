@@ -5,6 +5,7 @@ import lombok.extern.slf4j.Slf4j;
 import no.difi.meldingsutveksling.domain.webhooks.Subscription;
 import no.difi.meldingsutveksling.exceptions.SubscriptionNotFoundException;
 import no.difi.meldingsutveksling.exceptions.SubscriptionWithSameNameAndPushEndpointAlreadyExists;
+import no.difi.meldingsutveksling.webhooks.SubscriptionIndex;
 import no.difi.meldingsutveksling.webhooks.WebhookPusher;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
@@ -19,6 +20,7 @@ public class SubscriptionServiceImpl implements SubscriptionService {
 
     private final SubscriptionRepository subscriptionRepository;
     private final WebhookPusher webhookPusher;
+    private final SubscriptionIndex subscriptionIndex;
 
     @Override
     public Page<Subscription> listSubscriptions(Pageable pageable) {
@@ -39,7 +41,9 @@ public class SubscriptionServiceImpl implements SubscriptionService {
                 });
 
         webhookPusher.ping(subscription.getPushEndpoint());
-        return subscriptionRepository.save(subscription);
+        Subscription saved = subscriptionRepository.save(subscription);
+        subscriptionIndex.invalidate();
+        return saved;
     }
 
     @Override
@@ -65,16 +69,19 @@ public class SubscriptionServiceImpl implements SubscriptionService {
         Optional.ofNullable(subscription.getFilter()).ifPresent(existingSubscription::setFilter);
 
         subscriptionRepository.save(existingSubscription);
+        subscriptionIndex.invalidate();
     }
 
     @Override
     public void deleteSubscription(Long id) {
         getSubscription(id);
         subscriptionRepository.deleteSubscriptionById(id);
+        subscriptionIndex.invalidate();
     }
 
     @Override
     public void deleteAll() {
         subscriptionRepository.deleteAll();
+        subscriptionIndex.invalidate();
     }
 }
@@ -11,8 +11,12 @@ import no.difi.sdp.client2.domain.digital_post.Sikkerhetsnivaa
 import no.difi.sdp.client2.domain.fysisk_post.Posttype
 import no.difi.sdp.client2.domain.fysisk_post.Returhaandtering
 import no.difi.sdp.client2.domain.fysisk_post.Utskriftsfarge
+import org.springframework.core.io.InputStreamSource
+import java.io.FilterInputStream
+import java.io.IOException
 import java.time.Clock
 import java.util.*
+import java.util.concurrent.atomic.AtomicReference
 
 class NextMoveDpiRequest(private val props: IntegrasjonspunktProperties,
                          private val clock: Clock,
@@ -22,7 +26,7 @@ class NextMoveDpiRequest(private val props: IntegrasjonspunktProperties,
 
     private fun createDocument(file: BusinessMessageFile): Document {
         val title = if (file.title.isNullOrBlank()) "Missing title" else file.title
-        val document = Document(getContent(file.identifier), file.mimetype, file.filename, title)
+        val document = Document(getContentSource(file.identifier), file.size ?: -1L, file.mimetype, file.filename, title)
 
         if (isDigitalMessage && getDigitalMessage().metadataFiler.containsKey(file.filename)) {
             val metadataFilename = getDigitalMessage().metadataFiler[file.filename]
@@ -38,6 +42,27 @@ class NextMoveDpiRequest(private val props: IntegrasjonspunktProperties,
         return optionalCryptoMessagePersister.read(message.messageId, fileName)
     }
 
+    /**
+     * Decrypts the file as it is read. A failed decryption ends the stream early, so the failure is raised when
+     * the end of the stream is reached instead of handing a truncated document to the SDP client.
+     */
+    private fun getContentSource(fileName: String): InputStreamSource = InputStreamSource {
+        val failure = AtomicReference<Throwable>()
+        val stream = optionalCryptoMessagePersister.readStream(message.messageId, fileName) { failure.set(it) }.inputStream
+        object : FilterInputStream(stream) {
+            override fun read(): Int = checkFailure(super.read())
+
+            override fun read(b: ByteArray, off: Int, len: Int): Int = checkFailure(super.read(b, off, len))
+
+            private fun checkFailure(n: Int): Int {
+                if (n == -1) {
+                    failure.get()?.let { throw IOException("Could not read file $fileName for message ${message.messageId}", it) }
+                }
+                return n
+            }
+        }
+    }
+
     private fun isMetadataFile(filename: String): Boolean {
         return if (isPrintMessage) {
             false
@@ -1,54 +1,106 @@
 package no.difi.meldingsutveksling.receipt.strategy
 
+import com.google.common.collect.Lists
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.Timer
 import no.altinn.schemas.services.serviceengine.correspondence._2014._10.StatusV2
 import no.altinn.schemas.services.serviceentity._2014._10.CorrespondenceStatusTypeV2
+import no.difi.meldingsutveksling.ConcurrentTasks
 import no.difi.meldingsutveksling.ServiceIdentifier
-import no.difi.meldingsutveksling.api.ConversationService
 import no.difi.meldingsutveksling.api.StatusStrategy
+import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties
+import no.difi.meldingsutveksling.config.TaskExecutorConfig
 import no.difi.meldingsutveksling.ptv.CorrespondenceAgencyClient
 import no.difi.meldingsutveksling.ptv.CorrespondenceAgencyMessageFactory
 import no.difi.meldingsutveksling.receipt.ReceiptStatus.*
-import no.difi.meldingsutveksling.status.Conversation
+import no.difi.meldingsutveksling.status.*
 import no.difi.meldingsutveksling.status.ConversationMarker.markerFrom
-import no.difi.meldingsutveksling.status.MessageStatusFactory
 import no.difi.meldingsutveksling.util.logger
+import org.springframework.beans.factory.annotation.Qualifier
 import org.springframework.stereotype.Component
 import java.time.OffsetDateTime
+import java.util.concurrent.Executor
 import javax.xml.datatype.XMLGregorianCalendar
 
+/**
+ * Polls Altinn for the status history of DPV messages, in requests of difi.move.dpv.status-chunk-size messages, with
+ * up to difi.move.dpv.status-concurrency requests at the same time. Statuses that are already registered for a
+ * message are skipped, and the new statuses of a chunk are registered together.
+ */
 @Component
 class DpvStatusStrategy(private val correspondencyAgencyMessageFactory: CorrespondenceAgencyMessageFactory,
                         private val correspondenceAgencyClient: CorrespondenceAgencyClient,
-                        private val conversationService: ConversationService,
-                        private val messageStatusFactory: MessageStatusFactory) : StatusStrategy {
+                        private val conversationStatusWriter: ConversationStatusWriter,
+                        private val messageStatusFactory: MessageStatusFactory,
+                        private val conversationRepository: ConversationRepository,
+                        private val props: IntegrasjonspunktProperties,
+                        @Qualifier(TaskExecutorConfig.TRANSPORT_EXECUTOR) private val transportExecutor: Executor,
+                        private val meterRegistry: MeterRegistry) : StatusStrategy {
 
     val log = logger()
 
     override fun checkStatus(conversations: MutableSet<Conversation>) {
         log.debug("Checking status for ${conversations.size} DPV messages..")
-        val request = correspondencyAgencyMessageFactory.createReceiptRequest(conversations)
+        val chunks = Lists.partition(conversations.toList(), props.dpv.statusChunkSize)
+        ConcurrentTasks.forEach(chunks, props.dpv.statusConcurrency, transportExecutor) { checkChunk(it) }
+    }
+
+    private fun checkChunk(chunk: List<Conversation>) {
+        val sample = Timer.start(meterRegistry)
+        var outcome = "success"
+        try {
+            val statuses = getNewStatuses(chunk)
+            if (statuses.isNotEmpty()) {
+                conversationStatusWriter.registerStatuses(statuses)
+            }
+        } catch (e: Exception) {
+            // The conversations in this chunk are polled again in the next round
+            outcome = "error"
+            log.warn("Failed to get status history for ${chunk.size} DPV messages", e)
+        } finally {
+            sample.stop(meterRegistry.timer("dpv.status.chunk", "outcome", outcome))
+        }
+    }
+
+    private fun getNewStatuses(chunk: List<Conversation>): Map<String, List<MessageStatus>> {
+        val request = correspondencyAgencyMessageFactory.createReceiptRequest(chunk)
         val result = correspondenceAgencyClient.sendStatusHistoryRequest(request)
-        result?.correspondenceStatusInformation?.value?.correspondenceStatusDetailsList?.value?.statusV2?.forEach { s ->
-            conversations.find { it.messageId == s.sendersReference.value }?.let {
-                updateStatus(it, s)
+        val statusList = result?.correspondenceStatusInformation?.value?.correspondenceStatusDetailsList?.value?.statusV2
+        if (statusList.isNullOrEmpty()) {
+            return emptyMap()
+        }
+
+        val conversations = chunk.associateBy { it.messageId }
+        val registered = HashMap<String, MutableSet<String>>()
+        conversationRepository.findRegisteredStatuses(conversations.keys)
+                .forEach { registered.getOrPut(it.messageId) { HashSet() }.add(it.status) }
+
+        val statuses = HashMap<String, MutableList<MessageStatus>>()
+        statusList.forEach { s ->
+            conversations[s.sendersReference.value]?.let {
+                val known = registered.getOrPut(it.messageId) { HashSet() }
+                getStatuses(it, s)
+                        .filter { status -> known.add(status.status) }
+                        .forEach { status -> statuses.getOrPut(it.messageId) { ArrayList() }.add(status) }
             }
         }
+        return statuses
     }
 
     private fun XMLGregorianCalendar.offsetDateTime(): OffsetDateTime {
         return this.toGregorianCalendar().toZonedDateTime().toOffsetDateTime()
     }
 
-    private fun updateStatus(c: Conversation, status: StatusV2) {
+    private fun getStatuses(c: Conversation, status: StatusV2): List<MessageStatus> {
         log.debug(markerFrom(c), "Checking status for message [id=${c.messageId}, conversationId=${c.conversationId}]")
-        status.statusChanges.value.statusChangeV2.forEach {
+        return status.statusChanges.value.statusChangeV2.map {
             val statusDate = it.statusDate.offsetDateTime()
             val mappedStatus = when (it.statusType.value()) {
                 CorrespondenceStatusTypeV2.CREATED.value() -> LEVERT
                 CorrespondenceStatusTypeV2.READ.value() -> LEST
                 else -> ANNET
             }
-            conversationService.registerStatus(c, messageStatusFactory.getMessageStatus(mappedStatus, statusDate))
+            messageStatusFactory.getMessageStatus(mappedStatus, statusDate)
         }
     }
 
@@ -56,4 +108,4 @@ class DpvStatusStrategy(private val correspondencyAgencyMessageFactory: Correspo
         return ServiceIdentifier.DPV
     }
 
-}
\ No newline at end of file
+}
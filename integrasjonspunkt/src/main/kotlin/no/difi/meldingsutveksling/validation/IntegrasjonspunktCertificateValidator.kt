@@ -5,12 +5,24 @@ import no.difi.meldingsutveksling.CertificateParserException
 import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties
 import no.difi.meldingsutveksling.serviceregistry.ServiceRegistryClient
 import no.difi.meldingsutveksling.serviceregistry.ServiceRegistryLookupException
+import no.difi.meldingsutveksling.util.logger
 import no.difi.move.common.cert.KeystoreHelper
 import org.springframework.context.annotation.Profile
+import org.springframework.scheduling.annotation.Scheduled
 import org.springframework.stereotype.Component
 import java.security.cert.CertificateExpiredException
+import java.security.cert.CertificateNotYetValidException
+import java.util.*
 import javax.annotation.PostConstruct
 
+/**
+ * Checks that the business certificate in the keystore is valid, and matches the certificate in Virksert. The full
+ * check runs at startup and every difi.move.org.certificateCheckRate milliseconds. Messages are validated against
+ * the result of the last check and the validity window of the certificates, without parsing them again.
+ *
+ * If Virksert cannot be reached, the result of the last check is kept. Before there is one, the check is run again
+ * for the next message.
+ */
 @Component
 @Profile("{!(test | cucumber)}")
 class IntegrasjonspunktCertificateValidator(
@@ -19,27 +31,81 @@ class IntegrasjonspunktCertificateValidator(
     private val srClient: ServiceRegistryClient
 ) {
 
+    val log = logger()
+
+    @Volatile
+    private var result: CheckResult? = null
+
+    private class CheckResult(val notBefore: Date, val notAfter: Date, val failure: VirksertCertificateException?)
+
     @PostConstruct
     @Throws(VirksertCertificateException::class, CertificateExpiredException::class)
-    fun validateCertificate() {
-        keystoreHelper.x509Certificate.checkValidity()
+    fun checkCertificate() {
+        val keystoreCertificate = keystoreHelper.x509Certificate
+        var notBefore = keystoreCertificate.notBefore
+        var notAfter = keystoreCertificate.notAfter
+        try {
+            keystoreCertificate.checkValidity()
 
-        val pem = try {
-            srClient.getCertificate(props.org.number)
-        } catch (e: ServiceRegistryLookupException) {
-            throw VirksertCertificateException(e)
+            val pem = try {
+                srClient.getCertificate(props.org.number)
+            } catch (e: ServiceRegistryLookupException) {
+                if (result != null) {
+                    log.warn("Could not look up certificate in Virksert, keeping the result of the last check", e)
+                    return
+                }
+                throw VirksertCertificateException(e)
+            }
+
+            val cert = try {
+                CertificateParser.parse(pem)
+            } catch (e: CertificateParserException) {
+                throw failure(notBefore, notAfter, VirksertCertificateException("Failed to parse certificate from Virksert", e))
+            }
+            notBefore = maxOf(notBefore, cert.notBefore)
+            notAfter = minOf(notAfter, cert.notAfter)
+            cert.checkValidity()
+
+            if (keystoreCertificate.serialNumber != cert.serialNumber) {
+                throw failure(notBefore, notAfter, VirksertCertificateException("Keystore certificate serial number (${keystoreCertificate.serialNumber}) does not match certificate in Virksert (${cert.serialNumber})"))
+            }
+
+            result = CheckResult(notBefore, notAfter, null)
+        } catch (e: CertificateExpiredException) {
+            result = CheckResult(notBefore, notAfter, null)
+            throw e
+        } catch (e: CertificateNotYetValidException) {
+            result = CheckResult(notBefore, notAfter, null)
+            throw e
         }
+    }
 
-        val cert = try {
-            CertificateParser.parse(pem)
-        } catch (e: CertificateParserException) {
-            throw VirksertCertificateException("Failed to parse certificate from Virksert", e)
+    private fun failure(notBefore: Date, notAfter: Date, e: VirksertCertificateException): VirksertCertificateException {
+        result = CheckResult(notBefore, notAfter, e)
+        return e
+    }
+
+    @Scheduled(fixedDelayString = "\${difi.move.org.certificateCheckRate}", initialDelayString = "\${difi.move.org.certificateCheckRate}")
+    fun scheduledCheck() {
+        try {
+            checkCertificate()
+        } catch (e: Exception) {
+            log.error("Certificate check failed", e)
         }
-        cert.checkValidity()
+    }
 
-        if (keystoreHelper.x509Certificate.serialNumber != cert.serialNumber) {
-            throw VirksertCertificateException("Keystore certificate serial number (${keystoreHelper.x509Certificate.serialNumber}) does not match certificate in Virksert (${cert.serialNumber})")
+    @Throws(VirksertCertificateException::class, CertificateExpiredException::class)
+    fun validateCertificate() {
+        val checked = result ?: return checkCertificate()
+        checked.failure?.let { throw it }
+
+        val now = Date()
+        if (now.after(checked.notAfter)) {
+            throw CertificateExpiredException("Certificate expired on ${checked.notAfter}")
+        }
+        if (now.before(checked.notBefore)) {
+            throw CertificateNotYetValidException("Certificate not valid until ${checked.notBefore}")
         }
     }
 
-}
\ No newline at end of file
+}
@@ -3,6 +3,7 @@ package no.difi.meldingsutveksling.cucumber;
 import com.github.tomakehurst.wiremock.WireMockServer;
 import cucumber.api.java.After;
 import cucumber.api.java.Before;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
@@ -116,8 +117,9 @@ public class CucumberStepsConfiguration {
         @Primary
         @Bean
         public SikkerDigitalPostKlient sikkerDigitalPostKlient(IntegrasjonspunktProperties properties,
-                                                               RequestCaptureClientInterceptor requestCaptureClientInterceptor) {
-            SikkerDigitalPostKlientFactory factory = new SikkerDigitalPostKlientFactory(properties);
+                                                               RequestCaptureClientInterceptor requestCaptureClientInterceptor,
+                                                               Clock clock) {
+            SikkerDigitalPostKlientFactory factory = new SikkerDigitalPostKlientFactory(properties, new SimpleMeterRegistry(), clock);
             SikkerDigitalPostKlient klient = factory.createSikkerDigitalPostKlient(
                     AktoerOrganisasjonsnummer.of("910077473"));
             klient.getMeldingTemplate().setInterceptors(new ClientInterceptor[]{
@@ -168,7 +170,7 @@ public class CucumberStepsConfiguration {
         public CorrespondenceAgencyClient correspondenceAgencyClient(
                 CorrespondenceAgencyConfiguration config,
                 RequestCaptureClientInterceptor requestCaptureClientInterceptor) {
-            return new CorrespondenceAgencyClient(config) {
+            return new CorrespondenceAgencyClient(config, new SimpleMeterRegistry()) {
 
                 @Override
                 protected List<ClientInterceptor> getAdditionalInterceptors() {
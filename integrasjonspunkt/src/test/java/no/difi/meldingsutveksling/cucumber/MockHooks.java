@@ -46,5 +46,6 @@ public class MockHooks {
 
         given(sikkerDigitalPostKlientFactory.createSikkerDigitalPostKlient(any())).willReturn(sikkerDigitalPostKlient);
         given(sikkerDigitalPostKlientFactory.createSikkerDigitalPostKlient(any(), any())).willReturn(sikkerDigitalPostKlient);
+        given(sikkerDigitalPostKlientFactory.getSikkerDigitalPostKlient(any(), any())).willReturn(sikkerDigitalPostKlient);
     }
 }
@@ -6,14 +6,17 @@ import cucumber.api.java.en.Then;
 import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
 import no.difi.meldingsutveksling.nextmove.servicebus.ServiceBusRestTemplate;
-import org.mockito.ArgumentCaptor;
+import org.apache.commons.io.IOUtils;
 import org.skyscreamer.jsonassert.JSONAssert;
 import org.skyscreamer.jsonassert.JSONCompareMode;
+import org.springframework.core.io.Resource;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.ResponseEntity;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.mockito.Mockito.*;
 
@@ -23,34 +26,40 @@ public class ServiceBusOutSteps {
     private final ServiceBusRestTemplate serviceBusRestTemplate;
     private final ServiceBusMessageParser serviceBusMessageParser;
     private final Holder<Message> messageSentHolder;
+    private final List<byte[]> sentBodies = new ArrayList<>();
 
     @Before
     public void before() {
-        doReturn(ResponseEntity.ok("OK"))
-                .when(serviceBusRestTemplate)
+        // The payload is streamed, so it has to be read while the request is sent
+        doAnswer(invocation -> {
+            HttpEntity<?> httpEntity = invocation.getArgument(2);
+            if (httpEntity.getBody() instanceof Resource) {
+                sentBodies.add(IOUtils.toByteArray(((Resource) httpEntity.getBody()).getInputStream()));
+            }
+            return ResponseEntity.ok("OK");
+        }).when(serviceBusRestTemplate)
                 .exchange(any(URI.class), any(), any(), eq(String.class));
     }
 
     @After
     public void after() {
         reset(serviceBusRestTemplate);
+        sentBodies.clear();
     }
 
     @Then("^a POST to the ServiceBus is initiated with:$")
     @SneakyThrows
     public void anUploadToTheServiceBusInitiatedWith(String body) {
-        ArgumentCaptor<HttpEntity<byte[]>> captor = ArgumentCaptor.forClass(new HttpEntity<byte[]>() {
-        }.getClass());
-        verify(serviceBusRestTemplate).exchange(any(URI.class), eq(HttpMethod.POST), captor.capture(), eq(String.class));
+        verify(serviceBusRestTemplate).exchange(any(URI.class), eq(HttpMethod.POST), any(HttpEntity.class), eq(String.class));
 
-        HttpEntity<byte[]> httpEntity = captor.getValue();
+        byte[] sentBody = sentBodies.get(0);
 
         JSONAssert.assertEquals(
                 removeAsicContent(body),
-                removeAsicContent(new String(httpEntity.getBody())),
+                removeAsicContent(new String(sentBody)),
                 JSONCompareMode.STRICT);
 
-        messageSentHolder.set(serviceBusMessageParser.parse(httpEntity.getBody()));
+        messageSentHolder.set(serviceBusMessageParser.parse(sentBody));
     }
 
     private String removeAsicContent(String json) {
@@ -0,0 +1,124 @@
+package no.difi.meldingsutveksling.nextmove;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
+import no.difi.meldingsutveksling.ks.svarinn.Forsendelse;
+import no.difi.meldingsutveksling.ks.svarinn.SvarInnService;
+import no.difi.meldingsutveksling.noarkexchange.SvarInnPutMessageForwarder;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.beans.factory.ObjectProvider;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DefaultDpfPollingTest {
+
+    @Mock private SvarInnService svarInnService;
+    @Mock private SvarInnPutMessageForwarder svarInnPutMessageForwarder;
+    @Mock private SvarInnNextMoveForwarder svarInnNextMoveForwarder;
+    @Mock private ObjectProvider<SvarInnPutMessageForwarder> svarInnPutMessageForwarderProvider;
+
+    private final AtomicInteger handedOff = new AtomicInteger();
+    private final Executor transportExecutor = command -> {
+        handedOff.incrementAndGet();
+        command.run();
+    };
+    private final List<Forsendelse> forsendelser = Arrays.asList(
+            new Forsendelse().setId("f1"), new Forsendelse().setId("f2"), new Forsendelse().setId("f3"));
+    private IntegrasjonspunktProperties properties;
+
+    @Before
+    public void before() {
+        properties = new IntegrasjonspunktProperties();
+        properties.getFiks().getInn().setConcurrency(2).setConfirmBatchSize(2);
+        given(svarInnService.getForsendelser()).willReturn(forsendelser);
+    }
+
+    @Test
+    public void testConfirmationsAreHandedOffInBatches() {
+        dpfPolling(transportExecutor).poll();
+
+        forsendelser.forEach(f -> verify(svarInnNextMoveForwarder).forward(f));
+        forsendelser.forEach(f -> verify(svarInnService).confirmMessage(f.getId()));
+        assertThat(handedOff).hasValue(2);
+    }
+
+    @Test
+    public void testConcurrentDownloadsConfirmInFullBatches() {
+        List<Forsendelse> many = IntStream.range(0, 30)
+                .mapToObj(i -> new Forsendelse().setId("f" + i))
+                .collect(Collectors.toList());
+        given(svarInnService.getForsendelser()).willReturn(many);
+        properties.getFiks().getInn().setConcurrency(8).setConfirmBatchSize(3);
+        ExecutorService pollingExecutor = Executors.newFixedThreadPool(8);
+        try {
+            dpfPolling(pollingExecutor, transportExecutor).poll();
+        } finally {
+            pollingExecutor.shutdownNow();
+        }
+
+        many.forEach(f -> verify(svarInnService).confirmMessage(f.getId()));
+        assertThat(handedOff).hasValue(10);
+    }
+
+    @Test
+    public void testFailedForsendelseIsNotConfirmed() {
+        willThrow(new NextMoveRuntimeException("Download failed")).given(svarInnNextMoveForwarder).forward(forsendelser.get(1));
+
+        dpfPolling(transportExecutor).poll();
+
+        verify(svarInnService).confirmMessage("f1");
+        verify(svarInnService, never()).confirmMessage("f2");
+        verify(svarInnService).confirmMessage("f3");
+    }
+
+    @Test
+    public void testConfirmationsAreSentByThePollerWhenTransportIsBusy() {
+        dpfPolling(command -> {
+            throw new RejectedExecutionException("Executor is busy");
+        }).poll();
+
+        forsendelser.forEach(f -> verify(svarInnService).confirmMessage(f.getId()));
+    }
+
+    @Test
+    public void testForsendelserAreForwardedToLocalNoarkWhenConfigured() {
+        properties.getNoarkSystem().setType("p360");
+        given(svarInnPutMessageForwarderProvider.getIfAvailable()).willReturn(svarInnPutMessageForwarder);
+
+        dpfPolling(transportExecutor).poll();
+
+        forsendelser.forEach(f -> verify(svarInnPutMessageForwarder).accept(f));
+        verify(svarInnNextMoveForwarder, never()).forward(any());
+        verify(svarInnService, never()).confirmMessage(anyString());
+    }
+
+    private DefaultDpfPolling dpfPolling(Executor transportExecutor) {
+        return dpfPolling(Runnable::run, transportExecutor);
+    }
+
+    private DefaultDpfPolling dpfPolling(Executor pollingExecutor, Executor transportExecutor) {
+        return new DefaultDpfPolling(properties, svarInnService, svarInnPutMessageForwarderProvider,
+                svarInnNextMoveForwarder, pollingExecutor, transportExecutor, new SimpleMeterRegistry());
+    }
+}
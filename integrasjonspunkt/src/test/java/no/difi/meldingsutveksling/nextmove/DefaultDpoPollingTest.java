@@ -0,0 +1,142 @@
+package no.difi.meldingsutveksling.nextmove;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.difi.meldingsutveksling.AltinnWsClient;
+import no.difi.meldingsutveksling.DownloadRequest;
+import no.difi.meldingsutveksling.FileReference;
+import no.difi.meldingsutveksling.config.AltinnFormidlingsTjenestenConfig;
+import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
+import no.difi.meldingsutveksling.noarkexchange.altinn.AltinnNextMoveMessageHandler;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentMatcher;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class DefaultDpoPollingTest {
+
+    private static final FileReference FILE_1 = new FileReference("f1", 1);
+    private static final FileReference FILE_2 = new FileReference("f2", 2);
+
+    @Mock private AltinnNextMoveMessageHandler altinnNextMoveMessageHandler;
+    @Mock private AltinnWsClient altinnWsClient;
+
+    private final List<Runnable> deferred = new ArrayList<>();
+    private IntegrasjonspunktProperties properties;
+
+    @Before
+    public void before() throws Exception {
+        properties = new IntegrasjonspunktProperties()
+                .setDpo(new AltinnFormidlingsTjenestenConfig().setDownloadConcurrency(2))
+                .setOrg(new IntegrasjonspunktProperties.Organization().setNumber("910077473"));
+        given(altinnWsClient.checkIfAvailableFiles()).willReturn(true);
+    }
+
+    @Test
+    public void testAvailableFilesAreDownloadedAndConfirmed() {
+        given(altinnWsClient.availableFiles()).willReturn(Arrays.asList(FILE_1, FILE_2), Collections.emptyList());
+
+        dpoPolling(Runnable::run).poll();
+
+        verify(altinnWsClient).download(argThat(request("f1")), any());
+        verify(altinnWsClient).download(argThat(request("f2")), any());
+        verify(altinnWsClient).confirmDownload(argThat(request("f1")));
+        verify(altinnWsClient).confirmDownload(argThat(request("f2")));
+    }
+
+    @Test
+    public void testFileIsNotDownloadedAgainUntilItIsConfirmed() {
+        given(altinnWsClient.availableFiles()).willReturn(Collections.singletonList(FILE_1));
+        DefaultDpoPolling dpoPolling = dpoPolling(deferred::add);
+
+        dpoPolling.poll();
+        dpoPolling.poll();
+        verify(altinnWsClient, times(1)).download(argThat(request("f1")), any());
+        verify(altinnWsClient, never()).confirmDownload(any());
+
+        deferred.forEach(Runnable::run);
+        verify(altinnWsClient).confirmDownload(argThat(request("f1")));
+
+        // Still listed by Altinn after the confirmation, so it is downloaded again
+        dpoPolling.poll();
+        verify(altinnWsClient, times(2)).download(argThat(request("f1")), any());
+    }
+
+    @Test
+    public void testFailedDownloadIsRetriedOnTheNextPoll() {
+        given(altinnWsClient.availableFiles()).willReturn(Collections.singletonList(FILE_1));
+        willThrow(new IllegalStateException("Connection reset")).given(altinnWsClient).download(any(), any());
+        DefaultDpoPolling dpoPolling = dpoPolling(Runnable::run);
+
+        dpoPolling.poll();
+        verify(altinnWsClient, times(1)).download(argThat(request("f1")), any());
+
+        dpoPolling.poll();
+        verify(altinnWsClient, times(2)).download(argThat(request("f1")), any());
+        verify(altinnWsClient, never()).confirmDownload(any());
+    }
+
+    @Test
+    public void testDownloadIsConfirmedByThePollerWhenTransportIsBusy() {
+        given(altinnWsClient.availableFiles()).willReturn(Collections.singletonList(FILE_1), Collections.emptyList());
+
+        dpoPolling(command -> {
+            throw new RejectedExecutionException("Executor is busy");
+        }).poll();
+
+        verify(altinnWsClient).confirmDownload(argThat(request("f1")));
+    }
+
+    @Test
+    public void testNothingIsListedWhenNoFilesAreAvailable() throws Exception {
+        given(altinnWsClient.checkIfAvailableFiles()).willReturn(false);
+
+        dpoPolling(Runnable::run).poll();
+
+        verify(altinnWsClient, never()).availableFiles();
+    }
+
+    @Test
+    public void testPollingRateIsConfigurable() throws Exception {
+        Scheduled scheduled = MessagePollingScheduler.class.getMethod("checkForNewAltinnMessages")
+                .getAnnotation(Scheduled.class);
+        assertThat(scheduled.fixedDelayString()).isEqualTo("${difi.move.dpo.pollingrate}");
+
+        Properties defaults = new Properties();
+        try (InputStream in = getClass().getResourceAsStream("/config/application.properties")) {
+            defaults.load(in);
+        }
+        assertThat(defaults.getProperty("difi.move.dpo.pollingrate"))
+                .isEqualTo(String.valueOf(new AltinnFormidlingsTjenestenConfig().getPollingrate()));
+    }
+
+    private DefaultDpoPolling dpoPolling(Executor transportExecutor) {
+        return new DefaultDpoPolling(properties, altinnNextMoveMessageHandler, altinnWsClient, Runnable::run,
+                transportExecutor, new SimpleMeterRegistry());
+    }
+
+    private static ArgumentMatcher<DownloadRequest> request(String fileReference) {
+        return request -> request != null && fileReference.equals(request.getFileReference());
+    }
+}
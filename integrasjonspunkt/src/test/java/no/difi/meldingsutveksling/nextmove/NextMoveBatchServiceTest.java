@@ -0,0 +1,147 @@
+package no.difi.meldingsutveksling.nextmove;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import no.difi.meldingsutveksling.ServiceIdentifier;
+import no.difi.meldingsutveksling.UUIDGenerator;
+import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
+import no.difi.meldingsutveksling.domain.sbdh.StandardBusinessDocument;
+import no.difi.meldingsutveksling.exceptions.MessageNotFoundException;
+import no.difi.meldingsutveksling.nextmove.v2.BatchFiles;
+import no.difi.meldingsutveksling.nextmove.v2.NextMoveBatchService;
+import no.difi.meldingsutveksling.nextmove.v2.NextMoveBatchStatus;
+import no.difi.meldingsutveksling.nextmove.v2.NextMoveMessageService;
+import no.difi.meldingsutveksling.nextmove.v2.ServiceRecordProvider;
+import no.difi.meldingsutveksling.status.ConversationRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static no.difi.meldingsutveksling.nextmove.StandardBusinessDocumentTestData.ARKIVMELDING_MESSAGE_DATA;
+import static no.difi.meldingsutveksling.nextmove.StandardBusinessDocumentTestData.getInputSbd;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willThrow;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class NextMoveBatchServiceTest {
+
+    private static final String BATCH_ID = "e3b4b6a0-4d6c-4a5e-9a52-0e3d2f1f4c2a";
+    private static final List<String> RECEIVERS = Arrays.asList("0192:910075918", "0192:910077473", "0192:987464291");
+
+    @Mock private NextMoveMessageService messageService;
+    @Mock private ServiceRecordProvider serviceRecordProvider;
+    @Mock private ConversationRepository conversationRepository;
+    @Mock private ObjectMapper objectMapper;
+    @Mock private UUIDGenerator uuidGenerator;
+    @Mock private IntegrasjonspunktProperties props;
+
+    private final List<MockMultipartFile> files = Collections.singletonList(
+            new MockMultipartFile("Before The Law", "before_the_law.txt", "text/plain", "Before the law".getBytes()));
+
+    private final BatchFiles batchFiles = new BatchFiles(Collections.singletonMap("before_the_law.txt", "shared"), null);
+
+    private NextMoveBatchService batchService;
+
+    @Before
+    public void before() throws Exception {
+        given(props.getNextmove()).willReturn(new IntegrasjonspunktProperties.NextMove().setBatchSize(2));
+        given(uuidGenerator.generate()).willReturn(BATCH_ID);
+        given(objectMapper.readTree(anyString())).willReturn(JsonNodeFactory.instance.objectNode());
+        given(objectMapper.treeToValue(any(JsonNode.class), eq(StandardBusinessDocument.class)))
+                .willAnswer(invocation -> getInputSbd(ARKIVMELDING_MESSAGE_DATA));
+        given(messageService.prepareBatch(anyList(), anyList())).willAnswer(invocation -> {
+            List<StandardBusinessDocument> sbds = invocation.getArgument(0);
+            return sbds.stream()
+                    .map(sbd -> NextMoveOutMessage.of(sbd, ServiceIdentifier.DPO))
+                    .collect(Collectors.toList());
+        });
+        given(messageService.storeBatchFiles(eq(BATCH_ID), anyList())).willReturn(batchFiles);
+        given(conversationRepository.countByBatchId(BATCH_ID)).willReturn((long) RECEIVERS.size());
+
+        batchService = new NextMoveBatchService(messageService, serviceRecordProvider, conversationRepository,
+                objectMapper, uuidGenerator, props);
+    }
+
+    @Test
+    public void testMessagesAreCreatedAndSentPerChunk() {
+        NextMoveBatchStatus status = batchService.createAndSend("{}", RECEIVERS, files);
+
+        assertThat(status.getBatchId()).isEqualTo(BATCH_ID);
+        assertThat(status.getMessages()).isEqualTo(RECEIVERS.size());
+
+        // Each chunk is prepared when the batch is validated, and again when it is stored
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<StandardBusinessDocument>> sbds = ArgumentCaptor.forClass(List.class);
+        verify(messageService, times(4)).prepareBatch(sbds.capture(), eq(files));
+        List<List<StandardBusinessDocument>> stored = sbds.getAllValues().subList(2, 4);
+        assertThat(stored.stream()
+                .flatMap(List::stream)
+                .map(sbd -> sbd.getStandardBusinessDocumentHeader().getReceiver().get(0).getIdentifier().getValue()))
+                .containsExactlyElementsOf(RECEIVERS);
+        assertThat(stored.stream()
+                .flatMap(List::stream)
+                .map(sbd -> sbd.getStandardBusinessDocumentHeader().getDocumentIdentification().getInstanceIdentifier()))
+                .containsOnlyNulls();
+
+        verify(messageService, times(2)).createBatch(eq(BATCH_ID), anyList(), eq(batchFiles));
+        verify(messageService, times(RECEIVERS.size())).sendMessage(any(NextMoveOutMessage.class));
+    }
+
+    @Test
+    public void testTemplateIsParsedOnceAndFilesAreStoredOnce() throws Exception {
+        batchService.createAndSend("{}", RECEIVERS, files);
+
+        verify(objectMapper).readTree("{}");
+        verify(objectMapper, times(2 * RECEIVERS.size())).treeToValue(any(JsonNode.class), eq(StandardBusinessDocument.class));
+        verify(messageService).storeBatchFiles(BATCH_ID, files);
+        verify(messageService).deleteBatchFiles(BATCH_ID);
+    }
+
+    @Test
+    public void testBatchFilesAreDeletedWhenAChunkCanNotBeStored() {
+        willThrow(new NextMoveRuntimeException("Database unavailable"))
+                .given(messageService).createBatch(eq(BATCH_ID), anyList(), eq(batchFiles));
+
+        assertThatThrownBy(() -> batchService.createAndSend("{}", RECEIVERS, files))
+                .isInstanceOf(NextMoveRuntimeException.class);
+
+        verify(messageService).deleteBatchFiles(BATCH_ID);
+        verify(messageService, never()).sendMessage(any(NextMoveOutMessage.class));
+    }
+
+    @Test
+    public void testNothingIsSentWhenALaterChunkIsInvalid() {
+        given(messageService.prepareBatch(anyList(), anyList()))
+                .willAnswer(invocation -> Collections.emptyList())
+                .willThrow(new NextMoveRuntimeException("Invalid receiver"));
+
+        assertThatThrownBy(() -> batchService.createAndSend("{}", RECEIVERS, files))
+                .isInstanceOf(NextMoveRuntimeException.class);
+
+        verify(messageService, never()).storeBatchFiles(anyString(), anyList());
+        verify(messageService, never()).createBatch(anyString(), anyList(), any(BatchFiles.class));
+        verify(messageService, never()).sendMessage(any(NextMoveOutMessage.class));
+    }
+
+    @Test
+    public void testUnknownBatchIsNotFound() {
+        given(conversationRepository.countByBatchId("unknown")).willReturn(0L);
+
+        assertThatThrownBy(() -> batchService.getStatus("unknown"))
+                .isInstanceOf(MessageNotFoundException.class);
+    }
+}
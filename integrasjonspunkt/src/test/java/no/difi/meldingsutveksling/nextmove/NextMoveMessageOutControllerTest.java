@@ -8,6 +8,8 @@ import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
 import no.difi.meldingsutveksling.config.JacksonConfig;
 import no.difi.meldingsutveksling.config.ValidationConfig;
 import no.difi.meldingsutveksling.domain.sbdh.StandardBusinessDocument;
+import no.difi.meldingsutveksling.nextmove.v2.NextMoveBatchService;
+import no.difi.meldingsutveksling.nextmove.v2.NextMoveBatchStatus;
 import no.difi.meldingsutveksling.nextmove.v2.NextMoveMessageOutController;
 import no.difi.meldingsutveksling.nextmove.v2.NextMoveMessageService;
 import no.difi.meldingsutveksling.nextmove.v2.NextMoveUploadedFile;
@@ -67,6 +69,7 @@ public class NextMoveMessageOutControllerTest {
     @Autowired private ObjectMapper objectMapper;
 
     @MockBean private NextMoveMessageService messageService;
+    @MockBean private NextMoveBatchService batchService;
     @MockBean private IntegrasjonspunktProperties integrasjonspunktProperties;
 
     @Mock private NextMoveOutMessage messageMock;
@@ -117,6 +120,48 @@ public class NextMoveMessageOutControllerTest {
         verify(messageService).createMessage(any(StandardBusinessDocument.class), anyList());
     }
 
+    @Test
+    public void batch() throws Exception {
+        given(batchService.createAndSend(anyString(), anyList(), anyList()))
+                .willReturn(new NextMoveBatchStatus("e3b4b6a0-4d6c-4a5e-9a52-0e3d2f1f4c2a", 2, 0, 0));
+
+        mvc.perform(
+                MockMvcRequestBuilders.multipart("/api/messages/out/batch")
+                        .file(new MockMultipartFile("sbd", null, MediaType.APPLICATION_JSON_VALUE, objectMapper.writeValueAsBytes(ARKIVMELDING_INPUT)))
+                        .file(new MockMultipartFile("Before The Law", "before_the_law.txt", MediaType.TEXT_PLAIN_VALUE, "Before the law sits a gatekeeper.".getBytes(StandardCharsets.UTF_8)))
+                        .param("receivers", "0192:910075918", "0192:910077473")
+                        .accept(MediaType.APPLICATION_JSON)
+        )
+                .andDo(MockMvcResultHandlers.print())
+                .andExpect(status().isOk())
+                .andDo(document("messages/out/batch",
+                        preprocessRequest(prettyPrint()),
+                        preprocessResponse(prettyPrint()),
+                        requestHeaders(
+                                getDefaultHeaderDescriptors()
+                        ),
+                        requestParts(
+                                partWithName("sbd")
+                                        .description("The Standard Business Document used as a template for each receiver."),
+                                partWithName("Before The Law")
+                                        .optional()
+                                        .description("There can be zero or more attachments. They are sent to every receiver.")
+                        ),
+                        responseFields(
+                                fieldWithPath("batchId").description("Identifies the batch in the status API."),
+                                fieldWithPath("messages").description("Number of messages in the batch."),
+                                fieldWithPath("finished").description("Number of messages with a final status."),
+                                fieldWithPath("failed").description("Number of messages that have failed.")
+                        )
+                        )
+                );
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<String>> receivers = ArgumentCaptor.forClass(List.class);
+        verify(batchService).createAndSend(anyString(), receivers.capture(), anyList());
+        assertThat(receivers.getValue()).containsExactly("0192:910075918", "0192:910077473");
+    }
+
     @Test
     public void createArkivmeldingMessage() throws Exception {
         given(messageService.createMessage(any(StandardBusinessDocument.class))).willReturn(messageMock);
@@ -0,0 +1,111 @@
+package no.difi.meldingsutveksling.nextmove.message;
+
+import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ChannelMessagePersisterTest {
+
+    private static final String MESSAGE_ID = "e4b4c3f8-3a5b-4b4e-9a3b-7d1f0f1c2a3b";
+    private static final byte[] CONTENT = "Hello, world".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ChannelMessagePersister persister;
+
+    @Before
+    public void before() {
+        IntegrasjonspunktProperties props = new IntegrasjonspunktProperties();
+        IntegrasjonspunktProperties.NextMove nextMove = new IntegrasjonspunktProperties.NextMove();
+        nextMove.setFiledir(folder.getRoot().getAbsolutePath());
+        props.setNextmove(nextMove);
+        persister = new ChannelMessagePersister(props);
+    }
+
+    @Test
+    public void testMessageDirIsShardedByMessageIdPrefix() {
+        assertThat(persister.getMessageDir(MESSAGE_ID))
+                .isEqualTo(folder.getRoot().toPath().resolve("e4").resolve("b4").resolve(MESSAGE_ID));
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        persister.write(MESSAGE_ID, "asic.zip", CONTENT);
+
+        assertThat(persister.read(MESSAGE_ID, "asic.zip")).isEqualTo(CONTENT);
+    }
+
+    @Test
+    public void testWriteStreamWithUnknownSize() throws IOException {
+        persister.writeStream(MESSAGE_ID, "asic.zip", new ByteArrayInputStream(CONTENT), -1L);
+
+        try (FileEntryStream entry = persister.readStream(MESSAGE_ID, "asic.zip")) {
+            assertThat(entry.getSize()).isEqualTo(CONTENT.length);
+            assertThat(IOUtils.toByteArray(entry.getInputStream())).isEqualTo(CONTENT);
+        }
+    }
+
+    @Test
+    public void testWriteStreamTruncatesOverestimatedSize() throws IOException {
+        persister.writeStream(MESSAGE_ID, "asic.zip", new ByteArrayInputStream(CONTENT), CONTENT.length * 2L);
+
+        assertThat(persister.read(MESSAGE_ID, "asic.zip")).isEqualTo(CONTENT);
+    }
+
+    @Test
+    public void testCopiedFileIsKeptWhenTheSourceIsDeleted() throws IOException {
+        String batchId = "0a1b2c3d-4e5f-4a6b-8c7d-9e0f1a2b3c4d";
+        persister.write(batchId, "shared", CONTENT);
+
+        persister.copy(batchId, "shared", MESSAGE_ID, "asic.zip");
+        persister.delete(batchId);
+
+        assertThat(persister.read(MESSAGE_ID, "asic.zip")).isEqualTo(CONTENT);
+    }
+
+    @Test(expected = NoSuchFileException.class)
+    public void testCopyOfMissingFileFails() throws IOException {
+        persister.copy("0a1b2c3d-4e5f-4a6b-8c7d-9e0f1a2b3c4d", "shared", MESSAGE_ID, "asic.zip");
+    }
+
+    @Test
+    public void testReadLegacyUnshardedMessage() throws IOException {
+        Path legacyDir = Files.createDirectories(folder.getRoot().toPath().resolve(MESSAGE_ID));
+        Files.write(legacyDir.resolve("asic.zip"), CONTENT);
+
+        assertThat(persister.read(MESSAGE_ID, "asic.zip")).isEqualTo(CONTENT);
+    }
+
+    @Test
+    public void testDeleteRemovesMessageAndEmptyShards() throws IOException {
+        persister.write(MESSAGE_ID, "asic.zip", CONTENT);
+
+        persister.delete(MESSAGE_ID);
+
+        assertThat(folder.getRoot().toPath().resolve("e4")).doesNotExist();
+        assertThat(folder.getRoot()).exists();
+    }
+
+    @Test
+    public void testWriteAfterShardsAreDeleted() throws IOException {
+        persister.write(MESSAGE_ID, "asic.zip", CONTENT);
+        persister.delete(MESSAGE_ID);
+
+        persister.writeStream(MESSAGE_ID, "asic.zip", new ByteArrayInputStream(CONTENT), -1);
+
+        assertThat(persister.read(MESSAGE_ID, "asic.zip")).isEqualTo(CONTENT);
+    }
+}
@@ -0,0 +1,244 @@
+package no.difi.meldingsutveksling.nextmove.servicebus;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.MessageBody;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.difi.meldingsutveksling.api.NextMoveQueue;
+import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
+import no.difi.meldingsutveksling.domain.sbdh.SBDUtil;
+import no.difi.meldingsutveksling.domain.sbdh.StandardBusinessDocument;
+import no.difi.meldingsutveksling.pipes.Plumber;
+import no.difi.meldingsutveksling.pipes.PromiseMaker;
+import no.difi.meldingsutveksling.pipes.Reject;
+import no.difi.meldingsutveksling.serviceregistry.ServiceRegistryLookup;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.StreamUtils;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class NextMoveServiceBusTest {
+
+    @Mock private NextMoveQueue nextMoveQueue;
+    @Mock private ServiceBusRestClient serviceBusClient;
+    @Mock private ServiceBusPayloadConverter payloadConverter;
+    @Mock private ServiceRegistryLookup serviceRegistryLookup;
+    @Mock private SBDUtil sbdUtil;
+    @Mock private NextMoveServiceBusPayloadFactory payloadFactory;
+    @Mock private TaskScheduler taskScheduler;
+    @Mock private ScheduledFuture<?> lockRenewal;
+    @Mock private TransactionTemplate transactionTemplate;
+    @Mock private IMessageReceiver messageReceiver;
+
+    private final Queue<Collection<IMessage>> batches = new ConcurrentLinkedQueue<>();
+    private final AtomicReference<Runnable> renewal = new AtomicReference<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private IntegrasjonspunktProperties.ServiceBus serviceBusProps;
+    private NextMoveServiceBus serviceBus;
+
+    @Before
+    public void before() throws Exception {
+        serviceBusProps = new IntegrasjonspunktProperties.ServiceBus()
+                .setReceiveBatchSize(2)
+                .setHandlerConcurrency(2)
+                .setLockRenewInterval(Duration.ofSeconds(20));
+        IntegrasjonspunktProperties props = new IntegrasjonspunktProperties()
+                .setNextmove(new IntegrasjonspunktProperties.NextMove().setServiceBus(serviceBusProps));
+        given(transactionTemplate.execute(any())).willAnswer(invocation ->
+                invocation.<TransactionCallback<?>>getArgument(0).doInTransaction(null));
+        willAnswer(invocation -> {
+            renewal.set(invocation.getArgument(0));
+            return lockRenewal;
+        }).given(taskScheduler).scheduleAtFixedRate(any(Runnable.class), any(Instant.class), any(Duration.class));
+        given(messageReceiver.receiveBatch(anyInt(), any(Duration.class))).willAnswer(invocation -> {
+            Collection<IMessage> batch = batches.poll();
+            if (batch == null) {
+                serviceBus.shutdown();
+            }
+            return batch;
+        });
+        given(messageReceiver.completeAsync(any(UUID.class))).willReturn(CompletableFuture.completedFuture(null));
+        given(messageReceiver.abandonAsync(any(UUID.class))).willReturn(CompletableFuture.completedFuture(null));
+        given(messageReceiver.renewMessageLockAsync(any(IMessage.class))).willReturn(CompletableFuture.completedFuture(Instant.now()));
+
+        serviceBus = new NextMoveServiceBus(props, nextMoveQueue, serviceBusClient, payloadConverter, serviceRegistryLookup,
+                sbdUtil, executor, payloadFactory, taskScheduler, new SimpleMeterRegistry(),
+                mock(Plumber.class), new PromiseMaker(Runnable::run, transactionTemplate));
+        ReflectionTestUtils.setField(serviceBus, "messageReceiver", messageReceiver);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testHandledMessagesAreCompletedTogetherAndFailedMessagesAbandoned() throws Exception {
+        IMessage first = message("first");
+        IMessage failing = message("fail");
+        IMessage last = message("last");
+        givenPayloads(Collections.emptyMap());
+        batches.add(Arrays.asList(first, failing));
+        batches.add(Collections.singletonList(last));
+
+        serviceBus.getAllMessagesBatch().get(5, TimeUnit.SECONDS);
+
+        verify(messageReceiver).completeAsync(first.getLockToken());
+        verify(messageReceiver).completeAsync(last.getLockToken());
+        verify(messageReceiver).abandonAsync(failing.getLockToken());
+        verify(messageReceiver, never()).completeAsync(failing.getLockToken());
+        verify(lockRenewal).cancel(false);
+    }
+
+    @Test
+    public void testMessagesOfABatchAreCompletedOnceAllAreHandled() throws Exception {
+        CountDownLatch slow = new CountDownLatch(1);
+        IMessage fast = message("fast");
+        IMessage slowMessage = message("slow");
+        givenPayloads(Collections.singletonMap("slow", slow));
+        batches.add(Arrays.asList(fast, slowMessage));
+
+        CompletableFuture<Void> receiving = serviceBus.getAllMessagesBatch();
+        verify(nextMoveQueue, timeout(5000)).enqueueIncomingMessage(any(), any(), any());
+
+        // The handled message waits for the rest of its batch, and its lock is renewed meanwhile
+        renewal.get().run();
+        verify(messageReceiver, never()).completeAsync(any(UUID.class));
+        verify(messageReceiver).renewMessageLockAsync(fast);
+        verify(messageReceiver).renewMessageLockAsync(slowMessage);
+
+        slow.countDown();
+        receiving.get(5, TimeUnit.SECONDS);
+
+        InOrder inOrder = inOrder(nextMoveQueue, messageReceiver);
+        inOrder.verify(nextMoveQueue, times(2)).enqueueIncomingMessage(any(), any(), any());
+        inOrder.verify(messageReceiver).completeAsync(fast.getLockToken());
+    }
+
+    @Test
+    public void testLocksAreRenewedUntilCompletionIsAcknowledged() throws Exception {
+        IMessage m = message("m");
+        givenPayloads(Collections.emptyMap());
+        CompletableFuture<Void> completion = new CompletableFuture<>();
+        given(messageReceiver.completeAsync(m.getLockToken())).willReturn(completion);
+        batches.add(Collections.singletonList(m));
+
+        CompletableFuture<Void> receiving = serviceBus.getAllMessagesBatch();
+        verify(messageReceiver, timeout(5000)).completeAsync(m.getLockToken());
+
+        renewal.get().run();
+        verify(messageReceiver).renewMessageLockAsync(m);
+        verify(lockRenewal, after(200).never()).cancel(false);
+
+        completion.complete(null);
+        receiving.get(5, TimeUnit.SECONDS);
+
+        renewal.get().run();
+        verify(messageReceiver, times(1)).renewMessageLockAsync(m);
+        verify(lockRenewal).cancel(false);
+    }
+
+    @Test
+    public void testNextBatchIsReceivedWhileTheBatchIsHandled() throws Exception {
+        CountDownLatch slow = new CountDownLatch(1);
+        IMessage slowMessage = message("slow");
+        IMessage next = message("next");
+        givenPayloads(Collections.singletonMap("slow", slow));
+        batches.add(Collections.singletonList(slowMessage));
+        batches.add(Collections.singletonList(next));
+
+        CompletableFuture<Void> receiving = serviceBus.getAllMessagesBatch();
+
+        verify(messageReceiver, timeout(5000)).completeAsync(next.getLockToken());
+        verify(messageReceiver, never()).completeAsync(slowMessage.getLockToken());
+
+        slow.countDown();
+        receiving.get(5, TimeUnit.SECONDS);
+        verify(messageReceiver).completeAsync(slowMessage.getLockToken());
+    }
+
+    @Test
+    public void testReceivingWaitsWhileTwoBatchesAreInFlight() throws Exception {
+        serviceBusProps.setReceiveBatchSize(1);
+        CountDownLatch slow = new CountDownLatch(1);
+        givenPayloads(Collections.singletonMap("slow", slow));
+        batches.add(Collections.singletonList(message("slow")));
+        batches.add(Collections.singletonList(message("slow")));
+        batches.add(Collections.singletonList(message("third")));
+
+        CompletableFuture<Void> receiving = serviceBus.getAllMessagesBatch();
+
+        verify(messageReceiver, after(500).times(2)).receiveBatch(anyInt(), any(Duration.class));
+
+        slow.countDown();
+        receiving.get(5, TimeUnit.SECONDS);
+        verify(messageReceiver, times(4)).receiveBatch(anyInt(), any(Duration.class));
+        verify(messageReceiver, times(3)).completeAsync(any(UUID.class));
+    }
+
+    private void givenPayloads(Map<String, CountDownLatch> latches) throws Exception {
+        willAnswer(invocation -> {
+            String body = new String(StreamUtils.copyToByteArray(invocation.<InputStream>getArgument(0)), StandardCharsets.UTF_8);
+            if (body.startsWith("fail")) {
+                throw new IllegalStateException("Invalid payload");
+            }
+            CountDownLatch latch = latches.get(body);
+            if (latch != null) {
+                assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+            }
+            invocation.<BiConsumer<StandardBusinessDocument, InputStream>>getArgument(2).accept(new StandardBusinessDocument(), null);
+            return null;
+        }).given(payloadConverter).convert(any(InputStream.class), any(Reject.class), any());
+    }
+
+    private IMessage message(String body) {
+        IMessage message = mock(IMessage.class);
+        given(message.getLockToken()).willReturn(UUID.randomUUID());
+        given(message.getMessageId()).willReturn(body);
+        given(message.getMessageBody()).willReturn(MessageBody.fromBinaryData(
+                Collections.singletonList(body.getBytes(StandardCharsets.UTF_8))));
+        return message;
+    }
+}
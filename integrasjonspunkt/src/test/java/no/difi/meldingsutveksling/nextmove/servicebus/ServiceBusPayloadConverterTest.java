@@ -0,0 +1,110 @@
+package no.difi.meldingsutveksling.nextmove.servicebus;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.difi.meldingsutveksling.clock.FixedClockConfig;
+import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
+import no.difi.meldingsutveksling.config.JacksonConfig;
+import no.difi.meldingsutveksling.domain.sbdh.StandardBusinessDocument;
+import no.difi.meldingsutveksling.pipes.Plumber;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.json.JsonTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(SpringRunner.class)
+@JsonTest
+@TestPropertySource("classpath:/config/application-test.properties")
+@ActiveProfiles("test")
+@Import({JacksonConfig.class, FixedClockConfig.class})
+public class ServiceBusPayloadConverterTest {
+
+    private static final String MESSAGE_ID = "ff88849c-e281-4809-8555-7cd54952b916";
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final CompletableFuture<Throwable> rejected = new CompletableFuture<>();
+    private final byte[] asic = new byte[256 * 1024 + 17];
+    private String sbdJson;
+    private ServiceBusPayloadConverter converter;
+
+    @Before
+    public void before() throws IOException {
+        new Random(42).nextBytes(asic);
+        sbdJson = IOUtils.toString(getClass().getResourceAsStream("/sbd/StandardBusinessDocument.json"), StandardCharsets.UTF_8);
+        converter = new ServiceBusPayloadConverter(objectMapper,
+                new Plumber(executor::execute, new IntegrasjonspunktProperties()));
+    }
+
+    @After
+    public void after() {
+        executor.shutdownNow();
+    }
+
+    @Test(timeout = 10000)
+    public void testAsicIsStreamedWhenSbdComesFirst() throws IOException {
+        String payload = objectMapper.writeValueAsString(ServiceBusPayload.of(
+                objectMapper.readValue(sbdJson, StandardBusinessDocument.class), Base64.getEncoder().encode(asic)));
+        assertThat(payload.indexOf("\"sbd\"")).isLessThan(payload.indexOf("\"asic\""));
+
+        assertConverted(payload);
+    }
+
+    @Test(timeout = 10000)
+    public void testAsicIsBufferedWhenAsicComesFirst() throws IOException {
+        String payload = String.format("{\"asic\":\"%s\",\"sbd\":%s}",
+                Base64.getEncoder().encodeToString(Base64.getEncoder().encode(asic)), sbdJson);
+
+        assertConverted(payload);
+    }
+
+    @Test(timeout = 10000)
+    public void testPayloadWithoutAsic() throws IOException {
+        String payload = String.format("{\"sbd\":%s,\"asic\":null}", sbdJson);
+
+        converter.convert(toStream(payload), rejected::complete, (sbd, asicStream) -> {
+            assertThat(sbd.getMessageId()).isEqualTo(MESSAGE_ID);
+            assertThat(asicStream).isNull();
+        });
+        assertThat(rejected).isNotDone();
+    }
+
+    private void assertConverted(String payload) throws IOException {
+        CompletableFuture<StandardBusinessDocument> handled = new CompletableFuture<>();
+        converter.convert(toStream(payload), rejected::complete, (sbd, asicStream) -> {
+            try {
+                assertThat(IOUtils.toByteArray(asicStream)).isEqualTo(asic);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            handled.complete(sbd);
+        });
+
+        assertThat(handled.join().getMessageId()).isEqualTo(MESSAGE_ID);
+        assertThat(rejected).isNotDone();
+    }
+
+    private InputStream toStream(String payload) {
+        return new ByteArrayInputStream(payload.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,81 @@
+package no.difi.meldingsutveksling.nextmove.v2;
+
+import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
+import no.difi.meldingsutveksling.status.ConversationExpiryScheduler;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TimeToLiveTasksTest {
+
+    private static final Duration RETRY_DELAY = Duration.ofMinutes(1);
+
+    @Mock private ConversationExpiryScheduler expiryScheduler;
+    @Mock private TimeToLiveExpiredHandler timeToLiveExpiredHandler;
+
+    private TimeToLiveTasks timeToLiveTasks;
+
+    @Before
+    public void before() {
+        IntegrasjonspunktProperties props = new IntegrasjonspunktProperties()
+                .setNextmove(new IntegrasjonspunktProperties.NextMove()
+                        .setTtlBatchSize(2)
+                        .setTtlRetryDelay(RETRY_DELAY));
+        timeToLiveTasks = new TimeToLiveTasks(expiryScheduler, timeToLiveExpiredHandler, props);
+    }
+
+    @Test
+    public void testExpiredConversationsArePolledUntilABatchIsNotFull() {
+        List<Long> first = Arrays.asList(1L, 2L);
+        List<Long> second = Collections.singletonList(3L);
+        given(expiryScheduler.pollExpired(2)).willReturn(first, second);
+
+        timeToLiveTasks.checkExpiredMessages();
+
+        verify(timeToLiveExpiredHandler).setExpired(first);
+        verify(timeToLiveExpiredHandler).setExpired(second);
+        verify(expiryScheduler, times(2)).pollExpired(2);
+        verify(expiryScheduler, never()).retry(anyList(), any());
+    }
+
+    @Test
+    public void testConversationsAreExpiredOneByOneWhenTheBatchFails() {
+        List<Long> ids = Collections.singletonList(1L);
+        given(expiryScheduler.pollExpired(2)).willReturn(ids);
+        willThrow(new IllegalStateException("Deadlock")).given(timeToLiveExpiredHandler).setExpired(ids);
+
+        timeToLiveTasks.checkExpiredMessages();
+
+        verify(timeToLiveExpiredHandler).setExpired(1L);
+        verify(expiryScheduler, never()).retry(anyList(), any());
+    }
+
+    @Test
+    public void testFailedConversationsAreRetried() {
+        List<Long> ids = Arrays.asList(1L, 2L);
+        given(expiryScheduler.pollExpired(2)).willReturn(ids, Collections.emptyList());
+        willThrow(new IllegalStateException("Deadlock")).given(timeToLiveExpiredHandler).setExpired(ids);
+        willThrow(new IllegalStateException("Deadlock")).given(timeToLiveExpiredHandler).setExpired(2L);
+
+        timeToLiveTasks.checkExpiredMessages();
+
+        verify(timeToLiveExpiredHandler).setExpired(1L);
+        verify(expiryScheduler).retry(Collections.singletonList(2L), RETRY_DELAY);
+    }
+}
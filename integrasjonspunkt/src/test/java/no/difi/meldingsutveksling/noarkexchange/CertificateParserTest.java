@@ -3,15 +3,23 @@ package no.difi.meldingsutveksling.noarkexchange;
 import no.difi.meldingsutveksling.CertificateParser;
 import no.difi.meldingsutveksling.CertificateParserException;
 import org.hamcrest.MatcherAssert;
+import org.junit.After;
 import org.junit.Test;
 
 import java.security.cert.Certificate;
 
 import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNot.not;
+import static org.hamcrest.core.IsSame.sameInstance;
 import static org.junit.Assert.fail;
 
 public class CertificateParserTest {
 
+    @After
+    public void tearDown() {
+        CertificateParser.clearCache();
+    }
+
     @Test
     public void parseCertificate() {
         try {
@@ -22,4 +30,21 @@ public class CertificateParserTest {
             fail("Failed to parse certificate");
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void parseCachedReturnsTheSameCertificateForTheSamePem() throws CertificateParserException {
+        final Certificate first = CertificateParser.parseCached(TestConstants.certificate);
+        final Certificate second = CertificateParser.parseCached(TestConstants.certificate);
+        MatcherAssert.assertThat(second, is(sameInstance(first)));
+        MatcherAssert.assertThat(first, is(CertificateParser.parse(TestConstants.certificate)));
+    }
+
+    @Test
+    public void parseCachedParsesAgainAfterTheCacheIsCleared() throws CertificateParserException {
+        final Certificate first = CertificateParser.parseCached(TestConstants.certificate);
+        CertificateParser.clearCache();
+        final Certificate second = CertificateParser.parseCached(TestConstants.certificate);
+        MatcherAssert.assertThat(second, is(not(sameInstance(first))));
+        MatcherAssert.assertThat(second, is(first));
+    }
+}
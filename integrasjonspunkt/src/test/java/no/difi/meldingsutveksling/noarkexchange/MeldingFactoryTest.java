@@ -0,0 +1,124 @@
+package no.difi.meldingsutveksling.noarkexchange;
+
+import no.difi.meldingsutveksling.arkivmelding.ArkivmeldingUtil;
+import no.difi.meldingsutveksling.domain.MeldingsUtvekslingRuntimeException;
+import no.difi.meldingsutveksling.noarkexchange.schema.core.DokumentType;
+import no.difi.meldingsutveksling.noarkexchange.schema.core.MeldingType;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class MeldingFactoryTest {
+
+    private static final String ARKIVMELDING = "arkivmelding.xml";
+    private static final String DOCUMENT = "test.pdf";
+
+    private byte[] arkivmelding;
+    private MeldingFactory meldingFactory;
+
+    @Before
+    public void setup() throws IOException {
+        try (InputStream is = getClass().getClassLoader().getResourceAsStream("arkivmelding_ok.xml")) {
+            arkivmelding = StreamUtils.copyToByteArray(is);
+        }
+        meldingFactory = new MeldingFactory(new ArkivmeldingUtil());
+    }
+
+    @Test
+    public void testDocumentsAfterArkivmelding() throws IOException {
+        MeldingType melding = meldingFactory.create(asic(
+                ARKIVMELDING, arkivmelding,
+                DOCUMENT, bytes("document")));
+
+        assertThat(melding.getJournpost().getDokument()).hasSize(1);
+        DokumentType dokument = melding.getJournpost().getDokument().get(0);
+        assertThat(dokument.getVeFilnavn()).isEqualTo(DOCUMENT);
+        assertThat(dokument.getFil().getBase64()).isEqualTo(bytes("document"));
+        assertThat(melding.getNoarksak().getSaTittel()).isEqualTo("Nye lysrør Hauketo Skole");
+    }
+
+    @Test
+    public void testDocumentsBeforeArkivmeldingAreSpooledAndDeleted() throws IOException {
+        int before = spooledFiles();
+
+        MeldingType melding = meldingFactory.create(asic(
+                "manifest.xml", bytes("manifest"),
+                DOCUMENT, bytes("document"),
+                ARKIVMELDING, arkivmelding));
+
+        assertThat(melding.getJournpost().getDokument()).hasSize(1);
+        assertThat(melding.getJournpost().getDokument().get(0).getFil().getBase64()).isEqualTo(bytes("document"));
+        assertThat(spooledFiles()).isEqualTo(before);
+    }
+
+    @Test
+    public void testUnreferencedDocumentsAreSkipped() throws IOException {
+        MeldingType melding = meldingFactory.create(asic(
+                "before.pdf", bytes("before"),
+                ARKIVMELDING, arkivmelding,
+                "after.pdf", bytes("after"),
+                DOCUMENT, bytes("document")));
+
+        assertThat(melding.getJournpost().getDokument())
+                .extracting(DokumentType::getVeFilnavn)
+                .containsExactly(DOCUMENT);
+    }
+
+    @Test
+    public void testMissingReferencedDocument() throws IOException {
+        int before = spooledFiles();
+        InputStream asic = asic(
+                "other.pdf", bytes("other"),
+                ARKIVMELDING, arkivmelding);
+
+        assertThatThrownBy(() -> meldingFactory.create(asic))
+                .isInstanceOf(MeldingsUtvekslingRuntimeException.class)
+                .hasMessage("File test.pdf is missing from ASiC");
+        assertThat(spooledFiles()).isEqualTo(before);
+    }
+
+    @Test
+    public void testMissingArkivmelding() throws IOException {
+        int before = spooledFiles();
+        InputStream asic = asic(DOCUMENT, bytes("document"));
+
+        assertThatThrownBy(() -> meldingFactory.create(asic))
+                .isInstanceOf(MeldingsUtvekslingRuntimeException.class)
+                .hasMessage("arkivmelding.xml not found in ASiC");
+        assertThat(spooledFiles()).isEqualTo(before);
+    }
+
+    private InputStream asic(Object... entries) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(bos)) {
+            for (int i = 0; i < entries.length; i += 2) {
+                zos.putNextEntry(new ZipEntry((String) entries[i]));
+                zos.write((byte[]) entries[i + 1]);
+                zos.closeEntry();
+            }
+        }
+        return new ByteArrayInputStream(bos.toByteArray());
+    }
+
+    private byte[] bytes(String content) {
+        return content.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private int spooledFiles() {
+        File[] files = new File(FileUtils.getTempDirectory(), "integrasjonspunkt").listFiles();
+        return files != null ? files.length : 0;
+    }
+}
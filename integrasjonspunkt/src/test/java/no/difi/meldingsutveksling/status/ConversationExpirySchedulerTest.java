@@ -0,0 +1,104 @@
+package no.difi.meldingsutveksling.status;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ConversationExpirySchedulerTest {
+
+    private static final Instant NOW = Instant.parse("2020-11-02T10:00:00Z");
+
+    @Mock private ConversationRepository repo;
+    @Mock private Clock clock;
+
+    private final AtomicReference<Instant> now = new AtomicReference<>(NOW);
+    private ConversationExpiryScheduler scheduler;
+
+    @Before
+    public void before() {
+        given(clock.instant()).willAnswer(invocation -> now.get());
+        given(clock.getZone()).willReturn(ZoneOffset.UTC);
+        given(repo.findExpiriesForUnfinishedConversations()).willReturn(Arrays.asList(
+                expiry(3L, NOW.plusSeconds(60)),
+                expiry(2L, NOW.minusSeconds(60)),
+                expiry(1L, NOW.minusSeconds(120))));
+
+        scheduler = new ConversationExpiryScheduler(repo, clock, new SimpleMeterRegistry());
+        scheduler.load();
+    }
+
+    @Test
+    public void testExpiredIdsArePolledInExpiryOrder() {
+        assertThat(scheduler.pollExpired(10)).containsExactly(1L, 2L);
+        assertThat(scheduler.pollExpired(10)).isEmpty();
+    }
+
+    @Test
+    public void testPollIsLimitedToMax() {
+        assertThat(scheduler.pollExpired(1)).containsExactly(1L);
+        assertThat(scheduler.pollExpired(1)).containsExactly(2L);
+    }
+
+    @Test
+    public void testFinishedConversationIsNotPolled() {
+        scheduler.update(conversation(1L, true, NOW.minusSeconds(120)));
+
+        assertThat(scheduler.pollExpired(10)).containsExactly(2L);
+    }
+
+    @Test
+    public void testFailedIdIsPolledAgainAfterRetryDelay() {
+        assertThat(scheduler.pollExpired(10)).containsExactly(1L, 2L);
+
+        scheduler.retry(Collections.singletonList(1L), Duration.ofMinutes(1));
+        assertThat(scheduler.pollExpired(10)).isEmpty();
+
+        now.set(NOW.plusSeconds(61));
+        assertThat(scheduler.pollExpired(10)).containsExactly(1L);
+    }
+
+    @Test
+    public void testRetryKeepsExpiryUpdatedSincePoll() {
+        assertThat(scheduler.pollExpired(10)).containsExactly(1L, 2L);
+        scheduler.update(conversation(1L, false, NOW.plusSeconds(3600)));
+
+        scheduler.retry(Collections.singletonList(1L), Duration.ofMinutes(1));
+
+        now.set(NOW.plusSeconds(61));
+        assertThat(scheduler.pollExpired(10)).containsExactly(3L);
+    }
+
+    private ConversationExpiry expiry(Long id, Instant expiry) {
+        ConversationExpiry e = mock(ConversationExpiry.class);
+        given(e.getId()).willReturn(id);
+        given(e.getExpiry()).willReturn(OffsetDateTime.ofInstant(expiry, ZoneOffset.UTC));
+        return e;
+    }
+
+    private Conversation conversation(Long id, boolean finished, Instant expiry) {
+        Conversation c = mock(Conversation.class);
+        given(c.getId()).willReturn(id);
+        given(c.isFinished()).willReturn(finished);
+        if (!finished) {
+            given(c.getExpiry()).willReturn(OffsetDateTime.ofInstant(expiry, ZoneOffset.UTC));
+        }
+        return c;
+    }
+}
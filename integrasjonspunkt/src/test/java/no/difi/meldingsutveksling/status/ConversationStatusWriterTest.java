@@ -0,0 +1,194 @@
+package no.difi.meldingsutveksling.status;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import no.difi.meldingsutveksling.api.ConversationService;
+import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
+import no.difi.meldingsutveksling.receipt.ReceiptStatus;
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.jms.core.JmsTemplate;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ConversationStatusWriterTest {
+
+    private static final String POISON = "poison";
+
+    @Mock private ConversationService conversationService;
+    @Mock private MessageStatusFactory messageStatusFactory;
+    @Mock private Clock clock;
+
+    private final AtomicReference<Instant> now = new AtomicReference<>(Instant.parse("2020-11-02T10:00:00Z"));
+    private ActiveMQConnectionFactory connectionFactory;
+    private Connection connection;
+    private JmsTemplate jmsTemplate;
+    private ConversationStatusWriter writer;
+
+    @Before
+    public void before() throws JMSException {
+        connectionFactory = new ActiveMQConnectionFactory("vm://status-writer-test?broker.persistent=false&broker.useJmx=false");
+        connectionFactory.getRedeliveryPolicy().setInitialRedeliveryDelay(0);
+        connectionFactory.getRedeliveryPolicy().setRedeliveryDelay(0);
+        // Keeps the embedded broker running between the connections opened by the JMS templates
+        connection = connectionFactory.createConnection();
+        connection.start();
+        jmsTemplate = new JmsTemplate(connectionFactory);
+        jmsTemplate.setReceiveTimeout(1000);
+
+        IntegrasjonspunktProperties props = new IntegrasjonspunktProperties()
+                .setStatusWriter(new IntegrasjonspunktProperties.StatusWriter()
+                        .setEnable(true)
+                        .setBatchSize(10)
+                        .setPendingTimeout(60000));
+        ObjectMapper objectMapper = new ObjectMapper()
+                .registerModule(new JavaTimeModule())
+                .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        given(clock.instant()).willAnswer(invocation -> now.get());
+
+        writer = new ConversationStatusWriter(conversationService, messageStatusFactory, props, objectMapper,
+                jmsTemplate, connectionFactory, clock);
+    }
+
+    @After
+    public void after() throws JMSException {
+        connection.close();
+    }
+
+    @Test
+    public void testStatusesAreStoredInOneBatch() throws Exception {
+        given(conversationService.registerStatuses(anyMap())).willAnswer(invocation -> conversations(invocation.getArgument(0)));
+
+        CompletableFuture<Optional<Conversation>> sent = writer.registerStatus("m1", status(ReceiptStatus.SENDT));
+        CompletableFuture<Optional<Conversation>> delivered = writer.registerStatus("m1", status(ReceiptStatus.LEVERT));
+        CompletableFuture<Optional<Conversation>> other = writer.registerStatus("m2", status(ReceiptStatus.SENDT));
+        writer.flush();
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Map<String, List<MessageStatus>>> statuses = ArgumentCaptor.forClass(Map.class);
+        verify(conversationService).registerStatuses(statuses.capture());
+        assertThat(statuses.getValue()).containsOnlyKeys("m1", "m2");
+        assertThat(statuses.getValue().get("m1")).extracting(MessageStatus::getStatus)
+                .containsExactly(ReceiptStatus.SENDT.toString(), ReceiptStatus.LEVERT.toString());
+
+        assertThat(sent.get().map(Conversation::getMessageId)).contains("m1");
+        assertThat(delivered.get().map(Conversation::getMessageId)).contains("m1");
+        assertThat(other.get().map(Conversation::getMessageId)).contains("m2");
+    }
+
+    @Test
+    public void testPoisonEventIsDeadLetteredAndTheRestIsStored() throws Exception {
+        given(conversationService.registerStatuses(anyMap())).willAnswer(invocation -> {
+            Map<String, ?> statuses = invocation.getArgument(0);
+            if (statuses.containsKey(POISON)) {
+                throw new IllegalStateException("Constraint violation");
+            }
+            return conversations(statuses);
+        });
+
+        CompletableFuture<Optional<Conversation>> good = writer.registerStatus("m1", status(ReceiptStatus.SENDT));
+        CompletableFuture<Optional<Conversation>> poison = writer.registerStatus(POISON, status(ReceiptStatus.SENDT));
+        writer.flush();
+
+        assertThat(good.get().map(Conversation::getMessageId)).contains("m1");
+        assertThatThrownBy(poison::get).isInstanceOf(ExecutionException.class);
+        assertThat(jmsTemplate.receive(ConversationStatusWriter.STATUS_WRITER_DLQ)).isNotNull();
+        assertThat(jmsTemplate.receive(ConversationStatusWriter.STATUS_WRITER)).isNull();
+    }
+
+    @Test
+    public void testRegisterStatusesFailsWhenAnyStatusCannotBeStored() {
+        given(conversationService.registerStatuses(anyMap())).willAnswer(invocation -> {
+            Map<String, ?> statuses = invocation.getArgument(0);
+            if (statuses.containsKey(POISON)) {
+                throw new IllegalStateException("Constraint violation");
+            }
+            return conversations(statuses);
+        });
+
+        Map<String, List<MessageStatus>> statuses = new LinkedHashMap<>();
+        statuses.put("m1", Collections.singletonList(status(ReceiptStatus.LEVERT)));
+        statuses.put(POISON, Collections.singletonList(status(ReceiptStatus.LEVERT)));
+        CompletableFuture<List<Conversation>> stored = writer.registerStatuses(statuses);
+        writer.flush();
+
+        assertThatThrownBy(stored::get).isInstanceOf(ExecutionException.class);
+    }
+
+    @Test
+    public void testBatchIsRedeliveredWhenNothingCanBeStored() throws Exception {
+        given(conversationService.registerStatuses(anyMap()))
+                .willThrow(new IllegalStateException("Database unavailable"))
+                .willThrow(new IllegalStateException("Database unavailable"))
+                .willAnswer(invocation -> conversations(invocation.getArgument(0)));
+
+        CompletableFuture<Optional<Conversation>> sent = writer.registerStatus("m1", status(ReceiptStatus.SENDT));
+        assertThatThrownBy(writer::flush).isInstanceOf(IllegalStateException.class);
+        assertThat(sent).isNotDone();
+
+        for (int i = 0; i < 50 && !sent.isDone(); i++) {
+            writer.flush();
+        }
+
+        assertThat(sent.get().map(Conversation::getMessageId)).contains("m1");
+        verify(conversationService, times(3)).registerStatuses(anyMap());
+    }
+
+    @Test
+    public void testPendingStatusFailsAfterTimeout() {
+        given(conversationService.registerStatuses(anyMap())).willThrow(new IllegalStateException("Database unavailable"));
+
+        CompletableFuture<Optional<Conversation>> sent = writer.registerStatus("m1", status(ReceiptStatus.SENDT));
+        assertThatThrownBy(writer::flush).isInstanceOf(IllegalStateException.class);
+        assertThat(sent).isNotDone();
+
+        now.set(now.get().plusSeconds(61));
+        try {
+            writer.flush();
+        } catch (IllegalStateException e) {
+            // The redelivered batch fails again
+        }
+
+        assertThatThrownBy(sent::get).hasCauseInstanceOf(TimeoutException.class);
+    }
+
+    private MessageStatus status(ReceiptStatus status) {
+        return MessageStatus.of(status, OffsetDateTime.parse("2020-11-02T11:00:00+01:00"));
+    }
+
+    private List<Conversation> conversations(Map<String, ?> statuses) {
+        return statuses.keySet().stream()
+                .map(messageId -> new Conversation().setMessageId(messageId))
+                .collect(Collectors.toList());
+    }
+}
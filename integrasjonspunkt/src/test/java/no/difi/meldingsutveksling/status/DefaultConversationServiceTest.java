@@ -0,0 +1,187 @@
+package no.difi.meldingsutveksling.status;
+
+import no.difi.meldingsutveksling.MessageInformable;
+import no.difi.meldingsutveksling.ServiceIdentifier;
+import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
+import no.difi.meldingsutveksling.domain.Organisasjonsnummer;
+import no.difi.meldingsutveksling.mail.IpMailSender;
+import no.difi.meldingsutveksling.nextmove.ConversationDirection;
+import no.difi.meldingsutveksling.receipt.ReceiptStatus;
+import no.difi.meldingsutveksling.receipt.StatusQueue;
+import no.difi.meldingsutveksling.webhooks.WebhookPublisher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class DefaultConversationServiceTest {
+
+    private static final String POISON = "poison";
+
+    @Mock private ConversationRepository repo;
+    @Mock private WebhookPublisher webhookPublisher;
+    @Mock private MessageStatusFactory messageStatusFactory;
+    @Mock private IpMailSender ipMailSender;
+    @Mock private StatusQueue statusQueue;
+    @Mock private ConversationExpiryScheduler expiryScheduler;
+
+    private DefaultConversationService conversationService;
+
+    @Before
+    public void before() {
+        IntegrasjonspunktProperties props = new IntegrasjonspunktProperties()
+                .setFeature(new IntegrasjonspunktProperties.FeatureToggle().setMailErrorStatus(true));
+        Clock clock = Clock.fixed(Instant.parse("2020-11-02T10:00:00Z"), ZoneId.of("Europe/Oslo"));
+        // Every transaction loads its own copy of the conversations, like a new persistence context would
+        given(repo.findByMessageIdIn(anyCollection())).willAnswer(invocation -> {
+            Collection<String> messageIds = invocation.getArgument(0);
+            return messageIds.stream().map(this::conversation).collect(Collectors.toList());
+        });
+        given(repo.save(any(Conversation.class))).willAnswer(invocation -> {
+            Conversation conversation = invocation.getArgument(0);
+            if (POISON.equals(conversation.getMessageId())) {
+                throw new IllegalStateException("Constraint violation");
+            }
+            return conversation;
+        });
+
+        conversationService = new DefaultConversationService(repo, props, webhookPublisher, messageStatusFactory,
+                ipMailSender, clock, statusQueue, expiryScheduler);
+    }
+
+    @After
+    public void after() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    public void testRolledBackBatchIsPublishedAndMailedOnceWhenStoredOneConversationAtATime() {
+        Map<String, List<MessageStatus>> statuses = new LinkedHashMap<>();
+        statuses.put("m1", Collections.singletonList(status(ReceiptStatus.FEIL)));
+        statuses.put(POISON, Collections.singletonList(status(ReceiptStatus.FEIL)));
+        statuses.put("m2", Collections.singletonList(status(ReceiptStatus.FEIL)));
+
+        assertThatThrownBy(() -> inTransaction(() -> conversationService.registerStatuses(statuses)))
+                .isInstanceOf(IllegalStateException.class);
+        verify(webhookPublisher, never()).publish(any(), any());
+        verify(ipMailSender, never()).send(anyString(), anyString());
+
+        statuses.forEach((messageId, messageStatuses) -> {
+            try {
+                inTransaction(() -> conversationService.registerStatuses(Collections.singletonMap(messageId, messageStatuses)));
+            } catch (IllegalStateException e) {
+                // The poison conversation is rolled back again
+            }
+        });
+
+        verify(webhookPublisher).publish(argThat(c -> c.getMessageId().equals("m1")), any());
+        verify(webhookPublisher).publish(argThat(c -> c.getMessageId().equals("m2")), any());
+        verify(webhookPublisher, never()).publish(argThat(c -> c.getMessageId().equals(POISON)), any());
+        verify(statusQueue, times(2)).enqueueStatus(any(), any());
+        verify(ipMailSender, times(2)).send(anyString(), anyString());
+    }
+
+    @Test
+    public void testStatusIsPublishedDirectlyWithoutTransaction() {
+        conversationService.registerStatuses(Collections.singletonMap("m1", Collections.singletonList(status(ReceiptStatus.LEVERT))));
+
+        verify(webhookPublisher).publish(any(), any());
+        verify(statusQueue).enqueueStatus(any(), any());
+    }
+
+    /**
+     * Runs the action with transaction synchronization, and commits if it returns or rolls back if it throws.
+     */
+    private void inTransaction(Runnable action) {
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            action.run();
+            List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+            TransactionSynchronizationUtils.invokeAfterCommit(synchronizations);
+        } catch (RuntimeException e) {
+            TransactionSynchronizationUtils.invokeAfterCompletion(TransactionSynchronizationManager.getSynchronizations(),
+                    TransactionSynchronization.STATUS_ROLLED_BACK);
+            throw e;
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    private MessageStatus status(ReceiptStatus status) {
+        return MessageStatus.of(status, OffsetDateTime.parse("2020-11-02T11:00:00+01:00"));
+    }
+
+    private Conversation conversation(String messageId) {
+        MessageInformable message = new MessageInformable() {
+            @Override
+            public String getConversationId() {
+                return messageId;
+            }
+
+            @Override
+            public String getMessageId() {
+                return messageId;
+            }
+
+            @Override
+            public Organisasjonsnummer getSender() {
+                return Organisasjonsnummer.from("910075918");
+            }
+
+            @Override
+            public Organisasjonsnummer getReceiver() {
+                return Organisasjonsnummer.from("910077473");
+            }
+
+            @Override
+            public String getProcessIdentifier() {
+                return "urn:no:difi:profile:arkivmelding:administrasjon:ver1.0";
+            }
+
+            @Override
+            public ConversationDirection getDirection() {
+                return ConversationDirection.OUTGOING;
+            }
+
+            @Override
+            public ServiceIdentifier getServiceIdentifier() {
+                return ServiceIdentifier.DPO;
+            }
+
+            @Override
+            public OffsetDateTime getExpiry() {
+                return OffsetDateTime.parse("2020-11-03T10:00:00+01:00");
+            }
+        };
+        return Conversation.of(message, OffsetDateTime.parse("2020-11-02T10:00:00+01:00"));
+    }
+}
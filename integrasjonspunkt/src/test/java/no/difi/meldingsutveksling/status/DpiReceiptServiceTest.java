@@ -0,0 +1,159 @@
+package no.difi.meldingsutveksling.status;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.difi.meldingsutveksling.config.DigitalPostInnbyggerConfig;
+import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
+import no.difi.meldingsutveksling.dpi.MeldingsformidlerClient;
+import no.difi.meldingsutveksling.receipt.ReceiptStatus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class DpiReceiptServiceTest {
+
+    private static final String MPC = "mpc";
+
+    @Mock private MeldingsformidlerClient meldingsformidlerClient;
+    @Mock private ConversationStatusWriter conversationStatusWriter;
+
+    private final Queue<ExternalReceipt> receipts = new ConcurrentLinkedQueue<>();
+    private final List<ExternalReceipt> all = new ArrayList<>();
+    private final AtomicInteger fetching = new AtomicInteger();
+    private final AtomicInteger maxFetching = new AtomicInteger();
+    private ExecutorService pollingExecutor;
+    private SimpleMeterRegistry meterRegistry;
+    private DigitalPostInnbyggerConfig dpi;
+    private DpiReceiptService dpiReceiptService;
+
+    @Before
+    public void before() {
+        dpi = new DigitalPostInnbyggerConfig()
+                .setReceiptBatchSize(2)
+                .setReceiptMaxConsumers(1);
+        IntegrasjonspunktProperties props = new IntegrasjonspunktProperties()
+                .setOrg(new IntegrasjonspunktProperties.Organization().setNumber("910077473"))
+                .setDpi(dpi);
+        pollingExecutor = Executors.newCachedThreadPool();
+        meterRegistry = new SimpleMeterRegistry();
+        dpiReceiptService = new DpiReceiptService(props, meldingsformidlerClient, conversationStatusWriter,
+                pollingExecutor, Runnable::run, meterRegistry);
+
+        given(meldingsformidlerClient.sjekkEtterKvittering("910077473", MPC)).willAnswer(invocation -> {
+            maxFetching.accumulateAndGet(fetching.incrementAndGet(), Math::max);
+            try {
+                TimeUnit.MILLISECONDS.sleep(10);
+                return Optional.ofNullable(receipts.poll());
+            } finally {
+                fetching.decrementAndGet();
+            }
+        });
+    }
+
+    @After
+    public void after() {
+        pollingExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testStoredReceiptsAreConfirmed() {
+        addReceipts(5);
+        given(conversationStatusWriter.registerStatuses(anyMap())).willReturn(CompletableFuture.completedFuture(new ArrayList<>()));
+
+        dpiReceiptService.handleReceipts(MPC).join();
+
+        all.forEach(r -> verify(r).confirmReceipt());
+        assertThat(backlog()).isZero();
+        assertThat(meterRegistry.get("dpi.receipts.drained").tag("mpc", MPC).counter().count()).isEqualTo(5);
+    }
+
+    @Test
+    public void testReceiptsAreNotConfirmedWhenStatusesCannotBeStored() {
+        addReceipts(5);
+        CompletableFuture<List<Conversation>> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException("Database unavailable"));
+        given(conversationStatusWriter.registerStatuses(anyMap())).willReturn(failed);
+
+        CompletableFuture<Void> drained = dpiReceiptService.handleReceipts(MPC);
+
+        assertThat(drained).isCompletedExceptionally();
+        all.forEach(r -> verify(r, never()).confirmReceipt());
+        assertThat(backlog()).isZero();
+    }
+
+    @Test
+    public void testBacklogIsClearedWhenStatusesCannotBeQueued() {
+        addReceipts(5);
+        given(conversationStatusWriter.registerStatuses(anyMap())).willThrow(new IllegalStateException("Queue unavailable"));
+
+        assertThatThrownBy(() -> dpiReceiptService.handleReceipts(MPC))
+                .isInstanceOf(IllegalStateException.class);
+
+        all.forEach(r -> verify(r, never()).confirmReceipt());
+        assertThat(backlog()).isZero();
+        assertThat(maxFetching.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testConsumersAreAddedWhileTheMpcHasABacklog() {
+        dpi.setReceiptMaxConsumers(3);
+        addReceipts(40);
+        given(conversationStatusWriter.registerStatuses(anyMap())).willReturn(CompletableFuture.completedFuture(new ArrayList<>()));
+
+        dpiReceiptService.handleReceipts(MPC).join();
+
+        all.forEach(r -> verify(r).confirmReceipt());
+        assertThat(maxFetching.get()).isBetween(2, 3);
+        assertThat(backlog()).isZero();
+        assertThat(meterRegistry.get("dpi.receipts.consumers").tag("mpc", MPC).gauge().value()).isZero();
+    }
+
+    @Test
+    public void testSingleConsumerWhenTheMpcIsNearlyEmpty() {
+        dpi.setReceiptMaxConsumers(3);
+        addReceipts(1);
+        given(conversationStatusWriter.registerStatuses(anyMap())).willReturn(CompletableFuture.completedFuture(new ArrayList<>()));
+
+        dpiReceiptService.handleReceipts(MPC).join();
+
+        all.forEach(r -> verify(r).confirmReceipt());
+        assertThat(maxFetching.get()).isEqualTo(1);
+    }
+
+    private double backlog() {
+        return meterRegistry.get("dpi.receipts.backlog").tag("mpc", MPC).gauge().value();
+    }
+
+    private void addReceipts(int count) {
+        for (int i = 0; i < count; i++) {
+            ExternalReceipt receipt = mock(ExternalReceipt.class);
+            given(receipt.getId()).willReturn("m" + i);
+            given(receipt.toMessageStatus()).willReturn(MessageStatus.of(ReceiptStatus.LEVERT, OffsetDateTime.parse("2020-11-02T11:00:00+01:00")));
+            receipts.add(receipt);
+            all.add(receipt);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package no.difi.meldingsutveksling.status;
+
+import no.difi.meldingsutveksling.ServiceIdentifier;
+import no.difi.meldingsutveksling.api.StatusStrategy;
+import no.difi.meldingsutveksling.config.DigitalPostInnbyggerConfig;
+import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
+import no.difi.meldingsutveksling.nextmove.ConversationStrategyFactory;
+import no.difi.meldingsutveksling.receipt.StatusStrategyFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class StatusPollingTest {
+
+    @Mock private ConversationRepository conversationRepository;
+    @Mock private StatusStrategyFactory statusStrategyFactory;
+    @Mock private DpiReceiptService dpiReceiptService;
+    @Mock private ConversationStrategyFactory conversationStrategyFactory;
+    @Mock private StatusStrategy statusStrategy;
+
+    private StatusPolling statusPolling;
+
+    @Before
+    public void before() {
+        IntegrasjonspunktProperties props = new IntegrasjonspunktProperties()
+                .setFeature(new IntegrasjonspunktProperties.FeatureToggle()
+                        .setEnableReceipts(true)
+                        .setEnableDPI(true))
+                .setDpi(new DigitalPostInnbyggerConfig()
+                        .setMpcId("mpc")
+                        .setMpcConcurrency(2))
+                .setNextmove(new IntegrasjonspunktProperties.NextMove()
+                        .setStatusPollingPageSize(2)
+                        .setStatusPollingConcurrency(1));
+        statusPolling = new StatusPolling(props, conversationRepository, statusStrategyFactory, dpiReceiptService,
+                conversationStrategyFactory, Runnable::run);
+    }
+
+    @Test
+    public void testDrainIsStartedForEachMpc() {
+        given(dpiReceiptService.handleReceipts("mpc-0")).willReturn(new CompletableFuture<>());
+        given(dpiReceiptService.handleReceipts("mpc-1")).willReturn(new CompletableFuture<>());
+
+        statusPolling.dpiReceiptsScheduledTask();
+
+        verify(dpiReceiptService).handleReceipts("mpc-0");
+        verify(dpiReceiptService).handleReceipts("mpc-1");
+    }
+
+    @Test
+    public void testRunningDrainIsNotReplaced() {
+        given(dpiReceiptService.handleReceipts("mpc-0")).willReturn(new CompletableFuture<>());
+        given(dpiReceiptService.handleReceipts("mpc-1")).willReturn(CompletableFuture.completedFuture(null));
+
+        statusPolling.dpiReceiptsScheduledTask();
+        statusPolling.dpiReceiptsScheduledTask();
+
+        verify(dpiReceiptService, times(1)).handleReceipts("mpc-0");
+        verify(dpiReceiptService, times(2)).handleReceipts("mpc-1");
+    }
+
+    @Test
+    public void testFailedDrainIsReplaced() {
+        CompletableFuture<Void> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException("Meldingsformidler unavailable"));
+        given(dpiReceiptService.handleReceipts("mpc-0")).willReturn(failed, new CompletableFuture<>());
+        given(dpiReceiptService.handleReceipts("mpc-1")).willReturn(new CompletableFuture<>());
+
+        statusPolling.dpiReceiptsScheduledTask();
+        statusPolling.dpiReceiptsScheduledTask();
+        statusPolling.dpiReceiptsScheduledTask();
+
+        verify(dpiReceiptService, times(2)).handleReceipts("mpc-0");
+        verify(dpiReceiptService, times(1)).handleReceipts("mpc-1");
+    }
+
+    @Test
+    public void testRejectedDrainIsRetriedInTheNextRound() {
+        given(dpiReceiptService.handleReceipts("mpc-0"))
+                .willThrow(new TaskRejectedException("Executor is busy"))
+                .willReturn(new CompletableFuture<>());
+        given(dpiReceiptService.handleReceipts("mpc-1")).willReturn(new CompletableFuture<>());
+
+        statusPolling.dpiReceiptsScheduledTask();
+        statusPolling.dpiReceiptsScheduledTask();
+
+        verify(dpiReceiptService, times(2)).handleReceipts("mpc-0");
+        verify(dpiReceiptService, times(1)).handleReceipts("mpc-1");
+    }
+
+    @Test
+    public void testCycleResumesAfterTheLastCheckedPage() {
+        givenPollableConversations(6);
+        given(conversationStrategyFactory.isEnabled(ServiceIdentifier.DPV)).willReturn(true);
+        given(statusStrategyFactory.getStrategy(ServiceIdentifier.DPV)).willReturn(statusStrategy);
+        willThrow(new IllegalStateException("Altinn unavailable")).willDoNothing()
+                .given(statusStrategy).checkStatus(argThat(c -> ids(c).contains(3L)));
+
+        statusPolling.checkReceiptStatus();
+        statusPolling.checkReceiptStatus();
+        statusPolling.checkReceiptStatus();
+
+        InOrder inOrder = inOrder(conversationRepository);
+        // The first cycle reads every page, even though the second page fails
+        inOrder.verify(conversationRepository).findPollableConversationsAfter(eq(0L), any());
+        inOrder.verify(conversationRepository).findPollableConversationsAfter(eq(2L), any());
+        inOrder.verify(conversationRepository).findPollableConversationsAfter(eq(4L), any());
+        inOrder.verify(conversationRepository).findPollableConversationsAfter(eq(6L), any());
+        // The second cycle resumes after the last page checked in order, and completes
+        inOrder.verify(conversationRepository).findPollableConversationsAfter(eq(2L), any());
+        inOrder.verify(conversationRepository).findPollableConversationsAfter(eq(4L), any());
+        inOrder.verify(conversationRepository).findPollableConversationsAfter(eq(6L), any());
+        // The third cycle starts over
+        inOrder.verify(conversationRepository).findPollableConversationsAfter(eq(0L), any());
+    }
+
+    @Test
+    public void testCheckpointIsKeptWhenLoadingAPageFails() {
+        givenPollableConversations(6);
+        given(conversationRepository.findPollableConversationsAfter(eq(4L), any()))
+                .willThrow(new IllegalStateException("Database unavailable"))
+                .willAnswer(invocation -> pollable(6, 4L));
+        given(conversationStrategyFactory.isEnabled(ServiceIdentifier.DPV)).willReturn(true);
+        given(statusStrategyFactory.getStrategy(ServiceIdentifier.DPV)).willReturn(statusStrategy);
+
+        assertThatThrownBy(statusPolling::checkReceiptStatus).isInstanceOf(IllegalStateException.class);
+        statusPolling.checkReceiptStatus();
+
+        InOrder inOrder = inOrder(conversationRepository);
+        inOrder.verify(conversationRepository).findPollableConversationsAfter(eq(0L), any());
+        inOrder.verify(conversationRepository).findPollableConversationsAfter(eq(2L), any());
+        inOrder.verify(conversationRepository).findPollableConversationsAfter(eq(4L), any());
+        inOrder.verify(conversationRepository).findPollableConversationsAfter(eq(4L), any());
+        inOrder.verify(conversationRepository).findPollableConversationsAfter(eq(6L), any());
+        verify(statusStrategy, times(3)).checkStatus(any());
+    }
+
+    @Test
+    public void testResumedCycleWithoutProgressStartsOver() {
+        givenPollableConversations(4);
+        given(conversationStrategyFactory.isEnabled(ServiceIdentifier.DPV)).willReturn(true);
+        given(statusStrategyFactory.getStrategy(ServiceIdentifier.DPV)).willReturn(statusStrategy);
+        willThrow(new IllegalStateException("Altinn unavailable"))
+                .given(statusStrategy).checkStatus(argThat(c -> ids(c).contains(3L)));
+
+        statusPolling.checkReceiptStatus();
+        statusPolling.checkReceiptStatus();
+        statusPolling.checkReceiptStatus();
+
+        InOrder inOrder = inOrder(conversationRepository);
+        inOrder.verify(conversationRepository).findPollableConversationsAfter(eq(0L), any());
+        inOrder.verify(conversationRepository).findPollableConversationsAfter(eq(2L), any());
+        inOrder.verify(conversationRepository).findPollableConversationsAfter(eq(4L), any());
+        inOrder.verify(conversationRepository).findPollableConversationsAfter(eq(2L), any());
+        inOrder.verify(conversationRepository).findPollableConversationsAfter(eq(4L), any());
+        inOrder.verify(conversationRepository).findPollableConversationsAfter(eq(0L), any());
+    }
+
+    private void givenPollableConversations(int count) {
+        given(conversationRepository.findPollableConversationsAfter(anyLong(), any()))
+                .willAnswer(invocation -> pollable(count, invocation.getArgument(0)));
+    }
+
+    private List<Conversation> pollable(int count, long afterId) {
+        List<Conversation> page = new ArrayList<>();
+        for (long id = afterId + 1; id <= count && page.size() < 2; id++) {
+            Conversation conversation = new Conversation();
+            conversation.setServiceIdentifier(ServiceIdentifier.DPV);
+            ReflectionTestUtils.setField(conversation, "id", id);
+            page.add(conversation);
+        }
+        return page;
+    }
+
+    private Set<Long> ids(Set<Conversation> conversations) {
+        return conversations.stream().map(Conversation::getId).collect(Collectors.toSet());
+    }
+}
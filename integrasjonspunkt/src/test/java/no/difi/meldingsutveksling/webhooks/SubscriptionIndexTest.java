@@ -0,0 +1,235 @@
+package no.difi.meldingsutveksling.webhooks;
+
+import no.difi.meldingsutveksling.ServiceIdentifier;
+import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
+import no.difi.meldingsutveksling.domain.webhooks.Subscription;
+import no.difi.meldingsutveksling.nextmove.ConversationDirection;
+import no.difi.meldingsutveksling.webhooks.event.MessageStatusContent;
+import no.difi.meldingsutveksling.webhooks.event.PingContent;
+import no.difi.meldingsutveksling.webhooks.filter.DirectionFilter;
+import no.difi.meldingsutveksling.webhooks.filter.EventFilterProvider;
+import no.difi.meldingsutveksling.webhooks.filter.ServiceIdentifierFilter;
+import no.difi.meldingsutveksling.webhooks.filter.StatusFilter;
+import no.difi.meldingsutveksling.webhooks.filter.WebhookFilterParser;
+import no.difi.meldingsutveksling.webhooks.subscription.SubscriptionRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SubscriptionIndexTest {
+
+    private static final Instant NOW = Instant.parse("2020-11-02T10:00:00Z");
+
+    @Mock private SubscriptionRepository subscriptionRepository;
+    @Mock private Clock clock;
+
+    private final AtomicReference<Instant> now = new AtomicReference<>(NOW);
+    private SubscriptionIndex subscriptionIndex;
+
+    @Before
+    public void before() {
+        given(clock.instant()).willAnswer(invocation -> now.get());
+        IntegrasjonspunktProperties props = new IntegrasjonspunktProperties()
+                .setWebhooks(new IntegrasjonspunktProperties.WebHooks()
+                        .setSubscriptionRefreshInterval(Duration.ofMinutes(1)));
+        WebhookFilterParser parser = new WebhookFilterParser(new EventFilterProvider(Arrays.asList(
+                new ServiceIdentifierFilter(), new DirectionFilter(), new StatusFilter())));
+        subscriptionIndex = new SubscriptionIndex(subscriptionRepository, parser, props, clock);
+    }
+
+    @Test
+    public void testSubscriptionWithoutFilterGetsAllEvents() {
+        Subscription all = subscription("all", "all", null);
+        given(subscriptionRepository.findAll()).willReturn(Collections.singletonList(all));
+
+        assertThat(subscriptionIndex.getSubscriptions(status(ServiceIdentifier.DPO, ConversationDirection.OUTGOING, "SENDT")))
+                .containsExactly(all);
+        assertThat(subscriptionIndex.getSubscriptions(new PingContent().setEvent("ping")))
+                .containsExactly(all);
+    }
+
+    @Test
+    public void testSubscriptionsAreMatchedByServiceIdentifierAndDirection() {
+        Subscription dpoOutgoing = subscription("messages", "status", "serviceIdentifier=DPO&direction=OUTGOING");
+        Subscription dpeOrDpo = subscription("messages", "status", "serviceIdentifier=dpe,dpo");
+        Subscription incoming = subscription("all", "all", "direction=INCOMING");
+        given(subscriptionRepository.findAll()).willReturn(Arrays.asList(dpoOutgoing, dpeOrDpo, incoming));
+
+        assertThat(subscriptionIndex.getSubscriptions(status(ServiceIdentifier.DPO, ConversationDirection.OUTGOING, "SENDT")))
+                .containsExactlyInAnyOrder(dpoOutgoing, dpeOrDpo);
+        assertThat(subscriptionIndex.getSubscriptions(status(ServiceIdentifier.DPE, ConversationDirection.INCOMING, "MOTTATT")))
+                .containsExactlyInAnyOrder(dpeOrDpo, incoming);
+        assertThat(subscriptionIndex.getSubscriptions(status(ServiceIdentifier.DPV, ConversationDirection.OUTGOING, "SENDT")))
+                .isEmpty();
+    }
+
+    @Test
+    public void testRemainingFilterPartsAreApplied() {
+        Subscription delivered = subscription("messages", "status", "serviceIdentifier=DPO&status=LEVERT,LEST");
+        given(subscriptionRepository.findAll()).willReturn(Collections.singletonList(delivered));
+
+        assertThat(subscriptionIndex.getSubscriptions(status(ServiceIdentifier.DPO, ConversationDirection.OUTGOING, "LEVERT")))
+                .containsExactly(delivered);
+        assertThat(subscriptionIndex.getSubscriptions(status(ServiceIdentifier.DPO, ConversationDirection.OUTGOING, "SENDT")))
+                .isEmpty();
+    }
+
+    @Test
+    public void testStatusWithoutServiceIdentifierOrDirectionOnlyMatchesUnfilteredSubscriptions() {
+        Subscription all = subscription("messages", "status", null);
+        Subscription dpo = subscription("messages", "status", "serviceIdentifier=DPO");
+        Subscription outgoing = subscription("messages", "status", "direction=OUTGOING");
+        given(subscriptionRepository.findAll()).willReturn(Arrays.asList(all, dpo, outgoing));
+
+        assertThat(subscriptionIndex.getSubscriptions(status(null, ConversationDirection.OUTGOING, "SENDT")))
+                .containsExactlyInAnyOrder(all, outgoing);
+        assertThat(subscriptionIndex.getSubscriptions(status(ServiceIdentifier.DPO, null, "SENDT")))
+                .containsExactlyInAnyOrder(all, dpo);
+        assertThat(subscriptionIndex.getSubscriptions(status(null, null, "SENDT")))
+                .containsExactly(all);
+    }
+
+    @Test
+    public void testSubscriptionWithInvalidFilterIsIgnored() {
+        Subscription invalid = subscription("all", "all", "unknown=value");
+        Subscription valid = subscription("all", "all", null);
+        given(subscriptionRepository.findAll()).willReturn(Arrays.asList(invalid, valid));
+
+        assertThat(subscriptionIndex.getSubscriptions(status(ServiceIdentifier.DPO, ConversationDirection.OUTGOING, "SENDT")))
+                .containsExactly(valid);
+    }
+
+    @Test
+    public void testIndexIsReloadedWhenInvalidated() {
+        Subscription first = subscription("all", "all", null);
+        Subscription second = subscription("all", "all", null);
+        given(subscriptionRepository.findAll()).willReturn(Collections.singletonList(first), Arrays.asList(first, second));
+        MessageStatusContent content = status(ServiceIdentifier.DPO, ConversationDirection.OUTGOING, "SENDT");
+
+        assertThat(subscriptionIndex.getSubscriptions(content)).containsExactly(first);
+        assertThat(subscriptionIndex.getSubscriptions(content)).containsExactly(first);
+
+        subscriptionIndex.invalidate();
+        assertThat(subscriptionIndex.getSubscriptions(content)).containsExactly(first, second);
+        verify(subscriptionRepository, times(2)).findAll();
+    }
+
+    @Test
+    public void testChangesFromOtherInstancesArePickedUpAfterRefreshInterval() {
+        Subscription first = subscription("all", "all", null);
+        Subscription second = subscription("all", "all", null);
+        given(subscriptionRepository.findAll()).willReturn(Collections.singletonList(first), Arrays.asList(first, second));
+        MessageStatusContent content = status(ServiceIdentifier.DPO, ConversationDirection.OUTGOING, "SENDT");
+
+        assertThat(subscriptionIndex.getSubscriptions(content)).containsExactly(first);
+
+        now.set(NOW.plusSeconds(59));
+        assertThat(subscriptionIndex.getSubscriptions(content)).containsExactly(first);
+
+        now.set(NOW.plusSeconds(60));
+        assertThat(subscriptionIndex.getSubscriptions(content)).containsExactly(first, second);
+        verify(subscriptionRepository, times(2)).findAll();
+    }
+
+    @Test
+    public void testConcurrentCallersLoadTheIndexOnce() throws Exception {
+        Subscription all = subscription("all", "all", null);
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        given(subscriptionRepository.findAll()).willAnswer(invocation -> {
+            loading.countDown();
+            assertThat(release.await(5, TimeUnit.SECONDS)).isTrue();
+            return Collections.singletonList(all);
+        });
+        MessageStatusContent content = status(ServiceIdentifier.DPO, ConversationDirection.OUTGOING, "SENDT");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<List<Subscription>>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                results.add(executor.submit(() -> subscriptionIndex.getSubscriptions(content)));
+            }
+            assertThat(loading.await(5, TimeUnit.SECONDS)).isTrue();
+            release.countDown();
+
+            for (Future<List<Subscription>> result : results) {
+                assertThat(result.get(5, TimeUnit.SECONDS)).containsExactly(all);
+            }
+            verify(subscriptionRepository, times(1)).findAll();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testStaleIndexIsUsedWhileItIsRefreshed() throws Exception {
+        Subscription first = subscription("all", "all", null);
+        Subscription second = subscription("all", "all", null);
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        given(subscriptionRepository.findAll()).willReturn(Collections.singletonList(first)).willAnswer(invocation -> {
+            loading.countDown();
+            assertThat(release.await(5, TimeUnit.SECONDS)).isTrue();
+            return Arrays.asList(first, second);
+        });
+        MessageStatusContent content = status(ServiceIdentifier.DPO, ConversationDirection.OUTGOING, "SENDT");
+        assertThat(subscriptionIndex.getSubscriptions(content)).containsExactly(first);
+
+        now.set(NOW.plusSeconds(60));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<Subscription>> refreshing = executor.submit(() -> subscriptionIndex.getSubscriptions(content));
+            assertThat(loading.await(5, TimeUnit.SECONDS)).isTrue();
+
+            assertThat(subscriptionIndex.getSubscriptions(content)).containsExactly(first);
+
+            release.countDown();
+            assertThat(refreshing.get(5, TimeUnit.SECONDS)).containsExactly(first, second);
+            assertThat(subscriptionIndex.getSubscriptions(content)).containsExactly(first, second);
+            verify(subscriptionRepository, times(2)).findAll();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Subscription subscription(String resource, String event, String filter) {
+        Subscription subscription = new Subscription();
+        subscription.setName("test");
+        subscription.setPushEndpoint("http://localhost/webhook");
+        subscription.setResource(resource);
+        subscription.setEvent(event);
+        subscription.setFilter(filter);
+        return subscription;
+    }
+
+    private MessageStatusContent status(ServiceIdentifier serviceIdentifier, ConversationDirection direction, String status) {
+        MessageStatusContent content = new MessageStatusContent()
+                .setResource("messages")
+                .setEvent("status");
+        content.setServiceIdentifier(serviceIdentifier);
+        content.setDirection(direction);
+        content.setStatus(status);
+        return content;
+    }
+}
@@ -0,0 +1,351 @@
+package no.difi.meldingsutveksling.webhooks;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
+import no.difi.meldingsutveksling.webhooks.event.MessageStatusContent;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.data.domain.Pageable;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyIterable;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class WebhookOutboxTest {
+
+    private static final String ENDPOINT_A = "http://a.example.com/webhook";
+    private static final String ENDPOINT_B = "http://b.example.com/webhook";
+    private static final long START = 1_600_000_000_000L;
+
+    @Mock private WebhookDeliveryRepository deliveryRepository;
+    @Mock private WebhookEndpointRepository endpointRepository;
+    @Mock private UrlPusher urlPusher;
+    @Mock private Clock clock;
+
+    private final AtomicLong now = new AtomicLong(START);
+    private final TreeMap<Long, WebhookDelivery> stored = new TreeMap<>();
+    private final Map<String, WebhookEndpoint> endpoints = new HashMap<>();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final AtomicLong ids = new AtomicLong();
+    private final List<String> posted = new ArrayList<>();
+    private final Set<String> failing = ConcurrentHashMap.newKeySet();
+    private IntegrasjonspunktProperties.WebhookOutbox outbox;
+    private WebhookOutbox webhookOutbox;
+
+    @Before
+    public void before() {
+        given(clock.millis()).willAnswer(invocation -> now.get());
+        given(deliveryRepository.save(any(WebhookDelivery.class))).willAnswer(invocation -> {
+            WebhookDelivery delivery = invocation.getArgument(0);
+            if (delivery.getId() == null) {
+                ReflectionTestUtils.setField(delivery, "id", ids.incrementAndGet());
+            }
+            stored.put(delivery.getId(), delivery);
+            return delivery;
+        });
+        given(deliveryRepository.saveAll(anyIterable())).willAnswer(invocation -> {
+            Iterable<WebhookDelivery> deliveries = invocation.getArgument(0);
+            deliveries.forEach(d -> stored.put(d.getId(), d));
+            return deliveries;
+        });
+        willAnswer(invocation -> {
+            Iterable<WebhookDelivery> deliveries = invocation.getArgument(0);
+            deliveries.forEach(d -> stored.remove(d.getId()));
+            return null;
+        }).given(deliveryRepository).deleteAll(anyIterable());
+        given(deliveryRepository.findEndpoints()).willAnswer(invocation -> stored.values().stream()
+                .map(WebhookDelivery::getEndpoint)
+                .distinct()
+                .collect(Collectors.toList()));
+        given(deliveryRepository.findByEndpointOrderByIdAsc(anyString(), any(Pageable.class))).willAnswer(invocation -> {
+            String endpoint = invocation.getArgument(0);
+            Pageable pageable = invocation.getArgument(1);
+            return stored.values().stream()
+                    .filter(d -> d.getEndpoint().equals(endpoint))
+                    .limit(pageable.getPageSize())
+                    .collect(Collectors.toList());
+        });
+        given(deliveryRepository.count()).willAnswer(invocation -> (long) stored.size());
+        given(endpointRepository.findNewEndpoints()).willAnswer(invocation -> stored.values().stream()
+                .map(WebhookDelivery::getEndpoint)
+                .distinct()
+                .filter(endpoint -> !endpoints.containsKey(endpoint))
+                .collect(Collectors.toList()));
+        given(endpointRepository.save(any(WebhookEndpoint.class))).willAnswer(invocation -> {
+            WebhookEndpoint endpoint = invocation.getArgument(0);
+            endpoints.put(endpoint.getEndpoint(), endpoint);
+            return endpoint;
+        });
+        given(endpointRepository.findByEndpoint(anyString()))
+                .willAnswer(invocation -> Optional.ofNullable(endpoints.get(invocation.<String>getArgument(0))));
+        given(endpointRepository.findDueEndpoints(anyLong())).willAnswer(invocation -> {
+            long time = invocation.getArgument(0);
+            return endpoints.values().stream()
+                    .filter(e -> e.getNotBefore() <= time && e.getLockTimeout() <= time)
+                    .map(WebhookEndpoint::getEndpoint)
+                    .filter(endpoint -> stored.values().stream().anyMatch(d -> d.getEndpoint().equals(endpoint)))
+                    .collect(Collectors.toList());
+        });
+        given(endpointRepository.countByFailuresGreaterThanEqualAndNotBeforeGreaterThan(anyInt(), anyLong())).willAnswer(invocation -> {
+            int failures = invocation.getArgument(0);
+            long time = invocation.getArgument(1);
+            return endpoints.values().stream()
+                    .filter(e -> e.getFailures() >= failures && e.getNotBefore() > time)
+                    .count();
+        });
+        given(endpointRepository.lock(anyString(), anyString(), anyLong(), anyLong())).willAnswer(invocation -> {
+            WebhookEndpoint endpoint = endpoints.get(invocation.<String>getArgument(0));
+            String owner = invocation.getArgument(1);
+            long time = invocation.getArgument(2);
+            if (endpoint == null || endpoint.getNotBefore() > time
+                    || (endpoint.getLockTimeout() > time && !owner.equals(endpoint.getOwner()))) {
+                return 0;
+            }
+            endpoint.setOwner(owner);
+            endpoint.setLockTimeout(invocation.getArgument(3));
+            return 1;
+        });
+        given(endpointRepository.unlock(anyString(), anyString(), anyInt(), anyLong())).willAnswer(invocation -> {
+            WebhookEndpoint endpoint = endpoints.get(invocation.<String>getArgument(0));
+            if (endpoint == null || !endpoint.getOwner().equals(invocation.getArgument(1))) {
+                return 0;
+            }
+            endpoint.setLockTimeout(0);
+            endpoint.setFailures(invocation.getArgument(2));
+            endpoint.setNotBefore(invocation.getArgument(3));
+            return 1;
+        });
+        given(urlPusher.deliver(anyString(), anyString())).willAnswer(invocation -> {
+            String endpoint = invocation.getArgument(0);
+            String payload = invocation.getArgument(1);
+            posted.add(payload);
+            return !failing.contains(endpoint);
+        });
+
+        outbox = new IntegrasjonspunktProperties.WebhookOutbox()
+                .setEnable(true)
+                .setDispatchSize(2)
+                .setBatchSize(1)
+                .setConcurrency(1)
+                .setMaxAttempts(5)
+                .setRetryInitialDelay(Duration.ofSeconds(10))
+                .setRetryMaxDelay(Duration.ofSeconds(10))
+                .setCircuitBreakerThreshold(3)
+                .setCircuitBreakerOpenTime(Duration.ofMinutes(10))
+                .setLockTimeout(Duration.ofMinutes(1));
+        webhookOutbox = newOutbox();
+    }
+
+    private WebhookOutbox newOutbox() {
+        IntegrasjonspunktProperties props = new IntegrasjonspunktProperties()
+                .setWebhooks(new IntegrasjonspunktProperties.WebHooks().setOutbox(outbox));
+        return new WebhookOutbox(props, deliveryRepository, endpointRepository, urlPusher, Runnable::run,
+                meterRegistry, clock);
+    }
+
+    @Test
+    public void testEventsAreDeliveredInOrderAndDeleted() {
+        enqueue(ENDPOINT_A, "a1", "a2", "a3");
+
+        webhookOutbox.flush();
+
+        assertThat(posted).containsExactly("a1", "a2", "a3");
+        assertThat(stored).isEmpty();
+    }
+
+    @Test
+    public void testStatusesArePostedTogetherWhenBatched() {
+        outbox.setBatchSize(2);
+        enqueue(ENDPOINT_A, "{\"a\":1}", "{\"a\":2}", "{\"a\":3}");
+
+        webhookOutbox.flush();
+
+        assertThat(posted).containsExactly("[{\"a\":1},{\"a\":2}]", "[{\"a\":3}]");
+        assertThat(stored).isEmpty();
+    }
+
+    @Test
+    public void testFailedEventIsRetriedAfterBackoffBeforeLaterEvents() {
+        enqueue(ENDPOINT_A, "a1", "a2");
+        failing.add(ENDPOINT_A);
+
+        webhookOutbox.flush();
+        assertThat(posted).containsExactly("a1");
+        assertThat(stored.firstEntry().getValue().getAttempt()).isEqualTo(1);
+
+        failing.clear();
+        now.addAndGet(4_999);
+        webhookOutbox.flush();
+        assertThat(posted).containsExactly("a1");
+
+        now.addAndGet(5_001);
+        webhookOutbox.flush();
+        assertThat(posted).containsExactly("a1", "a1", "a2");
+        assertThat(stored).isEmpty();
+    }
+
+    @Test
+    public void testDeliveredEventsAreNotPostedAgainWhenALaterEventFails() {
+        enqueue(ENDPOINT_A, "a1");
+        webhookOutbox.flush();
+
+        enqueue(ENDPOINT_A, "a2");
+        failing.add(ENDPOINT_A);
+        webhookOutbox.flush();
+
+        failing.clear();
+        now.addAndGet(10_000);
+        webhookOutbox.flush();
+
+        assertThat(posted).containsExactly("a1", "a2", "a2");
+    }
+
+    @Test
+    public void testBackedOffEndpointDoesNotHoldUpOtherEndpoints() {
+        enqueue(ENDPOINT_A, "a1", "a2", "a3", "a4", "a5");
+        failing.add(ENDPOINT_A);
+        webhookOutbox.flush();
+        posted.clear();
+
+        enqueue(ENDPOINT_B, "b1", "b2", "b3");
+        webhookOutbox.flush();
+
+        assertThat(posted).containsExactly("b1", "b2", "b3");
+        assertThat(stored.values()).extracting(WebhookDelivery::getEndpoint).containsOnly(ENDPOINT_A);
+    }
+
+    @Test
+    public void testCircuitOpensAfterFailuresInARow() {
+        enqueue(ENDPOINT_A, "a1");
+        failing.add(ENDPOINT_A);
+        for (int i = 0; i < 3; i++) {
+            webhookOutbox.flush();
+            now.addAndGet(10_000);
+        }
+        assertThat(posted).hasSize(3);
+        assertThat(meterRegistry.get("webhook.circuit.open").gauge().value()).isEqualTo(1);
+
+        webhookOutbox.flush();
+        now.addAndGet(Duration.ofMinutes(5).toMillis());
+        webhookOutbox.flush();
+        assertThat(posted).hasSize(3);
+
+        failing.clear();
+        now.addAndGet(Duration.ofMinutes(5).toMillis());
+        webhookOutbox.flush();
+        assertThat(posted).hasSize(4);
+        assertThat(stored).isEmpty();
+    }
+
+    @Test
+    public void testEventIsDroppedAfterMaxAttempts() {
+        outbox.setMaxAttempts(2);
+        enqueue(ENDPOINT_A, "a1", "a2");
+        failing.add(ENDPOINT_A);
+
+        webhookOutbox.flush();
+        now.addAndGet(10_000);
+        webhookOutbox.flush();
+        assertThat(posted).containsExactly("a1", "a1");
+        assertThat(stored.values()).extracting(WebhookDelivery::getPayload).containsExactly("a2");
+
+        failing.clear();
+        now.addAndGet(10_000);
+        webhookOutbox.flush();
+        assertThat(posted).containsExactly("a1", "a1", "a2");
+    }
+
+    @Test
+    public void testEndpointLockedByAnotherInstanceIsNotDeliveredTo() {
+        WebhookOutbox otherInstance = newOutbox();
+        enqueue(ENDPOINT_A, "a1", "a2");
+        given(urlPusher.deliver(anyString(), anyString())).willAnswer(invocation -> {
+            otherInstance.flush();
+            posted.add(invocation.getArgument(1));
+            return true;
+        });
+
+        webhookOutbox.flush();
+
+        assertThat(posted).containsExactly("a1", "a2");
+        assertThat(stored).isEmpty();
+    }
+
+    @Test
+    public void testLockOfStoppedInstanceExpires() {
+        enqueue(ENDPOINT_A, "a1");
+        WebhookEndpoint endpoint = new WebhookEndpoint();
+        endpoint.setEndpoint(ENDPOINT_A);
+        endpoint.setOwner("stopped-instance");
+        endpoint.setLockTimeout(now.get() + Duration.ofMinutes(1).toMillis());
+        endpoints.put(ENDPOINT_A, endpoint);
+
+        webhookOutbox.flush();
+        assertThat(posted).isEmpty();
+
+        now.addAndGet(Duration.ofMinutes(1).toMillis());
+        webhookOutbox.flush();
+        assertThat(posted).containsExactly("a1");
+        assertThat(endpoints.get(ENDPOINT_A).getLockTimeout()).isZero();
+    }
+
+    @Test
+    public void testDepthIsReadFromTheOutbox() {
+        enqueue(ENDPOINT_A, "a1", "a2");
+        failing.add(ENDPOINT_A);
+        stored.put(ids.incrementAndGet(), delivery(ENDPOINT_B, "stored by another instance"));
+
+        webhookOutbox.flush();
+
+        assertThat(meterRegistry.get("webhook.outbox.depth").gauge().value()).isEqualTo(2);
+    }
+
+    @Test
+    public void testEventsArePushedOnceWhenDisabled() {
+        outbox.setEnable(false);
+
+        webhookOutbox.enqueue(ENDPOINT_A, new MessageStatusContent(), "a1");
+
+        verify(urlPusher).pushAsync(ENDPOINT_A, "a1");
+        verify(deliveryRepository, never()).save(any(WebhookDelivery.class));
+    }
+
+    private WebhookDelivery delivery(String endpoint, String payload) {
+        WebhookDelivery delivery = new WebhookDelivery();
+        delivery.setEndpoint(endpoint);
+        delivery.setPayload(payload);
+        ReflectionTestUtils.setField(delivery, "id", ids.get());
+        return delivery;
+    }
+
+    private void enqueue(String endpoint, String... payloads) {
+        for (String payload : payloads) {
+            webhookOutbox.enqueue(endpoint, new MessageStatusContent(), payload);
+        }
+    }
+}
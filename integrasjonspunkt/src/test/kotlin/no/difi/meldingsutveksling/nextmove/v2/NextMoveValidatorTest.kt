@@ -3,6 +3,8 @@ package no.difi.meldingsutveksling.nextmove.v2
 import io.mockk.*
 import io.mockk.impl.annotations.MockK
 import lombok.extern.slf4j.Slf4j
+import no.difi.meldingsutveksling.MessageType
+import no.difi.meldingsutveksling.NextMoveConsts
 import no.difi.meldingsutveksling.ServiceIdentifier
 import no.difi.meldingsutveksling.api.ConversationService
 import no.difi.meldingsutveksling.api.OptionalCryptoMessagePersister
@@ -172,4 +174,20 @@ class NextMoveValidatorTest {
         val file = BasicNextMoveFile.of("", "bar.txt", "text", "foo".toByteArray())
         nextMoveValidator.validateFile(message, file)
     }
-}
\ No newline at end of file
+
+    @Test(expected = MissingArkivmeldingFileException::class)
+    fun `files referenced in arkivmelding are read from stored metadata`() {
+        val arkivmeldingFile = BusinessMessageFile()
+                .setFilename(NextMoveConsts.ARKIVMELDING_FILE)
+                .setIdentifier("arkivmelding")
+        every { message.files } returns setOf(arkivmeldingFile)
+        every { message.arkivmeldingMetadata } returns ArkivmeldingMetadata()
+                .setFilenames(listOf("foo.txt"))
+        every { sbd.expectedResponseDateTime } returns Optional.empty()
+        every { sbdUtil.isType(sbd, MessageType.ARKIVMELDING) } returns true
+        every { sbdUtil.isType(sbd, MessageType.DIGITAL) } returns false
+
+        // optionalCryptoMessagePersister is not stubbed, so reading arkivmelding.xml would fail with another exception
+        nextMoveValidator.validate(message)
+    }
+}
@@ -0,0 +1,185 @@
+package no.difi.meldingsutveksling.receipt.strategy
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import io.mockk.*
+import io.mockk.impl.annotations.MockK
+import no.altinn.schemas.services.serviceengine.correspondence._2014._10.ArrayOfStatusChangeV2
+import no.altinn.schemas.services.serviceengine.correspondence._2014._10.ArrayOfStatusV2
+import no.altinn.schemas.services.serviceengine.correspondence._2014._10.StatusChangeV2
+import no.altinn.schemas.services.serviceengine.correspondence._2014._10.StatusV2
+import no.altinn.schemas.services.serviceengine.correspondence._2016._02.CorrespondenceStatusInformation
+import no.altinn.schemas.services.serviceentity._2014._10.CorrespondenceStatusTypeV2
+import no.altinn.services.serviceengine.correspondence._2009._10.CorrespondenceStatusHistoryRequest
+import no.altinn.services.serviceengine.correspondence._2009._10.CorrespondenceStatusHistoryResult
+import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties
+import no.difi.meldingsutveksling.ptv.CorrespondenceAgencyClient
+import no.difi.meldingsutveksling.ptv.CorrespondenceAgencyMessageFactory
+import no.difi.meldingsutveksling.receipt.ReceiptStatus
+import no.difi.meldingsutveksling.status.*
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import java.time.Clock
+import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executor
+import javax.xml.bind.JAXBElement
+import javax.xml.datatype.DatatypeFactory
+import javax.xml.namespace.QName
+
+class DpvStatusStrategyTest {
+
+    @MockK
+    lateinit var correspondenceAgencyMessageFactory: CorrespondenceAgencyMessageFactory
+    @MockK
+    lateinit var correspondenceAgencyClient: CorrespondenceAgencyClient
+    @MockK
+    lateinit var conversationStatusWriter: ConversationStatusWriter
+    @MockK
+    lateinit var conversationRepository: ConversationRepository
+
+    private lateinit var strategy: DpvStatusStrategy
+
+    private val requests = IdentityHashMap<CorrespondenceStatusHistoryRequest, List<Conversation>>()
+    private val registered = Collections.synchronizedList(ArrayList<Map<String, List<MessageStatus>>>())
+    private val statusChanges = HashMap<String, List<CorrespondenceStatusTypeV2>>()
+
+    @Before
+    fun before() {
+        MockKAnnotations.init(this)
+        every { correspondenceAgencyMessageFactory.createReceiptRequest(any()) } answers {
+            val request = CorrespondenceStatusHistoryRequest()
+            synchronized(requests) { requests[request] = firstArg<Collection<Conversation>>().toList() }
+            request
+        }
+        every { correspondenceAgencyClient.sendStatusHistoryRequest(any()) } answers {
+            val chunk = synchronized(requests) { requests.getValue(firstArg()) }
+            result(chunk.map { status(it.messageId, statusChanges[it.messageId] ?: emptyList()) })
+        }
+        every { conversationRepository.findRegisteredStatuses(any()) } returns emptyList()
+        every { conversationStatusWriter.registerStatuses(any()) } answers {
+            registered.add(firstArg())
+            CompletableFuture.completedFuture(emptyList())
+        }
+
+        val props = IntegrasjonspunktProperties()
+            .setDpv(IntegrasjonspunktProperties.PostVirksomheter()
+                .setStatusChunkSize(2)
+                .setStatusConcurrency(2))
+        strategy = DpvStatusStrategy(correspondenceAgencyMessageFactory, correspondenceAgencyClient,
+            conversationStatusWriter, MessageStatusFactory(Clock.systemUTC()), conversationRepository, props,
+            Executor { it.run() }, SimpleMeterRegistry())
+    }
+
+    @After
+    fun after() {
+        unmockkAll()
+    }
+
+    @Test
+    fun `conversations are looked up in chunks`() {
+        val conversations = (1..5).map { conversation("m$it") }
+        conversations.forEach { statusChanges[it.messageId] = listOf(CorrespondenceStatusTypeV2.CREATED) }
+
+        strategy.checkStatus(conversations.toMutableSet())
+
+        assertThat(requests.values.map { it.size }).containsExactlyInAnyOrder(2, 2, 1)
+        assertThat(requests.values.flatten()).containsExactlyInAnyOrderElementsOf(conversations)
+        verify(exactly = 3) { correspondenceAgencyClient.sendStatusHistoryRequest(any()) }
+        verify(exactly = 3) { conversationStatusWriter.registerStatuses(any()) }
+        assertThat(registered.flatMap { it.keys }).containsExactlyInAnyOrder("m1", "m2", "m3", "m4", "m5")
+        assertThat(registered.flatMap { it.values.flatten() }.map { it.status })
+            .containsOnly(ReceiptStatus.LEVERT.toString())
+    }
+
+    @Test
+    fun `failed chunk does not stop the other chunks`() {
+        val conversations = (1..4).map { conversation("m$it") }
+        conversations.forEach { statusChanges[it.messageId] = listOf(CorrespondenceStatusTypeV2.CREATED) }
+        every { correspondenceAgencyClient.sendStatusHistoryRequest(any()) } answers {
+            val chunk = synchronized(requests) { requests.getValue(firstArg()) }
+            if (chunk.any { it.messageId == "m1" }) {
+                throw IllegalStateException("Altinn unavailable")
+            }
+            result(chunk.map { status(it.messageId, statusChanges.getValue(it.messageId)) })
+        }
+
+        strategy.checkStatus(conversations.toMutableSet())
+
+        verify(exactly = 2) { correspondenceAgencyClient.sendStatusHistoryRequest(any()) }
+        verify(exactly = 1) { conversationStatusWriter.registerStatuses(any()) }
+        assertThat(registered.single().keys).hasSize(2).doesNotContain("m1")
+    }
+
+    @Test
+    fun `statuses that are already registered are skipped`() {
+        val conversation = conversation("m1")
+        statusChanges["m1"] = listOf(CorrespondenceStatusTypeV2.CREATED, CorrespondenceStatusTypeV2.READ,
+            CorrespondenceStatusTypeV2.READ)
+        every { conversationRepository.findRegisteredStatuses(setOf("m1")) } returns
+            listOf(registeredStatus("m1", ReceiptStatus.LEVERT))
+
+        strategy.checkStatus(mutableSetOf(conversation))
+
+        val statuses = registered.single().getValue("m1")
+        assertThat(statuses.map { it.status }).containsExactly(ReceiptStatus.LEST.toString())
+    }
+
+    @Test
+    fun `nothing is registered when all statuses are known`() {
+        val conversations = listOf(conversation("m1"), conversation("m2"))
+        statusChanges["m1"] = listOf(CorrespondenceStatusTypeV2.CREATED)
+        statusChanges["m2"] = listOf(CorrespondenceStatusTypeV2.CREATED, CorrespondenceStatusTypeV2.READ)
+        every { conversationRepository.findRegisteredStatuses(any()) } returns listOf(
+            registeredStatus("m1", ReceiptStatus.LEVERT),
+            registeredStatus("m2", ReceiptStatus.LEVERT),
+            registeredStatus("m2", ReceiptStatus.LEST))
+
+        strategy.checkStatus(conversations.toMutableSet())
+
+        verify(exactly = 1) { correspondenceAgencyClient.sendStatusHistoryRequest(any()) }
+        verify(exactly = 0) { conversationStatusWriter.registerStatuses(any()) }
+    }
+
+    private fun conversation(messageId: String): Conversation {
+        val conversation = Conversation()
+        conversation.messageId = messageId
+        conversation.conversationId = messageId
+        return conversation
+    }
+
+    private fun registeredStatus(messageId: String, status: ReceiptStatus): RegisteredStatus {
+        val registeredStatus = mockk<RegisteredStatus>()
+        every { registeredStatus.messageId } returns messageId
+        every { registeredStatus.status } returns status.toString()
+        return registeredStatus
+    }
+
+    private fun result(statuses: List<StatusV2>): CorrespondenceStatusHistoryResult {
+        val list = ArrayOfStatusV2()
+        list.statusV2.addAll(statuses)
+        val information = CorrespondenceStatusInformation()
+        information.correspondenceStatusDetailsList = element("CorrespondenceStatusDetailsList", list)
+        val result = CorrespondenceStatusHistoryResult()
+        result.correspondenceStatusInformation = element("CorrespondenceStatusInformation", information)
+        return result
+    }
+
+    private fun status(messageId: String, types: List<CorrespondenceStatusTypeV2>): StatusV2 {
+        val changes = ArrayOfStatusChangeV2()
+        types.forEachIndexed { i, type ->
+            val change = StatusChangeV2()
+            change.statusType = type
+            change.statusDate = DatatypeFactory.newInstance().newXMLGregorianCalendar("2020-11-02T1$i:00:00+01:00")
+            changes.statusChangeV2.add(change)
+        }
+        val status = StatusV2()
+        status.sendersReference = element("SendersReference", messageId)
+        status.statusChanges = element("StatusChanges", changes)
+        return status
+    }
+
+    private inline fun <reified T> element(name: String, value: T): JAXBElement<T> =
+        JAXBElement(QName(name), T::class.java, value)
+}
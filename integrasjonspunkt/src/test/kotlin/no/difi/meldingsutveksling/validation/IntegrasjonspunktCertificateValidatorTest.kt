@@ -0,0 +1,100 @@
+package no.difi.meldingsutveksling.validation
+
+import io.mockk.*
+import io.mockk.impl.annotations.MockK
+import no.difi.meldingsutveksling.CertificateParser
+import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties
+import no.difi.meldingsutveksling.serviceregistry.ServiceRegistryClient
+import no.difi.meldingsutveksling.serviceregistry.ServiceRegistryLookupException
+import no.difi.move.common.cert.KeystoreHelper
+import org.assertj.core.api.Assertions.assertThatThrownBy
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import java.math.BigInteger
+import java.security.cert.X509Certificate
+import java.time.Instant
+import java.time.temporal.ChronoUnit
+import java.util.*
+
+class IntegrasjonspunktCertificateValidatorTest {
+
+    @MockK
+    lateinit var keystoreHelper: KeystoreHelper
+    @MockK
+    lateinit var srClient: ServiceRegistryClient
+
+    private lateinit var validator: IntegrasjonspunktCertificateValidator
+
+    private val orgnr = "910075918"
+    private val pem = "virksert-pem"
+    private val keystoreCertificate = certificate(BigInteger.ONE)
+
+    @Before
+    fun before() {
+        MockKAnnotations.init(this)
+        mockkStatic(CertificateParser::class)
+        every { keystoreHelper.x509Certificate } returns keystoreCertificate
+        every { srClient.getCertificate(orgnr) } returns pem
+        every { CertificateParser.parse(pem) } returns certificate(BigInteger.ONE)
+
+        val props = IntegrasjonspunktProperties()
+            .setOrg(IntegrasjonspunktProperties.Organization().setNumber(orgnr))
+        validator = IntegrasjonspunktCertificateValidator(keystoreHelper, props, srClient)
+    }
+
+    @After
+    fun after() {
+        unmockkAll()
+    }
+
+    @Test
+    fun `failed lookup keeps the result of the last check`() {
+        validator.checkCertificate()
+
+        every { srClient.getCertificate(orgnr) } throws lookupException()
+        validator.scheduledCheck()
+
+        validator.validateCertificate()
+        verify(exactly = 2) { srClient.getCertificate(orgnr) }
+    }
+
+    @Test
+    fun `failed lookup before the first check is retried for the next message`() {
+        every { srClient.getCertificate(orgnr) } throws lookupException() andThen pem
+        validator.scheduledCheck()
+
+        validator.validateCertificate()
+        validator.validateCertificate()
+        verify(exactly = 2) { srClient.getCertificate(orgnr) }
+    }
+
+    @Test
+    fun `mismatching certificate is stored as a failure`() {
+        validator.checkCertificate()
+
+        every { CertificateParser.parse(pem) } returns certificate(BigInteger.TEN)
+        validator.scheduledCheck()
+
+        assertThatThrownBy { validator.validateCertificate() }
+            .isInstanceOf(VirksertCertificateException::class.java)
+            .hasMessageContaining("does not match")
+        verify(exactly = 2) { srClient.getCertificate(orgnr) }
+    }
+
+    private fun certificate(serialNumber: BigInteger): X509Certificate {
+        val now = Instant.now()
+        val certificate = mockk<X509Certificate>()
+        every { certificate.checkValidity() } just Runs
+        every { certificate.notBefore } returns Date.from(now.minus(1, ChronoUnit.DAYS))
+        every { certificate.notAfter } returns Date.from(now.plus(365, ChronoUnit.DAYS))
+        every { certificate.serialNumber } returns serialNumber
+        return certificate
+    }
+
+    // The constructors of ServiceRegistryLookupException are package-private
+    private fun lookupException(): ServiceRegistryLookupException =
+        ServiceRegistryLookupException::class.java.getDeclaredConstructor(String::class.java)
+            .apply { isAccessible = true }
+            .newInstance("Service registry unavailable")
+}
@@ -2,11 +2,19 @@ package no.difi.meldingsutveksling.dpi;
 
 import lombok.Data;
 import no.difi.sdp.client2.domain.MetadataDokument;
+import org.springframework.core.io.InputStreamSource;
 
 @Data
 public class Document {
 
-    private final byte[] contents;
+    /**
+     * Opened when the document package is built, so content is only read into memory for the duration of a send.
+     */
+    private final InputStreamSource contents;
+    /**
+     * Size of the content in bytes, or -1 if unknown.
+     */
+    private final long size;
     private final String mimeType;
     private final String fileName;
     private final String title;
@@ -1,6 +1,5 @@
 package no.difi.meldingsutveksling.dpi;
 
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import net.logstash.logback.marker.LogstashMarker;
 import no.difi.meldingsutveksling.config.DigitalPostInnbyggerConfig;
@@ -17,16 +16,19 @@ import no.difi.sdp.client2.domain.kvittering.KvitteringForespoersel;
 import org.springframework.ws.client.support.interceptor.ClientInterceptor;
 import org.springframework.ws.server.EndpointInterceptor;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static no.difi.meldingsutveksling.logging.MarkerFactory.conversationIdMarker;
 
 @Slf4j
-@RequiredArgsConstructor
 public class MeldingsformidlerClient {
 
     private final DigitalPostInnbyggerConfig config;
@@ -34,6 +36,38 @@ public class MeldingsformidlerClient {
     private final ForsendelseHandlerFactory forsendelseHandlerFactory;
     private final DpiReceiptMapper dpiReceiptMapper;
     private final ClientInterceptor metricsEndpointInterceptor;
+    /*
+        Document content is held in memory by the SDP client while a message is sent. Permits are kilobytes of
+        document content, shared by all in-flight sends.
+     */
+    private final Semaphore sendHeapPermits;
+    private final int maxSendHeapPermits;
+
+    /*
+        Clients are cached per interceptor set, so the payload interceptor is shared and hands the raw receipt
+        to the Kvittering being polled on the current thread.
+     */
+    private final ThreadLocal<Kvittering> currentKvittering = new ThreadLocal<>();
+    private final PayloadInterceptor payloadInterceptor = new PayloadInterceptor(payload -> {
+        Kvittering kvittering = currentKvittering.get();
+        if (kvittering != null) {
+            kvittering.setRawReceipt(payload);
+        }
+    });
+
+    public MeldingsformidlerClient(DigitalPostInnbyggerConfig config,
+                                   SikkerDigitalPostKlientFactory sikkerDigitalPostKlientFactory,
+                                   ForsendelseHandlerFactory forsendelseHandlerFactory,
+                                   DpiReceiptMapper dpiReceiptMapper,
+                                   ClientInterceptor metricsEndpointInterceptor) {
+        this.config = config;
+        this.sikkerDigitalPostKlientFactory = sikkerDigitalPostKlientFactory;
+        this.forsendelseHandlerFactory = forsendelseHandlerFactory;
+        this.dpiReceiptMapper = dpiReceiptMapper;
+        this.metricsEndpointInterceptor = metricsEndpointInterceptor;
+        this.maxSendHeapPermits = (int) Math.max(1, config.getSendHeapLimit().toKilobytes());
+        this.sendHeapPermits = new Semaphore(maxSendHeapPermits, true);
+    }
 
     private String nextMpcId() {
         if (config.getMpcConcurrency() > 1) {
@@ -46,50 +80,88 @@ public class MeldingsformidlerClient {
     }
 
     public void sendMelding(MeldingsformidlerRequest request) throws MeldingsformidlerException {
-        Dokument dokument = dokumentFromDocument(request.getDocument());
-        Dokumentpakke dokumentpakke = Dokumentpakke.builder(dokument).vedlegg(toVedlegg(request.getAttachments())).build();
-
-        ForsendelseBuilderHandler forsendelseBuilderHandler = forsendelseHandlerFactory.create(request);
-        Forsendelse.Builder forsendelseBuilder = forsendelseBuilderHandler.handle(request, dokumentpakke);
+        Document document = request.getDocument();
+        List<Document> attachments = request.getAttachments();
 
-        Forsendelse forsendelse = forsendelseBuilder.konversasjonsId(request.getConversationId())
-                .mpcId(nextMpcId())
-                .spraakkode(request.getLanguage())
-                .prioritet(config.getPriority()).build();
+        int permits = getSendHeapPermits(document, attachments);
+        try {
+            sendHeapPermits.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MeldingsformidlerException("Interrupted while waiting to send message to SDP", e);
+        }
 
-        SikkerDigitalPostKlient klient = sikkerDigitalPostKlientFactory.createSikkerDigitalPostKlient(AktoerOrganisasjonsnummer.of(request.getSenderOrgnumber()), metricsEndpointInterceptor);
         try {
-            klient.send(forsendelse);
-        } catch (SendException e) {
-            throw new MeldingsformidlerException("Unable to send message to SDP", e);
+            Dokumentpakke dokumentpakke;
+            try {
+                dokumentpakke = createDokumentpakke(document, attachments);
+            } catch (IOException e) {
+                throw new MeldingsformidlerException("Unable to read documents of message to SDP", e);
+            }
+
+            ForsendelseBuilderHandler forsendelseBuilderHandler = forsendelseHandlerFactory.create(request);
+            Forsendelse.Builder forsendelseBuilder = forsendelseBuilderHandler.handle(request, dokumentpakke);
+
+            Forsendelse forsendelse = forsendelseBuilder.konversasjonsId(request.getConversationId())
+                    .mpcId(nextMpcId())
+                    .spraakkode(request.getLanguage())
+                    .prioritet(config.getPriority()).build();
+
+            SikkerDigitalPostKlient klient = sikkerDigitalPostKlientFactory.getSikkerDigitalPostKlient(AktoerOrganisasjonsnummer.of(request.getSenderOrgnumber()), metricsEndpointInterceptor);
+            try {
+                klient.send(forsendelse);
+            } catch (SendException e) {
+                throw new MeldingsformidlerException("Unable to send message to SDP", e);
+            }
+        } finally {
+            sendHeapPermits.release(permits);
         }
     }
 
-    private List<Dokument> toVedlegg(List<Document> attachements) {
-        return attachements.stream().map(this::dokumentFromDocument).collect(Collectors.toList());
+    private int getSendHeapPermits(Document document, List<Document> attachments) {
+        long bytes = Stream.concat(Stream.of(document), attachments.stream())
+                .mapToLong(d -> Math.max(0L, d.getSize()))
+                .sum();
+        return (int) Math.min(maxSendHeapPermits, Math.max(1L, bytes / 1024));
     }
 
-    private Dokument dokumentFromDocument(Document document) {
-        Dokument.Builder builder = Dokument.builder(
-                document.getTitle(),
-                document.getFileName(),
-                document.getContents())
-                .mimeType(document.getMimeType());
-        if (document.getMetadataDokument() != null) {
-            builder.metadataDocument(document.getMetadataDokument());
+    Dokumentpakke createDokumentpakke(Document document, List<Document> attachments) throws IOException {
+        List<Dokument> vedlegg = new ArrayList<>(attachments.size());
+        for (Document attachment : attachments) {
+            vedlegg.add(dokumentFromDocument(attachment));
+        }
+        return Dokumentpakke.builder(dokumentFromDocument(document)).vedlegg(vedlegg).build();
+    }
+
+    private Dokument dokumentFromDocument(Document document) throws IOException {
+        try (InputStream contents = document.getContents().getInputStream()) {
+            Dokument.Builder builder = Dokument.builder(
+                    document.getTitle(),
+                    document.getFileName(),
+                    contents)
+                    .mimeType(document.getMimeType());
+            if (document.getMetadataDokument() != null) {
+                builder.metadataDocument(document.getMetadataDokument());
+            }
+            return builder.build();
+        } catch (IOException e) {
+            throw new IOException(String.format("Could not read document %s", document.getFileName()), e);
         }
-        return builder.build();
     }
 
     public Optional<ExternalReceipt> sjekkEtterKvittering(String orgnr, String mpcId) {
         Kvittering kvittering = new Kvittering();
 
-        PayloadInterceptor payloadInterceptor = new PayloadInterceptor(kvittering::setRawReceipt);
-        SikkerDigitalPostKlient klient = sikkerDigitalPostKlientFactory.createSikkerDigitalPostKlient(AktoerOrganisasjonsnummer.of(orgnr), payloadInterceptor, metricsEndpointInterceptor);
-        return getForretningsKvittering(klient, mpcId)
-                .map(forretningsKvittering -> kvittering.setEksternKvittering(forretningsKvittering)
-                        .withCallback(klient::bekreft)
-                );
+        SikkerDigitalPostKlient klient = sikkerDigitalPostKlientFactory.getSikkerDigitalPostKlient(AktoerOrganisasjonsnummer.of(orgnr), payloadInterceptor, metricsEndpointInterceptor);
+        currentKvittering.set(kvittering);
+        try {
+            return getForretningsKvittering(klient, mpcId)
+                    .map(forretningsKvittering -> kvittering.setEksternKvittering(forretningsKvittering)
+                            .withCallback(klient::bekreft)
+                    );
+        } finally {
+            currentKvittering.remove();
+        }
     }
 
     private Optional<ForretningsKvittering> getForretningsKvittering(SikkerDigitalPostKlient klient, String mpcId) {
@@ -1,11 +1,18 @@
 package no.difi.meldingsutveksling.dpi;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import io.micrometer.core.annotation.Timed;
-import lombok.RequiredArgsConstructor;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
 import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
 import no.difi.meldingsutveksling.domain.MeldingsUtvekslingRuntimeException;
 import no.difi.move.common.cert.KeystoreProvider;
 import no.difi.move.common.cert.KeystoreProviderException;
+import no.difi.move.common.config.KeystoreProperties;
 import no.difi.sdp.client2.KlientKonfigurasjon;
 import no.difi.sdp.client2.SikkerDigitalPostKlient;
 import no.difi.sdp.client2.domain.*;
@@ -13,69 +20,79 @@ import no.difi.sdp.client2.internal.TrustedCertificates;
 import org.springframework.stereotype.Component;
 import org.springframework.ws.client.support.interceptor.ClientInterceptor;
 
+import java.io.IOException;
 import java.net.URI;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.cert.Certificate;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Creates {@link SikkerDigitalPostKlient} instances for DPI. Clients are expensive to build (keystore loading,
+ * trust store merging and a new connection pool), so clients returned from the get methods are cached per sender
+ * and interceptor set. Interceptors used with the cache must therefore be long lived instances.
+ * <p>
+ * The keystores are loaded once, and reloaded together with a cache flush when the keystore or trust store file
+ * is modified. The files are checked at most once per difi.move.dpi.keystore-check-interval.
+ */
+@Slf4j
 @Component
-@RequiredArgsConstructor
 public class SikkerDigitalPostKlientFactory {
 
     private final IntegrasjonspunktProperties props;
+    private final Cache<KlientKey, SikkerDigitalPostKlient> klientCache;
+    private final Timer createTimer;
+    private final Clock clock;
+    private volatile DpiKeystores keystores;
+    private volatile Instant keystoresChecked;
+
+    public SikkerDigitalPostKlientFactory(IntegrasjonspunktProperties props, MeterRegistry meterRegistry, Clock clock) {
+        this.props = props;
+        this.clock = clock;
+        this.klientCache = Caffeine.newBuilder()
+                .maximumSize(props.getDpi().getClientCacheSize())
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, klientCache, "dpiClients");
+        this.createTimer = meterRegistry.timer("dpi.client.create");
+    }
+
+    public SikkerDigitalPostKlient getSikkerDigitalPostKlient(AktoerOrganisasjonsnummer aktoerOrganisasjonsnummer, ClientInterceptor... clientInterceptors) {
+        DpiKeystores current = getKeystores();
+        return klientCache.get(new KlientKey(aktoerOrganisasjonsnummer.getOrganisasjonsnummer(), Arrays.asList(clientInterceptors)),
+                key -> createTimer.record(() -> createSikkerDigitalPostKlient(current,
+                        createKlientKonfigurasjonBuilder().soapInterceptors(clientInterceptors).build(),
+                        aktoerOrganisasjonsnummer)));
+    }
 
     @Timed
     public SikkerDigitalPostKlient createSikkerDigitalPostKlient(AktoerOrganisasjonsnummer aktoerOrganisasjonsnummer) {
         KlientKonfigurasjon klientKonfigurasjon = createKlientKonfigurasjonBuilder().build();
-        return createSikkerDigitalPostKlient(klientKonfigurasjon, aktoerOrganisasjonsnummer);
+        return createSikkerDigitalPostKlient(getKeystores(), klientKonfigurasjon, aktoerOrganisasjonsnummer);
     }
 
     @Timed
     public SikkerDigitalPostKlient createSikkerDigitalPostKlient(AktoerOrganisasjonsnummer aktoerOrganisasjonsnummer, ClientInterceptor... clientInterceptor) {
         KlientKonfigurasjon klientKonfigurasjon = createKlientKonfigurasjonBuilder().soapInterceptors(clientInterceptor).build();
-        return createSikkerDigitalPostKlient(klientKonfigurasjon, aktoerOrganisasjonsnummer);
+        return createSikkerDigitalPostKlient(getKeystores(), klientKonfigurasjon, aktoerOrganisasjonsnummer);
     }
 
-    private SikkerDigitalPostKlient createSikkerDigitalPostKlient(KlientKonfigurasjon klientKonfigurasjon, AktoerOrganisasjonsnummer aktoerOrganisasjonsnummer) {
+    private SikkerDigitalPostKlient createSikkerDigitalPostKlient(DpiKeystores dpiKeystores, KlientKonfigurasjon klientKonfigurasjon, AktoerOrganisasjonsnummer aktoerOrganisasjonsnummer) {
         Databehandler tekniskAvsender;
-
-        KeyStore keyStore;
-        try {
-            keyStore = KeystoreProvider.loadKeyStore(props.getDpi().getKeystore());
-        } catch (KeystoreProviderException e) {
-            throw new MeldingsUtvekslingRuntimeException("Cannot load DPI keystore", e);
-        }
-
-        if (props.getDpi().getTrustStore() != null) {
-            KeyStore trustStore;
-            try {
-                trustStore = KeystoreProvider.loadKeyStore(props.getDpi().getTrustStore());
-            } catch (KeystoreProviderException e) {
-                throw new MeldingsUtvekslingRuntimeException("Cannot load DPI trust store", e);
-            }
-            KeyStore trustedSDP = TrustedCertificates.getTrustStore();
-            Enumeration<String> aliases;
-            try {
-                aliases = trustedSDP.aliases();
-                while (aliases.hasMoreElements()) {
-                    String alias = aliases.nextElement();
-                    Certificate certificate = trustedSDP.getCertificate(alias);
-                    trustStore.setCertificateEntry(alias, certificate);
-                }
-            } catch (KeyStoreException e) {
-                throw new MeldingsUtvekslingRuntimeException("Could not get SDP truststore aliases", e);
-            }
-
-            NoekkelparOverride noekkelparOverride = new NoekkelparOverride(keyStore, trustStore,
+        if (dpiKeystores.getTrustStore() != null) {
+            NoekkelparOverride noekkelparOverride = new NoekkelparOverride(dpiKeystores.getKeyStore(), dpiKeystores.getTrustStore(),
                     props.getDpi().getKeystore().getAlias(),
                     props.getDpi().getKeystore().getPassword(),
                     false);
             tekniskAvsender = Databehandler.builder(aktoerOrganisasjonsnummer.forfremTilDatabehandler(), noekkelparOverride).build();
         } else {
             tekniskAvsender = Databehandler.builder(aktoerOrganisasjonsnummer.forfremTilDatabehandler(),
-                    Noekkelpar.fraKeyStoreUtenTrustStore(keyStore,
+                    Noekkelpar.fraKeyStoreUtenTrustStore(dpiKeystores.getKeyStore(),
                             props.getDpi().getKeystore().getAlias(),
                             props.getDpi().getKeystore().getPassword()))
                     .build();
@@ -83,6 +100,83 @@ public class SikkerDigitalPostKlientFactory {
         return new SikkerDigitalPostKlient(tekniskAvsender, klientKonfigurasjon);
     }
 
+    private DpiKeystores getKeystores() {
+        DpiKeystores current = keystores;
+        if (current != null && !isKeystoreCheckDue()) {
+            return current;
+        }
+
+        synchronized (this) {
+            current = keystores;
+            if (current != null && !isKeystoreCheckDue()) {
+                return current;
+            }
+            keystoresChecked = clock.instant();
+            long keyStoreModified = lastModified(props.getDpi().getKeystore());
+            long trustStoreModified = lastModified(props.getDpi().getTrustStore());
+            if (current == null || !current.isLoadedFrom(keyStoreModified, trustStoreModified)) {
+                if (current != null) {
+                    log.info("DPI keystore modified, reloading keystores and clearing client cache");
+                }
+                current = new DpiKeystores(loadKeyStore(), loadTrustStore(), keyStoreModified, trustStoreModified);
+                keystores = current;
+                klientCache.invalidateAll();
+            }
+            return current;
+        }
+    }
+
+    private boolean isKeystoreCheckDue() {
+        Instant checked = keystoresChecked;
+        return checked == null || !clock.instant().isBefore(checked.plus(props.getDpi().getKeystoreCheckInterval()));
+    }
+
+    private long lastModified(KeystoreProperties keystoreProperties) {
+        if (keystoreProperties == null || keystoreProperties.getPath() == null) {
+            return 0L;
+        }
+        try {
+            return keystoreProperties.getPath().lastModified();
+        } catch (IOException e) {
+            // Not a file, e.g. a classpath resource or a Windows certificate store
+            return 0L;
+        }
+    }
+
+    private KeyStore loadKeyStore() {
+        try {
+            return KeystoreProvider.loadKeyStore(props.getDpi().getKeystore());
+        } catch (KeystoreProviderException e) {
+            throw new MeldingsUtvekslingRuntimeException("Cannot load DPI keystore", e);
+        }
+    }
+
+    private KeyStore loadTrustStore() {
+        if (props.getDpi().getTrustStore() == null) {
+            return null;
+        }
+
+        KeyStore trustStore;
+        try {
+            trustStore = KeystoreProvider.loadKeyStore(props.getDpi().getTrustStore());
+        } catch (KeystoreProviderException e) {
+            throw new MeldingsUtvekslingRuntimeException("Cannot load DPI trust store", e);
+        }
+        KeyStore trustedSDP = TrustedCertificates.getTrustStore();
+        Enumeration<String> aliases;
+        try {
+            aliases = trustedSDP.aliases();
+            while (aliases.hasMoreElements()) {
+                String alias = aliases.nextElement();
+                Certificate certificate = trustedSDP.getCertificate(alias);
+                trustStore.setCertificateEntry(alias, certificate);
+            }
+        } catch (KeyStoreException e) {
+            throw new MeldingsUtvekslingRuntimeException("Could not get SDP truststore aliases", e);
+        }
+        return trustStore;
+    }
+
     private KlientKonfigurasjon.Builder createKlientKonfigurasjonBuilder() {
         return KlientKonfigurasjon.builder(getMiljo())
                 .connectionTimeout(20, TimeUnit.SECONDS)
@@ -92,4 +186,22 @@ public class SikkerDigitalPostKlientFactory {
     private Miljo getMiljo() {
         return new Miljo(null, URI.create(props.getDpi().getEndpoint()));
     }
+
+    @Value
+    private static class KlientKey {
+        String orgnr;
+        List<ClientInterceptor> interceptors;
+    }
+
+    @Value
+    private static class DpiKeystores {
+        KeyStore keyStore;
+        KeyStore trustStore;
+        long keyStoreModified;
+        long trustStoreModified;
+
+        boolean isLoadedFrom(long keyStoreModified, long trustStoreModified) {
+            return this.keyStoreModified == keyStoreModified && this.trustStoreModified == trustStoreModified;
+        }
+    }
 }
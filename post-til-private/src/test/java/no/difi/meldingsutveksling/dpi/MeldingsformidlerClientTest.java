@@ -0,0 +1,115 @@
+package no.difi.meldingsutveksling.dpi;
+
+import no.difi.meldingsutveksling.config.DigitalPostInnbyggerConfig;
+import no.difi.sdp.client2.domain.Dokumentpakke;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.util.unit.DataSize;
+import org.springframework.ws.client.support.interceptor.ClientInterceptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+public class MeldingsformidlerClientTest {
+
+    private final List<String> closed = new ArrayList<>();
+    private SikkerDigitalPostKlientFactory sikkerDigitalPostKlientFactory;
+    private ForsendelseHandlerFactory forsendelseHandlerFactory;
+    private MeldingsformidlerClient client;
+
+    @Before
+    public void setup() {
+        DigitalPostInnbyggerConfig config = new DigitalPostInnbyggerConfig()
+                .setSendHeapLimit(DataSize.ofKilobytes(1));
+        sikkerDigitalPostKlientFactory = mock(SikkerDigitalPostKlientFactory.class);
+        forsendelseHandlerFactory = mock(ForsendelseHandlerFactory.class);
+        client = new MeldingsformidlerClient(config, sikkerDigitalPostKlientFactory, forsendelseHandlerFactory,
+                mock(DpiReceiptMapper.class), mock(ClientInterceptor.class));
+    }
+
+    @Test
+    public void shouldReadDocumentsFromTheirSourceAndCloseThem() throws IOException {
+        Document document = document("hoveddokument.pdf", "main");
+        Document attachment = document("vedlegg.pdf", "attachment");
+
+        Dokumentpakke dokumentpakke = client.createDokumentpakke(document, Collections.singletonList(attachment));
+
+        assertThat(new String(dokumentpakke.getHoveddokument().getBytes(), StandardCharsets.UTF_8), is("main"));
+        assertThat(dokumentpakke.getHoveddokument().getFilnavn(), is("hoveddokument.pdf"));
+        assertThat(dokumentpakke.getVedlegg().size(), is(1));
+        assertThat(new String(dokumentpakke.getVedlegg().get(0).getBytes(), StandardCharsets.UTF_8), is("attachment"));
+        assertThat(closed, equalTo(Arrays.asList("vedlegg.pdf", "hoveddokument.pdf")));
+    }
+
+    @Test(timeout = 10000)
+    public void shouldFailSendWhenDocumentCannotBeRead() {
+        MeldingsformidlerRequest request = mock(MeldingsformidlerRequest.class);
+        when(request.getDocument()).thenReturn(unreadable("hoveddokument.pdf"));
+        when(request.getAttachments()).thenReturn(Collections.emptyList());
+
+        // The second send only gets its heap permits if the first one released them
+        for (int i = 0; i < 2; i++) {
+            try {
+                client.sendMelding(request);
+                fail("Expected MeldingsformidlerException");
+            } catch (MeldingsformidlerException e) {
+                assertThat(e.getCause(), instanceOf(IOException.class));
+            }
+        }
+
+        verify(forsendelseHandlerFactory, never()).create(any());
+        verifyNoInteractions(sikkerDigitalPostKlientFactory);
+    }
+
+    @Test
+    public void shouldCloseReadDocumentsWhenAnAttachmentCannotBeRead() {
+        Document document = document("hoveddokument.pdf", "main");
+        Document readable = document("vedlegg1.pdf", "attachment");
+        Document unreadable = unreadable("vedlegg2.pdf");
+
+        try {
+            client.createDokumentpakke(document, Arrays.asList(readable, unreadable));
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("Could not read document vedlegg2.pdf"));
+        }
+        assertThat(closed, equalTo(Collections.singletonList("vedlegg1.pdf")));
+    }
+
+    private Document document(String fileName, String content) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        InputStreamSource source = () -> new FilterInputStream(new ByteArrayInputStream(bytes)) {
+            @Override
+            public void close() throws IOException {
+                closed.add(fileName);
+                super.close();
+            }
+        };
+        return new Document(source, bytes.length, "application/pdf", fileName, fileName);
+    }
+
+    private Document unreadable(String fileName) {
+        return new Document(() -> {
+            throw new IOException("Decryption failed");
+        }, 4096, "application/pdf", fileName, fileName);
+    }
+}
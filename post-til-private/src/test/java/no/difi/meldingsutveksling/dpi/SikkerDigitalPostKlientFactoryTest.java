@@ -0,0 +1,106 @@
+package no.difi.meldingsutveksling.dpi;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.difi.meldingsutveksling.config.DigitalPostInnbyggerConfig;
+import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
+import no.difi.move.common.config.KeystoreProperties;
+import no.difi.sdp.client2.SikkerDigitalPostKlient;
+import no.difi.sdp.client2.domain.AktoerOrganisasjonsnummer;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.FileSystemResource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SikkerDigitalPostKlientFactoryTest {
+
+    private static final AktoerOrganisasjonsnummer SENDER = AktoerOrganisasjonsnummer.of("910077473");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final AtomicReference<Instant> now = new AtomicReference<>(Instant.parse("2020-11-02T10:00:00Z"));
+    private File keystoreFile;
+    private SikkerDigitalPostKlientFactory factory;
+
+    @Before
+    public void setup() throws IOException {
+        keystoreFile = temporaryFolder.newFile("keystore.jks");
+        try (InputStream keystore = getClass().getClassLoader().getResourceAsStream("dpi-test-keystore.jks")) {
+            Files.copy(keystore, keystoreFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        KeystoreProperties keystoreProperties = new KeystoreProperties();
+        keystoreProperties.setAlias("910077473");
+        keystoreProperties.setPassword("changeit");
+        keystoreProperties.setType("jks");
+        keystoreProperties.setLockProvider(false);
+        keystoreProperties.setPath(new FileSystemResource(keystoreFile));
+        IntegrasjonspunktProperties props = new IntegrasjonspunktProperties()
+                .setDpi(new DigitalPostInnbyggerConfig()
+                        .setEndpoint("http://localhost/dpi")
+                        .setClientMaxConnectionPoolSize(10)
+                        .setKeystoreCheckInterval(Duration.ofMinutes(1))
+                        .setKeystore(keystoreProperties));
+
+        Clock clock = mock(Clock.class);
+        when(clock.instant()).thenAnswer(invocation -> now.get());
+        factory = new SikkerDigitalPostKlientFactory(props, new SimpleMeterRegistry(), clock);
+    }
+
+    @Test
+    public void shouldReuseClientWhileKeystoreIsUnchanged() {
+        SikkerDigitalPostKlient first = factory.getSikkerDigitalPostKlient(SENDER);
+
+        advance(Duration.ofMinutes(5));
+
+        assertThat(factory.getSikkerDigitalPostKlient(SENDER), is(sameInstance(first)));
+    }
+
+    @Test
+    public void shouldNotCheckKeystoreBeforeCheckIntervalHasPassed() {
+        SikkerDigitalPostKlient first = factory.getSikkerDigitalPostKlient(SENDER);
+
+        touchKeystore();
+        advance(Duration.ofSeconds(59));
+
+        assertThat(factory.getSikkerDigitalPostKlient(SENDER), is(sameInstance(first)));
+    }
+
+    @Test
+    public void shouldReloadKeystoreAndClearClientsWhenKeystoreIsModified() {
+        SikkerDigitalPostKlient first = factory.getSikkerDigitalPostKlient(SENDER);
+
+        touchKeystore();
+        advance(Duration.ofMinutes(1));
+        SikkerDigitalPostKlient reloaded = factory.getSikkerDigitalPostKlient(SENDER);
+
+        assertThat(reloaded, is(not(sameInstance(first))));
+        assertThat(factory.getSikkerDigitalPostKlient(SENDER), is(sameInstance(reloaded)));
+    }
+
+    private void advance(Duration duration) {
+        now.updateAndGet(instant -> instant.plus(duration));
+    }
+
+    private void touchKeystore() {
+        assertThat(keystoreFile.setLastModified(keystoreFile.lastModified() + 10_000), is(true));
+    }
+}
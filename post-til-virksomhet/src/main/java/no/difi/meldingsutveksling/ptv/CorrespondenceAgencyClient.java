@@ -1,11 +1,18 @@
 package no.difi.meldingsutveksling.ptv;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.httpcomponents.PoolingHttpClientConnectionManagerMetricsBinder;
 import lombok.SneakyThrows;
 import no.altinn.services._2009._10.Test;
 import no.altinn.services.serviceengine.correspondence._2009._10.CorrespondenceStatusHistoryResult;
+import org.apache.http.HttpClientConnection;
 import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.protocol.HTTP;
@@ -27,32 +34,51 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
  * Used to send messages to Altinn InsertCorrespondence. InsertCorrespondence is used to send information to private companies.
+ * <p>
+ * With difi.move.dpv.mtom, attachments are sent as MTOM/XOP parts, and read from their data handlers when the request
+ * is written. The written request is then spooled to a temporary file above difi.move.dpv.request-buffer-size. The
+ * WS-Security signature is still computed over an envelope built in memory. Pool usage, the time spent waiting for a pooled connection, and the latency of each call are exported
+ * as metrics.
  */
 @Component
 public class CorrespondenceAgencyClient extends WebServiceGatewaySupport {
 
     private final String endpointUrl;
+    private final MeterRegistry meterRegistry;
+    private final PoolingHttpClientConnectionManager connectionManager;
 
     /**
      * Creates client to use Altinn Correspondence Agency
      */
-    public CorrespondenceAgencyClient(CorrespondenceAgencyConfiguration config) {
+    public CorrespondenceAgencyClient(CorrespondenceAgencyConfiguration config, MeterRegistry meterRegistry) {
         super(getFactory());
         this.endpointUrl = config.getEndpointUrl();
+        this.meterRegistry = meterRegistry;
+        this.connectionManager = createConnectionManager(config);
+        new PoolingHttpClientConnectionManagerMetricsBinder(connectionManager, "dpv").bindTo(meterRegistry);
+
         Jaxb2Marshaller marshaller = new Jaxb2Marshaller();
         String contextPath = "no.altinn.services.serviceengine.correspondence._2009._10";
         String testContextPath = "no.altinn.services._2009._10";
         marshaller.setContextPaths(contextPath, testContextPath);
         marshaller.setMarshallerProperties(getMarshallerProperties());
+        marshaller.setMtomEnabled(config.isMtom());
 
         WebServiceTemplate template = getWebServiceTemplate();
         template.setInterceptors(getInterceptors(config).toArray(new ClientInterceptor[0]));
         template.setMarshaller(marshaller);
         template.setUnmarshaller(marshaller);
-        template.setMessageSender(createMessageSender());
+        HttpClient httpClient = getHttpClient(config);
+        // Without MTOM the attachments are encoded into the envelope, which is held in memory while it is signed
+        template.setMessageSender(config.isMtom()
+                ? new SpoolingHttpComponentsMessageSender(httpClient, config.getRequestBufferSize())
+                : new HttpComponentsMessageSender(httpClient));
     }
 
     protected Map<String, Object> getMarshallerProperties() {
@@ -77,36 +103,52 @@ public class CorrespondenceAgencyClient extends WebServiceGatewaySupport {
         return Collections.emptyList();
     }
 
-    private HttpComponentsMessageSender createMessageSender() {
-        final HttpComponentsMessageSender messageSender = new HttpComponentsMessageSender();
-        messageSender.setHttpClient(getHttpClient());
-        return messageSender;
-    }
-
-    private HttpClient getHttpClient() {
+    private HttpClient getHttpClient(CorrespondenceAgencyConfiguration config) {
         return HttpClients.custom()
                 .addInterceptorFirst((HttpRequestInterceptor) (httpRequest, httpContext) -> {
                     if (httpRequest.containsHeader(HTTP.CONTENT_LEN)) {
                         httpRequest.removeHeaders(HTTP.CONTENT_LEN);
                     }
                 })
-                .setConnectionManager(getConnectionManager())
-                .setDefaultRequestConfig(getRequestConfig())
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(getRequestConfig(config))
                 .build();
     }
 
-    private PoolingHttpClientConnectionManager getConnectionManager() {
-        PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
-        cm.setMaxTotal(18);
-        cm.setDefaultMaxPerRoute(6);
+    private PoolingHttpClientConnectionManager createConnectionManager(CorrespondenceAgencyConfiguration config) {
+        Timer leaseTimer = meterRegistry.timer("dpv.connection.lease");
+        PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager() {
+            @Override
+            public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+                ConnectionRequest request = super.requestConnection(route, state);
+                return new ConnectionRequest() {
+                    @Override
+                    public HttpClientConnection get(long timeout, TimeUnit timeUnit) throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                        long start = System.nanoTime();
+                        try {
+                            return request.get(timeout, timeUnit);
+                        } finally {
+                            leaseTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                        }
+                    }
+
+                    @Override
+                    public boolean cancel() {
+                        return request.cancel();
+                    }
+                };
+            }
+        };
+        cm.setMaxTotal(config.getMaxConnections());
+        cm.setDefaultMaxPerRoute(config.getMaxConnectionsPerRoute());
         return cm;
     }
 
-    private RequestConfig getRequestConfig() {
+    private RequestConfig getRequestConfig(CorrespondenceAgencyConfiguration config) {
         return RequestConfig.custom()
-                .setSocketTimeout(30000)
-                .setConnectTimeout(30000)
-                .setConnectionRequestTimeout(30000)
+                .setSocketTimeout(config.getSocketTimeout())
+                .setConnectTimeout(config.getConnectTimeout())
+                .setConnectionRequestTimeout(config.getConnectionRequestTimeout())
                 .setCircularRedirectsAllowed(true)
                 .setRedirectsEnabled(true)
                 .setRelativeRedirectsAllowed(true)
@@ -136,23 +178,36 @@ public class CorrespondenceAgencyClient extends WebServiceGatewaySupport {
      */
     public Object sendCorrespondence(Object payload) {
         final String soapAction = "http://www.altinn.no/services/ServiceEngine/Correspondence/2009/10/ICorrespondenceAgencyExternal/InsertCorrespondenceV2";
-        return getWebServiceTemplate().marshalSendAndReceive(this.endpointUrl, payload, getActionCallback(soapAction));
+        return timed("InsertCorrespondenceV2", () -> getWebServiceTemplate().marshalSendAndReceive(this.endpointUrl, payload, getActionCallback(soapAction)));
     }
 
     public Object sendStatusRequest(Object payload) {
         final String soapAction = "http://www.altinn.no/services/ServiceEngine/Correspondence/2009/10/ICorrespondenceAgencyExternal/GetCorrespondenceStatusDetailsV2";
-        return getWebServiceTemplate().marshalSendAndReceive(this.endpointUrl, payload, getActionCallback(soapAction));
+        return timed("GetCorrespondenceStatusDetailsV2", () -> getWebServiceTemplate().marshalSendAndReceive(this.endpointUrl, payload, getActionCallback(soapAction)));
     }
 
     public CorrespondenceStatusHistoryResult sendStatusHistoryRequest(Object payload) {
         final String soapAction = "http://www.altinn.no/services/ServiceEngine/Correspondence/2009/10/ICorrespondenceAgencyExternal/GetCorrespondenceStatusHistory";
-        return (CorrespondenceStatusHistoryResult) getWebServiceTemplate().marshalSendAndReceive(this.endpointUrl, payload, getActionCallback(soapAction));
+        return (CorrespondenceStatusHistoryResult) timed("GetCorrespondenceStatusHistory", () -> getWebServiceTemplate().marshalSendAndReceive(this.endpointUrl, payload, getActionCallback(soapAction)));
     }
 
     public Object sendTestRequest() {
         final String soapAction = "http://www.altinn.no/services/2009/10/IAltinnContractBase/Test";
         Test testRequest = new Test();
-        return getWebServiceTemplate().marshalSendAndReceive(this.endpointUrl, testRequest, getActionCallback(soapAction));
+        return timed("Test", () -> getWebServiceTemplate().marshalSendAndReceive(this.endpointUrl, testRequest, getActionCallback(soapAction)));
+    }
+
+    private Object timed(String action, Supplier<Object> call) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "success";
+        try {
+            return call.get();
+        } catch (RuntimeException e) {
+            outcome = "error";
+            throw e;
+        } finally {
+            sample.stop(meterRegistry.timer("dpv.request", "action", action, "outcome", outcome));
+        }
     }
 
     @SneakyThrows(URISyntaxException.class)
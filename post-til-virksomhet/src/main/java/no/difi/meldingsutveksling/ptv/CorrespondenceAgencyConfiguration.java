@@ -13,5 +13,12 @@ public class CorrespondenceAgencyConfiguration {
     private String nextmoveFiledir;
     private String endpointUrl;
     private boolean allowForwarding;
+    private boolean mtom;
+    private int maxConnections = 18;
+    private int maxConnectionsPerRoute = 6;
+    private int connectTimeout = 30000;
+    private int socketTimeout = 30000;
+    private int connectionRequestTimeout = 30000;
+    private int requestBufferSize = 1024 * 1024;
 
 }
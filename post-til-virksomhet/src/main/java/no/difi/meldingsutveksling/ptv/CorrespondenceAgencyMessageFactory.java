@@ -15,7 +15,6 @@ import no.altinn.services.serviceengine.correspondence._2009._10.InsertCorrespon
 import no.altinn.services.serviceengine.reporteeelementlist._2010._10.BinaryAttachmentExternalBEV2List;
 import no.altinn.services.serviceengine.reporteeelementlist._2010._10.BinaryAttachmentV2;
 import no.arkivverket.standarder.noark5.arkivmelding.Arkivmelding;
-import no.arkivverket.standarder.noark5.arkivmelding.Journalpost;
 import no.difi.meldingsutveksling.DateTimeUtil;
 import no.difi.meldingsutveksling.InputStreamDataSource;
 import no.difi.meldingsutveksling.api.OptionalCryptoMessagePersister;
@@ -95,12 +94,11 @@ public class CorrespondenceAgencyMessageFactory {
         Map<String, BusinessMessageFile> fileMap = message.getFiles().stream()
                 .collect(Collectors.toMap(BusinessMessageFile::getFilename, p -> p));
 
-        Arkivmelding arkivmelding = getArkivmelding(message, fileMap);
-        Journalpost jp = arkivmeldingUtil.getJournalpost(arkivmelding);
+        ArkivmeldingMetadata metadata = getArkivmeldingMetadata(message, fileMap);
 
         BinaryAttachmentExternalBEV2List attachmentExternalBEV2List = new BinaryAttachmentExternalBEV2List();
 
-        List<BusinessMessageFile> files = arkivmeldingUtil.getFilenames(arkivmelding)
+        List<BusinessMessageFile> files = metadata.getFilenames()
                 .stream()
                 .map(fileMap::get)
                 .filter(Objects::nonNull).collect(Collectors.toList());
@@ -108,12 +106,25 @@ public class CorrespondenceAgencyMessageFactory {
         attachmentExternalBEV2List.getBinaryAttachmentV2().addAll(getAttachments(message.getMessageId(), files, reject));
 
         return create(message,
-                jp.getOffentligTittel(),
-                jp.getOffentligTittel(),
-                jp.getTittel(),
+                metadata.getOffentligTittel(),
+                metadata.getOffentligTittel(),
+                metadata.getTittel(),
                 attachmentExternalBEV2List);
     }
 
+    private ArkivmeldingMetadata getArkivmeldingMetadata(NextMoveOutMessage message, Map<String, BusinessMessageFile> fileMap) {
+        // Messages uploaded before the metadata was stored with the message are read from arkivmelding.xml
+        if (message.getArkivmeldingMetadata() != null) {
+            return message.getArkivmeldingMetadata();
+        }
+
+        Arkivmelding arkivmelding = getArkivmelding(message, fileMap);
+        return ArkivmeldingMetadata.of(
+                arkivmeldingUtil.getSaksmappe(arkivmelding),
+                arkivmeldingUtil.getJournalpost(arkivmelding),
+                arkivmeldingUtil.getFilenames(arkivmelding));
+    }
+
     private Arkivmelding getArkivmelding(NextMoveOutMessage message, Map<String, BusinessMessageFile> fileMap) {
         BusinessMessageFile arkivmeldingFile = Optional.ofNullable(fileMap.get(ARKIVMELDING_FILE))
                 .orElseThrow(() -> new NextMoveRuntimeException(String.format("%s not found for message %s", ARKIVMELDING_FILE, message.getMessageId())));
@@ -288,7 +299,7 @@ public class CorrespondenceAgencyMessageFactory {
         return OffsetDateTime.now(clock).plusMinutes(5);
     }
 
-    public CorrespondenceStatusHistoryRequest createReceiptRequest(Set<Conversation> conversations) {
+    public CorrespondenceStatusHistoryRequest createReceiptRequest(Collection<Conversation> conversations) {
         no.altinn.services.serviceengine.correspondence._2009._10.ObjectFactory of = new no.altinn.services
                 .serviceengine.correspondence._2009._10.ObjectFactory();
         CorrespondenceStatusHistoryRequest historyRequest = of.createCorrespondenceStatusHistoryRequest();
@@ -0,0 +1,171 @@
+package no.difi.meldingsutveksling.ptv;
+
+import com.google.common.io.ByteSource;
+import com.google.common.io.FileBackedOutputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.springframework.ws.WebServiceMessage;
+import org.springframework.ws.transport.WebServiceConnection;
+import org.springframework.ws.transport.http.AbstractHttpSenderConnection;
+import org.springframework.ws.transport.http.HttpComponentsMessageSender;
+import org.springframework.ws.transport.http.HttpTransportConstants;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Sends requests like {@link HttpComponentsMessageSender}, but requests larger than requestBufferSize bytes are
+ * buffered in a temporary file instead of in memory. Spring WS writes the whole request before the HTTP call is
+ * made, so the MTOM attachments of a correspondence would otherwise be held in memory until the call completes.
+ * Only used with MTOM, as base64 encoded attachments are part of the envelope held in memory for signing anyway.
+ */
+class SpoolingHttpComponentsMessageSender extends HttpComponentsMessageSender {
+
+    private final int requestBufferSize;
+
+    SpoolingHttpComponentsMessageSender(HttpClient httpClient, int requestBufferSize) {
+        super(httpClient);
+        this.requestBufferSize = requestBufferSize;
+    }
+
+    @Override
+    public WebServiceConnection createConnection(URI uri) throws IOException {
+        HttpPost httpPost = new HttpPost(uri);
+        if (isAcceptGzipEncoding()) {
+            httpPost.addHeader(HttpTransportConstants.HEADER_ACCEPT_ENCODING, HttpTransportConstants.CONTENT_ENCODING_GZIP);
+        }
+        return new SpoolingConnection(getHttpClient(), httpPost, createContext(uri), requestBufferSize);
+    }
+
+    private static class SpoolingConnection extends AbstractHttpSenderConnection {
+
+        private final HttpClient httpClient;
+        private final HttpPost httpPost;
+        private final HttpContext httpContext;
+        private final FileBackedOutputStream requestBuffer;
+        private HttpResponse httpResponse;
+
+        private SpoolingConnection(HttpClient httpClient, HttpPost httpPost, HttpContext httpContext, int requestBufferSize) {
+            this.httpClient = httpClient;
+            this.httpPost = httpPost;
+            this.httpContext = httpContext;
+            this.requestBuffer = new FileBackedOutputStream(requestBufferSize, true);
+        }
+
+        @Override
+        public URI getUri() throws URISyntaxException {
+            return new URI(httpPost.getURI().toString());
+        }
+
+        @Override
+        public void addRequestHeader(String name, String value) {
+            httpPost.addHeader(name, value);
+        }
+
+        @Override
+        protected OutputStream getRequestOutputStream() {
+            return requestBuffer;
+        }
+
+        @Override
+        protected void onSendAfterWrite(WebServiceMessage message) throws IOException {
+            requestBuffer.close();
+            ByteSource request = requestBuffer.asByteSource();
+            httpPost.setEntity(new ByteSourceEntity(request, request.size()));
+            httpResponse = httpContext != null ? httpClient.execute(httpPost, httpContext) : httpClient.execute(httpPost);
+        }
+
+        @Override
+        protected int getResponseCode() {
+            return httpResponse.getStatusLine().getStatusCode();
+        }
+
+        @Override
+        protected String getResponseMessage() {
+            return httpResponse.getStatusLine().getReasonPhrase();
+        }
+
+        @Override
+        protected long getResponseContentLength() {
+            HttpEntity entity = httpResponse.getEntity();
+            return entity != null ? entity.getContentLength() : 0;
+        }
+
+        @Override
+        protected InputStream getRawResponseInputStream() throws IOException {
+            HttpEntity entity = httpResponse.getEntity();
+            if (entity == null) {
+                throw new IllegalStateException("Response has no enclosing response entity, cannot create input stream");
+            }
+            return entity.getContent();
+        }
+
+        @Override
+        public Iterator<String> getResponseHeaderNames() {
+            return Arrays.stream(httpResponse.getAllHeaders()).map(Header::getName).iterator();
+        }
+
+        @Override
+        public Iterator<String> getResponseHeaders(String name) {
+            return Arrays.stream(httpResponse.getHeaders(name)).map(Header::getValue).iterator();
+        }
+
+        @Override
+        public void onClose() throws IOException {
+            try {
+                if (httpResponse != null && httpResponse.getEntity() != null) {
+                    EntityUtils.consume(httpResponse.getEntity());
+                }
+            } finally {
+                requestBuffer.reset();
+            }
+        }
+    }
+
+    private static class ByteSourceEntity extends AbstractHttpEntity {
+
+        private final ByteSource source;
+        private final long size;
+
+        private ByteSourceEntity(ByteSource source, long size) {
+            this.source = source;
+            this.size = size;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return size;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return source.openStream();
+        }
+
+        @Override
+        public void writeTo(OutputStream outputStream) throws IOException {
+            source.copyTo(outputStream);
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+}
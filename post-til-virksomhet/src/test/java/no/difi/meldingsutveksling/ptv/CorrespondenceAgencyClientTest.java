@@ -1,5 +1,6 @@
 package no.difi.meldingsutveksling.ptv;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import no.altinn.schemas.serviceengine.formsengine._2009._10.TransportType;
 import no.altinn.schemas.services.serviceengine.correspondence._2010._10.AttachmentsV2;
 import no.altinn.schemas.services.serviceengine.correspondence._2010._10.ExternalContentV2;
@@ -33,7 +34,7 @@ public class CorrespondenceAgencyClientTest {
         }
 
         CorrespondenceAgencyConfiguration config = new CorrespondenceAgencyConfiguration();
-        final CorrespondenceAgencyClient correspondenceAgencyClient = new CorrespondenceAgencyClient(config);
+        final CorrespondenceAgencyClient correspondenceAgencyClient = new CorrespondenceAgencyClient(config, new SimpleMeterRegistry());
         correspondenceAgencyClient.sendCorrespondence(createInsertCorrespondenceV2());
     }
 
@@ -0,0 +1,153 @@
+package no.difi.meldingsutveksling.ptv;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.StreamUtils;
+import org.springframework.ws.WebServiceMessage;
+import org.springframework.ws.WebServiceMessageFactory;
+import org.springframework.ws.transport.HeadersAwareSenderWebServiceConnection;
+import org.springframework.ws.transport.WebServiceConnection;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
+import static org.mockito.Mockito.mock;
+
+public class SpoolingHttpComponentsMessageSenderTest {
+
+    private static final int BUFFER_SIZE = 1024;
+
+    private final AtomicReference<byte[]> receivedBody = new AtomicReference<>();
+    private final AtomicReference<String> receivedContentLength = new AtomicReference<>();
+    private final AtomicReference<String> receivedSoapAction = new AtomicReference<>();
+    private final AtomicInteger spooledDuringRequest = new AtomicInteger();
+    private final AtomicInteger responseCode = new AtomicInteger(200);
+    private HttpServer server;
+    private CloseableHttpClient httpClient;
+    private SpoolingHttpComponentsMessageSender sender;
+    private URI uri;
+
+    @Before
+    public void setup() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/correspondence", exchange -> {
+            spooledDuringRequest.set(spooledFiles());
+            receivedBody.set(StreamUtils.copyToByteArray(exchange.getRequestBody()));
+            receivedContentLength.set(exchange.getRequestHeaders().getFirst("Content-Length"));
+            receivedSoapAction.set(exchange.getRequestHeaders().getFirst("SOAPAction"));
+            byte[] response = "<response/>".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/xml");
+            exchange.sendResponseHeaders(responseCode.get(), response.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(response);
+            }
+        });
+        server.start();
+        uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/correspondence");
+        httpClient = HttpClients.createDefault();
+        sender = new SpoolingHttpComponentsMessageSender(httpClient, BUFFER_SIZE);
+    }
+
+    @After
+    public void teardown() throws IOException {
+        httpClient.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void shouldSendSmallRequestFromMemory() throws IOException {
+        int before = spooledFiles();
+        byte[] request = request(BUFFER_SIZE / 2);
+
+        String response = send(request);
+
+        assertThat(response, is("<response/>"));
+        assertThat(Arrays.equals(receivedBody.get(), request), is(true));
+        assertThat(receivedContentLength.get(), is(String.valueOf(request.length)));
+        assertThat(receivedSoapAction.get(), is("InsertCorrespondenceV2"));
+        assertThat(spooledDuringRequest.get(), is(before));
+    }
+
+    @Test
+    public void shouldSpoolLargeRequestToTemporaryFileAndDeleteItOnClose() throws IOException {
+        int before = spooledFiles();
+        byte[] request = request(BUFFER_SIZE * 64);
+
+        String response = send(request);
+
+        assertThat(response, is("<response/>"));
+        assertThat(Arrays.equals(receivedBody.get(), request), is(true));
+        assertThat(receivedContentLength.get(), is(String.valueOf(request.length)));
+        assertThat(spooledDuringRequest.get(), is(before + 1));
+        assertThat(spooledFiles(), is(before));
+    }
+
+    @Test
+    public void shouldReportErrorResponse() throws IOException {
+        responseCode.set(500);
+
+        try (WebServiceConnection connection = sender.createConnection(uri)) {
+            connection.send(message(request(BUFFER_SIZE * 2)));
+
+            assertThat(connection.hasError(), is(true));
+            assertThat(connection.getErrorMessage(), is("Internal Server Error"));
+        }
+    }
+
+    private String send(byte[] request) throws IOException {
+        try (WebServiceConnection connection = sender.createConnection(uri)) {
+            ((HeadersAwareSenderWebServiceConnection) connection).addRequestHeader("SOAPAction", "InsertCorrespondenceV2");
+            connection.send(message(request));
+            assertThat(connection.hasError(), is(false));
+
+            WebServiceMessageFactory messageFactory = mock(WebServiceMessageFactory.class);
+            AtomicReference<String> response = new AtomicReference<>();
+            given(messageFactory.createWebServiceMessage(any(InputStream.class))).willAnswer(invocation -> {
+                response.set(StreamUtils.copyToString(invocation.getArgument(0), StandardCharsets.UTF_8));
+                return mock(WebServiceMessage.class);
+            });
+            connection.receive(messageFactory);
+            return response.get();
+        }
+    }
+
+    private WebServiceMessage message(byte[] content) throws IOException {
+        WebServiceMessage message = mock(WebServiceMessage.class);
+        willAnswer(invocation -> {
+            invocation.<OutputStream>getArgument(0).write(content);
+            return null;
+        }).given(message).writeTo(any(OutputStream.class));
+        return message;
+    }
+
+    private byte[] request(int size) {
+        byte[] request = new byte[size];
+        for (int i = 0; i < size; i++) {
+            request[i] = (byte) ('a' + i % 26);
+        }
+        return request;
+    }
+
+    private int spooledFiles() {
+        File[] files = new File(System.getProperty("java.io.tmpdir"))
+                .listFiles((dir, name) -> name.startsWith("FileBackedOutputStream"));
+        return files != null ? files.length : 0;
+    }
+}
@@ -1,10 +1,15 @@
 package no.difi.meldingsutveksling.serviceregistry;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.base.Strings;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.util.concurrent.RateLimiter;
 import com.nimbusds.jose.proc.BadJWSException;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import no.difi.meldingsutveksling.ConcurrentTasks;
 import no.difi.meldingsutveksling.config.CacheConfig;
 import no.difi.meldingsutveksling.config.IntegrasjonspunktProperties;
 import no.difi.meldingsutveksling.nextmove.NextMoveRuntimeException;
@@ -17,8 +22,13 @@ import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestClientException;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 @Slf4j
 @Component
@@ -30,8 +40,86 @@ public class ServiceRegistryClient {
     private final ObjectMapper objectMapper;
     private final IntegrasjonspunktProperties props;
 
-    @Cacheable(CacheConfig.CACHE_LOAD_IDENTIFIER_RESOURCE)
+    // Created on first use, as the cache settings are read from properties
+    private final Supplier<LoadingCache<SRParameter, IdentifierResource>> identifierResources =
+            Suppliers.memoize(this::createIdentifierResourceCache);
+    private final Supplier<RateLimiter> prefetchRateLimiter =
+            Suppliers.memoize(() -> RateLimiter.create(props.getServiceregistryCache().getPrefetchRate()));
+
+    /**
+     * Returns the identifier resource for the parameter from the cache. Concurrent lookups of the same parameter
+     * share one request to the service registry. A cached resource is reloaded in the background when it is used
+     * after difi.move.serviceregistry-cache.refresh-after, and the cached resource is returned in the meantime.
+     */
     public IdentifierResource loadIdentifierResource(SRParameter parameter) throws ServiceRegistryLookupException {
+        applyPrintLookup(parameter);
+        try {
+            return identifierResources.get().get(parameter);
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof ServiceRegistryLookupException) {
+                throw (ServiceRegistryLookupException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Loads the identifier resources that are not already cached, with up to
+     * difi.move.serviceregistry-cache.prefetch-concurrency lookups at the same time, and at most
+     * difi.move.serviceregistry-cache.prefetch-rate lookups per second. Failed lookups are not cached, and fail
+     * again when the parameter is looked up.
+     */
+    public void prefetchIdentifierResources(Collection<SRParameter> parameters, Executor executor) {
+        LoadingCache<SRParameter, IdentifierResource> cache = identifierResources.get();
+        Set<SRParameter> missing = new LinkedHashSet<>();
+        for (SRParameter parameter : parameters) {
+            applyPrintLookup(parameter);
+            if (cache.getIfPresent(parameter) == null) {
+                missing.add(parameter);
+            }
+        }
+
+        RateLimiter rateLimiter = prefetchRateLimiter.get();
+        ConcurrentTasks.forEach(missing, props.getServiceregistryCache().getPrefetchConcurrency(), executor, parameter -> {
+            rateLimiter.acquire();
+            try {
+                cache.get(parameter);
+            } catch (RuntimeException e) {
+                log.debug("Prefetch of service record failed for {}", parameter, e);
+            }
+        });
+        log.debug("Prefetched {} of {} service record lookups", missing.size(), parameters.size());
+    }
+
+    public void invalidateIdentifierResources() {
+        identifierResources.get().invalidateAll();
+    }
+
+    public LoadingCache<SRParameter, IdentifierResource> getIdentifierResourceCache() {
+        return identifierResources.get();
+    }
+
+    private LoadingCache<SRParameter, IdentifierResource> createIdentifierResourceCache() {
+        IntegrasjonspunktProperties.ServiceRegistryCache cache = props.getServiceregistryCache();
+        return Caffeine.newBuilder()
+                .maximumSize(cache.getMaximumSize())
+                .refreshAfterWrite(cache.getRefreshAfter())
+                .expireAfterWrite(cache.getExpireAfter())
+                .recordStats()
+                .build(this::fetchIdentifierResource);
+    }
+
+    /**
+     * Applied before the parameter is used as cache key, so that the key does not change while it is cached
+     */
+    private void applyPrintLookup(SRParameter parameter) {
+        if (!props.getFeature().isEnableDsfPrintLookup()) {
+            //Default value in SR is true. If you want to avoid DSF lookup set this property to false.
+            parameter.setPrint(props.getFeature().isEnableDsfPrintLookup());
+        }
+    }
+
+    private IdentifierResource fetchIdentifierResource(SRParameter parameter) throws ServiceRegistryLookupException {
         String identifierResourceString = getIdentifierResourceString(parameter);
 
         try {
@@ -44,10 +132,6 @@ public class ServiceRegistryClient {
     }
 
     private String getIdentifierResourceString(SRParameter parameter) throws ServiceRegistryLookupException {
-        if(!props.getFeature().isEnableDsfPrintLookup()) {
-            //Default value in SR is true. If you want to avoid DSF lookup set this property to false.
-            parameter.setPrint(props.getFeature().isEnableDsfPrintLookup());
-        }
         try {
             return client.getResource(parameter.getUrlTemplate(), parameter.getUrlVariables());
         } catch (HttpClientErrorException httpException) {
@@ -10,8 +10,10 @@ import no.difi.meldingsutveksling.serviceregistry.externalmodel.InfoRecord;
 import no.difi.meldingsutveksling.serviceregistry.externalmodel.ServiceRecord;
 import org.springframework.stereotype.Service;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Executor;
 
 import static no.difi.meldingsutveksling.serviceregistry.SRMarkers.markerFrom;
 import static no.difi.meldingsutveksling.serviceregistry.externalmodel.ServiceRecord.hasDocumentType;
@@ -28,6 +30,14 @@ public class ServiceRegistryLookup {
         return loadServiceRecord(parameter);
     }
 
+    /**
+     * Loads the service records for the parameters into the cache, so that later lookups for the same parameters
+     * do not wait for the service registry.
+     */
+    public void prefetch(Collection<SRParameter> parameters, Executor executor) {
+        serviceRegistryClient.prefetchIdentifierResources(parameters, executor);
+    }
+
     public List<ServiceRecord> getServiceRecords(SRParameter parameter) {
         try {
             return loadServiceRecords(parameter);
@@ -28,6 +28,7 @@ import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.web.client.HttpClientErrorException;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Objects;
 import java.util.UUID;
@@ -70,6 +71,9 @@ public class ServiceRegistryLookupTest {
     @Autowired
     private ServiceRegistryLookup service;
 
+    @Autowired
+    private ServiceRegistryClient serviceRegistryClient;
+
     @MockBean
     private IntegrasjonspunktProperties properties;
 
@@ -91,6 +95,7 @@ public class ServiceRegistryLookupTest {
         when(properties.getArkivmelding()).thenReturn(arkivmelding);
         when(properties.getFeature()).thenReturn(feature);
         when(properties.getFeature().isEnableDsfPrintLookup()).thenReturn(true);
+        when(properties.getServiceregistryCache()).thenReturn(new IntegrasjonspunktProperties.ServiceRegistryCache());
         dpo.setProcess(DEFAULT_PROCESS);
         dpo.setDocumentTypes(Collections.singletonList(DEFAULT_DOCTYPE));
     }
@@ -100,6 +105,7 @@ public class ServiceRegistryLookupTest {
         cacheManager.getCacheNames().forEach(p -> {
             Objects.requireNonNull(cacheManager.getCache(p)).clear();
         });
+        serviceRegistryClient.invalidateIdentifierResources();
     }
 
     @Test(expected = ServiceRegistryLookupException.class)
@@ -143,6 +149,22 @@ public class ServiceRegistryLookupTest {
         verify(client, times(2)).getResource(anyString(), anyMap());
     }
 
+    @Test
+    public void testThatPrefetchedServiceRecordsAreNotLookedUpAgain() throws BadJWSException, ServiceRegistryLookupException {
+        final String json = new SRContentBuilder().withServiceRecord(dpo).build();
+        when(client.getResource(any(), anyMap())).thenReturn(json);
+
+        service.prefetch(Arrays.asList(
+                SRParameter.builder(ORGNR).build(),
+                SRParameter.builder(ORGNR2).build(),
+                SRParameter.builder(ORGNR).conversationId(UUID.randomUUID().toString()).build()), Runnable::run);
+        service.getServiceRecord(SRParameter.builder(ORGNR).build());
+        service.getServiceRecord(SRParameter.builder(ORGNR2).build());
+        service.prefetch(Collections.singletonList(SRParameter.builder(ORGNR).build()), Runnable::run);
+
+        verify(client, times(2)).getResource(anyString(), anyMap());
+    }
+
     @Test
     public void testSasKeyCacheInvalidation() throws BadJWSException {
         when(client.getResource(eq("sastoken"))).thenReturn("123").thenReturn("456");